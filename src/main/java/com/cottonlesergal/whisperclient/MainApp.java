@@ -1,5 +1,6 @@
 package com.cottonlesergal.whisperclient;
 
+import com.cottonlesergal.whisperclient.services.MessageStorageService;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -33,6 +34,12 @@ public class MainApp extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() {
+        // Write out any messages still queued for storage before the JVM exits
+        MessageStorageService.getInstance().shutdown();
+    }
+
     public static void main(String[] args){
         launch(args);
     }
@@ -0,0 +1,131 @@
+package com.cottonlesergal.whisperclient.debug;
+
+import com.cottonlesergal.whisperclient.services.ChatMessageCodec;
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares the JSON and compact binary record formats of {@link ChatMessageCodec}: average
+ * record size before encryption, and encode and decode throughput, over a mix of short chat
+ * lines, longer paragraphs and media references.
+ * Run the main method directly; it is a plain timing harness, not a test.
+ */
+public class ChatMessageCodecBenchmark {
+    private static final int MESSAGES = 10_000;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        ChatMessageCodec codec = new ChatMessageCodec();
+        List<ChatMessage> messages = sampleMessages(new Random(42));
+
+        System.out.println("========== MESSAGE CODEC BENCHMARK ==========");
+        double jsonSize = averageSize(codec, messages, ChatMessageCodec.Format.JSON);
+        double binarySize = averageSize(codec, messages, ChatMessageCodec.Format.BINARY);
+        System.out.printf("Average record:  JSON %7.1f B | binary %7.1f B | %.0f%% smaller%n",
+                jsonSize, binarySize, 100 * (1 - binarySize / jsonSize));
+
+        for (ChatMessageCodec.Format format : ChatMessageCodec.Format.values()) {
+            List<byte[]> records = encodeAll(codec, messages, format);
+
+            // Warm up before timing anything
+            encode(codec, messages, format);
+            decode(codec, records);
+
+            double encodeRate = encode(codec, messages, format);
+            double decodeRate = decode(codec, records);
+            System.out.printf("%-7s encode %12.1f msgs/s | decode %12.1f msgs/s%n", format, encodeRate, decodeRate);
+        }
+        System.out.println("=============================================");
+    }
+
+    private static double averageSize(ChatMessageCodec codec, List<ChatMessage> messages,
+                                      ChatMessageCodec.Format format) throws Exception {
+        long total = 0;
+        for (byte[] record : encodeAll(codec, messages, format)) {
+            total += record.length;
+        }
+        return (double) total / messages.size();
+    }
+
+    private static List<byte[]> encodeAll(ChatMessageCodec codec, List<ChatMessage> messages,
+                                          ChatMessageCodec.Format format) throws Exception {
+        List<byte[]> records = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            records.add(codec.encode(message, format));
+        }
+        return records;
+    }
+
+    /**
+     * Encode every message {@link #ROUNDS} times, returning messages per second.
+     */
+    private static double encode(ChatMessageCodec codec, List<ChatMessage> messages,
+                                 ChatMessageCodec.Format format) throws Exception {
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (ChatMessage message : messages) {
+                bytes += codec.encode(message, format).length;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (bytes == 0) {
+            throw new IllegalStateException("Nothing was encoded");
+        }
+        return (double) ROUNDS * messages.size() / (elapsed / 1_000_000_000.0);
+    }
+
+    /**
+     * Decode every record {@link #ROUNDS} times, returning messages per second.
+     */
+    private static double decode(ChatMessageCodec codec, List<byte[]> records) throws Exception {
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (byte[] record : records) {
+                if (codec.decode(record).getId() == null) {
+                    throw new IllegalStateException("Round trip lost the message id");
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) ROUNDS * records.size() / (elapsed / 1_000_000_000.0);
+    }
+
+    private static List<ChatMessage> sampleMessages(Random random) {
+        String[] words = {"hey", "are", "you", "coming", "tonight", "the", "build", "is", "green",
+                "again", "lol", "sure", "sounds", "good", "send", "me", "that", "file", "later"};
+        long timestamp = 1_700_000_000_000L;
+
+        List<ChatMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean fromMe = random.nextBoolean();
+            String content;
+            String type = "text";
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                type = "image";
+                content = "[MEDIA_REF:" + UUID.randomUUID() + ":" + Long.toHexString(random.nextLong()) +
+                        ":image/png:" + random.nextInt(5_000_000) + ":photo_" + i + ".png]";
+            } else {
+                StringBuilder text = new StringBuilder();
+                int length = kind < 8 ? 1 + random.nextInt(8) : 30 + random.nextInt(60);
+                for (int w = 0; w < length; w++) {
+                    if (w > 0) text.append(' ');
+                    text.append(words[random.nextInt(words.length)]);
+                }
+                content = text.toString();
+            }
+
+            ChatMessage message = new ChatMessage(UUID.randomUUID().toString(),
+                    fromMe ? "alice" : "bob", fromMe ? "bob" : "alice", content, type, fromMe);
+            timestamp += random.nextInt(120_000);
+            message.setTimestamp(timestamp);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -113,8 +113,8 @@ public class DebugMessageTest {
             return;
         }
 
+        InboxWs inbox = new InboxWs();
         try {
-            InboxWs inbox = new InboxWs();
 
             System.out.println("Attempting to connect to: " + Config.DIR_WORKER);
             System.out.println("User: " + Session.me.getUsername());
@@ -148,11 +148,12 @@ public class DebugMessageTest {
 
             // Clean up
             messageSubscription.close();
-            inbox.disconnect();
 
         } catch (Exception e) {
             System.err.println("✗ WebSocket test failed: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            inbox.disconnect();
         }
     }
 
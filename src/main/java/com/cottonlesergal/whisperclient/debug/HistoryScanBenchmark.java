@@ -0,0 +1,189 @@
+package com.cottonlesergal.whisperclient.debug;
+
+import com.cottonlesergal.whisperclient.core.Session;
+import com.cottonlesergal.whisperclient.models.UserProfile;
+import com.cottonlesergal.whisperclient.services.ChatMessageCodec;
+import com.cottonlesergal.whisperclient.services.MessageStorageService;
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.cottonlesergal.whisperclient.services.SegmentScanner;
+import com.cottonlesergal.whisperclient.services.StorageCipher;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Compares ways of reading a whole conversation history, in MB/s of stored data and
+ * messages/s, each including decryption and parsing:
+ * <ul>
+ *   <li>the old one-file-per-message layout, one {@code readAllBytes} per message</li>
+ *   <li>cursor paging through the segment log, one positional read per message</li>
+ *   <li>{@link SegmentScanner} with memory-mapped segments</li>
+ *   <li>{@link SegmentScanner} with buffered positional reads into a heap buffer</li>
+ * </ul>
+ * Runs against a throwaway store in a temporary directory, with the files in the OS page
+ * cache after the warm-up rounds. Run the main method directly; it is a plain timing
+ * harness, not a test.
+ */
+public class HistoryScanBenchmark {
+    private static final String CONVERSATION = "bench";
+    private static final int MESSAGES = 50_000;
+    private static final int PAGE_SIZE = 256;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    // Shared so the message files are decoded with the symbols they were encoded with
+    private static final ChatMessageCodec CODEC = new ChatMessageCodec();
+
+    public static void main(String[] args) throws Exception {
+        Path home = Files.createTempDirectory("whisper-scan-bench");
+        // The storage service picks its directory from user.home when first used
+        System.setProperty("user.home", home.toString());
+        Session.me = new UserProfile("bench", "alice", "", "bench", "");
+
+        try {
+            MessageStorageService storage = MessageStorageService.getInstance();
+            List<ChatMessage> messages = sampleMessages(new Random(42));
+            for (ChatMessage message : messages) {
+                storage.storeMessageAsync(CONVERSATION, message);
+            }
+            storage.flushPendingWrites();
+            long logBytes = storage.getManifest(CONVERSATION).getTotalBytes();
+
+            Path legacyDir = Files.createDirectories(home.resolve("legacy"));
+            SecretKey legacyKey = new SecretKeySpec(MessageDigest.getInstance("SHA-256")
+                    .digest("benchmark".getBytes(StandardCharsets.UTF_8)), "AES");
+            long legacyBytes = writeLegacyFiles(legacyDir, legacyKey, messages);
+
+            System.out.println("========== HISTORY SCAN BENCHMARK ==========");
+            System.out.printf("%d messages | segment log %.1f MB | message files %.1f MB%n",
+                    MESSAGES, logBytes / 1e6, legacyBytes / 1e6);
+
+            report("file per message", legacyBytes, () -> readLegacyFiles(legacyDir, legacyKey));
+            report("cursor paging", logBytes, () -> readByCursor(storage));
+            for (SegmentScanner.Mode mode : SegmentScanner.Mode.values()) {
+                storage.setScanMode(mode);
+                report("scan " + mode.name().toLowerCase(), logBytes, () -> scan(storage));
+            }
+            System.out.println("============================================");
+
+            storage.shutdown();
+        } finally {
+            deleteRecursively(home);
+        }
+    }
+
+    private interface Reader {
+        int readAll() throws Exception;
+    }
+
+    /**
+     * Warm up, then time {@link #ROUNDS} full reads and print the rates
+     */
+    private static void report(String name, long bytes, Reader reader) throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            check(reader.readAll());
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            check(reader.readAll());
+        }
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        System.out.printf("%-17s %9.1f MB/s | %12.1f msgs/s%n",
+                name, ROUNDS * bytes / 1e6 / seconds, ROUNDS * MESSAGES / seconds);
+    }
+
+    private static void check(int read) {
+        if (read != MESSAGES) {
+            throw new IllegalStateException("Read " + read + " of " + MESSAGES + " messages");
+        }
+    }
+
+    private static int readByCursor(MessageStorageService storage) {
+        int read = 0;
+        List<ChatMessage> page = storage.loadMessagesBetween(CONVERSATION, Long.MIN_VALUE, Long.MAX_VALUE, PAGE_SIZE);
+        while (!page.isEmpty()) {
+            read += page.size();
+            ChatMessage last = page.get(page.size() - 1);
+            page = storage.loadMessagesAfter(CONVERSATION, last.getTimestamp(), last.getId(), PAGE_SIZE);
+        }
+        return read;
+    }
+
+    private static int scan(MessageStorageService storage) throws IOException {
+        int[] read = {0};
+        storage.scanMessages(CONVERSATION, message -> read[0]++);
+        return read[0];
+    }
+
+    // The pre-segment-log layout, kept here only for comparison
+
+    private static long writeLegacyFiles(Path dir, SecretKey key, List<ChatMessage> messages) throws Exception {
+        long bytes = 0;
+        for (ChatMessage message : messages) {
+            byte[] sealed = StorageCipher.seal(key, CODEC.encode(message, ChatMessageCodec.Format.BINARY));
+            Files.write(dir.resolve(message.getTimestamp() + "_" + message.getId() + ".msg"), sealed);
+            bytes += sealed.length;
+        }
+        return bytes;
+    }
+
+    private static int readLegacyFiles(Path dir, SecretKey key) throws Exception {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.sorted().toList();
+        }
+
+        int read = 0;
+        for (Path file : files) {
+            if (CODEC.decode(StorageCipher.open(key, ByteBuffer.wrap(Files.readAllBytes(file)))) != null) {
+                read++;
+            }
+        }
+        return read;
+    }
+
+    private static List<ChatMessage> sampleMessages(Random random) {
+        String[] words = {"hey", "are", "you", "coming", "tonight", "the", "build", "is", "green",
+                "again", "lol", "sure", "sounds", "good", "send", "me", "that", "file", "later"};
+        long timestamp = 1_700_000_000_000L;
+
+        List<ChatMessage> messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            boolean fromMe = random.nextBoolean();
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(10) < 8 ? 1 + random.nextInt(8) : 30 + random.nextInt(60);
+            for (int w = 0; w < length; w++) {
+                if (w > 0) text.append(' ');
+                text.append(words[random.nextInt(words.length)]);
+            }
+
+            ChatMessage message = new ChatMessage(UUID.randomUUID().toString(),
+                    fromMe ? "alice" : CONVERSATION, fromMe ? CONVERSATION : "alice", text.toString(), "text", fromMe);
+            timestamp += random.nextInt(120_000);
+            message.setTimestamp(timestamp);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.cottonlesergal.whisperclient.debug;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.cottonlesergal.whisperclient.services.StorageCipher;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Compares the old per-message encryption path (new Cipher, new SecureRandom and String
+ * round-trips for every message) against {@link StorageCipher}, at 1 KB and 1 MB payloads.
+ * Run the main method directly; it is a plain timing harness, not a test.
+ */
+public class StorageCipherBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int[] PAYLOAD_SIZES = {1024, 1024 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        SecretKey key = new SecretKeySpec(
+                MessageDigest.getInstance("SHA-256").digest("benchmark".getBytes(StandardCharsets.UTF_8)), "AES");
+
+        System.out.println("========== STORAGE CIPHER BENCHMARK ==========");
+        for (int size : PAYLOAD_SIZES) {
+            ChatMessage message = new ChatMessage("bench-" + size, "alice", "bob", "x".repeat(size),
+                    "text", true);
+            int iterations = size >= 1024 * 1024 ? 50 : 20_000;
+
+            // Warm both paths up before timing anything
+            run(key, message, iterations, true);
+            run(key, message, iterations, false);
+
+            double legacy = run(key, message, iterations, true);
+            double reusable = run(key, message, iterations, false);
+
+            System.out.printf("%7d B payload: legacy %10.1f ops/s | StorageCipher %10.1f ops/s | %.2fx%n",
+                    size, legacy, reusable, reusable / legacy);
+        }
+        System.out.println("==============================================");
+    }
+
+    /**
+     * Encrypt and decrypt the message {@code iterations} times, returning round trips per second.
+     */
+    private static double run(SecretKey key, ChatMessage message, int iterations, boolean legacy) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ChatMessage decoded = legacy
+                    ? legacyDecrypt(key, legacyEncrypt(key, message))
+                    : MAPPER.readValue(StorageCipher.open(key, ByteBuffer.wrap(
+                            StorageCipher.seal(key, MAPPER.writeValueAsBytes(message)))), ChatMessage.class);
+            if (decoded.getContent().length() != message.getContent().length()) {
+                throw new IllegalStateException("Round trip changed the message");
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        return iterations / (elapsed / 1_000_000_000.0);
+    }
+
+    // The pre-StorageCipher implementation, kept here only for comparison
+
+    private static byte[] legacyEncrypt(SecretKey key, ChatMessage message) throws Exception {
+        byte[] nonce = new byte[12];
+        new SecureRandom().nextBytes(nonce);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+
+        String json = MAPPER.writeValueAsString(message);
+        byte[] encrypted = cipher.doFinal(json.getBytes());
+
+        byte[] result = new byte[nonce.length + encrypted.length];
+        System.arraycopy(nonce, 0, result, 0, nonce.length);
+        System.arraycopy(encrypted, 0, result, nonce.length, encrypted.length);
+        return result;
+    }
+
+    private static ChatMessage legacyDecrypt(SecretKey key, byte[] data) throws Exception {
+        byte[] nonce = new byte[12];
+        byte[] encrypted = new byte[data.length - 12];
+        System.arraycopy(data, 0, nonce, 0, 12);
+        System.arraycopy(data, 12, encrypted, 0, encrypted.length);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+
+        String json = new String(cipher.doFinal(encrypted));
+        return MAPPER.readValue(json, ChatMessage.class);
+    }
+}
@@ -15,7 +15,6 @@ import java.awt.Desktop;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.*;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
@@ -134,13 +133,11 @@ public class AuthService {
             // Try to get a new token by hitting the silent refresh endpoint
             String refreshUrl = Config.AUTH_WORKER + "/oauth/google?silent=true";
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(refreshUrl))
-                    .header("User-Agent", "WhisperClient/1.0")
+            HttpRequest req = HttpTransport.getInstance().anonymousRequest(refreshUrl)
                     .GET()
                     .build();
 
-            HttpResponse<String> response = HttpClient.newHttpClient()
-                    .send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HttpTransport.getInstance().send(req, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[AuthService] Google silent refresh response: " + response.statusCode());
 
@@ -174,13 +171,11 @@ public class AuthService {
             // Similar approach for Discord
             String refreshUrl = Config.AUTH_WORKER + "/oauth/discord?silent=true";
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(refreshUrl))
-                    .header("User-Agent", "WhisperClient/1.0")
+            HttpRequest req = HttpTransport.getInstance().anonymousRequest(refreshUrl)
                     .GET()
                     .build();
 
-            HttpResponse<String> response = HttpClient.newHttpClient()
-                    .send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HttpTransport.getInstance().send(req, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[AuthService] Discord silent refresh response: " + response.statusCode());
 
@@ -217,13 +212,11 @@ public class AuthService {
             try {
                 String validateUrl = Config.AUTH_WORKER + "/validate-token";
 
-                HttpRequest req = HttpRequest.newBuilder(URI.create(validateUrl))
-                        .header("authorization", "Bearer " + Config.APP_TOKEN)
+                HttpRequest req = HttpTransport.getInstance().request(validateUrl)
                         .GET()
                         .build();
 
-                HttpResponse<String> response = HttpClient.newHttpClient()
-                        .send(req, HttpResponse.BodyHandlers.ofString());
+                HttpResponse<String> response = HttpTransport.getInstance().send(req, HttpResponse.BodyHandlers.ofString());
 
                 if (response.statusCode() == 200) {
                     JsonNode result = M.readTree(response.body());
@@ -0,0 +1,42 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The current backup chain: a full backup followed by its incremental backups, plus each
+ * conversation's change journal high-water mark as of the newest file.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BackupChain {
+    static final String FILE_NAME = "backup-chain.json";
+
+    private List<String> files = new ArrayList<>();
+    @JsonProperty
+    private Map<String, ChangeJournal.Mark> marks = new HashMap<>();
+
+    // Default constructor for Jackson
+    public BackupChain() {}
+
+    BackupChain(String fullBackup, Map<String, ChangeJournal.Mark> marks) {
+        this.files.add(fullBackup);
+        this.marks.putAll(marks);
+    }
+
+    /**
+     * Backup file names, full backup first
+     */
+    public List<String> getFiles() { return files; }
+    public void setFiles(List<String> files) { this.files = files; }
+
+    Map<String, ChangeJournal.Mark> marks() { return marks; }
+
+    String latest() {
+        return files.isEmpty() ? null : files.get(files.size() - 1);
+    }
+}
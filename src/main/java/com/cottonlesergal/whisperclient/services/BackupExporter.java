@@ -0,0 +1,347 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams message backups to disk one batch at a time, so only a window of decoded messages
+ * is ever held in memory however large the store is. Full backups read each conversation
+ * with a sequential {@link MessageStorageService#scanMessages scan}.
+ *
+ * Output is compact JSON in the same shape as the old in-memory backups, optionally gzipped.
+ * Media is written inline in the old {@code [INLINE_MEDIA:...]} form, so a backup does not
+ * depend on the blob store; storing a restored message moves it back into the store.
+ * It is written to a temporary file and moved into place once complete. An incremental
+ * backup holds only what changed since the previous file of its chain; see
+ * {@link BackupRestorer} for replaying a chain.
+ */
+public final class BackupExporter {
+    static final int BATCH_SIZE = 256;
+    static final String VERSION = "1.0";
+    static final String TYPE_FULL = "full";
+    static final String TYPE_INCREMENTAL = "incremental";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Receives progress after every batch and once more when the export finishes
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(BackupProgress progress);
+    }
+
+    private final MessageStorageService storage;
+    private final ProgressListener listener;
+
+    public BackupExporter(MessageStorageService storage, ProgressListener listener) {
+        this.storage = storage;
+        this.listener = listener;
+    }
+
+    /**
+     * Write {@code {"timestamp", "version", "conversations": {username: [messages]}}} for
+     * every conversation in {@code usernames}.
+     */
+    public BackupProgress exportAll(Path target, List<String> usernames, boolean compress) throws IOException {
+        BackupProgress progress = new BackupProgress(usernames.size(), expectedMessages(usernames));
+
+        writeAtomically(target, compress, progress, generator -> {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", Instant.now().toEpochMilli());
+            generator.writeStringField("version", VERSION);
+            generator.writeStringField("type", TYPE_FULL);
+            generator.writeObjectFieldStart("conversations");
+            for (String username : usernames) {
+                generator.writeFieldName(username);
+                writeMessages(generator, username, progress);
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        });
+        return progress;
+    }
+
+    /**
+     * Write {@code {"timestamp", "username", "messages": [messages]}} for one conversation.
+     */
+    public BackupProgress exportConversation(Path target, String username, boolean compress) throws IOException {
+        BackupProgress progress = new BackupProgress(1, expectedMessages(List.of(username)));
+
+        writeAtomically(target, compress, progress, generator -> {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", Instant.now().toEpochMilli());
+            generator.writeStringField("username", username);
+            generator.writeFieldName("messages");
+            writeMessages(generator, username, progress);
+            generator.writeEndObject();
+        });
+        return progress;
+    }
+
+    /**
+     * Write the changes since {@code previous}, the file before this one in its chain:
+     * conversations to clear, keys to delete, then the messages to add. Restoring applies
+     * them in that order.
+     */
+    BackupProgress exportIncremental(Path target, String previous, List<ConversationDelta> deltas,
+                                     boolean compress) throws IOException {
+        long expected = 0;
+        for (ConversationDelta delta : deltas) {
+            expected += delta.storedKeys() != null ? delta.storedKeys().size()
+                    : storage.getManifest(delta.username()).getMessageCount();
+        }
+        BackupProgress progress = new BackupProgress(deltas.size(), expected);
+
+        writeAtomically(target, compress, progress, generator -> {
+            generator.writeStartObject();
+            generator.writeNumberField("timestamp", Instant.now().toEpochMilli());
+            generator.writeStringField("version", VERSION);
+            generator.writeStringField("type", TYPE_INCREMENTAL);
+            generator.writeStringField("previous", previous);
+
+            generator.writeArrayFieldStart("cleared");
+            for (ConversationDelta delta : deltas) {
+                if (delta.cleared()) {
+                    generator.writeString(delta.username());
+                }
+            }
+            generator.writeEndArray();
+
+            generator.writeObjectFieldStart("deleted");
+            for (ConversationDelta delta : deltas) {
+                if (!delta.deletedKeys().isEmpty()) {
+                    generator.writeArrayFieldStart(delta.username());
+                    for (String key : delta.deletedKeys()) {
+                        generator.writeString(key);
+                    }
+                    generator.writeEndArray();
+                }
+            }
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("conversations");
+            for (ConversationDelta delta : deltas) {
+                if (delta.storedKeys() == null) {
+                    generator.writeFieldName(delta.username());
+                    writeMessages(generator, delta.username(), progress);
+                } else if (!delta.storedKeys().isEmpty()) {
+                    generator.writeFieldName(delta.username());
+                    writeMessagesByKey(generator, delta.username(), delta.storedKeys(), progress);
+                } else {
+                    progress.conversationsWritten++;
+                }
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        });
+        return progress;
+    }
+
+    /**
+     * Changes to one conversation for an incremental backup. {@code storedKeys} is null
+     * when every message has to be exported.
+     */
+    record ConversationDelta(String username, boolean cleared, Collection<String> deletedKeys,
+                             List<String> storedKeys) {}
+
+    // ============== INTERNALS ==============
+
+    private interface Body {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private void writeAtomically(Path target, boolean compress, BackupProgress progress, Body body) throws IOException {
+        Path temp = StorageFiles.tempFile(target);
+        try (CountingOutputStream counter = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp), BUFFER_BYTES), progress);
+             OutputStream out = compress ? new GZIPOutputStream(counter, BUFFER_BYTES) : counter;
+             JsonGenerator generator = MAPPER.getFactory().createGenerator(out)) {
+            body.write(generator);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        StorageFiles.force(temp);
+        StorageFiles.commit(temp, target);
+        progress.finished = true;
+        progress.elapsedMillis = System.currentTimeMillis() - progress.startedAt;
+        report(progress);
+    }
+
+    /**
+     * Stream one conversation as a JSON array, oldest first, with a sequential scan of its log
+     */
+    private void writeMessages(JsonGenerator generator, String username, BackupProgress progress) throws IOException {
+        progress.currentConversation = username;
+        generator.writeStartArray();
+
+        storage.scanMessages(username, message -> {
+            writeMessage(generator, username, message);
+            if (++progress.messagesWritten % BATCH_SIZE == 0) {
+                generator.flush();
+                report(progress);
+            }
+        });
+        generator.flush();
+        report(progress);
+
+        generator.writeEndArray();
+        progress.conversationsWritten++;
+    }
+
+    private void writeMessagesByKey(JsonGenerator generator, String username, List<String> keys,
+                                    BackupProgress progress) throws IOException {
+        progress.currentConversation = username;
+        generator.writeStartArray();
+
+        for (int start = 0; start < keys.size(); start += BATCH_SIZE) {
+            List<ChatMessage> batch = storage.loadMessagesByKey(username,
+                    keys.subList(start, Math.min(keys.size(), start + BATCH_SIZE)));
+            for (ChatMessage message : batch) {
+                writeMessage(generator, username, message);
+            }
+            progress.messagesWritten += batch.size();
+            generator.flush();
+            report(progress);
+        }
+
+        generator.writeEndArray();
+        progress.conversationsWritten++;
+    }
+
+    /**
+     * Write one message, with the media it refers to inline
+     */
+    private void writeMessage(JsonGenerator generator, String username, ChatMessage message) throws IOException {
+        MediaReference reference = MediaReference.parse(message.getContent());
+        if (reference == null) {
+            generator.writeObject(message);
+            return;
+        }
+
+        byte[] data = storage.loadMedia(username, reference);
+        if (data == null) {
+            // Already gone from the store; keep the reference so the caption survives
+            System.err.println("[BackupExporter] Media " + reference.fileName() + " for " + username +
+                    " is missing, backing up its reference only");
+            generator.writeObject(message);
+            return;
+        }
+
+        // The old format splits on colons and ends at the first ']', so neither may be in the name
+        String safeName = reference.fileName().replace(':', '_').replace(']', '_');
+        String rest = message.getContent().substring(message.getContent().indexOf(']') + 1);
+        ObjectNode node = MAPPER.valueToTree(message);
+        node.put("content", MessageStorageService.INLINE_MEDIA_PREFIX + reference.id() + ":" + safeName + ":" + reference.mimeType() +
+                ":" + data.length + ":" + Base64.getEncoder().encodeToString(data) + "]" + rest);
+        generator.writeTree(node);
+    }
+
+    private long expectedMessages(List<String> usernames) {
+        long total = 0;
+        for (String username : usernames) {
+            total += storage.getManifest(username).getMessageCount();
+        }
+        return total;
+    }
+
+    private void report(BackupProgress progress) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onProgress(progress.copy());
+        } catch (Exception e) {
+            System.err.println("[BackupExporter] Progress listener failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts the bytes that reach the file (after compression)
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final BackupProgress progress;
+
+        CountingOutputStream(OutputStream out, BackupProgress progress) {
+            super(out);
+            this.progress = progress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            progress.bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            progress.bytesWritten += len;
+        }
+    }
+
+    /**
+     * Progress and throughput of a running or finished export
+     */
+    public static class BackupProgress {
+        public final int totalConversations;
+        public final long expectedMessages;
+        public final long startedAt;
+        public int conversationsWritten = 0;
+        public long messagesWritten = 0;
+        public long bytesWritten = 0;
+        public String currentConversation;
+        public boolean finished = false;
+        public long elapsedMillis = 0;
+
+        BackupProgress(int totalConversations, long expectedMessages) {
+            this(totalConversations, expectedMessages, System.currentTimeMillis());
+        }
+
+        private BackupProgress(int totalConversations, long expectedMessages, long startedAt) {
+            this.totalConversations = totalConversations;
+            this.expectedMessages = expectedMessages;
+            this.startedAt = startedAt;
+        }
+
+        public double messagesPerSecond() {
+            return elapsedMillis == 0 ? 0 : messagesWritten * 1000.0 / elapsedMillis;
+        }
+
+        public double bytesPerSecond() {
+            return elapsedMillis == 0 ? 0 : bytesWritten * 1000.0 / elapsedMillis;
+        }
+
+        /**
+         * Fraction of the expected messages written so far, from 0 to 1
+         */
+        public double fractionDone() {
+            if (finished) return 1;
+            return expectedMessages == 0 ? 0 : Math.min(1, (double) messagesWritten / expectedMessages);
+        }
+
+        BackupProgress copy() {
+            BackupProgress copy = new BackupProgress(totalConversations, expectedMessages, startedAt);
+            copy.conversationsWritten = conversationsWritten;
+            copy.messagesWritten = messagesWritten;
+            copy.bytesWritten = bytesWritten;
+            copy.currentConversation = currentConversation;
+            copy.finished = finished;
+            copy.elapsedMillis = System.currentTimeMillis() - startedAt;
+            return copy;
+        }
+    }
+}
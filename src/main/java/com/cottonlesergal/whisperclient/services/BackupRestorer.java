@@ -0,0 +1,166 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays backups written by {@link BackupExporter}: a full backup followed by the
+ * incremental backups of its chain, in order. Files are parsed as a stream, so memory stays
+ * bounded by one batch of messages.
+ *
+ * Messages whose id is already stored are skipped, so restoring into a store that still
+ * holds some of the history, or replaying the same file twice, does not duplicate anything.
+ */
+public final class BackupRestorer {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final MessageStorageService storage;
+
+    public BackupRestorer(MessageStorageService storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Restore {@code files}, oldest first. Each incremental backup must name the file
+     * before it as its previous one.
+     */
+    public RestoreResult restore(List<Path> files) throws IOException {
+        RestoreResult result = new RestoreResult();
+        String previous = null;
+
+        for (Path file : files) {
+            try (InputStream in = open(file); JsonParser parser = MAPPER.getFactory().createParser(in)) {
+                restoreFile(parser, file.getFileName().toString(), previous, result);
+            }
+            previous = file.getFileName().toString();
+            result.filesRestored++;
+        }
+
+        storage.flushPendingWrites();
+        return result;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void restoreFile(JsonParser parser, String name, String previous, RestoreResult result) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Not a backup file: " + name);
+        }
+
+        String username = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+
+            switch (field) {
+                case "type" -> {
+                    boolean incremental = BackupExporter.TYPE_INCREMENTAL.equals(parser.getText());
+                    if (incremental == (previous == null)) {
+                        throw new IOException(incremental
+                                ? "Backup chain must start with a full backup, not " + name
+                                : "Full backup " + name + " cannot follow " + previous);
+                    }
+                }
+                case "previous" -> {
+                    if (!Objects.equals(parser.getText(), previous)) {
+                        throw new IOException("Backup chain is broken: " + name + " follows " +
+                                parser.getText() + ", not " + previous);
+                    }
+                }
+                case "cleared" -> {
+                    while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                        storage.clearMessages(parser.getText());
+                        result.conversationsCleared++;
+                    }
+                }
+                case "deleted" -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String conversation = parser.currentName();
+                        parser.nextToken();
+                        List<String> keys = new ArrayList<>();
+                        while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                            keys.add(parser.getText());
+                        }
+                        result.messagesDeleted += storage.deleteMessagesByKey(conversation, keys);
+                    }
+                }
+                case "conversations" -> {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String conversation = parser.currentName();
+                        parser.nextToken();
+                        restoreMessages(parser, conversation, result);
+                    }
+                }
+                // Single-conversation backups
+                case "username" -> username = parser.getText();
+                case "messages" -> {
+                    if (username == null) {
+                        throw new IOException("Conversation backup " + name + " has no username before its messages");
+                    }
+                    restoreMessages(parser, username, result);
+                }
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Store the messages of one JSON array, skipping ids that are already stored
+     */
+    private void restoreMessages(JsonParser parser, String username, RestoreResult result) throws IOException {
+        List<ChatMessage> batch = new ArrayList<>(BackupExporter.BATCH_SIZE);
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            batch.add(MAPPER.readValue(parser, ChatMessage.class));
+            if (batch.size() == BackupExporter.BATCH_SIZE) {
+                storeBatch(username, batch, result);
+                batch.clear();
+            }
+        }
+        storeBatch(username, batch, result);
+
+        // Restored history is not new; don't show it as unread
+        storage.markConversationRead(username);
+    }
+
+    private void storeBatch(String username, List<ChatMessage> batch, RestoreResult result) {
+        // Earlier batches must be written before they can be seen as duplicates
+        storage.flushPendingWrites();
+
+        Set<String> seen = new HashSet<>();
+        for (ChatMessage message : batch) {
+            if (message.getId() == null || !seen.add(message.getId()) || storage.hasMessage(username, message.getId())) {
+                result.duplicatesSkipped++;
+                continue;
+            }
+            storage.storeMessage(username, message);
+            result.messagesRestored++;
+        }
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    /**
+     * What a restore did
+     */
+    public static class RestoreResult {
+        public int filesRestored = 0;
+        public int conversationsCleared = 0;
+        public long messagesRestored = 0;
+        public long messagesDeleted = 0;
+        public long duplicatesSkipped = 0;
+    }
+}
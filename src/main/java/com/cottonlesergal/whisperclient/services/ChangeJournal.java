@@ -0,0 +1,261 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * Append-only journal of the index keys stored into and deleted from one conversation,
+ * used by incremental backups to find what changed since the previous backup.
+ *
+ * A backup's high-water mark is a {@link Mark}: the journal's random id plus a logical
+ * position. Positions keep growing when the start of the journal is discarded, so marks
+ * stay valid; a journal that had to be recreated gets a new id, which invalidates them.
+ * While no backup chain exists nothing needs the changes, so the storage service does not
+ * record any and opens journals with {@code keepChanges} off, which empties them.
+ */
+final class ChangeJournal implements Closeable {
+    static final String FILE_NAME = "changes.log";
+
+    static final byte STORED = 1;
+    static final byte DELETED = 2;
+    static final byte CLEARED = 3;
+
+    private static final int MAGIC = 0x5743434A; // "WCCJ"
+    // magic(4) + id(8) + logical position of the first change(8)
+    private static final int HEADER_BYTES = 4 + 8 + 8;
+    // Read size when checking the journal at open; larger than any single change (2 + 255)
+    private static final int SCAN_CHUNK_BYTES = 64 * 1024;
+
+    private final Path file;
+    private FileChannel channel;
+    private long id;
+    private long base;
+    private long size;
+
+    private ChangeJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Open (or create) the journal in {@code dir}, dropping a torn tail left by a crash.
+     * Without {@code keepChanges} the journal is started afresh under a new id instead.
+     */
+    static ChangeJournal open(Path dir, boolean keepChanges) throws IOException {
+        ChangeJournal journal = new ChangeJournal(dir.resolve(FILE_NAME));
+        journal.openChannel(keepChanges);
+        return journal;
+    }
+
+    /**
+     * Record changes to {@code keys} with one write.
+     */
+    synchronized void append(byte type, Collection<String> keys) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        List<byte[]> encoded = new ArrayList<>(keys.size());
+        int length = 0;
+        for (String key : keys) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            length += 2 + bytes.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] bytes : encoded) {
+            buffer.put(type);
+            buffer.put((byte) bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.flip();
+        write(buffer);
+    }
+
+    /**
+     * Record that every message was removed.
+     */
+    synchronized void appendCleared() throws IOException {
+        write(ByteBuffer.wrap(new byte[]{CLEARED, 0}));
+    }
+
+    /**
+     * Mark just past the last change.
+     */
+    synchronized Mark mark() {
+        return new Mark(id, end());
+    }
+
+    /**
+     * Changes between two marks, or null if they do not belong to this journal or the
+     * changes after {@code from} have already been discarded.
+     */
+    synchronized ChangeSet read(Mark from, Mark to) throws IOException {
+        if (from.journal() != id || to.journal() != id || from.position() < base || from.position() > end()) {
+            return null;
+        }
+
+        ChangeSet changes = new ChangeSet();
+        long start = HEADER_BYTES + (from.position() - base);
+        long end = HEADER_BYTES + Math.min(to.position(), end()) - base;
+        if (start >= end) {
+            return changes;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(buffer, start);
+        buffer.flip();
+        while (buffer.remaining() >= 2) {
+            byte type = buffer.get();
+            byte[] key = new byte[Byte.toUnsignedInt(buffer.get())];
+            buffer.get(key);
+            changes.apply(type, new String(key, StandardCharsets.UTF_8));
+        }
+        return changes;
+    }
+
+    /**
+     * Drop the changes before {@code mark}, once no backup needs them.
+     */
+    synchronized void discardBefore(Mark mark) throws IOException {
+        long upTo = Math.min(mark.position(), end());
+        if (mark.journal() != id || upTo <= base) {
+            return;
+        }
+
+        ByteBuffer tail = ByteBuffer.allocate((int) (end() - upTo));
+        readFully(tail, HEADER_BYTES + (upTo - base));
+
+        byte[] data = new byte[HEADER_BYTES + tail.capacity()];
+        ByteBuffer.wrap(data).putInt(MAGIC).putLong(id).putLong(upTo).put(tail.array());
+        channel.close();
+        StorageFiles.writeAtomically(file, data);
+        openChannel(true);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    // ============== INTERNALS ==============
+
+    private long end() {
+        return base + size - HEADER_BYTES;
+    }
+
+    private void openChannel(boolean keepChanges) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (size >= HEADER_BYTES) {
+            readFully(header, 0);
+            header.flip();
+        }
+        if (size < HEADER_BYTES || header.getInt() != MAGIC || (!keepChanges && size > HEADER_BYTES)) {
+            // New, unreadable or not needed: start a fresh journal, so earlier marks no longer match
+            id = new SecureRandom().nextLong();
+            base = 0;
+            channel.truncate(0);
+            write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putLong(id).putLong(base).flip(), 0);
+            size = HEADER_BYTES;
+            return;
+        }
+        id = header.getLong();
+        base = header.getLong();
+        size = HEADER_BYTES + validLength(size - HEADER_BYTES);
+        channel.truncate(size);
+    }
+
+    /**
+     * Length of the complete changes at the start of the body, read a chunk at a time
+     */
+    private long validLength(long bodyLength) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(SCAN_CHUNK_BYTES, bodyLength));
+        chunk.flip();
+        long read = 0;
+        long valid = 0;
+        while (true) {
+            // Top up while a whole change might not fit in what is left of the chunk
+            if (chunk.remaining() < 2 + 255 && read < bodyLength) {
+                chunk.compact();
+                int length = (int) Math.min(chunk.remaining(), bodyLength - read);
+                chunk.limit(chunk.position() + length);
+                readFully(chunk, HEADER_BYTES + read);
+                read += length;
+                chunk.flip();
+            }
+            if (chunk.remaining() < 2) {
+                break;
+            }
+            int length = Byte.toUnsignedInt(chunk.get(chunk.position() + 1));
+            if (chunk.remaining() < 2 + length) {
+                break;
+            }
+            chunk.position(chunk.position() + 2 + length);
+            valid += 2 + length;
+        }
+        return valid;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        write(buffer, size);
+        size += length;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal " + file + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * High-water mark of a backup in one conversation's journal
+     */
+    record Mark(long journal, long position) {}
+
+    /**
+     * Net effect of a run of changes: keys stored and deleted, and whether the conversation
+     * was cleared first. A key deleted and stored again appears in both sets, so replaying
+     * deletes before stores gives the right result.
+     */
+    static final class ChangeSet {
+        final Set<String> stored = new LinkedHashSet<>();
+        final Set<String> deleted = new LinkedHashSet<>();
+        boolean cleared = false;
+
+        private void apply(byte type, String key) {
+            switch (type) {
+                case STORED -> stored.add(key);
+                case DELETED -> {
+                    stored.remove(key);
+                    deleted.add(key);
+                }
+                case CLEARED -> {
+                    stored.clear();
+                    deleted.clear();
+                    cleared = true;
+                }
+                default -> System.err.println("[ChangeJournal] Skipping unknown change type " + type);
+            }
+        }
+    }
+}
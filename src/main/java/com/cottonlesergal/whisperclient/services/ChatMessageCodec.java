@@ -0,0 +1,234 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Turns stored messages into record plaintext and back. Records are either the original
+ * Jackson JSON or a versioned compact binary form:
+ *
+ * <pre>
+ * magic(1) version(1) flags(1) type(1) [custom type string]
+ * timestamp(zigzag varlong) id(string) from(varint symbol) to(varint symbol) content(string)
+ * </pre>
+ *
+ * Strings are a varint of length + 1 (0 for null) followed by UTF-8. Sender and recipient ids
+ * repeat on nearly every message of a conversation, so they are stored once in a
+ * {@link SymbolTable} and referenced by number + 1 (0 for null).
+ *
+ * JSON records always start with '{', so both forms can be read side by side and a store can
+ * switch formats without rewriting what it already holds.
+ */
+public final class ChatMessageCodec {
+    public static final String FORMAT_PROPERTY = "whisperclient.storage.recordFormat";
+
+    /**
+     * Encoding used for newly written records
+     */
+    public enum Format { JSON, BINARY }
+
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 1;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int FLAG_FROM_ME = 1;
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_CUSTOM = 0xFF;
+    // Index + 1 is the type byte
+    private static final String[] TYPES = {"text", "image", "file", "video", "audio", "media"};
+
+    private final SymbolTable symbols;
+
+    /**
+     * Codec whose symbols live in memory only, for benchmarks and tools
+     */
+    public ChatMessageCodec() {
+        this(SymbolTable.inMemory());
+    }
+
+    ChatMessageCodec(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Format configured by {@link #FORMAT_PROPERTY}, binary unless set otherwise or unknown
+     */
+    public static Format defaultFormat() {
+        String value = System.getProperty(FORMAT_PROPERTY);
+        if (value != null) {
+            try {
+                return Format.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("[ChatMessageCodec] Ignoring unknown record format " + value + ", using BINARY");
+            }
+        }
+        return Format.BINARY;
+    }
+
+    public byte[] encode(ChatMessage message, Format format) throws IOException {
+        if (format == Format.JSON) {
+            return MAPPER.writeValueAsBytes(message);
+        }
+
+        Output out = new Output();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(message.isFromMe() ? FLAG_FROM_ME : 0);
+
+        int type = typeByte(message.getType());
+        out.writeByte(type);
+        if (type == TYPE_CUSTOM) {
+            out.writeString(message.getType());
+        }
+
+        out.writeVarLong((message.getTimestamp() << 1) ^ (message.getTimestamp() >> 63));
+        out.writeString(message.getId());
+        out.writeVarLong(symbolRef(message.getFrom()));
+        out.writeVarLong(symbolRef(message.getTo()));
+        out.writeString(message.getContent());
+        return out.toByteArray();
+    }
+
+    /**
+     * Read a record in either format
+     */
+    public ChatMessage decode(byte[] plaintext) throws IOException {
+        if (plaintext.length == 0 || plaintext[0] != MAGIC) {
+            return MAPPER.readValue(plaintext, ChatMessage.class);
+        }
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(plaintext);
+            in.get();
+            int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported message record version " + version);
+            }
+
+            ChatMessage message = new ChatMessage();
+            int flags = Byte.toUnsignedInt(in.get());
+            message.setFromMe((flags & FLAG_FROM_ME) != 0);
+
+            int type = Byte.toUnsignedInt(in.get());
+            if (type == TYPE_CUSTOM) {
+                message.setType(readString(in));
+            } else if (type != TYPE_NULL) {
+                if (type > TYPES.length) {
+                    throw new IOException("Unknown message type " + type);
+                }
+                message.setType(TYPES[type - 1]);
+            }
+
+            long zigzag = readVarLong(in);
+            message.setTimestamp((zigzag >>> 1) ^ -(zigzag & 1));
+            message.setId(readString(in));
+            message.setFrom(symbol(readVarLong(in)));
+            message.setTo(symbol(readVarLong(in)));
+            message.setContent(readString(in));
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated message record", e);
+        }
+    }
+
+    // ============== INTERNALS ==============
+
+    private static int typeByte(String type) {
+        if (type == null) {
+            return TYPE_NULL;
+        }
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i + 1;
+            }
+        }
+        return TYPE_CUSTOM;
+    }
+
+    private long symbolRef(String value) throws IOException {
+        return value == null ? 0 : symbols.intern(value) + 1L;
+    }
+
+    private String symbol(long ref) throws IOException {
+        if (ref < 0 || ref > Integer.MAX_VALUE) {
+            throw new IOException("Unknown symbol reference " + ref);
+        }
+        return ref == 0 ? null : symbols.symbol((int) (ref - 1));
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in message record");
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || length - 1 > in.remaining()) {
+            throw new IOException("Truncated message record");
+        }
+        String value = new String(in.array(), in.position(), (int) (length - 1), StandardCharsets.UTF_8);
+        in.position(in.position() + (int) (length - 1));
+        return value;
+    }
+
+    /**
+     * Growable byte buffer with varint helpers
+     */
+    private static final class Output {
+        private byte[] bytes = new byte[128];
+        private int size;
+
+        void writeByte(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(utf8.length + 1L);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+}
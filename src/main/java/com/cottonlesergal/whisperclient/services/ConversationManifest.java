@@ -0,0 +1,94 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * Small per-conversation summary kept next to the message log, so counts and sizes can
+ * be answered without opening or scanning the conversation.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ConversationManifest {
+    static final String FILE_NAME = "manifest.json";
+    static final int CURRENT_VERSION = 1;
+
+    private int version = CURRENT_VERSION;
+    private int messageCount;
+    private long totalBytes;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private String lastMessageId;
+    private long updatedAt;
+
+    // Default constructor for Jackson
+    public ConversationManifest() {}
+
+    public synchronized ConversationManifest copy() {
+        ConversationManifest copy = new ConversationManifest();
+        copy.version = version;
+        copy.messageCount = messageCount;
+        copy.totalBytes = totalBytes;
+        copy.firstTimestamp = firstTimestamp;
+        copy.lastTimestamp = lastTimestamp;
+        copy.lastMessageId = lastMessageId;
+        copy.updatedAt = updatedAt;
+        return copy;
+    }
+
+    /**
+     * Account for a stored message
+     */
+    synchronized void recordStore(long timestamp, String messageId, long logBytes) {
+        if (messageCount == 0 || timestamp < firstTimestamp) {
+            firstTimestamp = timestamp;
+        }
+        if (messageCount == 0 || timestamp >= lastTimestamp) {
+            lastTimestamp = timestamp;
+            lastMessageId = messageId;
+        }
+        messageCount++;
+        totalBytes = logBytes;
+        updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Replace every field with freshly computed values (after deletes and during reconciliation)
+     */
+    synchronized void reset(int count, long logBytes, long first, long last, String lastId) {
+        messageCount = count;
+        totalBytes = logBytes;
+        firstTimestamp = count > 0 ? first : 0;
+        lastTimestamp = count > 0 ? last : 0;
+        lastMessageId = count > 0 ? lastId : null;
+        updatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * True if this manifest agrees with freshly computed values
+     */
+    synchronized boolean matches(int count, long logBytes, long first, long last) {
+        return messageCount == count && totalBytes == logBytes
+                && (count == 0 || (firstTimestamp == first && lastTimestamp == last));
+    }
+
+    // Getters and setters for Jackson
+    public synchronized int getVersion() { return version; }
+    public synchronized void setVersion(int version) { this.version = version; }
+
+    public synchronized int getMessageCount() { return messageCount; }
+    public synchronized void setMessageCount(int messageCount) { this.messageCount = messageCount; }
+
+    public synchronized long getTotalBytes() { return totalBytes; }
+    public synchronized void setTotalBytes(long totalBytes) { this.totalBytes = totalBytes; }
+
+    public synchronized long getFirstTimestamp() { return firstTimestamp; }
+    public synchronized void setFirstTimestamp(long firstTimestamp) { this.firstTimestamp = firstTimestamp; }
+
+    public synchronized long getLastTimestamp() { return lastTimestamp; }
+    public synchronized void setLastTimestamp(long lastTimestamp) { this.lastTimestamp = lastTimestamp; }
+
+    public synchronized String getLastMessageId() { return lastMessageId; }
+    public synchronized void setLastMessageId(String lastMessageId) { this.lastMessageId = lastMessageId; }
+
+    public synchronized long getUpdatedAt() { return updatedAt; }
+    public synchronized void setUpdatedAt(long updatedAt) { this.updatedAt = updatedAt; }
+}
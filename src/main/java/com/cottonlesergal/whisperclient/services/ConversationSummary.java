@@ -0,0 +1,119 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * What the friends list shows for a conversation: unread count, a preview of the last
+ * message and when it arrived, and how many messages are stored. Kept up to date by the
+ * storage write path and saved (encrypted) next to the message log.
+ *
+ * A message counts as unread if it was received after {@code lastReadAt}, so marking a
+ * conversation read also covers messages that are still queued for writing.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ConversationSummary {
+    /** Event emitted on {@code AppCtx.BUS} when a summary changes; {@code from} is the conversation */
+    public static final String CHANGED_EVENT = "conversation-summary";
+    static final String FILE_NAME = "summary.dat";
+    static final int PREVIEW_LENGTH = 80;
+
+    private int unreadCount;
+    private String lastPreview = "";
+    private long lastTimestamp;
+    private boolean lastFromMe;
+    private int messageCount;
+    private long lastReadAt;
+
+    // Default constructor for Jackson
+    public ConversationSummary() {}
+
+    public synchronized ConversationSummary copy() {
+        ConversationSummary copy = new ConversationSummary();
+        copy.unreadCount = unreadCount;
+        copy.lastPreview = lastPreview;
+        copy.lastTimestamp = lastTimestamp;
+        copy.lastFromMe = lastFromMe;
+        copy.messageCount = messageCount;
+        copy.lastReadAt = lastReadAt;
+        return copy;
+    }
+
+    /**
+     * Account for a stored message
+     */
+    synchronized void recordStore(long timestamp, boolean fromMe, String preview) {
+        if (messageCount == 0 || timestamp >= lastTimestamp) {
+            lastTimestamp = timestamp;
+            lastFromMe = fromMe;
+            lastPreview = preview;
+        }
+        if (!fromMe && timestamp > lastReadAt) {
+            unreadCount++;
+        }
+        messageCount++;
+    }
+
+    /**
+     * Mark everything received up to {@code now} as read
+     * @return true if anything changed
+     */
+    synchronized boolean markRead(long now) {
+        long readAt = Math.max(now, lastTimestamp);
+        if (unreadCount == 0 && readAt <= lastReadAt) {
+            return false;
+        }
+        unreadCount = 0;
+        lastReadAt = Math.max(lastReadAt, readAt);
+        return true;
+    }
+
+    synchronized void addUnread(int count) {
+        unreadCount = Math.max(0, unreadCount + count);
+    }
+
+    /**
+     * Replace the stored counts with freshly computed values (after deletes). The unread
+     * count can only shrink, to at most {@code unreadLimit}.
+     */
+    synchronized void reset(int count, long last, boolean fromMe, String preview, int unreadLimit) {
+        messageCount = count;
+        lastTimestamp = count > 0 ? last : 0;
+        lastFromMe = count > 0 && fromMe;
+        lastPreview = count > 0 && preview != null ? preview : "";
+        unreadCount = Math.min(unreadCount, unreadLimit);
+    }
+
+    /**
+     * One-line preview of a message: media shows its file name, text is cut to
+     * {@link #PREVIEW_LENGTH} characters
+     */
+    static String preview(String content) {
+        if (content == null) {
+            return "";
+        }
+
+        MediaReference reference = MediaReference.parse(content);
+        String text = reference != null ? "📎 " + reference.fileName() : content;
+        text = text.replaceAll("\\s+", " ").trim();
+        return text.length() > PREVIEW_LENGTH ? text.substring(0, PREVIEW_LENGTH - 1) + "…" : text;
+    }
+
+    // Getters and setters for Jackson
+    public synchronized int getUnreadCount() { return unreadCount; }
+    public synchronized void setUnreadCount(int unreadCount) { this.unreadCount = unreadCount; }
+
+    public synchronized String getLastPreview() { return lastPreview; }
+    public synchronized void setLastPreview(String lastPreview) { this.lastPreview = lastPreview; }
+
+    public synchronized long getLastTimestamp() { return lastTimestamp; }
+    public synchronized void setLastTimestamp(long lastTimestamp) { this.lastTimestamp = lastTimestamp; }
+
+    public synchronized boolean isLastFromMe() { return lastFromMe; }
+    public synchronized void setLastFromMe(boolean lastFromMe) { this.lastFromMe = lastFromMe; }
+
+    public synchronized int getMessageCount() { return messageCount; }
+    public synchronized void setMessageCount(int messageCount) { this.messageCount = messageCount; }
+
+    public synchronized long getLastReadAt() { return lastReadAt; }
+    public synchronized void setLastReadAt(long lastReadAt) { this.lastReadAt = lastReadAt; }
+}
@@ -0,0 +1,191 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * In-memory table of {@link ConversationSummary conversation summaries}, one per
+ * conversation, loaded on first use and kept for the rest of the session so the friends
+ * list can read unread counts and last messages without touching the disk.
+ *
+ * Summaries are updated in place and written back in the background a moment after they
+ * change, sealed with the conversation's storage key. One that is missing or behind the
+ * message log (after a crash between a write and its save) is brought up to date by the
+ * {@link Reconciler} when it is loaded.
+ */
+final class ConversationSummaryStore {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long SAVE_DELAY_MILLIS = 1000;
+    static final String SAVE_JOB = "summary-saves";
+
+    /**
+     * Storage key of a conversation
+     */
+    interface KeySource {
+        SecretKey key(String safeUsername) throws Exception;
+    }
+
+    /**
+     * Checks a freshly loaded summary against the conversation's log and repairs it.
+     * Called without any storage lock held.
+     */
+    interface Reconciler {
+        void reconcile(String safeUsername, ConversationSummary summary) throws IOException;
+    }
+
+    private final Path baseDir;
+    private final KeySource keys;
+    private final Reconciler reconciler;
+    private final StorageMaintenanceScheduler scheduler;
+    private final Map<String, ConversationSummary> summaries = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    // Conversations being loaded for peek(), so each is only queued once
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ConversationSummaryLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ConversationSummaryStore(Path baseDir, KeySource keys, Reconciler reconciler, StorageMaintenanceScheduler scheduler) {
+        this.baseDir = baseDir;
+        this.keys = keys;
+        this.reconciler = reconciler;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * The live summary of a conversation, loading it on first use. Callers update it
+     * through its package-private methods and then call {@link #changed}. Must not be
+     * called with a conversation lock held, since loading may read the conversation.
+     */
+    ConversationSummary get(String safeUsername) {
+        ConversationSummary summary = summaries.get(safeUsername);
+        if (summary != null) {
+            return summary;
+        }
+
+        // Loaded outside the map so a slow load never blocks lookups of other conversations
+        ConversationSummary loaded = load(safeUsername);
+        summary = summaries.putIfAbsent(safeUsername, loaded);
+        return summary != null ? summary : loaded;
+    }
+
+    /**
+     * The live summary of a conversation if it is in memory already. Otherwise null: it is
+     * loaded in the background and {@code onLoaded} is called with the conversation once it
+     * is there. For the UI thread, which must not open and decrypt a conversation.
+     */
+    ConversationSummary peek(String safeUsername, Consumer<String> onLoaded) {
+        ConversationSummary summary = summaries.get(safeUsername);
+        if (summary == null && loading.add(safeUsername)) {
+            try {
+                loader.execute(() -> {
+                    try {
+                        get(safeUsername);
+                        onLoaded.accept(safeUsername);
+                    } finally {
+                        loading.remove(safeUsername);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                loading.remove(safeUsername);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Queue a changed summary to be saved
+     */
+    void changed(String safeUsername) {
+        dirty.add(safeUsername);
+        if (saveScheduled.compareAndSet(false, true)) {
+            // When shutting down this never runs; shutdown flushes whatever is still dirty
+            scheduler.submit(SAVE_JOB, SAVE_DELAY_MILLIS, context -> context.charge(flush()));
+        }
+    }
+
+    /**
+     * Save a conversation's summary if it changed and forget it, so it is loaded again
+     * from whatever the conversation's directory holds next time
+     */
+    void unload(String safeUsername) {
+        ConversationSummary summary = summaries.remove(safeUsername);
+        if (dirty.remove(safeUsername) && summary != null) {
+            save(safeUsername, summary);
+        }
+    }
+
+    /**
+     * Save every summary that changed since the last save
+     * @return bytes written
+     */
+    long flush() {
+        saveScheduled.set(false);
+        long bytes = 0;
+        for (String safeUsername : dirty) {
+            dirty.remove(safeUsername);
+            ConversationSummary summary = summaries.get(safeUsername);
+            if (summary != null) {
+                bytes += save(safeUsername, summary);
+            }
+        }
+        return bytes;
+    }
+
+    // ============== INTERNALS ==============
+
+    private ConversationSummary load(String safeUsername) {
+        ConversationSummary summary = null;
+        Path file = baseDir.resolve(safeUsername).resolve(ConversationSummary.FILE_NAME);
+        if (Files.exists(file)) {
+            try {
+                byte[] plaintext = StorageCipher.open(keys.key(safeUsername), ByteBuffer.wrap(Files.readAllBytes(file)));
+                summary = MAPPER.readValue(plaintext, ConversationSummary.class);
+            } catch (Exception e) {
+                System.err.println("[ConversationSummaryStore] Ignoring unreadable " + file + ": " + e.getMessage());
+            }
+        }
+        if (summary == null) {
+            summary = new ConversationSummary();
+        }
+
+        try {
+            reconciler.reconcile(safeUsername, summary);
+        } catch (IOException e) {
+            System.err.println("[ConversationSummaryStore] Could not check summary for " + safeUsername + ": " + e.getMessage());
+        }
+        return summary;
+    }
+
+    private long save(String safeUsername, ConversationSummary summary) {
+        Path userDir = baseDir.resolve(safeUsername);
+        if (!Files.isDirectory(userDir)) {
+            // Nothing stored for this conversation (yet); there is nothing worth keeping
+            return 0;
+        }
+        try {
+            byte[] sealed = StorageCipher.seal(keys.key(safeUsername), MAPPER.writeValueAsBytes(summary.copy()));
+            StorageFiles.writeAtomically(userDir.resolve(ConversationSummary.FILE_NAME), sealed);
+            return sealed.length;
+        } catch (Exception e) {
+            System.err.println("[ConversationSummaryStore] Failed to save summary for " + safeUsername + ": " + e.getMessage());
+            return 0;
+        }
+    }
+}
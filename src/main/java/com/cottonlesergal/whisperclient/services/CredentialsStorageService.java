@@ -93,7 +93,7 @@ public class CredentialsStorageService {
             String json = MAPPER.writeValueAsString(credentials);
             byte[] encrypted = encryptData(json.getBytes());
 
-            Files.write(credentialsPath, encrypted);
+            StorageFiles.writeAtomically(credentialsPath, encrypted);
             System.out.println("[CredentialsStorage] Saved credentials for: " + username);
 
         } catch (Exception e) {
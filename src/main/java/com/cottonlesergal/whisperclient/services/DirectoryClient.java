@@ -6,20 +6,19 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import java.net.URI;
 import java.net.URLEncoder;
 import java.net.http.*;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class DirectoryClient {
     private static final ObjectMapper M = new ObjectMapper();
-    private final HttpClient client = HttpClient.newHttpClient();
-    private final MessageChunkingService chunkingService = MessageChunkingService.getInstance();
+    private final HttpTransport http = HttpTransport.getInstance();
+    private final FriendshipCache friendships = FriendshipCache.getInstance();
 
     public List<UserSummary> friends() {
         System.out.println("[DEBUG] Getting friends list...");
@@ -30,15 +29,13 @@ public class DirectoryClient {
             String url = Config.DIR_WORKER + "/friends";
             System.out.println("[DEBUG] Request URL: " + url);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .GET()
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
@@ -46,6 +43,7 @@ public class DirectoryClient {
             if (response.statusCode() == 200) {
                 List<UserSummary> result = M.readValue(response.body(), new TypeReference<List<UserSummary>>() {});
                 System.out.println("[DEBUG] Parsed " + result.size() + " friends");
+                friendships.update(result);
                 for (UserSummary friend : result) {
                     System.out.println("[DEBUG] Friend: " + friend.getUsername() + " (" + friend.getDisplay() + ")");
                 }
@@ -69,15 +67,13 @@ public class DirectoryClient {
             String url = Config.DIR_WORKER + "/pending";
             System.out.println("[DEBUG] Request URL: " + url);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .GET()
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
@@ -100,10 +96,10 @@ public class DirectoryClient {
 
     public UserSummary lookup(String u) {
         try {
-            HttpRequest req = HttpRequest.newBuilder(URI.create(
-                            Config.DIR_WORKER + "/lookup?u=" + URLEncoder.encode(u, StandardCharsets.UTF_8)))
+            HttpRequest req = http.anonymousRequest(
+                            Config.DIR_WORKER + "/lookup?u=" + URLEncoder.encode(u, StandardCharsets.UTF_8))
                     .GET().build();
-            HttpResponse<String> res = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
             if (res.statusCode() != 200) return null;
             JsonNode n = M.readTree(res.body());
             return new UserSummary(
@@ -126,15 +122,13 @@ public class DirectoryClient {
             String bodyJson = M.writeValueAsString(Map.of("username", username));
             System.out.println("[DEBUG] Request body: " + bodyJson);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
@@ -164,20 +158,22 @@ public class DirectoryClient {
             String bodyJson = M.writeValueAsString(Map.of("username", username));
             System.out.println("[DEBUG] Request body: " + bodyJson);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
 
-            return response.statusCode() == 200;
+            if (response.statusCode() != 200) {
+                return false;
+            }
+            friendships.friendAdded(username);
+            return true;
 
         } catch (Exception e) {
             System.out.println("[DEBUG] Exception accepting friend: " + e.getMessage());
@@ -189,11 +185,10 @@ public class DirectoryClient {
     public boolean declineFriend(String from) {
         try {
             String body = "{\"username\":" + M.writeValueAsString(from) + "}";
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/decline-friend"))
-                    .header("authorization","Bearer " + Config.APP_TOKEN)
+            HttpRequest req = http.request(Config.DIR_WORKER + "/decline-friend")
                     .header("content-type","application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(body)).build();
-            HttpResponse<String> res = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
             System.out.println("[DirectoryClient] declineFriend -> " + res.statusCode() + " " + res.body());
             return res.statusCode() == 200;
         } catch (Exception e){ e.printStackTrace(); return false; }
@@ -202,30 +197,29 @@ public class DirectoryClient {
     public boolean blockUser(String username) {
         try {
             String body = "{\"user\":"+M.writeValueAsString(username)+"}";
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/user/block"))
-                    .header("authorization","Bearer "+Config.APP_TOKEN)
+            HttpRequest req = http.request(Config.DIR_WORKER + "/user/block")
                     .header("content-type","application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(body)).build();
-            return client.send(req, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            if (http.send(req, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) return false;
+            friendships.friendRemoved(username);
+            return true;
         } catch (Exception e){ return false; }
     }
 
     public boolean unblockUser(String username) {
         try {
             String body = "{\"user\":"+M.writeValueAsString(username)+"}";
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/user/unblock"))
-                    .header("authorization","Bearer "+Config.APP_TOKEN)
+            HttpRequest req = http.request(Config.DIR_WORKER + "/user/unblock")
                     .header("content-type","application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(body)).build();
-            return client.send(req, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            return http.send(req, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
         } catch (Exception e){ return false; }
     }
 
     public List<UserSummary> blockedUsers() {
         try {
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/user/blocked"))
-                    .header("authorization","Bearer "+Config.APP_TOKEN).GET().build();
-            JsonNode j = M.readTree(client.send(req, HttpResponse.BodyHandlers.ofString()).body());
+            HttpRequest req = http.request(Config.DIR_WORKER + "/user/blocked").GET().build();
+            JsonNode j = M.readTree(http.send(req, HttpResponse.BodyHandlers.ofString()).body());
             List<UserSummary> out = new ArrayList<>();
             for (JsonNode n : j.path("blocked")) {
                 String u = n.asText();
@@ -246,20 +240,22 @@ public class DirectoryClient {
             String bodyJson = M.writeValueAsString(Map.of("username", username));
             System.out.println("[DEBUG] Request body: " + bodyJson);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
 
-            return response.statusCode() == 200;
+            if (response.statusCode() != 200) {
+                return false;
+            }
+            friendships.friendRemoved(username);
+            return true;
 
         } catch (Exception e) {
             System.out.println("[DEBUG] Exception removing friend: " + e.getMessage());
@@ -275,15 +271,13 @@ public class DirectoryClient {
             String url = Config.DIR_WORKER + "/search?q=" + java.net.URLEncoder.encode(query, "UTF-8");
             System.out.println("[DEBUG] Request URL: " + url);
 
-            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
-                    .header("Authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest request = http.request(url)
                     .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(30))
                     .GET()
                     .build();
 
             System.out.println("[DEBUG] Sending request...");
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[DEBUG] Response status: " + response.statusCode());
             System.out.println("[DEBUG] Response body: " + response.body());
@@ -314,13 +308,12 @@ public class DirectoryClient {
                     .put("provider", me.getProvider() == null ? "oauth" : me.getProvider())
                     .put("avatar",   me.getAvatarUrl() == null ? "" : me.getAvatarUrl());
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/register"))
-                    .header("authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest req = http.request(Config.DIR_WORKER + "/register")
                     .header("content-type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
                     .build();
 
-            HttpResponse<String> res = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
             int code = res.statusCode();
 
             if (code == 200) return true;
@@ -334,112 +327,33 @@ public class DirectoryClient {
     }
 
     /**
-     * Enhanced sendChat method with chunking support for large media messages
-     * FIXED: Uses correct /message endpoint and proper error handling
+     * Send a message through the {@link OutboundMessageDispatcher} and wait until it is
+     * delivered (in order behind earlier messages to {@code to}, chunked and retried as needed).
+     * UI code should use the dispatcher's future instead of blocking on this.
      */
     public void sendChat(String to, String text) {
         try {
             System.out.println("[DirectoryClient] Attempting to send message to: " + to);
-
-            // First verify we can send to this user
-            if (!areFriends(to)) {
-                throw new RuntimeException("Cannot send message - not friends with " + to);
-            }
-
-            // Check if message needs chunking for large media
-            String[] chunks = chunkingService.splitMessage(text);
-
-            if (chunks.length > 1) {
-                System.out.println("[DirectoryClient] Sending large message in " + chunks.length + " chunks to " + to);
-
-                // Send each chunk sequentially
-                for (int i = 0; i < chunks.length; i++) {
-                    String chunk = chunks[i];
-                    System.out.println("[DirectoryClient] Sending chunk " + (i + 1) + "/" + chunks.length +
-                            " (size: " + chunk.length() + " bytes)");
-
-                    try {
-                        sendSingleMessage(to, chunk);
-                        System.out.println("[DirectoryClient] Sent chunk " + (i + 1) + "/" + chunks.length);
-
-                        // Small delay between chunks to avoid overwhelming the server
-                        if (i < chunks.length - 1) {
-                            Thread.sleep(50); // 50ms delay
-                        }
-
-                    } catch (Exception e) {
-                        System.err.println("[DirectoryClient] Failed to send chunk " + (i + 1) + "/" + chunks.length + ": " + e.getMessage());
-                        throw e; // Re-throw to stop sending remaining chunks
-                    }
-                }
-
-                System.out.println("[DirectoryClient] Successfully sent all " + chunks.length + " chunks");
-
-            } else {
-                // Regular message, send normally
-                sendSingleMessage(to, text);
-                System.out.println("[DirectoryClient] Successfully sent regular message to " + to);
-            }
-
-        } catch (Exception e) {
-            System.err.println("[DirectoryClient] Failed to send message: " + e.getMessage());
-            throw new RuntimeException("Failed to send message: " + e.getMessage(), e);
-        }
-    }
-
-    /**
-     * Send a single message (chunk or regular message) - FIXED to use /message endpoint
-     */
-    private void sendSingleMessage(String to, String text) throws Exception {
-        String body = "{\"to\":" + M.writeValueAsString(to) + ",\"text\":" + M.writeValueAsString(text) + "}";
-
-        HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/message"))
-                .header("authorization", "Bearer " + Config.APP_TOKEN)
-                .header("content-type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(body))
-                .build();
-
-        HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
-
-        if (response.statusCode() != 200) {
-            String errorBody = response.body();
-            System.err.println("[DirectoryClient] Failed to send message. Status: " + response.statusCode() +
-                    ", Body: " + errorBody);
-
-            // Provide more specific error messages
-            if (response.statusCode() == 404) {
-                throw new RuntimeException("Message endpoint not found - check server configuration");
-            } else if (response.statusCode() == 403) {
-                throw new RuntimeException("Not friends with " + to + " - cannot send message");
-            } else if (response.statusCode() == 401) {
-                throw new RuntimeException("Authentication failed - check token");
-            } else {
-                throw new RuntimeException("HTTP " + response.statusCode() + ": " + errorBody);
-            }
+            OutboundMessageDispatcher.Delivery delivery = OutboundMessageDispatcher.getInstance().send(to, text).get();
+            System.out.println("[DirectoryClient] Successfully sent message to " + to + " after " + delivery.attempts() + " request(s)");
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            System.err.println("[DirectoryClient] Failed to send message: " + cause.getMessage());
+            throw new RuntimeException("Failed to send message: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending message to " + to, e);
         }
     }
 
     /**
-     * Check if we're friends with a user before sending messages
+     * Check if we're friends with a user before sending messages, from the cached friend set
+     * (lenient if it cannot be loaded; the server has the final say)
      */
     private boolean areFriends(String username) {
         try {
-            // If we have authentication issues, be more lenient for existing chats
-            List<UserSummary> friendsList;
-            try {
-                friendsList = friends();
-            } catch (Exception e) {
-                System.err.println("[DirectoryClient] Failed to fetch friends list: " + e.getMessage());
-                // If we can't fetch friends but this is an existing chat, allow it
-                System.out.println("[DirectoryClient] Allowing message to " + username + " due to auth issues");
-                return true; // Be lenient when auth is broken
-            }
-
-            boolean isFriend = friendsList.stream()
-                    .anyMatch(friend -> username.equalsIgnoreCase(friend.getUsername()));
-
-            System.out.println("[DirectoryClient] Friendship check for " + username + ": " + isFriend);
-            return isFriend;
+            return friendships.isFriend(username);
         } catch (Exception e) {
             System.err.println("[DirectoryClient] Failed to check friend status: " + e.getMessage());
             return true; // Be lenient when we can't check
@@ -464,7 +378,7 @@ public class DirectoryClient {
 
             // Try sending a simple test message
             String testMessage = "Test message: " + System.currentTimeMillis();
-            sendSingleMessage(to, testMessage);
+            sendChat(to, testMessage);
             System.out.println("[DirectoryClient] Successfully sent test message");
 
         } catch (Exception e) {
@@ -511,15 +425,36 @@ public class DirectoryClient {
 
         try {
             // Test basic connectivity
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/friends"))
-                    .header("authorization","Bearer "+Config.APP_TOKEN).GET().build();
-            HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpRequest req = http.request(Config.DIR_WORKER + "/friends").GET().build();
+            HttpResponse<String> response = http.send(req, HttpResponse.BodyHandlers.ofString());
             info.append("  Friends endpoint test: ").append(response.statusCode()).append("\n");
 
         } catch (Exception e) {
             info.append("  Connection test failed: ").append(e.getMessage()).append("\n");
         }
 
+        FriendshipCache.FriendshipStats cache = friendships.getStats();
+        info.append("  Friend cache: ").append(cache.friends).append(" friends, ").append(cache.lookups)
+                .append(" lookups, ").append(cache.loads + cache.refreshes).append(" fetches, ")
+                .append(cache.stale ? "stale" : "fresh").append("\n");
+
+        OutboundMessageDispatcher.DispatcherStats outbound = OutboundMessageDispatcher.getInstance().getStats();
+        info.append("  Outbound: ").append(outbound.pending).append(" pending, ").append(outbound.inFlight)
+                .append(" in flight, ").append(outbound.delivered).append(" delivered, ").append(outbound.failed)
+                .append(" failed, ").append(outbound.retries).append(" retries\n");
+
+        MessageOutbox.OutboxStats outbox = MessageOutbox.getInstance().getStats();
+        info.append("  Outbox: ").append(outbox.pending).append(" pending, ").append(outbox.waiting)
+                .append(" waiting, ").append(outbox.delivered).append(" delivered, ").append(outbox.failed)
+                .append(" failed, ").append(outbox.drains).append(" drains\n");
+
+        for (HttpTransport.EndpointStats endpoint : http.getEndpointStats()) {
+            info.append("  ").append(endpoint.endpoint).append(": ").append(endpoint.requests).append(" requests, ")
+                    .append(endpoint.errorResponses).append(" error responses, ").append(endpoint.failures)
+                    .append(" failures, avg ").append(String.format("%.0f", endpoint.averageMillis)).append(" ms, max ")
+                    .append(String.format("%.0f", endpoint.maxMillis)).append(" ms\n");
+        }
+
         return info.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,313 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.core.AppCtx;
+import com.cottonlesergal.whisperclient.core.Session;
+import com.cottonlesergal.whisperclient.models.UserSummary;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Who the signed-in user is friends with, kept in memory so sending a message does not
+ * have to fetch the whole friends list first. Only "yes" is answered from memory: a "no"
+ * from a set that was not fetched moments ago is checked with the server first, since a
+ * friendship accepted on another device does not reach this set until the next refresh.
+ *
+ * The set is loaded once per sign-in and refreshed in the background (on the shared
+ * {@link HttpTransport} pool) when it is older than the TTL or has been invalidated. Callers
+ * are answered from the set they have in the meantime. {@code friend-accepted} and
+ * {@code friend-removed} events, the user's own accept/remove/block calls and a 403 from
+ * the server when sending change the set at once and then invalidate it. Every successful
+ * {@link DirectoryClient#friends()} call replaces it.
+ */
+public final class FriendshipCache {
+    static final String TTL_PROPERTY = "whisperclient.friends.cacheTtlSeconds";
+    static final long DEFAULT_TTL_SECONDS = 120;
+    // A "no" from a set fetched this recently is not checked again
+    static final long CONFIRM_WINDOW_MILLIS = 5_000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final FriendshipCache INSTANCE = new FriendshipCache(
+            TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS)),
+            HttpTransport.getInstance(), Config.DIR_WORKER + "/friends");
+
+    /**
+     * Friends of {@code owner} as of {@code loadedAt}; never modified once published
+     */
+    private record Snapshot(String owner, Set<String> friends, long loadedAt, boolean stale) {
+        Snapshot with(Set<String> friends, boolean stale) {
+            return new Snapshot(owner, friends, loadedAt, stale);
+        }
+    }
+
+    private final long ttlMillis;
+    private final HttpTransport http;
+    private final String friendsUrl;
+    private volatile Snapshot snapshot;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    // Bumped on every local change so a refresh that started before it is not applied over it
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder confirmations = new LongAdder();
+
+    public static FriendshipCache getInstance() {
+        return INSTANCE;
+    }
+
+    FriendshipCache(long ttlMillis, HttpTransport http, String friendsUrl) {
+        this.ttlMillis = ttlMillis;
+        this.http = http;
+        this.friendsUrl = friendsUrl;
+        AppCtx.BUS.on("friend-accepted", ev -> {
+            if (ev != null && ev.from != null) {
+                friendAdded(ev.from);
+            }
+        });
+        AppCtx.BUS.on("friend-removed", ev -> {
+            if (ev != null && ev.from != null) {
+                friendRemoved(ev.from);
+            }
+        });
+    }
+
+    /**
+     * Whether the signed-in user is friends with {@code username}. Waits for the server on
+     * the first call after sign-in and to confirm a "no"; if the server cannot be reached
+     * the answer is yes, and the server decides when the message is sent.
+     */
+    public boolean isFriend(String username) {
+        lookups.increment();
+        Boolean cached = cachedAnswer(normalize(username));
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return load().friends().contains(normalize(username));
+        } catch (Exception e) {
+            failures.increment();
+            System.err.println("[FriendshipCache] Could not load friends, allowing " + username + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * {@link #isFriend} without blocking the caller: when the server has to be asked, the
+     * future completes on the {@link HttpTransport} pool
+     */
+    public CompletableFuture<Boolean> isFriendAsync(String username) {
+        lookups.increment();
+        String name = normalize(username);
+        Boolean cached = cachedAnswer(name);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        loads.increment();
+        long startGeneration = generation.get();
+        return http.sendAsync(friendsRequest(), HttpResponse.BodyHandlers.ofString()).handle((response, failure) -> {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                Snapshot loaded = parse(response);
+                publish(loaded, startGeneration);
+                return loaded.friends().contains(name);
+            } catch (Throwable e) {
+                failures.increment();
+                System.err.println("[FriendshipCache] Could not load friends, allowing " + username + ": " + e.getMessage());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Replace the set with a friends list just fetched from the server
+     */
+    synchronized void update(Collection<UserSummary> friends) {
+        Set<String> names = new HashSet<>();
+        for (UserSummary friend : friends) {
+            names.add(normalize(friend.getUsername()));
+        }
+        generation.incrementAndGet();
+        snapshot = new Snapshot(owner(), Set.copyOf(names), System.currentTimeMillis(), false);
+    }
+
+    void friendAdded(String username) {
+        change(username, true);
+    }
+
+    void friendRemoved(String username) {
+        change(username, false);
+    }
+
+    /**
+     * Keep answering from the current set but fetch it again on the next lookup
+     */
+    public synchronized void invalidate() {
+        invalidations.increment();
+        generation.incrementAndGet();
+        Snapshot current = snapshot;
+        if (current != null) {
+            snapshot = current.with(current.friends(), true);
+        }
+    }
+
+    public FriendshipStats getStats() {
+        FriendshipStats stats = new FriendshipStats();
+        Snapshot current = snapshot;
+        if (current != null) {
+            stats.friends = current.friends().size();
+            stats.loadedAt = current.loadedAt();
+            stats.stale = current.stale();
+        }
+        stats.ttlMillis = ttlMillis;
+        stats.lookups = lookups.sum();
+        stats.loads = loads.sum();
+        stats.refreshes = refreshes.sum();
+        stats.failures = failures.sum();
+        stats.invalidations = invalidations.sum();
+        stats.confirmations = confirmations.sum();
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    /**
+     * The answer the current set gives, or null if the server has to be asked: nothing is
+     * loaded for this account yet, or the set says no and may be out of date
+     */
+    private Boolean cachedAnswer(String name) {
+        Snapshot current = snapshot;
+        if (current == null || !current.owner().equals(owner())) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - current.loadedAt();
+        boolean expired = current.stale() || age > ttlMillis;
+        if (current.friends().contains(name)) {
+            if (expired) {
+                refreshAsync();
+            }
+            return true;
+        }
+        if (!current.stale() && age < CONFIRM_WINDOW_MILLIS) {
+            return false;
+        }
+        confirmations.increment();
+        return null;
+    }
+
+    private synchronized void change(String username, boolean friend) {
+        Snapshot current = snapshot;
+        if (current != null && current.owner().equals(owner())) {
+            Set<String> names = new HashSet<>(current.friends());
+            if (friend) {
+                names.add(normalize(username));
+            } else {
+                names.remove(normalize(username));
+            }
+            snapshot = current.with(Set.copyOf(names), current.stale());
+        }
+        // Confirm with the server in the background; the change above holds until then
+        invalidate();
+        refreshAsync();
+    }
+
+    private Snapshot load() throws IOException, InterruptedException {
+        loads.increment();
+        long startGeneration = generation.get();
+        HttpResponse<String> response = http.send(friendsRequest(), HttpResponse.BodyHandlers.ofString());
+        Snapshot loaded = parse(response);
+        publish(loaded, startGeneration);
+        return loaded;
+    }
+
+    private void refreshAsync() {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refreshes.increment();
+        long startGeneration = generation.get();
+        http.sendAsync(friendsRequest(), HttpResponse.BodyHandlers.ofString()).whenComplete((response, failure) -> {
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                publish(parse(response), startGeneration);
+            } catch (Throwable e) {
+                failures.increment();
+                System.err.println("[FriendshipCache] Background refresh failed: " + e.getMessage());
+            } finally {
+                refreshing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Publish a fetched set unless something changed locally while it was in flight, in
+     * which case the set stays stale and the next lookup fetches again
+     */
+    private synchronized void publish(Snapshot loaded, long startGeneration) {
+        if (generation.get() == startGeneration) {
+            snapshot = loaded;
+        }
+    }
+
+    private HttpRequest friendsRequest() {
+        return http.request(friendsUrl).GET().build();
+    }
+
+    private Snapshot parse(HttpResponse<String> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " from /friends");
+        }
+        Set<String> names = new HashSet<>();
+        for (JsonNode friend : MAPPER.readTree(response.body())) {
+            String username = friend.path("username").asText("");
+            if (!username.isEmpty()) {
+                names.add(normalize(username));
+            }
+        }
+        return new Snapshot(owner(), Set.copyOf(names), System.currentTimeMillis(), false);
+    }
+
+    private static String owner() {
+        return Session.me != null && Session.me.getUsername() != null ? normalize(Session.me.getUsername()) : "";
+    }
+
+    private static String normalize(String username) {
+        return username == null ? "" : username.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Size and age of the cached set and how it has been used since startup
+     */
+    public static class FriendshipStats {
+        public int friends = 0;
+        public long loadedAt = 0;
+        public boolean stale = false;
+        public long ttlMillis = 0;
+        public long lookups = 0;
+        public long loads = 0;
+        public long refreshes = 0;
+        public long failures = 0;
+        public long invalidations = 0;
+        // Negative answers that were checked with the server
+        public long confirmations = 0;
+    }
+}
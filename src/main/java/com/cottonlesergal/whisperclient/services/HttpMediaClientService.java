@@ -1,8 +1,6 @@
 package com.cottonlesergal.whisperclient.services;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.file.Files;
@@ -17,7 +15,7 @@ import java.util.concurrent.CompletableFuture;
 public class HttpMediaClientService {
     private static final HttpMediaClientService INSTANCE = new HttpMediaClientService();
     private static final ObjectMapper MAPPER = new ObjectMapper();
-    private final HttpClient client = HttpClient.newHttpClient();
+    private final HttpTransport http = HttpTransport.getInstance();
 
     // 25MB limit for HTTP uploads (much larger than 1MB WebSocket limit)
     private static final long MAX_FILE_SIZE = 25 * 1024 * 1024;
@@ -87,13 +85,12 @@ public class HttpMediaClientService {
             String endpoint = Config.DIR_WORKER + "/send-media";
             System.out.println("[HttpMediaClientService] Sending to endpoint: " + endpoint);
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(endpoint))
-                    .header("authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest req = http.request(endpoint, http.transferTimeout())
                     .header("content-type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
                     .build();
 
-            HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = http.send(req, HttpResponse.BodyHandlers.ofString());
 
             System.out.println("[HttpMediaClientService] HTTP Response: " + response.statusCode());
             System.out.println("[HttpMediaClientService] Response body: " + response.body());
@@ -104,6 +101,7 @@ public class HttpMediaClientService {
                         ", Body: " + errorBody);
 
                 if (response.statusCode() == 403) {
+                    FriendshipCache.getInstance().friendRemoved(to);
                     throw new RuntimeException("Not friends with " + to + " - cannot send media");
                 } else if (response.statusCode() == 413) {
                     throw new RuntimeException("File too large for server");
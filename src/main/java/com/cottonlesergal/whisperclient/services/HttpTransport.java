@@ -0,0 +1,264 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The one HTTP client every service sends through. Sharing it keeps connections to the
+ * workers open between calls instead of paying a TLS handshake per request, and lets
+ * requests to the same host share one HTTP/2 connection where the server offers it.
+ *
+ * {@link #request} starts a request with the default timeout and the app token, so callers
+ * only add what is specific to the call. Media uploads and downloads, which take as long as
+ * their size and the link need, pass {@link #transferTimeout()} instead of the API timeout.
+ * {@link #send} and {@link #sendAsync} time every exchange and keep counts, latency and
+ * errors per endpoint for {@link #getEndpointStats}.
+ */
+public final class HttpTransport {
+    static final String CONNECT_TIMEOUT_PROPERTY = "whisperclient.http.connectTimeoutSeconds";
+    static final String REQUEST_TIMEOUT_PROPERTY = "whisperclient.http.requestTimeoutSeconds";
+    static final String TRANSFER_TIMEOUT_PROPERTY = "whisperclient.http.transferTimeoutSeconds";
+    static final String THREADS_PROPERTY = "whisperclient.http.threads";
+    static final long DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    static final long DEFAULT_REQUEST_TIMEOUT_SECONDS = 30;
+    // 0: transfers only time out on the connect timeout, as they always have
+    static final long DEFAULT_TRANSFER_TIMEOUT_SECONDS = 0;
+    static final int DEFAULT_THREADS = 4;
+
+    static final String USER_AGENT = "WhisperClient/1.0";
+
+    // Path segments that name one object (ids, hashes, usernames with digits) are folded
+    // together so every download from /media/<id> counts as one endpoint
+    private static final Pattern ID_SEGMENT = Pattern.compile("[0-9]+|[0-9a-fA-F-]{16,}|.*[0-9].*");
+    // Link previews fetch arbitrary pages; past this many endpoints, new paths count per host
+    private static final int MAX_ENDPOINTS = 256;
+
+    private static final HttpTransport INSTANCE = new HttpTransport(
+            Duration.ofSeconds(Long.getLong(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT_SECONDS)),
+            Duration.ofSeconds(Long.getLong(REQUEST_TIMEOUT_PROPERTY, DEFAULT_REQUEST_TIMEOUT_SECONDS)),
+            Duration.ofSeconds(Long.getLong(TRANSFER_TIMEOUT_PROPERTY, DEFAULT_TRANSFER_TIMEOUT_SECONDS)),
+            Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+
+    private final HttpClient client;
+    private final Duration requestTimeout;
+    private final Duration transferTimeout;
+    private final Map<String, EndpointRecord> endpoints = new ConcurrentHashMap<>();
+
+    public static HttpTransport getInstance() {
+        return INSTANCE;
+    }
+
+    HttpTransport(Duration connectTimeout, Duration requestTimeout, Duration transferTimeout, int threads) {
+        this.requestTimeout = requestTimeout;
+        this.transferTimeout = transferTimeout.isZero() || transferTimeout.isNegative() ? null : transferTimeout;
+
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "HttpTransport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * A request to {@code url} with the default timeout, user agent and, once signed in,
+     * the app token as bearer authorization
+     */
+    public HttpRequest.Builder request(String url) {
+        return request(url, requestTimeout);
+    }
+
+    /**
+     * Like {@link #request(String)} with its own overall timeout; null for none
+     */
+    public HttpRequest.Builder request(String url, Duration timeout) {
+        HttpRequest.Builder builder = anonymousRequest(url, timeout);
+        String token = Config.APP_TOKEN;
+        if (token != null && !token.isEmpty()) {
+            builder.header("Authorization", "Bearer " + token);
+        }
+        return builder;
+    }
+
+    /**
+     * A request to {@code url} with the default timeout and user agent but no credentials,
+     * for public endpoints and third-party sites
+     */
+    public HttpRequest.Builder anonymousRequest(String url) {
+        return anonymousRequest(url, requestTimeout);
+    }
+
+    /**
+     * Like {@link #anonymousRequest(String)} with its own overall timeout; null for none
+     */
+    public HttpRequest.Builder anonymousRequest(String url, Duration timeout) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", USER_AGENT);
+        if (timeout != null) {
+            builder.timeout(timeout);
+        }
+        return builder;
+    }
+
+    /**
+     * Overall timeout for media uploads and downloads, or null (the default) for none
+     */
+    public Duration transferTimeout() {
+        return transferTimeout;
+    }
+
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        EndpointRecord record = record(request);
+        long start = System.nanoTime();
+        try {
+            HttpResponse<T> response = client.send(request, handler);
+            record.completed(System.nanoTime() - start, response.statusCode());
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            record.failed(System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+        EndpointRecord record = record(request);
+        long start = System.nanoTime();
+        return client.sendAsync(request, handler).whenComplete((response, failure) -> {
+            if (failure != null) {
+                record.failed(System.nanoTime() - start, failure);
+            } else {
+                record.completed(System.nanoTime() - start, response.statusCode());
+            }
+        });
+    }
+
+    /**
+     * The shared client itself, for what the request helpers do not cover (WebSockets).
+     * Exchanges made through it directly are not counted.
+     */
+    public HttpClient client() {
+        return client;
+    }
+
+    /**
+     * Statistics of every endpoint called since startup, busiest first
+     */
+    public List<EndpointStats> getEndpointStats() {
+        List<EndpointStats> stats = new ArrayList<>();
+        for (Map.Entry<String, EndpointRecord> entry : endpoints.entrySet()) {
+            stats.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        stats.sort(Comparator.comparingLong((EndpointStats s) -> s.requests).reversed());
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private EndpointRecord record(HttpRequest request) {
+        String key = endpointKey(request.method(), request.uri());
+        EndpointRecord record = endpoints.get(key);
+        if (record == null && endpoints.size() >= MAX_ENDPOINTS) {
+            key = request.method() + " " + request.uri().getHost() + "/*";
+        }
+        return record != null ? record : endpoints.computeIfAbsent(key, k -> new EndpointRecord());
+    }
+
+    /**
+     * Method, host and path with the query dropped and id-like segments replaced by
+     * {@code {id}}, e.g. {@code GET whisperdir.example.dev/media/{id}}
+     */
+    static String endpointKey(String method, URI uri) {
+        StringBuilder key = new StringBuilder(method).append(' ').append(uri.getHost());
+        String path = uri.getPath();
+        if (path != null) {
+            for (String segment : path.split("/")) {
+                if (!segment.isEmpty()) {
+                    key.append('/').append(ID_SEGMENT.matcher(segment).matches() ? "{id}" : segment);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    private static final class EndpointRecord {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errorResponses = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong lastStatus = new AtomicLong();
+        private volatile String lastError;
+
+        void completed(long nanos, int status) {
+            timed(nanos);
+            lastStatus.set(status);
+            if (status >= 400) {
+                errorResponses.increment();
+                lastError = "HTTP " + status;
+            }
+        }
+
+        void failed(long nanos, Throwable failure) {
+            timed(nanos);
+            failures.increment();
+            lastError = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+        }
+
+        private void timed(long nanos) {
+            requests.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        EndpointStats snapshot(String endpoint) {
+            EndpointStats stats = new EndpointStats();
+            stats.endpoint = endpoint;
+            stats.requests = requests.sum();
+            stats.errorResponses = errorResponses.sum();
+            stats.failures = failures.sum();
+            stats.averageMillis = stats.requests > 0 ? totalNanos.sum() / stats.requests / 1_000_000.0 : 0;
+            stats.maxMillis = maxNanos.get() / 1_000_000.0;
+            stats.lastStatus = (int) lastStatus.get();
+            stats.lastError = lastError;
+            return stats;
+        }
+    }
+
+    /**
+     * One endpoint's traffic since startup. Error responses are 4xx/5xx answers; failures
+     * are exchanges that got no answer at all (timeouts, refused connections).
+     */
+    public static class EndpointStats {
+        public String endpoint;
+        public long requests = 0;
+        public long errorResponses = 0;
+        public long failures = 0;
+        public double averageMillis = 0;
+        public double maxMillis = 0;
+        public int lastStatus = 0;
+        public String lastError;
+    }
+}
@@ -0,0 +1,219 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Handles frames from the inbox socket away from the WebSocket listener thread, so storing
+ * a message does not hold up reading the next one.
+ *
+ * Frames from one sender are handled one after another in the order they arrived; frames
+ * from different senders are handled in parallel on a small pool. The stage is sized to the
+ * socket's flow-control window: {@link InboxWs} asks the socket for {@link #getWindow()}
+ * frames up front and for one more each time a frame here is done. When storage falls
+ * behind the stage fills up, no more frames are requested, and the socket stops reading.
+ *
+ * Each {@link InboxWs} owns one dispatcher for its whole life, reconnects included, and
+ * shuts it down when it disconnects for good.
+ */
+public final class InboundMessageDispatcher {
+    static final String WINDOW_PROPERTY = "whisperclient.inbox.window";
+    static final String THREADS_PROPERTY = "whisperclient.inbox.threads";
+    static final int DEFAULT_WINDOW = 32;
+    static final int DEFAULT_THREADS = 2;
+
+    private static final class Inbound {
+        final String sender;
+        final Runnable handler;
+        final Runnable done;
+        final long queuedAt = System.nanoTime();
+
+        Inbound(String sender, Runnable handler, Runnable done) {
+            this.sender = sender;
+            this.handler = handler;
+            this.done = done;
+        }
+    }
+
+    private final int window;
+    private final int threads;
+    private final ExecutorService workers;
+
+    // Guarded by this: a sender has a queue while it has frames; the head is the one being handled
+    private final Map<String, ArrayDeque<Inbound>> queues = new HashMap<>();
+    private int depth;
+    private int peakDepth;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder saturations = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder processNanos = new LongAdder();
+    private final LongAccumulator maxProcessNanos = new LongAccumulator(Math::max, 0);
+
+    InboundMessageDispatcher(int window, int threads) {
+        this.window = Math.max(1, window);
+        this.threads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "InboundDispatcher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * How many frames the socket may deliver before any of them has been handled
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Handle a frame from {@code sender} after every earlier frame from them. {@code done}
+     * runs once it has been handled, whether or not the handler failed; that is where the
+     * caller requests the next frame.
+     */
+    public void dispatch(String sender, Runnable handler, Runnable done) {
+        Inbound inbound = new Inbound(sender == null ? "" : sender.toLowerCase(Locale.ROOT), handler, done);
+        received.increment();
+        boolean start;
+        synchronized (this) {
+            depth++;
+            peakDepth = Math.max(peakDepth, depth);
+            if (depth == window) {
+                saturations.increment();
+            } else if (depth > window) {
+                // Only when frames from a closed socket are still here as a new one opens
+                overflows.increment();
+            }
+            ArrayDeque<Inbound> queue = queues.computeIfAbsent(inbound.sender, s -> new ArrayDeque<>());
+            queue.add(inbound);
+            start = queue.size() == 1;
+        }
+        if (start) {
+            execute(inbound);
+        }
+    }
+
+    /**
+     * Stop the worker threads once the frames already here have been handled, waiting up to
+     * {@code timeoutMillis} for that. Frames dispatched afterwards run on the caller's thread.
+     */
+    public void shutdown(long timeoutMillis) {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public InboundStats getStats() {
+        InboundStats stats = new InboundStats();
+        synchronized (this) {
+            stats.depth = depth;
+            stats.peakDepth = peakDepth;
+            stats.senders = queues.size();
+        }
+        stats.window = window;
+        stats.threads = threads;
+        stats.received = received.sum();
+        stats.processed = processed.sum();
+        stats.failures = failures.sum();
+        stats.saturations = saturations.sum();
+        stats.overflows = overflows.sum();
+        if (stats.processed > 0) {
+            stats.averageWaitMillis = TimeUnit.NANOSECONDS.toMicros(waitNanos.sum()) / 1000.0 / stats.processed;
+            stats.averageProcessMillis = TimeUnit.NANOSECONDS.toMicros(processNanos.sum()) / 1000.0 / stats.processed;
+        }
+        stats.maxProcessMillis = TimeUnit.NANOSECONDS.toMillis(maxProcessNanos.get());
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void execute(Inbound inbound) {
+        try {
+            workers.execute(() -> handle(inbound));
+        } catch (RejectedExecutionException e) {
+            // Shut down: finish the sender's queue here rather than drop it
+            handle(inbound);
+        }
+    }
+
+    private void handle(Inbound inbound) {
+        long started = System.nanoTime();
+        waitNanos.add(started - inbound.queuedAt);
+        try {
+            inbound.handler.run();
+        } catch (Exception e) {
+            failures.increment();
+            System.err.println("[InboundDispatcher] Error handling frame from " + inbound.sender + ": " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            // Even if the handler threw an Error: otherwise the window loses a slot for good
+            // and the sender's queue never moves again
+            long took = System.nanoTime() - started;
+            processNanos.add(took);
+            maxProcessNanos.accumulate(took);
+            processed.increment();
+
+            Inbound next;
+            synchronized (this) {
+                depth--;
+                ArrayDeque<Inbound> queue = queues.get(inbound.sender);
+                queue.poll();
+                next = queue.peek();
+                if (next == null) {
+                    queues.remove(inbound.sender);
+                }
+            }
+
+            try {
+                inbound.done.run();
+            } catch (Exception e) {
+                System.err.println("[InboundDispatcher] Error requesting next frame: " + e.getMessage());
+            }
+
+            // Resubmitted rather than looped so one busy sender does not hold a worker
+            if (next != null) {
+                execute(next);
+            }
+        }
+    }
+
+    /**
+     * Current depth of the stage and how frames have moved through it since startup
+     */
+    public static class InboundStats {
+        public int window = 0;
+        public int threads = 0;
+        public int depth = 0;
+        public int peakDepth = 0;
+        public int senders = 0;
+        public long received = 0;
+        public long processed = 0;
+        public long failures = 0;
+        // Times the stage filled the whole window, so the socket stopped reading
+        public long saturations = 0;
+        public long overflows = 0;
+        public double averageWaitMillis = 0;
+        public double averageProcessMillis = 0;
+        public long maxProcessMillis = 0;
+    }
+}
@@ -10,13 +10,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import javafx.application.Platform;
 
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.WebSocket;
 import java.time.Duration;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Base64;
 import java.util.concurrent.*;
 
 public class InboxWs implements WebSocket.Listener {
@@ -24,7 +22,13 @@ public class InboxWs implements WebSocket.Listener {
     private final MessageChunkingService chunkingService = MessageChunkingService.getInstance();
     private final MessageStorageService messageStorage = MessageStorageService.getInstance();
     private final RateLimiter rateLimiter = RateLimiter.getInstance();
-    private final NotificationManager notificationManager = NotificationManager.getInstance();
+
+    // Frames are handled off the listener thread; the socket is only asked for as many as it can hold
+    private final InboundMessageDispatcher inbound = new InboundMessageDispatcher(
+            Integer.getInteger(InboundMessageDispatcher.WINDOW_PROPERTY, InboundMessageDispatcher.DEFAULT_WINDOW),
+            Integer.getInteger(InboundMessageDispatcher.THREADS_PROPERTY, InboundMessageDispatcher.DEFAULT_THREADS));
+    // Text of a message that arrives split over several frames, only touched on the listener thread
+    private final StringBuilder partialMessage = new StringBuilder();
 
     private WebSocket ws;
     private String workerUrl;
@@ -39,8 +43,8 @@ public class InboxWs implements WebSocket.Listener {
     private static final int MAX_RECONNECT_ATTEMPTS = 5;
     private static final long INITIAL_RECONNECT_DELAY = 2000; // 2 seconds
 
-    // Cleanup timer for chunked messages
-    private Timer chunkCleanupTimer;
+    // Runs the periodic cleanup of chunked messages
+    private final StorageMaintenanceScheduler maintenance = StorageMaintenanceScheduler.getInstance();
 
     // Add this field for auth failure callback
     private MainController mainController;
@@ -81,12 +85,10 @@ public class InboxWs implements WebSocket.Listener {
         }
 
         try {
-            this.ws = HttpClient.newBuilder()
-                    .connectTimeout(Duration.ofSeconds(30))
-                    .build()
+            this.ws = HttpTransport.getInstance().client()
                     .newWebSocketBuilder()
                     .header("Authorization", "Bearer " + jwtBearer)
-                    .header("User-Agent", "WhisperClient/1.0")
+                    .header("User-Agent", HttpTransport.USER_AGENT)
                     .connectTimeout(Duration.ofSeconds(30))
                     .buildAsync(URI.create(wss), this)
                     .whenComplete((webSocket, throwable) -> {
@@ -135,19 +137,34 @@ public class InboxWs implements WebSocket.Listener {
         System.out.println("[InboxWs] WebSocket opened successfully");
         isConnected = true;
         reconnectAttempts = 0;
-        webSocket.request(1);
+        partialMessage.setLength(0);
+        webSocket.request(inbound.getWindow());
 
         // Send a ping to verify connection
         webSocket.sendText("ping", true);
 
         // Start periodic cleanup of chunked messages
-        startChunkCleanupTimer();
+        startChunkCleanup();
+
+        // Messages that could not be sent while we were offline can go out now
+        MessageOutbox.getInstance().drain("inbox connected");
     }
 
     @Override
     public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
         try {
-            String rawMessage = data.toString();
+            if (!last) {
+                partialMessage.append(data);
+                webSocket.request(1);
+                return null;
+            }
+            String rawMessage;
+            if (partialMessage.length() > 0) {
+                rawMessage = partialMessage.append(data).toString();
+                partialMessage.setLength(0);
+            } else {
+                rawMessage = data.toString();
+            }
 
             // Handle ping response
             if ("pong".equals(rawMessage.trim())) {
@@ -177,8 +194,12 @@ public class InboxWs implements WebSocket.Listener {
                 return null;
             }
 
-            // Handle the complete message
-            handleCompleteMessage(completeMessage);
+            // Parsed here only to find the sender; storing and the UI work happen on the dispatch
+            // stage, which asks for the next frame once this one has been handled
+            JsonNode messageNode = M.readTree(completeMessage);
+            inbound.dispatch(messageNode.path("from").asText(), () -> handleCompleteMessage(messageNode),
+                    () -> webSocket.request(1));
+            return null;
 
         } catch (Exception e) {
             System.err.println("[InboxWs] Error processing message: " + e.getMessage());
@@ -193,12 +214,10 @@ public class InboxWs implements WebSocket.Listener {
     }
 
     /**
-     * Handle a complete message (either regular or reassembled from chunks)
+     * Handle a complete message, on the inbound dispatch stage
      */
-    private void handleCompleteMessage(String messageText) {
+    private void handleCompleteMessage(JsonNode messageNode) {
         try {
-            JsonNode messageNode = M.readTree(messageText);
-
             String type = messageNode.path("type").asText();
             String from = messageNode.path("from").asText();
             String to = messageNode.path("to").asText();
@@ -248,13 +267,12 @@ public class InboxWs implements WebSocket.Listener {
             CompletableFuture.runAsync(() -> {
                 try {
                     // Download media data
-                    HttpRequest req = HttpRequest.newBuilder(URI.create(downloadUrl))
-                            .header("authorization", "Bearer " + Config.APP_TOKEN)
+                    HttpTransport http = HttpTransport.getInstance();
+                    HttpRequest req = http.request(downloadUrl, http.transferTimeout())
                             .GET()
                             .build();
 
-                    HttpClient client = HttpClient.newHttpClient();
-                    HttpResponse<String> response = client.send(req, HttpResponse.BodyHandlers.ofString());
+                    HttpResponse<String> response = http.send(req, HttpResponse.BodyHandlers.ofString());
 
                     if (response.statusCode() == 401) {
                         handle401Error("media_download");
@@ -265,15 +283,13 @@ public class InboxWs implements WebSocket.Listener {
                         // Parse response to get media data
                         ObjectMapper mapper = new ObjectMapper();
                         JsonNode mediaData = mapper.readTree(response.body());
-                        String base64Data = mediaData.path("data").asText();
+                        byte[] mediaBytes = Base64.getDecoder().decode(mediaData.path("data").asText());
 
-                        // Create inline media message with embedded data
-                        String inlineMediaMessage = String.format("[INLINE_MEDIA:%s:%s:%s:%d:%s]%s",
-                                messageId, fileName, mimeType, size, base64Data,
-                                caption.isEmpty() ? "" : "\n" + caption);
+                        // Keep the bytes in the blob store and only a reference in the message
+                        MediaReference reference = messageStorage.storeMedia(from, messageId, fileName, mimeType, mediaBytes);
 
-                        // Store as a chat message with embedded media (ONLY ONCE)
-                        ChatMessage mediaMessage = ChatMessage.fromIncoming(from, inlineMediaMessage);
+                        // Store as a chat message referencing the media (ONLY ONCE)
+                        ChatMessage mediaMessage = ChatMessage.fromIncoming(from, reference.toContent(caption));
                         messageStorage.storeMessage(from, mediaMessage);
 
                         System.out.println("[InboxWs] Stored media message from " + from);
@@ -281,15 +297,13 @@ public class InboxWs implements WebSocket.Listener {
                         // Update UI on JavaFX thread - but DON'T store again
                         Platform.runLater(() -> {
                             try {
-                                // Update notification count
-                                notificationManager.incrementNotificationCount(from);
-
+                                // The stored message already counts as unread
                                 // Emit media-inline event for UI handling (display only, no storage)
                                 JsonNode mediaEventData = M.createObjectNode()
                                         .put("fileName", fileName)
                                         .put("mimeType", mimeType)
                                         .put("size", size)
-                                        .put("data", base64Data)
+                                        .put("sha256", reference.sha256())
                                         .put("caption", caption);
 
                                 Event mediaEvent = new Event("media-inline", from, to, timestamp, mediaEventData);
@@ -357,9 +371,7 @@ public class InboxWs implements WebSocket.Listener {
             // Update UI on JavaFX thread - but DON'T emit chat event to avoid duplicate handling
             Platform.runLater(() -> {
                 try {
-                    // Update notification count
-                    notificationManager.incrementNotificationCount(from);
-
+                    // The stored message already counts as unread
                     // If this is the currently open chat, refresh it to show the new message
                     // But don't emit a chat event since that causes duplicate storage
                     if (mainController != null) {
@@ -444,11 +456,8 @@ public class InboxWs implements WebSocket.Listener {
 
         isConnected = false;
 
-        // Stop cleanup timer
-        if (chunkCleanupTimer != null) {
-            chunkCleanupTimer.cancel();
-            chunkCleanupTimer = null;
-        }
+        // Stop chunk cleanup
+        maintenance.unregister(MessageChunkingService.CLEANUP_JOB);
 
         if (shouldReconnect) {
             scheduleReconnect();
@@ -493,24 +502,11 @@ public class InboxWs implements WebSocket.Listener {
     }
 
     /**
-     * Start cleanup timer for chunked messages
+     * Start periodic cleanup of chunked messages on the maintenance thread
      */
-    private void startChunkCleanupTimer() {
-        if (chunkCleanupTimer != null) {
-            chunkCleanupTimer.cancel();
-        }
-
-        chunkCleanupTimer = new Timer("ChunkCleanup", true);
-        chunkCleanupTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    chunkingService.cleanupOldMessages();
-                } catch (Exception e) {
-                    System.err.println("[InboxWs] Error in chunk cleanup: " + e.getMessage());
-                }
-            }
-        }, 30000, 30000); // Clean up every 30 seconds
+    private void startChunkCleanup() {
+        maintenance.register(MessageChunkingService.CLEANUP_JOB, 30000, 30000, // Clean up every 30 seconds
+                context -> chunkingService.cleanupOldMessages());
     }
 
     /**
@@ -528,11 +524,8 @@ public class InboxWs implements WebSocket.Listener {
         System.out.println("[InboxWs] Disconnecting WebSocket...");
         shouldReconnect = false;
 
-        // Stop cleanup timer
-        if (chunkCleanupTimer != null) {
-            chunkCleanupTimer.cancel();
-            chunkCleanupTimer = null;
-        }
+        // Stop chunk cleanup
+        maintenance.unregister(MessageChunkingService.CLEANUP_JOB);
 
         if (ws != null) {
             try {
@@ -556,6 +549,9 @@ public class InboxWs implements WebSocket.Listener {
                 Thread.currentThread().interrupt();
             }
         }
+
+        // Frames already received are still stored before the dispatcher's threads stop
+        inbound.shutdown(5000);
     }
 
     // Method to send a test message (for debugging)
@@ -585,8 +581,17 @@ public class InboxWs implements WebSocket.Listener {
     }
 
     public String getConnectionInfo() {
-        return String.format("InboxWs[connected=%s, attempts=%d, url=%s, user=%s]",
-                isConnected(), reconnectAttempts, workerUrl, username);
+        InboundMessageDispatcher.InboundStats stats = inbound.getStats();
+        return String.format("InboxWs[connected=%s, attempts=%d, url=%s, user=%s, queued=%d/%d, processed=%d, avgWait=%.1fms, avgProcess=%.1fms]",
+                isConnected(), reconnectAttempts, workerUrl, username, stats.depth, stats.window,
+                stats.processed, stats.averageWaitMillis, stats.averageProcessMillis);
+    }
+
+    /**
+     * Queue depth and latency of the stage that handles incoming frames
+     */
+    public InboundMessageDispatcher.InboundStats getInboundStats() {
+        return inbound.getStats();
     }
 
     /**
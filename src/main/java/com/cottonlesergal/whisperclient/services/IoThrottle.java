@@ -0,0 +1,41 @@
+package com.cottonlesergal.whisperclient.services;
+
+/**
+ * Token bucket that paces background storage work to a byte rate, so maintenance does not
+ * compete with interactive reads and writes for the disk. Callers charge the bytes they are
+ * about to touch and are put to sleep once they run ahead of the rate; a burst of up to one
+ * second's worth is allowed.
+ */
+final class IoThrottle {
+    private final long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.tokens = this.bytesPerSecond;
+    }
+
+    /**
+     * Charge {@code bytes}, sleeping until the bucket can cover them.
+     * @return milliseconds spent waiting
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+        refill();
+        tokens -= bytes;
+        if (tokens >= 0) {
+            return 0;
+        }
+
+        long waitMillis = (long) Math.ceil(-tokens * 1000.0 / bytesPerSecond);
+        Thread.sleep(waitMillis);
+        refill();
+        return waitMillis;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1_000_000_000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,184 @@
+package com.cottonlesergal.whisperclient.services;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed store for a conversation's media, under its {@code media} directory.
+ *
+ * Each blob is named by the SHA-256 of its plaintext and laid out as
+ * {@code media/<first two hex chars>/<sha256>.blob}, encrypted with the conversation key.
+ * Storing the same bytes twice only writes them once, but refreshes the blob's modification
+ * time, which {@link #sweep} uses as the last time the blob was stored.
+ *
+ * Nothing here counts references. Blobs are reclaimed by mark and sweep: the storage service
+ * scans the conversation's live messages for {@link MediaReference}s and passes what it found
+ * to {@link #sweep}.
+ */
+final class MediaBlobStore {
+    static final String DIRECTORY = "media";
+    private static final String SUFFIX = ".blob";
+
+    private final Path root;
+
+    MediaBlobStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Store the bytes if they are not already present.
+     * @return the SHA-256 of {@code data}, in lowercase hex
+     */
+    synchronized String put(SecretKey key, byte[] data) throws IOException {
+        String sha256 = sha256(data);
+        Path file = blobPath(sha256);
+        if (Files.exists(file)) {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return sha256; // deduplicated
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            StorageFiles.writeAtomically(file, StorageCipher.seal(key, data));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt media blob " + sha256, e);
+        }
+        return sha256;
+    }
+
+    /**
+     * Read and decrypt a blob.
+     * @throws NoSuchFileException if the blob is not in the store
+     */
+    byte[] get(SecretKey key, String sha256) throws IOException {
+        byte[] sealed = Files.readAllBytes(blobPath(sha256));
+        try {
+            return StorageCipher.open(key, ByteBuffer.wrap(sealed));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt media blob " + sha256, e);
+        }
+    }
+
+    boolean contains(String sha256) {
+        return Files.exists(blobPath(sha256));
+    }
+
+    /**
+     * Size of all blobs on disk.
+     */
+    long diskBytes() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        try (var files = Files.walk(root)) {
+            return files.filter(path -> path.toString().endsWith(SUFFIX))
+                    .mapToLong(path -> path.toFile().length())
+                    .sum();
+        }
+    }
+
+    /**
+     * Delete blobs that are no longer needed, charging each delete to {@code context}: those
+     * no message refers to that were last stored before {@code unreferencedBefore}, and those
+     * whose newest referring message is older than {@code referencedBefore}.
+     *
+     * @param newestReference for each blob still referred to, the timestamp of the newest
+     *                        message referring to it, as found by a scan that started at
+     *                        {@code scanStarted}; a blob stored again since is always kept
+     */
+    Expired sweep(Map<String, Long> newestReference, long scanStarted, long unreferencedBefore,
+                  long referencedBefore, StorageMaintenanceScheduler.JobContext context)
+            throws IOException, InterruptedException {
+        if (!Files.isDirectory(root)) {
+            return new Expired(0, 0);
+        }
+
+        List<Path> blobs;
+        try (var files = Files.walk(root)) {
+            blobs = files.filter(path -> path.toString().endsWith(SUFFIX)).toList();
+        }
+
+        int expired = 0;
+        long bytes = 0;
+        for (Path blob : blobs) {
+            String name = blob.getFileName().toString();
+            Long newest = newestReference.get(name.substring(0, name.length() - SUFFIX.length()));
+            long cutoff;
+            if (newest == null) {
+                cutoff = Math.min(scanStarted, unreferencedBefore);
+            } else if (newest < referencedBefore) {
+                cutoff = scanStarted;
+            } else {
+                continue;
+            }
+
+            long size;
+            try {
+                if (Files.getLastModifiedTime(blob).toMillis() >= cutoff) {
+                    continue;
+                }
+                size = Files.size(blob);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            context.charge(size);
+            synchronized (this) {
+                // A put may have refreshed it while we were waiting
+                if (Files.exists(blob) && Files.getLastModifiedTime(blob).toMillis() < cutoff
+                        && Files.deleteIfExists(blob)) {
+                    expired++;
+                    bytes += size;
+                }
+            }
+        }
+        return new Expired(expired, bytes);
+    }
+
+    /**
+     * Blobs removed by {@link #sweep} and the space they used
+     */
+    record Expired(int blobs, long bytes) {}
+
+    /**
+     * Delete every blob, leaving an empty media directory.
+     */
+    synchronized void clear() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (var files = Files.walk(root)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                if (!path.equals(root)) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    private Path blobPath(String sha256) {
+        if (sha256 == null || sha256.length() != 64 || !sha256.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            throw new IllegalArgumentException("Invalid media hash: " + sha256);
+        }
+        String hash = sha256.toLowerCase();
+        return root.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -9,7 +9,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URLConnection;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.file.Files;
@@ -21,7 +20,7 @@ import java.util.regex.Pattern;
 public class MediaMessageService {
     private static final MediaMessageService INSTANCE = new MediaMessageService();
     private static final ObjectMapper MAPPER = new ObjectMapper();
-    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
+    private static final HttpTransport HTTP = HttpTransport.getInstance();
 
     // URL patterns for different platforms
     private static final Pattern YOUTUBE_PATTERN = Pattern.compile(
@@ -244,11 +243,10 @@ public class MediaMessageService {
         // Try to get video info from YouTube API or oEmbed
         try {
             String oEmbedUrl = "https://www.youtube.com/oembed?url=" + url + "&format=json";
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(oEmbedUrl))
+            HttpRequest request = HTTP.anonymousRequest(oEmbedUrl)
                     .build();
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HTTP.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() == 200) {
                 JsonNode json = MAPPER.readTree(response.body());
                 embed.setTitle(json.path("title").asText());
@@ -272,11 +270,10 @@ public class MediaMessageService {
         // Try Twitter oEmbed API
         try {
             String oEmbedUrl = "https://publish.twitter.com/oembed?url=" + url;
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(oEmbedUrl))
+            HttpRequest request = HTTP.anonymousRequest(oEmbedUrl)
                     .build();
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HTTP.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() == 200) {
                 JsonNode json = MAPPER.readTree(response.body());
                 embed.setTitle("Tweet");
@@ -309,12 +306,11 @@ public class MediaMessageService {
 
         // Try to scrape basic info
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
+            HttpRequest request = HTTP.anonymousRequest(url)
+                    .setHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
                     .build();
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HTTP.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() == 200) {
                 String html = response.body();
 
@@ -341,12 +337,11 @@ public class MediaMessageService {
         embed.setEmbedType(LinkEmbed.EmbedType.GENERIC);
 
         try {
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(url))
-                    .header("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
+            HttpRequest request = HTTP.anonymousRequest(url)
+                    .setHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
                     .build();
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HTTP.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() == 200) {
                 String html = response.body();
 
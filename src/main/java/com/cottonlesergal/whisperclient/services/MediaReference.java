@@ -0,0 +1,58 @@
+package com.cottonlesergal.whisperclient.services;
+
+/**
+ * Pointer from a chat message to media bytes held in the {@link MediaBlobStore}.
+ *
+ * Stored in {@code ChatMessage.content} as {@code [MEDIA_REF:id:sha256:mime:size:name]caption},
+ * so a page of messages stays small no matter how large the attachments are. The file name
+ * is last because it is the only field that may contain colons.
+ */
+public record MediaReference(String id, String sha256, String mimeType, long size, String fileName) {
+    public static final String PREFIX = "[MEDIA_REF:";
+
+    public static boolean isReference(String content) {
+        return content != null && content.startsWith(PREFIX);
+    }
+
+    /**
+     * Parse the reference at the start of a message, or null if the content is not one.
+     */
+    public static MediaReference parse(String content) {
+        if (!isReference(content)) {
+            return null;
+        }
+
+        int endBracket = content.indexOf(']');
+        if (endBracket < 0) {
+            return null;
+        }
+
+        String[] parts = content.substring(PREFIX.length(), endBracket).split(":", 5);
+        if (parts.length < 5) {
+            return null;
+        }
+
+        try {
+            return new MediaReference(parts[0], parts[1], parts[2], Long.parseLong(parts[3]), parts[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Caption following the reference, or an empty string.
+     */
+    public static String caption(String content) {
+        int endBracket = content == null ? -1 : content.indexOf(']');
+        return endBracket >= 0 ? content.substring(endBracket + 1).trim() : "";
+    }
+
+    /**
+     * Message content for this reference, with the optional caption on the next line.
+     */
+    public String toContent(String caption) {
+        String safeName = fileName == null ? "" : fileName.replace(']', '_').replace('\n', ' ');
+        return String.format("%s%s:%s:%s:%d:%s]%s", PREFIX, id, sha256, mimeType, size, safeName,
+                caption != null && !caption.isEmpty() ? "\n" + caption : "");
+    }
+}
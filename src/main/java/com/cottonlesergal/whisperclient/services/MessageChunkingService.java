@@ -12,6 +12,9 @@ public class MessageChunkingService {
     private static final MessageChunkingService INSTANCE = new MessageChunkingService();
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
+    /** Name of the {@link StorageMaintenanceScheduler} job that drops stale partial messages */
+    public static final String CLEANUP_JOB = "chunk-buffer-cleanup";
+
     // Reduced chunk size to account for JSON wrapper overhead
     private static final int MAX_CHUNK_DATA_SIZE = 60 * 1024; // 60KB for data, leaving room for JSON wrapper
 
@@ -114,8 +117,9 @@ public class MessageChunkingService {
 
     /**
      * Clean up old incomplete messages (call periodically)
+     * @return how many incomplete messages were dropped
      */
-    public void cleanupOldMessages() {
+    public int cleanupOldMessages() {
         long now = System.currentTimeMillis();
         int removedCount = 0;
 
@@ -131,6 +135,7 @@ public class MessageChunkingService {
         if (removedCount > 0) {
             System.out.println("[MessageChunkingService] Cleaned up " + removedCount + " incomplete messages");
         }
+        return removedCount;
     }
 
     /**
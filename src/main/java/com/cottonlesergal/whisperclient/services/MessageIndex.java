@@ -0,0 +1,778 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageSegmentLog.LogRecord;
+import com.cottonlesergal.whisperclient.services.MessageSegmentLog.RecordPointer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Persistent index of a conversation's segment log, sorted by timestamp.
+ *
+ * Entries are fixed width so page {@code k} is a single positional read. The header
+ * records how many log bytes the index covers; if that no longer matches the log
+ * (crash between append and index update, deleted or damaged file) the index is
+ * rebuilt from the log on open.
+ *
+ * Deleted messages stay in place as tombstoned entries (flagged in the key length byte)
+ * until {@link #compactSegment} drops them, so a delete is one tombstone record in the log plus
+ * a flag write per entry. Readers skip tombstoned entries.
+ */
+final class MessageIndex implements Closeable {
+    static final String FILE_NAME = "index.idx";
+
+    private static final int MAGIC = 0x57434958; // "WCIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final long DIRTY = -1L;
+    private static final int TOMBSTONE_FLAG = 0x80;
+
+    // Above this many ids a delete scans the whole index instead of looking each one up
+    private static final int LOOKUP_LIMIT = 64;
+
+    // timestamp(8) + segment(4) + offset(8) + length(4) + keyLength(1, high bit = tombstone) + key(47)
+    static final int KEY_BYTES = 47;
+    static final int ENTRY_BYTES = 8 + 4 + 8 + 4 + 1 + KEY_BYTES;
+    private static final int KEY_LENGTH_OFFSET = 8 + 4 + 8 + 4;
+
+    private final Path file;
+    private final FileChannel channel;
+    private int count;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    // Positions of tombstoned entries, ascending
+    private int[] tombstones = new int[0];
+    private int tombstoneCount;
+
+    // Timestamp of every key, built on the first lookup by id and kept up to date afterwards,
+    // plus the keys that were stored more than once and so may appear at several timestamps
+    private Map<String, Long> timestampsByKey;
+    private final Set<String> reusedKeys = new HashSet<>();
+
+    private MessageIndex(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the index next to {@code log}, rebuilding it if it is missing, stale or corrupt.
+     */
+    static MessageIndex open(Path dir, MessageSegmentLog log) throws IOException {
+        Path file = dir.resolve(FILE_NAME);
+        if (!isValid(file, log.totalBytes())) {
+            System.out.println("[MessageIndex] Rebuilding index " + file);
+            rebuild(file, log);
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MessageIndex index = new MessageIndex(file, channel);
+        index.count = (int) ((channel.size() - HEADER_BYTES) / ENTRY_BYTES);
+        if (index.count > 0) {
+            index.lastTimestamp = index.readEntry(index.count - 1).timestamp();
+        }
+        if (index.readTombstoneCount() > 0) {
+            index.loadTombstones();
+        }
+        return index;
+    }
+
+    /**
+     * Number of indexed messages, not counting deleted ones.
+     */
+    synchronized int size() {
+        return count - tombstoneCount;
+    }
+
+    /**
+     * Number of deleted entries waiting for {@link #compactSegment}.
+     */
+    synchronized int tombstoneCount() {
+        return tombstoneCount;
+    }
+
+    /**
+     * Record a newly appended message. In-order messages are appended; late arrivals
+     * are inserted at their sorted position.
+     */
+    synchronized void add(long timestamp, String id, RecordPointer pointer, long coveredLogBytes) throws IOException {
+        ByteBuffer entry = encodeEntry(timestamp, key(id), pointer);
+        if (timestampsByKey != null && timestampsByKey.put(key(id), timestamp) != null) {
+            reusedKeys.add(key(id));
+        }
+
+        if (count == 0 || timestamp >= lastTimestamp) {
+            writeFully(entry, position(count));
+            count++;
+            lastTimestamp = timestamp;
+            writeHeader(coveredLogBytes);
+            return;
+        }
+
+        int insertAt = upperBound(timestamp);
+        writeHeader(DIRTY);
+        shiftTail(insertAt, 1);
+        writeFully(entry, position(insertAt));
+        count++;
+        for (int i = tombstonesBefore(insertAt); i < tombstoneCount; i++) {
+            tombstones[i]++;
+        }
+        writeHeader(coveredLogBytes);
+    }
+
+    /**
+     * Oldest entry, or null if the index is empty.
+     */
+    synchronized IndexEntry oldest() throws IOException {
+        List<IndexEntry> entries = readLive(0, count, 1, false);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Newest entry, or null if the index is empty.
+     */
+    synchronized IndexEntry newest() throws IOException {
+        List<IndexEntry> entries = readLive(0, count, 1, true);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * Entries for page {@code page} (0 = newest), newest first.
+     */
+    synchronized List<IndexEntry> readPage(int page, int pageSize) throws IOException {
+        long end = (long) size() - (long) page * pageSize;
+        if (page < 0 || pageSize <= 0 || end <= 0) {
+            return new ArrayList<>();
+        }
+        return readLive(0, physicalPosition((int) end - 1) + 1, pageSize, true);
+    }
+
+    /**
+     * Position of a message counted from the newest (0 = newest), or -1 if it is not indexed.
+     * Divide by the page size to get the page that holds it.
+     */
+    synchronized int rankFromNewest(long timestamp, String id) throws IOException {
+        int index = indexOf(timestamp, key(id));
+        return index < 0 ? -1 : count - 1 - index - (tombstoneCount - tombstonesBefore(index + 1));
+    }
+
+    /**
+     * Timestamp of the newest entry stored under a message id, or null if it is not indexed.
+     */
+    synchronized Long timestampOf(String id) throws IOException {
+        return timestampOfKey(key(id));
+    }
+
+    /**
+     * Up to {@code limit} entries older than a cursor, newest first. The cursor is message
+     * {@code id} at {@code timestamp}; if {@code id} is null or not indexed at that time,
+     * everything before {@code timestamp} counts as older.
+     */
+    synchronized List<IndexEntry> readBefore(long timestamp, String id, int limit) throws IOException {
+        int end = id != null ? indexOf(timestamp, key(id)) : -1;
+        if (end < 0) {
+            end = lowerBound(timestamp);
+        }
+        return readLive(0, end, limit, true);
+    }
+
+    /**
+     * Up to {@code limit} entries newer than a cursor, oldest first. See {@link #readBefore}.
+     */
+    synchronized List<IndexEntry> readAfter(long timestamp, String id, int limit) throws IOException {
+        int start = id != null ? indexOf(timestamp, key(id)) : -1;
+        start = start >= 0 ? start + 1 : upperBound(timestamp);
+        return readLive(start, count, limit, false);
+    }
+
+    /**
+     * Up to {@code limit} entries with {@code from <= timestamp < to}, oldest first.
+     */
+    synchronized List<IndexEntry> readBetween(long from, long to, int limit) throws IOException {
+        int start = lowerBound(from);
+        int end = Math.max(start, lowerBound(to));
+        return readLive(start, end, limit, false);
+    }
+
+    /**
+     * Visit every live entry, oldest first.
+     */
+    synchronized void scanLive(EntryVisitor visitor) throws IOException {
+        for (int start = 0; start < count; start += 1024) {
+            for (IndexEntry entry : readRange(start, Math.min(count, start + 1024))) {
+                if (!entry.deleted()) {
+                    visitor.visit(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Up to {@code limit} live entries after {@code cursor}, oldest first, or from the oldest if
+     * {@code cursor} is null. Lets whole-history work walk the index a window at a time while
+     * messages keep arriving; the cursor is found again even if it was deleted since.
+     */
+    synchronized List<IndexEntry> readLiveAfter(IndexEntry cursor, int limit) throws IOException {
+        int start = 0;
+        if (cursor != null) {
+            start = upperBound(cursor.timestamp());
+            for (int i = lowerBound(cursor.timestamp()); i < start; i++) {
+                if (readEntry(i).pointer().equals(cursor.pointer())) {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        return readLive(start, count, limit, false);
+    }
+
+    /**
+     * Delete every entry stored under one of {@code ids}: append a tombstone per id to
+     * {@code log}, then flag the entries. Returns the entries that were deleted.
+     */
+    synchronized List<IndexEntry> delete(Collection<String> ids, MessageSegmentLog log) throws IOException {
+        return deleteKeys(keysOf(ids), log);
+    }
+
+    /**
+     * Like {@link #delete}, for index keys rather than message ids.
+     */
+    synchronized List<IndexEntry> deleteKeys(Collection<String> keys, MessageSegmentLog log) throws IOException {
+        return markDeleted(locate(new HashSet<>(keys)), log);
+    }
+
+    /**
+     * Live entries stored under one of {@code keys}, oldest first.
+     */
+    synchronized List<IndexEntry> lookup(Collection<String> keys) throws IOException {
+        return new ArrayList<>(locate(new HashSet<>(keys)).values());
+    }
+
+    /**
+     * Delete every entry with {@code from <= timestamp < to}. See {@link #delete}.
+     */
+    synchronized List<IndexEntry> deleteBetween(long from, long to, MessageSegmentLog log) throws IOException {
+        int start = lowerBound(from);
+        int end = Math.max(start, lowerBound(to));
+
+        TreeMap<Integer, IndexEntry> found = new TreeMap<>();
+        for (int chunk = start; chunk < end; chunk += 1024) {
+            List<IndexEntry> entries = readRange(chunk, Math.min(end, chunk + 1024));
+            for (int i = 0; i < entries.size(); i++) {
+                if (!entries.get(i).deleted()) {
+                    found.put(chunk + i, entries.get(i));
+                }
+            }
+        }
+        return markDeleted(found, log);
+    }
+
+    /**
+     * Deleted entries not yet dropped by {@link #compactSegment}, oldest first.
+     */
+    synchronized List<IndexEntry> deletedEntries() throws IOException {
+        List<IndexEntry> entries = new ArrayList<>(tombstoneCount);
+        for (int i = 0; i < tombstoneCount; i++) {
+            entries.add(readEntry(tombstones[i]));
+        }
+        return entries;
+    }
+
+    /**
+     * Apply the rewrite of one segment: drop the tombstoned entries whose records were in
+     * {@code segment} and repoint entries whose records moved. Tombstoned entries of other
+     * segments stay until their own segment is rewritten.
+     */
+    synchronized void compactSegment(int segment, Map<RecordPointer, RecordPointer> relocated,
+                                     long coveredLogBytes) throws IOException {
+        writeHeader(DIRTY);
+        ByteBuffer in = ByteBuffer.allocate(ENTRY_BYTES * 1024);
+        List<Integer> remaining = new ArrayList<>();
+        int written = 0;
+
+        for (int start = 0; start < count; start += 1024) {
+            int batch = Math.min(1024, count - start);
+            in.clear().limit(batch * ENTRY_BYTES);
+            readFully(in, position(start));
+            in.flip();
+
+            for (int i = 0; i < batch; i++) {
+                IndexEntry entry = decodeEntry(in);
+                if (entry.deleted()) {
+                    if (entry.pointer().segment() == segment) {
+                        continue;
+                    }
+                    remaining.add(written);
+                }
+                RecordPointer pointer = relocated.getOrDefault(entry.pointer(), entry.pointer());
+                if (written != start + i || pointer != entry.pointer()) {
+                    writeFully(encodeEntry(entry.timestamp(), entry.key(), pointer, entry.deleted()),
+                            position(written));
+                }
+                written++;
+            }
+        }
+
+        count = written;
+        tombstones = remaining.stream().mapToInt(Integer::intValue).toArray();
+        tombstoneCount = tombstones.length;
+        channel.truncate(position(count));
+        lastTimestamp = count > 0 ? readEntry(count - 1).timestamp() : Long.MIN_VALUE;
+        writeHeader(coveredLogBytes);
+    }
+
+    /**
+     * Remove every entry.
+     */
+    synchronized void clear(long coveredLogBytes) throws IOException {
+        channel.truncate(HEADER_BYTES);
+        count = 0;
+        tombstones = new int[0];
+        tombstoneCount = 0;
+        timestampsByKey = null;
+        reusedKeys.clear();
+        lastTimestamp = Long.MIN_VALUE;
+        writeHeader(coveredLogBytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Index key for a message id. Ids that do not fit in the fixed key slot are
+     * replaced by a digest so lookups still work.
+     */
+    static String key(String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= KEY_BYTES && !id.startsWith("#")) {
+            return id;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            return "#" + HexFormat.of().formatHex(digest);
+        } catch (Exception e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    // ============== INTERNALS ==============
+
+    private static boolean isValid(Path file, long logBytes) {
+        if (!Files.exists(file)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || (size - HEADER_BYTES) % ENTRY_BYTES != 0) {
+                return false;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return false;
+                }
+            }
+            header.flip();
+
+            return header.getInt() == MAGIC
+                    && header.getInt() == VERSION
+                    && header.getLong() == logBytes
+                    && header.getInt() == (size - HEADER_BYTES) / ENTRY_BYTES;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void rebuild(Path file, MessageSegmentLog log) throws IOException {
+        // A tombstone deletes the records of its key that were appended before it. Those stay
+        // in the index as tombstoned entries so compaction still removes them from the log.
+        List<LogRecord> records = new ArrayList<>();
+        Map<String, Integer> deletedBefore = new HashMap<>();
+        log.scan(record -> {
+            if (record.isTombstone()) {
+                deletedBefore.put(record.id(), records.size());
+            } else {
+                records.add(record);
+            }
+        });
+
+        Set<RecordPointer> deleted = new HashSet<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (i < deletedBefore.getOrDefault(key(records.get(i).id()), 0)) {
+                deleted.add(records.get(i).pointer());
+            }
+        }
+        records.sort(Comparator.comparingLong(LogRecord::timestamp)); // stable: keeps append order for ties
+
+        Path temp = StorageFiles.tempFile(file);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = encodeHeader(log.totalBytes(), records.size(), deleted.size());
+            while (header.hasRemaining()) out.write(header);
+
+            for (LogRecord record : records) {
+                ByteBuffer entry = encodeEntry(record.timestamp(), key(record.id()), record.pointer(),
+                        deleted.contains(record.pointer()));
+                while (entry.hasRemaining()) out.write(entry);
+            }
+            out.force(false);
+        }
+        StorageFiles.commit(temp, file);
+    }
+
+    private static Set<String> keysOf(Collection<String> ids) {
+        Set<String> keys = new HashSet<>();
+        for (String id : ids) {
+            keys.add(key(id));
+        }
+        return keys;
+    }
+
+    /**
+     * Live entries stored under one of {@code keys}, by position.
+     */
+    private TreeMap<Integer, IndexEntry> locate(Set<String> keys) throws IOException {
+        TreeMap<Integer, IndexEntry> found = new TreeMap<>();
+        boolean scan = keys.size() > LOOKUP_LIMIT;
+        if (!scan) {
+            for (String key : keys) {
+                Long timestamp = timestampOfKey(key);
+                if (timestamp == null) {
+                    continue;
+                }
+                if (reusedKeys.contains(key)) {
+                    // A reused id may be stored at several timestamps
+                    scan = true;
+                    break;
+                }
+                int index = indexOf(timestamp, key);
+                if (index >= 0) {
+                    found.put(index, readEntry(index));
+                }
+            }
+        }
+
+        if (scan) {
+            found.clear();
+            for (int start = 0; start < count; start += 1024) {
+                List<IndexEntry> entries = readRange(start, Math.min(count, start + 1024));
+                for (int i = 0; i < entries.size(); i++) {
+                    IndexEntry entry = entries.get(i);
+                    if (!entry.deleted() && keys.contains(entry.key())) {
+                        found.put(start + i, entry);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private Long timestampOfKey(String key) throws IOException {
+        if (timestampsByKey == null) {
+            Map<String, Long> timestamps = new HashMap<>(Math.max(16, count * 2));
+            scanLive(entry -> {
+                if (timestamps.put(entry.key(), entry.timestamp()) != null) {
+                    reusedKeys.add(entry.key());
+                }
+            });
+            timestampsByKey = timestamps;
+        }
+        return timestampsByKey.get(key);
+    }
+
+    /**
+     * Append tombstones for {@code found} (entries by position) and flag them. The header is
+     * rewritten last, so a crash in between leaves it stale and the index is rebuilt from the log.
+     */
+    private List<IndexEntry> markDeleted(TreeMap<Integer, IndexEntry> found, MessageSegmentLog log) throws IOException {
+        if (found.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<String, Long> newestByKey = new LinkedHashMap<>();
+        for (IndexEntry entry : found.values()) {
+            newestByKey.merge(entry.key(), entry.timestamp(), Math::max);
+        }
+        for (Map.Entry<String, Long> key : newestByKey.entrySet()) {
+            log.appendTombstone(key.getValue(), key.getKey());
+        }
+
+        int[] merged = new int[tombstoneCount + found.size()];
+        int existing = 0;
+        int next = 0;
+        for (Map.Entry<Integer, IndexEntry> entry : found.entrySet()) {
+            int position = entry.getKey();
+            int keyLength = entry.getValue().key().getBytes(StandardCharsets.UTF_8).length;
+            writeFully(ByteBuffer.wrap(new byte[]{(byte) (keyLength | TOMBSTONE_FLAG)}),
+                    position(position) + KEY_LENGTH_OFFSET);
+
+            while (existing < tombstoneCount && tombstones[existing] < position) {
+                merged[next++] = tombstones[existing++];
+            }
+            merged[next++] = position;
+        }
+        while (existing < tombstoneCount) {
+            merged[next++] = tombstones[existing++];
+        }
+        tombstones = merged;
+        tombstoneCount = next;
+
+        if (!Collections.disjoint(reusedKeys, newestByKey.keySet())) {
+            // A reused id may still be live elsewhere, so look everything up again next time
+            timestampsByKey = null;
+            reusedKeys.clear();
+        } else if (timestampsByKey != null) {
+            timestampsByKey.keySet().removeAll(newestByKey.keySet());
+        }
+        writeHeader(log.totalBytes());
+        return new ArrayList<>(found.values());
+    }
+
+    private void loadTombstones() throws IOException {
+        List<Integer> positions = new ArrayList<>();
+        for (int start = 0; start < count; start += 1024) {
+            List<IndexEntry> entries = readRange(start, Math.min(count, start + 1024));
+            for (int i = 0; i < entries.size(); i++) {
+                if (entries.get(i).deleted()) {
+                    positions.add(start + i);
+                }
+            }
+        }
+        tombstones = positions.stream().mapToInt(Integer::intValue).toArray();
+        tombstoneCount = tombstones.length;
+    }
+
+    /**
+     * Up to {@code limit} live entries from positions {@code [start, end)}, newest or oldest first.
+     */
+    private List<IndexEntry> readLive(int start, int end, int limit, boolean newestFirst) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        int low = start;
+        int high = end;
+        while (low < high && entries.size() < limit) {
+            // What is still needed, plus room for tombstones that may be in the way
+            long want = (long) limit - entries.size() + Math.min(tombstoneCount, 1024);
+            if (newestFirst) {
+                int from = (int) Math.max(low, high - want);
+                List<IndexEntry> chunk = readRange(from, high);
+                for (int i = chunk.size() - 1; i >= 0 && entries.size() < limit; i--) {
+                    if (!chunk.get(i).deleted()) {
+                        entries.add(chunk.get(i));
+                    }
+                }
+                high = from;
+            } else {
+                int to = (int) Math.min(high, low + want);
+                for (IndexEntry entry : readRange(low, to)) {
+                    if (entries.size() >= limit) {
+                        break;
+                    }
+                    if (!entry.deleted()) {
+                        entries.add(entry);
+                    }
+                }
+                low = to;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Position of the live entry with rank {@code liveRank} (0 = oldest).
+     */
+    private int physicalPosition(int liveRank) {
+        int position = liveRank;
+        while (true) {
+            int next = liveRank + tombstonesBefore(position + 1);
+            if (next == position) {
+                return position;
+            }
+            position = next;
+        }
+    }
+
+    /**
+     * Number of tombstoned entries before {@code position}.
+     */
+    private int tombstonesBefore(int position) {
+        int low = 0;
+        int high = tombstoneCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tombstones[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index of the live entry for {@code key} at {@code timestamp}, or -1.
+     */
+    private int indexOf(long timestamp, String key) throws IOException {
+        for (int i = lowerBound(timestamp); i < count; i++) {
+            IndexEntry entry = readEntry(i);
+            if (entry.timestamp() != timestamp) {
+                break;
+            }
+            if (!entry.deleted() && entry.key().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lowerBound(long timestamp) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (readEntry(mid).timestamp() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int upperBound(long timestamp) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (readEntry(mid).timestamp() <= timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void shiftTail(int from, int by) throws IOException {
+        // Move the tail in chunks, last chunk first, so nothing is overwritten before it is copied
+        int chunk = 1024;
+        int end = count;
+        while (end > from) {
+            int start = Math.max(from, end - chunk);
+            ByteBuffer buffer = ByteBuffer.allocate((end - start) * ENTRY_BYTES);
+            readFully(buffer, position(start));
+            buffer.flip();
+            writeFully(buffer, position(start + by));
+            end = start;
+        }
+    }
+
+    private List<IndexEntry> readRange(int start, int end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((end - start) * ENTRY_BYTES);
+        readFully(buffer, position(start));
+        buffer.flip();
+
+        List<IndexEntry> entries = new ArrayList<>(end - start);
+        while (buffer.hasRemaining()) {
+            entries.add(decodeEntry(buffer));
+        }
+        return entries;
+    }
+
+    private IndexEntry readEntry(int index) throws IOException {
+        return readRange(index, index + 1).get(0);
+    }
+
+    private void writeHeader(long coveredLogBytes) throws IOException {
+        writeFully(encodeHeader(coveredLogBytes, count, tombstoneCount), 0);
+    }
+
+    private int readTombstoneCount() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        readFully(buffer, 20);
+        return buffer.flip().getInt();
+    }
+
+    private static ByteBuffer encodeHeader(long coveredLogBytes, int count, int tombstoneCount) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(coveredLogBytes);
+        header.putInt(count);
+        header.putInt(tombstoneCount);
+        header.position(HEADER_BYTES);
+        header.flip();
+        return header;
+    }
+
+    private static ByteBuffer encodeEntry(long timestamp, String key, RecordPointer pointer) {
+        return encodeEntry(timestamp, key, pointer, false);
+    }
+
+    private static ByteBuffer encodeEntry(long timestamp, String key, RecordPointer pointer, boolean deleted) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+        entry.putLong(timestamp);
+        entry.putInt(pointer.segment());
+        entry.putLong(pointer.offset());
+        entry.putInt(pointer.length());
+        entry.put((byte) (deleted ? keyBytes.length | TOMBSTONE_FLAG : keyBytes.length));
+        entry.put(keyBytes);
+        entry.position(ENTRY_BYTES);
+        entry.flip();
+        return entry;
+    }
+
+    private static IndexEntry decodeEntry(ByteBuffer buffer) {
+        long timestamp = buffer.getLong();
+        int segment = buffer.getInt();
+        long offset = buffer.getLong();
+        int length = buffer.getInt();
+        int keyLength = Byte.toUnsignedInt(buffer.get());
+        byte[] keyBytes = new byte[KEY_BYTES];
+        buffer.get(keyBytes);
+        boolean deleted = (keyLength & TOMBSTONE_FLAG) != 0;
+        keyLength &= ~TOMBSTONE_FLAG;
+        String key = new String(keyBytes, 0, Math.min(keyLength, KEY_BYTES), StandardCharsets.UTF_8);
+        return new IndexEntry(timestamp, key, new RecordPointer(segment, offset, length), deleted);
+    }
+
+    private long position(int index) {
+        return HEADER_BYTES + (long) index * ENTRY_BYTES;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of index " + file + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * One indexed message: its timestamp, id key, where its payload lives in the log and
+     * whether it has been deleted.
+     */
+    record IndexEntry(long timestamp, String key, RecordPointer pointer, boolean deleted) {}
+
+    @FunctionalInterface
+    interface EntryVisitor {
+        void visit(IndexEntry entry) throws IOException;
+    }
+}
@@ -0,0 +1,367 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.core.AppCtx;
+import com.cottonlesergal.whisperclient.core.Session;
+import com.cottonlesergal.whisperclient.events.Event;
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import com.cottonlesergal.whisperclient.services.OutboundMessageDispatcher.Delivery;
+import com.cottonlesergal.whisperclient.services.OutboundMessageDispatcher.DeliveryException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outgoing messages that the server has not accepted yet. Every message is journaled to
+ * disk ({@link OutboxStore}) before it is handed to the {@link OutboundMessageDispatcher}
+ * and removed once it is delivered, so nothing the user sent is lost to a dead connection,
+ * a token refresh or a restart.
+ *
+ * Messages to one peer leave strictly one after another. When one fails for a reason that
+ * may pass (the worker is unreachable, the token was rejected), that peer's messages wait
+ * until {@link #drain} is called: when the inbox socket opens, after a token refresh, when
+ * the user sends to that peer again, and every few minutes while anything is waiting.
+ * Drains are rate-shaped so a long backlog does not go out in one burst.
+ *
+ * Each state change is announced as a {@link #STATE_EVENT} on {@code AppCtx.BUS} so the
+ * chat can show it next to the message. All bookkeeping happens on one thread.
+ */
+public final class MessageOutbox {
+    /** Event emitted when a message changes {@link State}; {@code from} is the peer, {@code data} has id, state and error */
+    public static final String STATE_EVENT = "outbox-state";
+    static final String RATE_PROPERTY = "whisperclient.outbox.messagesPerSecond";
+    static final double DEFAULT_MESSAGES_PER_SECOND = 5;
+    static final long RETRY_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(3);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final MessageOutbox INSTANCE = new MessageOutbox(MessageStorageService.getInstance(),
+            OutboundMessageDispatcher.getInstance(), parseRate(System.getProperty(RATE_PROPERTY)));
+
+    public enum State {
+        /** Journaled, waiting for its turn */
+        QUEUED,
+        /** With the dispatcher */
+        SENDING,
+        /** Failed for a reason that may pass; sent again on the next drain */
+        WAITING,
+        /** Rejected by the server and dropped from the outbox */
+        FAILED,
+        /** Accepted by the server; only ever announced */
+        SENT
+    }
+
+    private static final class Peer {
+        final ArrayDeque<OutboxStore.Entry> entries = new ArrayDeque<>();
+        // The head is with the dispatcher or scheduled to be
+        boolean sending;
+        // The head failed transiently; nothing is sent until the next drain
+        boolean waiting;
+    }
+
+    private final MessageStorageService storage;
+    private final OutboundMessageDispatcher dispatcher;
+    private final long intervalMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MessageOutbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched on the executor thread
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final Map<String, CompletableFuture<Delivery>> futures = new HashMap<>();
+    private String loadedFor;
+    private long nextSlotAt;
+    private boolean retryScheduled;
+
+    // Read from any thread, so the chat can show a state as it builds a bubble
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LongAdder drains = new LongAdder();
+
+    public static MessageOutbox getInstance() {
+        return INSTANCE;
+    }
+
+    MessageOutbox(MessageStorageService storage, OutboundMessageDispatcher dispatcher, double messagesPerSecond) {
+        this.storage = storage;
+        this.dispatcher = dispatcher;
+        this.intervalMillis = (long) Math.ceil(1000 / messagesPerSecond);
+    }
+
+    /**
+     * Journal an outgoing message and send it behind anything still unsent to {@code to}.
+     * The future completes when the server accepts it, which may be after a reconnect, or
+     * exceptionally if the server rejects it.
+     */
+    public CompletableFuture<Delivery> send(String to, ChatMessage message) {
+        CompletableFuture<Delivery> future = new CompletableFuture<>();
+        states.put(message.getId(), State.QUEUED);
+        OutboxStore.Entry entry = new OutboxStore.Entry(message.getId(), to, message.getContent(), System.currentTimeMillis());
+        executor.execute(() -> {
+            loadIfNeeded();
+            Peer peer = peer(to);
+            peer.entries.add(entry);
+            futures.put(entry.id, future);
+            queued.increment();
+            save(to, peer);
+
+            if (peer.waiting) {
+                // The user is sending again; a good moment to try what was held back
+                peer.waiting = false;
+                schedule(peer);
+            } else if (!peer.sending) {
+                // Nothing ahead of it: send now rather than wait for a drain slot
+                peer.sending = true;
+                sendHead(peer);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Send every waiting message again, in order and rate-shaped. Loads messages left over
+     * from the previous run the first time it is called after sign-in.
+     */
+    public void drain(String reason) {
+        executor.execute(() -> {
+            loadIfNeeded();
+            int resumed = 0;
+            for (Peer peer : peers.values()) {
+                if (!peer.sending && !peer.entries.isEmpty()) {
+                    peer.waiting = false;
+                    schedule(peer);
+                    resumed++;
+                }
+            }
+            if (resumed > 0) {
+                drains.increment();
+                System.out.println("[MessageOutbox] Draining " + resumed + " conversation(s) (" + reason + ")");
+            }
+        });
+    }
+
+    /**
+     * Where an outgoing message stands, or null if it is not (or no longer) in the outbox
+     */
+    public State getState(String messageId) {
+        return messageId != null ? states.get(messageId) : null;
+    }
+
+    public OutboxStats getStats() {
+        OutboxStats stats = new OutboxStats();
+        for (State state : states.values()) {
+            if (state == State.WAITING) {
+                stats.waiting++;
+            } else if (state == State.QUEUED || state == State.SENDING) {
+                stats.pending++;
+            }
+        }
+        stats.queued = queued.sum();
+        stats.delivered = delivered.sum();
+        stats.failed = failed.sum();
+        stats.deferred = deferred.sum();
+        stats.drains = drains.sum();
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private static double parseRate(String value) {
+        if (value != null) {
+            try {
+                double rate = Double.parseDouble(value.trim());
+                if (rate > 0) {
+                    return rate;
+                }
+            } catch (NumberFormatException ignored) {
+            }
+            System.err.println("[MessageOutbox] Ignoring invalid send rate " + value);
+        }
+        return DEFAULT_MESSAGES_PER_SECOND;
+    }
+
+    private Peer peer(String to) {
+        return peers.computeIfAbsent(to.toLowerCase(Locale.ROOT), p -> new Peer());
+    }
+
+    /**
+     * Pick up what the signed-in account left unsent, ahead of anything queued since.
+     * Switching accounts forgets the previous account's outbox (it stays on disk).
+     */
+    private void loadIfNeeded() {
+        String owner = Session.me != null ? Session.me.getUsername() : null;
+        if (owner == null || owner.equals(loadedFor)) {
+            return;
+        }
+        if (loadedFor != null) {
+            for (Peer peer : peers.values()) {
+                peer.entries.forEach(entry -> states.remove(entry.id));
+            }
+            peers.clear();
+        }
+        loadedFor = owner;
+
+        int loaded = 0;
+        for (List<OutboxStore.Entry> entries : storage.loadOutboxes().values()) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                OutboxStore.Entry entry = entries.get(i);
+                Peer peer = peer(entry.to);
+                if (peer.entries.stream().noneMatch(e -> e.id.equals(entry.id))) {
+                    peer.entries.addFirst(entry);
+                    peer.waiting = !peer.sending;
+                    announce(entry, peer.sending ? State.QUEUED : State.WAITING, entry.lastError);
+                    loaded++;
+                }
+            }
+        }
+        if (loaded > 0) {
+            System.out.println("[MessageOutbox] Loaded " + loaded + " unsent message(s) from the last session");
+            scheduleRetry();
+        }
+    }
+
+    /**
+     * Send the peer's head at the next free drain slot
+     */
+    private void schedule(Peer peer) {
+        peer.sending = true;
+        long now = System.currentTimeMillis();
+        long delay = Math.max(0, nextSlotAt - now);
+        nextSlotAt = Math.max(now, nextSlotAt) + intervalMillis;
+        for (OutboxStore.Entry entry : peer.entries) {
+            if (states.get(entry.id) != State.QUEUED) {
+                announce(entry, State.QUEUED, null);
+            }
+        }
+        executor.schedule(() -> sendHead(peer), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendHead(Peer peer) {
+        OutboxStore.Entry head = peer.entries.peek();
+        if (head == null) {
+            peer.sending = false;
+            return;
+        }
+        announce(head, State.SENDING, null);
+        dispatcher.send(head.to, head.id, head.text)
+                .whenComplete((delivery, failure) -> executor.execute(() -> completed(peer, head, delivery, failure)));
+    }
+
+    private void completed(Peer peer, OutboxStore.Entry head, Delivery delivery, Throwable failure) {
+        if (failure == null) {
+            peer.entries.remove(head);
+            save(head.to, peer);
+            delivered.increment();
+            announce(head, State.SENT, null);
+            states.remove(head.id);
+            complete(head, delivery, null);
+        } else if (failure instanceof DeliveryException de && de.isTransient()) {
+            head.attempts++;
+            head.lastError = de.getMessage();
+            save(head.to, peer);
+            deferred.increment();
+            peer.sending = false;
+            peer.waiting = true;
+            for (OutboxStore.Entry entry : peer.entries) {
+                announce(entry, State.WAITING, entry == head ? de.getMessage() : null);
+            }
+            System.out.println("[MessageOutbox] Holding " + peer.entries.size() + " message(s) to " + head.to +
+                    " until the next drain: " + de.getMessage());
+            scheduleRetry();
+            return;
+        } else {
+            peer.entries.remove(head);
+            save(head.to, peer);
+            failed.increment();
+            announce(head, State.FAILED, failure.getMessage());
+            complete(head, null, failure);
+        }
+
+        if (peer.entries.isEmpty()) {
+            peer.sending = false;
+        } else {
+            schedule(peer);
+        }
+    }
+
+    private void complete(OutboxStore.Entry entry, Delivery delivery, Throwable failure) {
+        CompletableFuture<Delivery> future = futures.remove(entry.id);
+        if (future == null) {
+            return;
+        }
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        } else {
+            future.complete(delivery);
+        }
+    }
+
+    /**
+     * Drain again later in case neither a reconnect nor a token refresh comes along
+     */
+    private void scheduleRetry() {
+        if (retryScheduled) {
+            return;
+        }
+        retryScheduled = true;
+        executor.schedule(() -> {
+            retryScheduled = false;
+            if (peers.values().stream().anyMatch(peer -> peer.waiting)) {
+                drain("periodic retry");
+            }
+        }, RETRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void save(String to, Peer peer) {
+        try {
+            storage.saveOutbox(to, new ArrayList<>(peer.entries));
+        } catch (IOException e) {
+            // Still sent from memory; only a crash before delivery would lose it
+            System.err.println("[MessageOutbox] Failed to journal outbox for " + to + ": " + e.getMessage());
+        }
+    }
+
+    private void announce(OutboxStore.Entry entry, State state, String error) {
+        if (state != State.SENT) {
+            states.put(entry.id, state);
+        }
+        ObjectNode data = MAPPER.createObjectNode()
+                .put("id", entry.id)
+                .put("state", state.name());
+        if (error != null) {
+            data.put("error", error);
+        }
+        AppCtx.BUS.emit(new Event(STATE_EVENT, entry.to, null, System.currentTimeMillis(), data));
+    }
+
+    /**
+     * Messages in the outbox now and what it has done since startup
+     */
+    public static class OutboxStats {
+        public int pending = 0;
+        public int waiting = 0;
+        public long queued = 0;
+        public long delivered = 0;
+        public long failed = 0;
+        public long deferred = 0;
+        public long drains = 0;
+    }
+}
@@ -0,0 +1,212 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of decrypted message pages, bounded by an estimate of their heap size.
+ *
+ * Pages are keyed by conversation, page number and page size. Every conversation has a
+ * generation number that is bumped whenever its pages change, so a page that was read
+ * from disk while a write was in flight is never cached over the newer state.
+ */
+public final class MessagePageCache {
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024; // 32 MB
+
+    // Rough per-object overhead of a ChatMessage and its strings
+    private static final int MESSAGE_OVERHEAD_BYTES = 160;
+
+    private final long maxBytes;
+    private final LinkedHashMap<PageKey, CachedPage> pages = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, Long> generations = new HashMap<>();
+    private long currentBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    MessagePageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Cached copy of a page, or null on a miss.
+     */
+    synchronized List<ChatMessage> get(String conversation, int page, int pageSize) {
+        CachedPage cached = pages.get(new PageKey(conversation, page, pageSize));
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<>(cached.messages);
+    }
+
+    /**
+     * Current generation of a conversation; pass it back to {@link #put} after reading from disk.
+     */
+    synchronized long generation(String conversation) {
+        return generations.getOrDefault(conversation, 0L);
+    }
+
+    /**
+     * Cache a page read from disk, unless the conversation changed since {@code generation}.
+     */
+    synchronized void put(String conversation, int page, int pageSize, List<ChatMessage> messages, long generation) {
+        if (generation != generation(conversation)) {
+            return;
+        }
+
+        CachedPage cached = new CachedPage(new ArrayList<>(messages));
+        if (cached.bytes > maxBytes) {
+            return; // a single page larger than the whole cache is not worth keeping
+        }
+
+        CachedPage previous = pages.put(new PageKey(conversation, page, pageSize), cached);
+        if (previous != null) {
+            currentBytes -= previous.bytes;
+        }
+        currentBytes += cached.bytes;
+        evictToFit();
+    }
+
+    /**
+     * Write a newly stored message through to the cache. The newest page of each page size
+     * gains the message; older pages shift by one and are dropped. A message that lands
+     * behind the newest cached one invalidates the conversation instead.
+     */
+    synchronized void onStore(String conversation, ChatMessage message) {
+        bumpGeneration(conversation);
+
+        List<PageKey> keys = new ArrayList<>();
+        for (PageKey key : pages.keySet()) {
+            if (key.conversation.equals(conversation)) {
+                keys.add(key);
+            }
+        }
+
+        for (PageKey key : keys) {
+            CachedPage cached = pages.get(key);
+            boolean newest = cached.messages.isEmpty()
+                    || message.getTimestamp() >= cached.messages.get(0).getTimestamp();
+
+            if (key.page != 0 || !newest) {
+                remove(key);
+                continue;
+            }
+
+            List<ChatMessage> updated = new ArrayList<>(key.pageSize);
+            updated.add(message);
+            updated.addAll(cached.messages.subList(0, Math.min(cached.messages.size(), key.pageSize - 1)));
+
+            CachedPage replacement = new CachedPage(updated);
+            pages.put(key, replacement);
+            currentBytes += replacement.bytes - cached.bytes;
+        }
+        evictToFit();
+    }
+
+    /**
+     * Drop every cached page for a conversation.
+     */
+    synchronized void invalidate(String conversation) {
+        bumpGeneration(conversation);
+        pages.entrySet().removeIf(entry -> {
+            if (entry.getKey().conversation.equals(conversation)) {
+                currentBytes -= entry.getValue().bytes;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Drop everything.
+     */
+    synchronized void clear() {
+        for (PageKey key : pages.keySet()) {
+            generations.putIfAbsent(key.conversation, 0L);
+        }
+        generations.replaceAll((conversation, generation) -> generation + 1);
+        pages.clear();
+        currentBytes = 0;
+    }
+
+    synchronized CacheStats getStats() {
+        CacheStats stats = new CacheStats();
+        stats.hits = hits.get();
+        stats.misses = misses.get();
+        stats.evictions = evictions.get();
+        stats.cachedPages = pages.size();
+        stats.cachedBytes = currentBytes;
+        stats.maxBytes = maxBytes;
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void evictToFit() {
+        Iterator<Map.Entry<PageKey, CachedPage>> eldest = pages.entrySet().iterator();
+        while (currentBytes > maxBytes && eldest.hasNext()) {
+            currentBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(PageKey key) {
+        CachedPage removed = pages.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.bytes;
+        }
+    }
+
+    private void bumpGeneration(String conversation) {
+        generations.merge(conversation, 1L, Long::sum);
+    }
+
+    static long estimateBytes(ChatMessage message) {
+        long chars = length(message.getId()) + length(message.getFrom()) + length(message.getTo())
+                + length(message.getContent()) + length(message.getType());
+        return MESSAGE_OVERHEAD_BYTES + chars * 2;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    private record PageKey(String conversation, int page, int pageSize) {}
+
+    private static final class CachedPage {
+        final List<ChatMessage> messages;
+        final long bytes;
+
+        CachedPage(List<ChatMessage> messages) {
+            this.messages = messages;
+            long total = 0;
+            for (ChatMessage message : messages) {
+                total += estimateBytes(message);
+            }
+            this.bytes = total;
+        }
+    }
+
+    /**
+     * Cache counters, for tuning the cache size
+     */
+    public static class CacheStats {
+        public long hits = 0;
+        public long misses = 0;
+        public long evictions = 0;
+        public int cachedPages = 0;
+        public long cachedBytes = 0;
+        public long maxBytes = 0;
+
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+}
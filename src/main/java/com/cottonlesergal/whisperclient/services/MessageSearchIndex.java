@@ -0,0 +1,691 @@
+package com.cottonlesergal.whisperclient.services;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.util.*;
+
+/**
+ * In-memory inverted index over the text of one conversation, persisted encrypted next to
+ * its message log.
+ *
+ * Every term maps to a postings list of (document, positions), so a prefix query is a range
+ * scan of the sorted term map and a phrase query checks for adjacent positions. On disk the
+ * index is a sealed snapshot plus a delta log of sealed change records; the delta is folded
+ * into a new snapshot once it grows to a quarter of the index. Removed documents only drop
+ * out of the results until the next snapshot, which leaves them out and renumbers the rest;
+ * one is also written once a quarter of the documents are removed. If the files are missing,
+ * unreadable or disagree with the message index, the search index is rebuilt from the log.
+ */
+final class MessageSearchIndex implements Closeable {
+    static final String SNAPSHOT_FILE = "search.idx";
+    static final String DELTA_FILE = "search.delta";
+
+    private static final int MAGIC = 0x57435358; // "WCSX"
+    private static final int VERSION = 1;
+    private static final int DELTA_HEADER_BYTES = 4 + 8;
+    private static final int MIN_SNAPSHOT_DELTA_OPS = 4096;
+    private static final int MIN_SNAPSHOT_REMOVED_DOCS = 256;
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Feeds every stored message back into the index during a rebuild
+     */
+    interface Source {
+        void replay(MessageSearchIndex index) throws IOException;
+    }
+
+    record Match(String id, long timestamp) {}
+
+    private final Path dir;
+    private final SecretKey key;
+
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private String[] ids = new String[64];
+    private long[] timestamps = new long[64];
+    private int docCount;
+    private final BitSet removed = new BitSet();
+    private int liveCount;
+
+    private long generation;
+    private FileChannel delta;
+    private int deltaOps;
+    private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+
+    private MessageSearchIndex(Path dir, SecretKey key) {
+        this.dir = dir;
+        this.key = key;
+    }
+
+    /**
+     * Load the index from {@code dir}, rebuilding it from {@code source} unless it holds
+     * exactly {@code expectedCount} live messages.
+     */
+    static MessageSearchIndex open(Path dir, SecretKey key, int expectedCount, Source source) throws IOException {
+        MessageSearchIndex index = new MessageSearchIndex(dir, key);
+        if (!index.load() || index.liveCount != expectedCount) {
+            System.out.println("[MessageSearchIndex] Rebuilding search index in " + dir);
+            index.reset();
+            source.replay(index);
+            index.writeSnapshot();
+        }
+        index.openDelta();
+        return index;
+    }
+
+    synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Index a message's text. Call {@link #commit} to persist the change.
+     */
+    synchronized void add(String id, long timestamp, String text) throws IOException {
+        indexDocument(id, timestamp, text);
+        if (delta != null) {
+            pending.writeByte(OP_ADD);
+            pending.writeUTF(id);
+            pending.writeLong(timestamp);
+            writeLongString(pending, text);
+            deltaOps++;
+        }
+    }
+
+    /**
+     * Drop messages, given by their {@link MessageIndex#key index keys}, from the results.
+     * Call {@link #commit} to persist the change.
+     */
+    synchronized void remove(Set<String> removedKeys) throws IOException {
+        removeDocuments(removedKeys);
+        for (String key : removedKeys) {
+            pending.writeByte(OP_REMOVE);
+            pending.writeUTF(key);
+            deltaOps++;
+        }
+    }
+
+    /**
+     * Append the changes since the last commit to the delta log as one sealed record,
+     * writing a new snapshot instead once the delta has grown large enough.
+     */
+    synchronized void commit() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        pending.flush();
+        byte[] changes = pendingBytes.toByteArray();
+        pendingBytes.reset();
+
+        if (deltaOps >= Math.max(MIN_SNAPSHOT_DELTA_OPS, docCount / 4)
+                || docCount - liveCount >= Math.max(MIN_SNAPSHOT_REMOVED_DOCS, docCount / 4)) {
+            writeSnapshot();
+            return;
+        }
+
+        byte[] sealed = seal(changes);
+        ByteBuffer record = ByteBuffer.allocate(4 + sealed.length);
+        record.putInt(sealed.length).put(sealed).flip();
+        long position = delta.size();
+        while (record.hasRemaining()) {
+            position += delta.write(record, position);
+        }
+    }
+
+    /**
+     * Remove everything and persist the empty index.
+     */
+    synchronized void clear() throws IOException {
+        reset();
+        writeSnapshot();
+    }
+
+    /**
+     * Documents matching every clause, up to {@code limit} of them, newest first.
+     */
+    synchronized List<Match> search(List<Clause> clauses, int limit) {
+        if (clauses.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        BitSet matches = null;
+        for (Clause clause : clauses) {
+            BitSet docs = match(clause);
+            if (matches == null) {
+                matches = docs;
+            } else {
+                matches.and(docs);
+            }
+            if (matches.isEmpty()) {
+                return new ArrayList<>();
+            }
+        }
+        matches.andNot(removed);
+
+        // Keep the newest {@code limit} matches without sorting them all
+        PriorityQueue<Integer> newest = new PriorityQueue<>(Comparator.comparingLong(doc -> timestamps[doc]));
+        for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1)) {
+            if (newest.size() < limit) {
+                newest.add(doc);
+            } else if (timestamps[doc] > timestamps[newest.peek()]) {
+                newest.poll();
+                newest.add(doc);
+            }
+        }
+
+        List<Match> results = new ArrayList<>(newest.size());
+        while (!newest.isEmpty()) {
+            int doc = newest.poll();
+            results.add(new Match(ids[doc], timestamps[doc]));
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (delta != null) {
+            delta.close();
+            delta = null;
+        }
+    }
+
+    // ============== QUERIES ==============
+
+    /**
+     * One part of a query: an exact term, a term prefix or a phrase of exact terms
+     */
+    record Clause(List<String> terms, boolean prefix) {}
+
+    /**
+     * Split a query into clauses, all of which must match. A word ending in {@code *} is a
+     * prefix and text in double quotes is a phrase. Matching ignores case and punctuation.
+     */
+    static List<Clause> parseQuery(String query) {
+        List<Clause> clauses = new ArrayList<>();
+        if (query == null) {
+            return clauses;
+        }
+
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    end = query.length();
+                }
+                List<String> phrase = tokenize(query.substring(i + 1, end));
+                if (!phrase.isEmpty()) {
+                    clauses.add(new Clause(phrase, false));
+                }
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < query.length() && !Character.isWhitespace(query.charAt(end))) {
+                    end++;
+                }
+                String word = query.substring(i, end);
+                boolean prefix = word.endsWith("*");
+                List<String> tokens = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+                if (!tokens.isEmpty()) {
+                    clauses.add(new Clause(tokens, prefix && tokens.size() == 1));
+                }
+                i = end;
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * Lowercased runs of letters and digits.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (current.length() < MAX_TERM_LENGTH) {
+                    current.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (current.length() > 0) {
+                tokens.add(current.toString());
+                current.setLength(0);
+            }
+        }
+        if (current.length() > 0) {
+            tokens.add(current.toString());
+        }
+        return tokens;
+    }
+
+    private BitSet match(Clause clause) {
+        if (clause.prefix()) {
+            String prefix = clause.terms().get(0);
+            BitSet docs = new BitSet(docCount);
+            for (Postings postings : terms.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+                postings.addDocs(docs);
+            }
+            return docs;
+        }
+
+        BitSet docs = null;
+        for (String term : clause.terms()) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                return new BitSet();
+            }
+            BitSet termDocs = new BitSet(docCount);
+            postings.addDocs(termDocs);
+            if (docs == null) {
+                docs = termDocs;
+            } else {
+                docs.and(termDocs);
+            }
+        }
+
+        if (clause.terms().size() > 1 && !docs.isEmpty()) {
+            docs = matchPhrase(clause.terms(), docs);
+        }
+        return docs;
+    }
+
+    /**
+     * Narrow documents containing every phrase term to those where they appear in order.
+     */
+    private BitSet matchPhrase(List<String> phrase, BitSet candidates) {
+        List<Map<Integer, int[]>> positions = new ArrayList<>(phrase.size());
+        for (String term : phrase) {
+            positions.add(terms.get(term).positions(candidates));
+        }
+
+        BitSet matches = new BitSet(docCount);
+        for (int doc = candidates.nextSetBit(0); doc >= 0; doc = candidates.nextSetBit(doc + 1)) {
+            for (int start : positions.get(0).get(doc)) {
+                boolean found = true;
+                for (int t = 1; t < phrase.size() && found; t++) {
+                    found = Arrays.binarySearch(positions.get(t).get(doc), start + t) >= 0;
+                }
+                if (found) {
+                    matches.set(doc);
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void indexDocument(String id, long timestamp, String text) {
+        if (docCount == ids.length) {
+            ids = Arrays.copyOf(ids, docCount * 2);
+            timestamps = Arrays.copyOf(timestamps, docCount * 2);
+        }
+        int doc = docCount++;
+        ids[doc] = id;
+        timestamps[doc] = timestamp;
+        liveCount++;
+
+        List<String> tokens = tokenize(text);
+        for (int position = 0; position < tokens.size(); position++) {
+            terms.computeIfAbsent(tokens.get(position), term -> new Postings()).add(doc, position);
+        }
+    }
+
+    private void removeDocuments(Set<String> removedKeys) {
+        if (removedKeys.isEmpty()) {
+            return;
+        }
+        for (int doc = 0; doc < docCount; doc++) {
+            if (!removed.get(doc) && removedKeys.contains(MessageIndex.key(ids[doc]))) {
+                removed.set(doc);
+                liveCount--;
+            }
+        }
+    }
+
+    private void reset() {
+        terms.clear();
+        ids = new String[64];
+        timestamps = new long[64];
+        docCount = 0;
+        liveCount = 0;
+        removed.clear();
+        pendingBytes.reset();
+    }
+
+    /**
+     * Read the snapshot and replay the delta log, truncating a torn tail.
+     * @return false if the snapshot is missing or unreadable
+     */
+    private boolean load() {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return false;
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(open(Files.readAllBytes(snapshot))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            generation = in.readLong();
+
+            int docs = in.readInt();
+            ids = new String[Math.max(64, docs)];
+            timestamps = new long[ids.length];
+            for (int doc = 0; doc < docs; doc++) {
+                ids[doc] = in.readUTF();
+                timestamps[doc] = in.readLong();
+                if (in.readBoolean()) {
+                    removed.set(doc);
+                } else {
+                    liveCount++;
+                }
+            }
+            docCount = docs;
+
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                terms.put(term, Postings.read(in));
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("[MessageSearchIndex] Ignoring unreadable snapshot " + snapshot + ": " + e.getMessage());
+            reset();
+            return false;
+        }
+
+        return replayDelta();
+    }
+
+    private boolean replayDelta() {
+        Path file = dir.resolve(DELTA_FILE);
+        if (!Files.exists(file)) {
+            return true;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_BYTES);
+            if (channel.read(header, 0) < DELTA_HEADER_BYTES || header.getInt(0) != MAGIC
+                    || header.getLong(4) != generation) {
+                return true; // already folded into the snapshot
+            }
+
+            long position = DELTA_HEADER_BYTES;
+            long size = channel.size();
+            while (position + 4 <= size) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                channel.read(length, position);
+                int sealedLength = length.getInt(0);
+                if (sealedLength <= 0 || position + 4 + sealedLength > size) {
+                    break;
+                }
+
+                ByteBuffer sealed = ByteBuffer.allocate(sealedLength);
+                while (sealed.hasRemaining() && channel.read(sealed, position + 4 + sealed.position()) >= 0) {
+                    // keep reading
+                }
+                byte[] changes;
+                try {
+                    changes = open(sealed.array());
+                } catch (GeneralSecurityException e) {
+                    break;
+                }
+                applyChanges(changes);
+                position += 4 + sealedLength;
+            }
+
+            if (position < size) {
+                System.out.println("[MessageSearchIndex] Truncating torn delta tail in " + file);
+                channel.truncate(position);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("[MessageSearchIndex] Ignoring unreadable delta " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void applyChanges(byte[] changes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(changes));
+        Set<String> removedKeys = new HashSet<>();
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            if (op == OP_ADD) {
+                // Removals only apply to documents added before them
+                if (!removedKeys.isEmpty()) {
+                    removeDocuments(removedKeys);
+                    removedKeys.clear();
+                }
+                indexDocument(in.readUTF(), in.readLong(), readLongString(in));
+            } else if (op == OP_REMOVE) {
+                removedKeys.add(in.readUTF());
+            } else {
+                throw new IOException("Unknown search delta op " + op);
+            }
+            deltaOps++;
+        }
+        removeDocuments(removedKeys);
+    }
+
+    /**
+     * Drop removed documents, their ids and their postings, and renumber the rest in order.
+     * The delta log names documents by id, so it stays valid.
+     */
+    private void purgeRemoved() {
+        if (removed.isEmpty()) {
+            return;
+        }
+
+        int[] renumbered = new int[docCount];
+        int next = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (removed.get(doc)) {
+                renumbered[doc] = -1;
+            } else {
+                renumbered[doc] = next;
+                ids[next] = ids[doc];
+                timestamps[next] = timestamps[doc];
+                next++;
+            }
+        }
+        Arrays.fill(ids, next, docCount, null);
+        docCount = next;
+        removed.clear();
+
+        terms.values().removeIf(postings -> !postings.renumber(renumbered));
+        int capacity = Math.max(64, docCount);
+        if (ids.length > capacity * 2) {
+            ids = Arrays.copyOf(ids, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+    }
+
+    /**
+     * Write the live documents as a new snapshot generation and start an empty delta log.
+     */
+    private void writeSnapshot() throws IOException {
+        purgeRemoved();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation + 1);
+            out.writeInt(docCount);
+            for (int doc = 0; doc < docCount; doc++) {
+                out.writeUTF(ids[doc]);
+                out.writeLong(timestamps[doc]);
+                out.writeBoolean(removed.get(doc));
+            }
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+
+        StorageFiles.writeAtomically(dir.resolve(SNAPSHOT_FILE), seal(bytes.toByteArray()));
+        generation++;
+        deltaOps = 0;
+        pendingBytes.reset();
+        if (delta != null) {
+            resetDelta();
+        }
+    }
+
+    private void openDelta() throws IOException {
+        Path file = dir.resolve(DELTA_FILE);
+        delta = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_BYTES);
+        if (delta.read(header, 0) < DELTA_HEADER_BYTES || header.getInt(0) != MAGIC || header.getLong(4) != generation) {
+            resetDelta();
+        }
+    }
+
+    private void resetDelta() throws IOException {
+        delta.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(DELTA_HEADER_BYTES);
+        header.putInt(MAGIC).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            delta.write(header, header.position());
+        }
+    }
+
+    private byte[] seal(byte[] plaintext) throws IOException {
+        try {
+            return StorageCipher.seal(key, plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt search index", e);
+        }
+    }
+
+    private byte[] open(byte[] sealed) throws GeneralSecurityException {
+        return StorageCipher.open(key, ByteBuffer.wrap(sealed));
+    }
+
+    private static void writeLongString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readLongString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Postings for one term, packed as {@code doc, positionCount, positions...} per document
+     * in increasing document order.
+     */
+    private static final class Postings {
+        private int[] data = new int[4];
+        private int size;
+        private int lastDoc = -1;
+        private int lastCountAt = -1;
+
+        void add(int doc, int position) {
+            if (doc == lastDoc) {
+                ensureCapacity(1);
+                data[lastCountAt]++;
+                data[size++] = position;
+                return;
+            }
+            ensureCapacity(3);
+            lastDoc = doc;
+            data[size++] = doc;
+            lastCountAt = size;
+            data[size++] = 1;
+            data[size++] = position;
+        }
+
+        void addDocs(BitSet docs) {
+            for (int i = 0; i < size; i += 2 + data[i + 1]) {
+                docs.set(data[i]);
+            }
+        }
+
+        /**
+         * Sorted positions for each of {@code docs} that this term occurs in.
+         */
+        Map<Integer, int[]> positions(BitSet docs) {
+            Map<Integer, int[]> positions = new HashMap<>();
+            for (int i = 0; i < size; i += 2 + data[i + 1]) {
+                if (docs.get(data[i])) {
+                    positions.put(data[i], Arrays.copyOfRange(data, i + 2, i + 2 + data[i + 1]));
+                }
+            }
+            return positions;
+        }
+
+        /**
+         * Move each document to {@code renumbered[doc]}, dropping those mapped to -1. The
+         * mapping must keep document order.
+         * @return false if no document is left
+         */
+        boolean renumber(int[] renumbered) {
+            int kept = 0;
+            lastDoc = -1;
+            lastCountAt = -1;
+            for (int i = 0; i < size; ) {
+                int length = 2 + data[i + 1];
+                int doc = renumbered[data[i]];
+                if (doc >= 0) {
+                    System.arraycopy(data, i, data, kept, length);
+                    data[kept] = doc;
+                    lastDoc = doc;
+                    lastCountAt = kept + 1;
+                    kept += length;
+                }
+                i += length;
+            }
+            size = kept;
+            return size > 0;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(data[i]);
+            }
+        }
+
+        static Postings read(DataInputStream in) throws IOException {
+            Postings postings = new Postings();
+            postings.size = in.readInt();
+            postings.data = new int[Math.max(4, postings.size)];
+            for (int i = 0; i < postings.size; i++) {
+                postings.data[i] = in.readInt();
+            }
+            for (int i = 0; i < postings.size; i += 2 + postings.data[i + 1]) {
+                postings.lastDoc = postings.data[i];
+                postings.lastCountAt = i + 1;
+            }
+            return postings;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(size + extra, data.length * 2));
+            }
+        }
+    }
+}
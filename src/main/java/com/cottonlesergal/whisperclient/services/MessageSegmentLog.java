@@ -0,0 +1,611 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, segmented message log for a single conversation.
+ *
+ * Each record is length-prefixed and carries its timestamp and message id in the
+ * clear (the same information the old {@code <timestamp>_<id>.msg} file names exposed),
+ * followed by an opaque payload that the caller has already sealed with AES-GCM.
+ * Segments roll over once they reach {@code maxSegmentBytes}.
+ *
+ * The log doubles as the storage write-ahead journal: every record carries a CRC32C of its
+ * body, and opening the log cuts the active segment back to its last intact record, so a
+ * torn or partly flushed append is discarded instead of surfacing as an unreadable message.
+ * The index and search index are derived from the log and catch up with it when opened.
+ *
+ * Reads hand out payloads without checking the CRC again: the AES-GCM tag already
+ * authenticates every payload, so a second pass over the bytes would only slow history
+ * reads down. When a payload fails to decrypt, {@link #check} tells a damaged record from
+ * one that is intact but sealed with another key.
+ *
+ * Deletes are appended as tombstone records with an empty payload; {@link #rewrite} later
+ * drops the dead records and reclaims their space.
+ */
+final class MessageSegmentLog implements Closeable {
+    static final int SEGMENT_MAGIC = 0x57435347; // "WCSG"
+    static final int SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_BYTES = 8;
+    static final long DEFAULT_MAX_SEGMENT_BYTES = 4L * 1024 * 1024; // 4 MB
+
+    static final byte RECORD_MESSAGE = 1;
+    static final byte RECORD_TOMBSTONE = 2;
+
+    // type(1) + timestamp(8) + idLength(2)
+    private static final int RECORD_FIXED_BYTES = 1 + 8 + 2;
+    // bodyLength(4) + crc32c(4)
+    private static final int RECORD_PREFIX_BYTES = 4 + 4;
+    private static final int MAX_ID_BYTES = Short.MAX_VALUE;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final TreeMap<Integer, FileChannel> channels = new TreeMap<>();
+    private final TreeMap<Integer, Long> segmentSizes = new TreeMap<>();
+
+    private int activeSegment;
+    private long activeSize;
+    // Scans holding views; their files are not replaced meanwhile (see rewrite)
+    private int openScans;
+
+    private MessageSegmentLog(Path dir, long maxSegmentBytes) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Open (or create) the log stored in {@code dir}, repairing a torn tail record
+     * left behind by a crash during append.
+     */
+    static MessageSegmentLog open(Path dir, long maxSegmentBytes) throws IOException {
+        Files.createDirectories(dir);
+        MessageSegmentLog log = new MessageSegmentLog(dir, maxSegmentBytes);
+        List<Integer> segments = log.listSegments();
+
+        if (segments.isEmpty()) {
+            log.startSegment(1);
+        } else {
+            for (int segment : segments) {
+                log.checkHeader(segment);
+                log.segmentSizes.put(segment, Files.size(log.segmentPath(segment)));
+            }
+            log.activeSegment = segments.get(segments.size() - 1);
+            log.activeSize = log.recoverTail(log.activeSegment);
+            log.segmentSizes.put(log.activeSegment, log.activeSize);
+        }
+        return log;
+    }
+
+    /**
+     * Total size of the segment files in {@code dir}, without opening the log.
+     */
+    static long diskBytes(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long total = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    total += Files.size(path);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Append a sealed payload and return a pointer to it.
+     */
+    synchronized RecordPointer append(long timestamp, String id, byte[] payload) throws IOException {
+        return appendRecord(RECORD_MESSAGE, timestamp, id, payload);
+    }
+
+    /**
+     * Append a tombstone marking every earlier record stored under {@code key} as deleted.
+     */
+    synchronized void appendTombstone(long timestamp, String key) throws IOException {
+        appendRecord(RECORD_TOMBSTONE, timestamp, key, new byte[0]);
+    }
+
+    /**
+     * Read the sealed payload a pointer refers to.
+     */
+    synchronized byte[] read(RecordPointer pointer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pointer.length());
+        readFully(channel(pointer.segment()), buffer, pointer.offset());
+        return buffer.array();
+    }
+
+    /**
+     * Check the record {@code pointer} refers to against its CRC32C.
+     */
+    synchronized RecordCheck check(RecordPointer pointer) throws IOException {
+        if (!segmentSizes.containsKey(pointer.segment())) {
+            return RecordCheck.MISSING;
+        }
+
+        LogRecord[] found = {null};
+        scanSegment(pointer.segment(), record -> {
+            if (record.pointer().equals(pointer)) {
+                found[0] = record;
+            }
+        });
+        if (found[0] == null) {
+            return RecordCheck.MISSING;
+        }
+
+        int idLength = found[0].id().getBytes(StandardCharsets.UTF_8).length;
+        long recordStart = pointer.offset() - idLength - RECORD_FIXED_BYTES - RECORD_PREFIX_BYTES;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_PREFIX_BYTES + RECORD_FIXED_BYTES + idLength + pointer.length());
+        readFully(channel(pointer.segment()), record, recordStart);
+        int expected = record.getInt(4);
+        return checksum(record.array(), RECORD_PREFIX_BYTES, record.capacity() - RECORD_PREFIX_BYTES) == expected
+                ? RecordCheck.INTACT : RecordCheck.CORRUPT;
+    }
+
+    /**
+     * Visit every record header in append order without reading payloads.
+     */
+    synchronized void scan(RecordVisitor visitor) throws IOException {
+        scanFrom(1, visitor);
+    }
+
+    /**
+     * Visit the record headers of {@code firstSegment} and every later segment.
+     */
+    synchronized void scanFrom(int firstSegment, RecordVisitor visitor) throws IOException {
+        for (int segment : new ArrayList<>(segmentSizes.tailMap(firstSegment).keySet())) {
+            scanSegment(segment, visitor);
+        }
+    }
+
+    /**
+     * Open every segment as it is now for a read-only scan that runs without the log lock:
+     * mapped into memory, or on a read channel of its own. Both keep showing the segment as
+     * it was here, even if a later rewrite or clear replaces its file.
+     */
+    synchronized Map<Integer, SegmentView> openViews(boolean mapped) throws IOException {
+        Map<Integer, SegmentView> views = new HashMap<>();
+        try {
+            for (Map.Entry<Integer, Long> entry : segmentSizes.entrySet()) {
+                int segment = entry.getKey();
+                long size = entry.getValue();
+                views.put(segment, mapped
+                        ? new SegmentView(size, channel(segment).map(FileChannel.MapMode.READ_ONLY, 0, size), null)
+                        : new SegmentView(size, null, FileChannel.open(segmentPath(segment), StandardOpenOption.READ)));
+            }
+        } catch (IOException e) {
+            for (SegmentView view : views.values()) {
+                view.close();
+            }
+            throw e;
+        }
+        openScans++;
+        return views;
+    }
+
+    /**
+     * Called when a scan's views from {@link #openViews} are closed
+     */
+    synchronized void releaseViews() {
+        openScans--;
+    }
+
+    /**
+     * True while a scan holds views. Windows will not replace a file that is still open
+     * elsewhere, so {@link #rewrite} should wait until this is false.
+     */
+    synchronized boolean isScanning() {
+        return openScans > 0;
+    }
+
+    /**
+     * Rewrite one segment without the records {@code drop} selects. Records that survive the
+     * rewrite move, so their new locations are returned. A sealed segment left with no
+     * records is deleted.
+     */
+    synchronized Removal rewrite(int segment, Predicate<LogRecord> drop) throws IOException {
+        if (!segmentSizes.containsKey(segment)) {
+            return new Removal(0, Map.of());
+        }
+
+        List<LogRecord> kept = new ArrayList<>();
+        int[] dropped = {0};
+        scanSegment(segment, record -> {
+            if (drop.test(record)) {
+                dropped[0]++;
+            } else {
+                kept.add(record);
+            }
+        });
+
+        if (dropped[0] == 0) {
+            return new Removal(0, Map.of());
+        }
+        if (kept.isEmpty() && segment != activeSegment) {
+            FileChannel channel = channels.remove(segment);
+            if (channel != null) channel.close();
+            Files.deleteIfExists(segmentPath(segment));
+            segmentSizes.remove(segment);
+            return new Removal(dropped[0], Map.of());
+        }
+        return new Removal(dropped[0], rewriteSegment(segment, kept));
+    }
+
+    /**
+     * Delete every segment and start again from an empty log. The new segment gets the next
+     * number rather than 1: on Windows a deleted file that a scan still has open keeps its
+     * name until the scan closes it.
+     */
+    synchronized void clear() throws IOException {
+        closeChannels();
+        int next = 1;
+        for (int segment : listSegments()) {
+            Files.deleteIfExists(segmentPath(segment));
+            next = Math.max(next, segment + 1);
+        }
+        segmentSizes.clear();
+        startSegment(next);
+    }
+
+    /**
+     * Force written records to the storage device.
+     */
+    synchronized void force() throws IOException {
+        FileChannel channel = channels.get(activeSegment);
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Bytes held by one segment, including its header; 0 if it does not exist
+     */
+    synchronized long segmentBytes(int segment) {
+        return segmentSizes.getOrDefault(segment, 0L);
+    }
+
+    /**
+     * Total bytes held by all segments, including headers.
+     */
+    synchronized long totalBytes() {
+        long total = 0;
+        for (long size : segmentSizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeChannels();
+    }
+
+    // ============== INTERNALS ==============
+
+    private RecordPointer appendRecord(byte type, long timestamp, String id, byte[] payload) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("Message id is too long: " + idBytes.length + " bytes");
+        }
+
+        int bodyLength = RECORD_FIXED_BYTES + idBytes.length + payload.length;
+        int recordLength = RECORD_PREFIX_BYTES + bodyLength;
+
+        if (activeSize > SEGMENT_HEADER_BYTES && activeSize + recordLength > maxSegmentBytes) {
+            startSegment(activeSegment + 1);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0);
+        buffer.put(type);
+        buffer.putLong(timestamp);
+        buffer.putShort((short) idBytes.length);
+        buffer.put(idBytes);
+        buffer.put(payload);
+        buffer.putInt(4, checksum(buffer.array(), RECORD_PREFIX_BYTES, bodyLength));
+        buffer.flip();
+
+        long recordOffset = activeSize;
+        writeFully(channel(activeSegment), buffer, recordOffset);
+        activeSize += recordLength;
+        segmentSizes.put(activeSegment, activeSize);
+
+        long payloadOffset = recordOffset + RECORD_PREFIX_BYTES + RECORD_FIXED_BYTES + idBytes.length;
+        return new RecordPointer(activeSegment, payloadOffset, payload.length);
+    }
+
+    private void scanSegment(int segment, RecordVisitor visitor) throws IOException {
+        FileChannel channel = channel(segment);
+        long size = segment == activeSegment ? activeSize : channel.size();
+        long position = SEGMENT_HEADER_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_PREFIX_BYTES + RECORD_FIXED_BYTES);
+
+        while (position + header.capacity() <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+
+            int bodyLength = header.getInt();
+            header.position(RECORD_PREFIX_BYTES);
+            byte type = header.get();
+            long timestamp = header.getLong();
+            int idLength = Short.toUnsignedInt(header.getShort());
+
+            if (bodyLength < RECORD_FIXED_BYTES + idLength || position + RECORD_PREFIX_BYTES + bodyLength > size) {
+                System.err.println("[MessageSegmentLog] Stopping scan at damaged record in " + segmentPath(segment));
+                return;
+            }
+
+            ByteBuffer idBuffer = ByteBuffer.allocate(idLength);
+            readFully(channel, idBuffer, position + header.capacity());
+            String id = new String(idBuffer.array(), StandardCharsets.UTF_8);
+
+            long payloadOffset = position + header.capacity() + idLength;
+            int payloadLength = bodyLength - RECORD_FIXED_BYTES - idLength;
+
+            if (type == RECORD_MESSAGE || type == RECORD_TOMBSTONE) {
+                visitor.visit(new LogRecord(type, timestamp, id, new RecordPointer(segment, payloadOffset, payloadLength)));
+            }
+
+            position += RECORD_PREFIX_BYTES + bodyLength;
+        }
+    }
+
+    private Map<RecordPointer, RecordPointer> rewriteSegment(int segment, List<LogRecord> kept) throws IOException {
+        Path target = segmentPath(segment);
+        Path temp = StorageFiles.tempFile(target);
+        FileChannel source = channel(segment);
+        Map<RecordPointer, RecordPointer> relocated = new HashMap<>();
+
+        long newSize;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, segmentHeader(), 0);
+            out.position(SEGMENT_HEADER_BYTES);
+            long position = SEGMENT_HEADER_BYTES;
+
+            for (LogRecord record : kept) {
+                byte[] idBytes = record.id().getBytes(StandardCharsets.UTF_8);
+                long recordStart = record.pointer().offset() - idBytes.length - RECORD_FIXED_BYTES - RECORD_PREFIX_BYTES;
+                long recordLength = record.pointer().offset() + record.pointer().length() - recordStart;
+
+                long copied = 0;
+                while (copied < recordLength) {
+                    copied += source.transferTo(recordStart + copied, recordLength - copied, out);
+                }
+
+                long shift = recordStart - position;
+                if (shift != 0) {
+                    RecordPointer old = record.pointer();
+                    relocated.put(old, new RecordPointer(segment, old.offset() - shift, old.length()));
+                }
+                position += recordLength;
+            }
+            out.force(false);
+            newSize = position;
+        }
+
+        FileChannel old = channels.remove(segment);
+        if (old != null) old.close();
+        try {
+            StorageFiles.commit(temp, target);
+        } catch (IOException e) {
+            // The segment is left as it was (on Windows a mapping of it may still be alive)
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        if (segment == activeSegment) {
+            activeSize = newSize;
+        }
+        segmentSizes.put(segment, newSize);
+        return relocated;
+    }
+
+    /**
+     * Find the end of the last intact record of the active segment and cut off whatever
+     * follows it: a record whose length runs past the end of the file or whose checksum does
+     * not match was only partly written when the process stopped.
+     */
+    private long recoverTail(int segment) throws IOException {
+        FileChannel channel = channel(segment);
+        long size = channel.size();
+        if (size < SEGMENT_HEADER_BYTES) {
+            channel.truncate(0);
+            writeFully(channel, segmentHeader(), 0);
+            return SEGMENT_HEADER_BYTES;
+        }
+
+        long position = SEGMENT_HEADER_BYTES;
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX_BYTES);
+        ByteBuffer body = ByteBuffer.allocate(0);
+        while (position + RECORD_PREFIX_BYTES <= size) {
+            prefix.clear();
+            readFully(channel, prefix, position);
+            prefix.flip();
+            int bodyLength = prefix.getInt();
+            if (bodyLength < RECORD_FIXED_BYTES || position + RECORD_PREFIX_BYTES + bodyLength > size) {
+                break;
+            }
+
+            int expected = prefix.getInt();
+            if (body.capacity() < bodyLength) {
+                body = ByteBuffer.allocate(Math.max(bodyLength, body.capacity() * 2));
+            }
+            body.clear().limit(bodyLength);
+            readFully(channel, body, position + RECORD_PREFIX_BYTES);
+            if (checksum(body.array(), 0, bodyLength) != expected) {
+                break;
+            }
+            position += RECORD_PREFIX_BYTES + bodyLength;
+        }
+
+        if (position < size) {
+            System.err.println("[MessageSegmentLog] Truncating " + (size - position) +
+                    " bytes of incomplete data from " + segmentPath(segment));
+            channel.truncate(position);
+            channel.force(false);
+        }
+        return position;
+    }
+
+    private void startSegment(int segment) throws IOException {
+        activeSegment = segment;
+        FileChannel channel = channel(segment);
+        channel.truncate(0);
+        writeFully(channel, segmentHeader(), 0);
+        activeSize = SEGMENT_HEADER_BYTES;
+        segmentSizes.put(segment, activeSize);
+    }
+
+    private void checkHeader(int segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+            if (channel.size() < SEGMENT_HEADER_BYTES) {
+                // Only the active segment can be this short; recovery writes a fresh header
+                return;
+            }
+            readFully(channel, header, 0);
+        }
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        if (magic != SEGMENT_MAGIC || version != SEGMENT_VERSION) {
+            throw new IOException("Unsupported message segment " + segmentPath(segment) + " (version " + version + ")");
+        }
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private FileChannel channel(int segment) throws IOException {
+        FileChannel channel = channels.get(segment);
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(segmentPath(segment),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channels.put(segment, channel);
+        }
+        return channel;
+    }
+
+    private void closeChannels() throws IOException {
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))
+                    .map(MessageSegmentLog::parseSegmentNumber)
+                    .filter(number -> number > 0)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static int parseSegmentNumber(String digits) {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static ByteBuffer segmentHeader() {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(SEGMENT_VERSION);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Location of a sealed payload inside the log.
+     */
+    record RecordPointer(int segment, long offset, int length) {}
+
+    /**
+     * Header information for one record. A tombstone's id is the {@link MessageIndex#key index key}
+     * of the message it deletes.
+     */
+    record LogRecord(byte type, long timestamp, String id, RecordPointer pointer) {
+        boolean isTombstone() {
+            return type == RECORD_TOMBSTONE;
+        }
+    }
+
+    /**
+     * One segment opened for a scan, up to {@code size} bytes: either {@code mapped} or
+     * readable through {@code channel}.
+     */
+    record SegmentView(long size, ByteBuffer mapped, FileChannel channel) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Result of {@link #check}: MISSING if no record starts there (any more).
+     */
+    enum RecordCheck {
+        INTACT,
+        CORRUPT,
+        MISSING
+    }
+
+    /**
+     * Outcome of a segment rewrite: how many records were dropped and where the survivors moved.
+     */
+    record Removal(int removed, Map<RecordPointer, RecordPointer> relocated) {}
+
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(LogRecord record) throws IOException;
+    }
+}
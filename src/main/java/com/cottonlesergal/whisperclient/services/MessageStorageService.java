@@ -1,30 +1,67 @@
 package com.cottonlesergal.whisperclient.services;
 
+import com.cottonlesergal.whisperclient.core.AppCtx;
 import com.cottonlesergal.whisperclient.core.Session;
+import com.cottonlesergal.whisperclient.events.Event;
 import com.cottonlesergal.whisperclient.models.Message;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.MessageDigest;
-import java.security.SecureRandom;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
 public class MessageStorageService {
     private static final MessageStorageService INSTANCE = new MessageStorageService();
     private static final ObjectMapper MAPPER = new ObjectMapper();
     private static final Pattern SAFE_USERNAME = Pattern.compile("^[a-zA-Z0-9_-]+$");
+    private static final long MANIFEST_RECONCILE_INTERVAL_MINUTES = 10;
+    static final String RECOVERY_JOB = "storage-recovery";
+    static final String MANIFEST_JOB = "manifest-reconciliation";
+    static final String COMPACTION_JOB = "compaction";
+    static final String DICTIONARY_JOB = "dictionary-training";
+    static final String INLINE_MEDIA_PREFIX = "[INLINE_MEDIA:";
+    private static final String DURABILITY_PROPERTY = "whisperclient.storage.durability";
+    private static final long COMPACTION_DELAY_SECONDS = 30;
+    // A blob is stored just before the message referring to it, so unreferenced ones are only
+    // collected once they have been left alone this long
+    private static final long UNREFERENCED_MEDIA_GRACE_MINUTES = 10;
+    private static final int SCAN_WINDOW = 1024;
 
     private final Path baseDir;
     private final Map<String, SecretKey> userKeys = new ConcurrentHashMap<>();
+    private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final Map<String, ConversationManifest> manifests = new ConcurrentHashMap<>();
+    private final Set<String> pendingCompactions = ConcurrentHashMap.newKeySet();
+    // Change journals are only kept while a backup chain may need them: from startup if one
+    // exists, otherwise from the first backup mark on
+    private volatile boolean journaling;
+    private volatile ChatMessageCodec.Format recordFormat = ChatMessageCodec.defaultFormat();
+    private volatile SegmentScanner.Mode scanMode = SegmentScanner.defaultMode();
+    private volatile boolean compressRecords =
+            Boolean.parseBoolean(System.getProperty(RecordCompressor.ENABLED_PROPERTY, "true"));
+    private final RecordCompressor.Counters compressionCounters = new RecordCompressor.Counters();
+    private final MessagePageCache pageCache = new MessagePageCache(MessagePageCache.DEFAULT_MAX_BYTES);
+    private final PageDecoder decoder = new PageDecoder(Math.max(2, Runtime.getRuntime().availableProcessors() - 1),
+            Boolean.parseBoolean(System.getProperty(PageDecoder.PARALLEL_PROPERTY, "true")));
+    private final StorageWriter writer = new StorageWriter(this::writeBatch,
+            StorageWriter.DurabilityPolicy.parse(System.getProperty(DURABILITY_PROPERTY)),
+            StorageWriter.DEFAULT_QUEUE_CAPACITY, StorageWriter.DEFAULT_MAX_BATCH, StorageWriter.DEFAULT_MAX_DELAY_MILLIS);
+    private final StorageMaintenanceScheduler scheduler = StorageMaintenanceScheduler.getInstance();
+    private final RetentionSweeper retention;
+    private final ConversationSummaryStore summaries;
+    private final OutboxStore outbox;
 
     public static MessageStorageService getInstance() {
         return INSTANCE;
@@ -39,29 +76,229 @@ public class MessageStorageService {
         } catch (IOException e) {
             throw new RuntimeException("Failed to create message storage directory", e);
         }
+
+        journaling = Files.exists(baseDir.resolveSibling("backups").resolve(BackupChain.FILE_NAME));
+        summaries = new ConversationSummaryStore(baseDir, this::getUserKey, this::reconcileSummary, scheduler);
+        outbox = new OutboxStore(baseDir, this::getUserKey);
+        retention = new RetentionSweeper(this, baseDir, scheduler);
+        retention.start();
+        scheduler.submit(RECOVERY_JOB, 0, this::recoverConversations);
+        scheduler.register(MANIFEST_JOB, TimeUnit.MINUTES.toMillis(1),
+                TimeUnit.MINUTES.toMillis(MANIFEST_RECONCILE_INTERVAL_MINUTES), this::reconcileManifests);
     }
 
     /**
-     * Store a message for a specific user conversation
+     * Store a message for a specific user conversation. The write happens in the background;
+     * use {@link #storeMessageAsync} to find out when it is done.
      */
     public void storeMessage(String username, ChatMessage message) {
+        storeMessageAsync(username, message);
+    }
+
+    /**
+     * Queue a message for a conversation. The future completes according to the writer's
+     * {@link StorageWriter.DurabilityPolicy}, or exceptionally if the write fails.
+     */
+    public CompletableFuture<Void> storeMessageAsync(String username, ChatMessage message) {
         try {
-            String safeUsername = sanitizeUsername(username);
-            Path userDir = getUserDirectory(safeUsername);
-            Path messagesDir = userDir.resolve("messages");
-            Files.createDirectories(messagesDir);
+            return writer.submit(sanitizeUsername(username), message);
+        } catch (Exception e) {
+            System.err.println("Failed to store message: " + e.getMessage());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Write everything that is still queued, e.g. before logging out
+     */
+    public void flushPendingWrites() {
+        writer.drain();
+    }
+
+    /**
+     * Drain the write queue and stop the writer and the maintenance scheduler
+     */
+    public void shutdown() {
+        writer.shutdown();
+        summaries.flush();
+        retention.shutdown();
+        scheduler.shutdown();
+        decoder.shutdown();
+        closeAllConversations();
+    }
+
+    public StorageWriter.DurabilityPolicy getDurabilityPolicy() {
+        return writer.getPolicy();
+    }
 
-            // Encrypt and store the message
-            byte[] encrypted = encryptMessage(safeUsername, message);
-            String filename = message.getTimestamp() + "_" + message.getId() + ".msg";
-            Files.write(messagesDir.resolve(filename), encrypted);
+    public void setDurabilityPolicy(StorageWriter.DurabilityPolicy policy) {
+        writer.setPolicy(policy);
+    }
+
+    /**
+     * Whether larger history reads decrypt and parse on several threads. Off means every
+     * read is decoded sequentially on the calling thread.
+     */
+    public void setParallelDecode(boolean parallel) {
+        decoder.setParallel(parallel);
+    }
+
+    public boolean isParallelDecode() {
+        return decoder.isParallel();
+    }
+
+    /**
+     * How whole-history scans read the log: one read per run of records, or copied out of mapped segments
+     */
+    public SegmentScanner.Mode getScanMode() {
+        return scanMode;
+    }
+
+    public void setScanMode(SegmentScanner.Mode mode) {
+        this.scanMode = mode;
+    }
+
+    /**
+     * Per-stage read, decrypt and parse timings of history loads
+     */
+    public PageDecoder.ReadStats getReadStats() {
+        return decoder.getStats();
+    }
 
-            System.out.println("[MessageStorage] Stored message from " + message.getFrom() + " to " + safeUsername);
+    /**
+     * Queue depth and batching counters for the background writer
+     */
+    public StorageWriter.WriterStats getWriterStats() {
+        return writer.getStats();
+    }
 
+    /**
+     * Encoding used for newly stored messages. Records already on disk keep their format and
+     * stay readable either way.
+     */
+    public ChatMessageCodec.Format getRecordFormat() {
+        return recordFormat;
+    }
+
+    public void setRecordFormat(ChatMessageCodec.Format format) {
+        this.recordFormat = format;
+    }
+
+    /**
+     * Whether newly stored records are compressed. Compressed records stay readable either way.
+     */
+    public boolean isCompressionEnabled() {
+        return compressRecords;
+    }
+
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressRecords = enabled;
+    }
+
+    /**
+     * Size savings and CPU time of record compression since startup
+     */
+    public RecordCompressor.CompressionStats getCompressionStats() {
+        return compressionCounters.snapshot(compressRecords);
+    }
+
+    /**
+     * Retention applied to conversations without a policy of their own
+     */
+    public RetentionPolicy getGlobalRetentionPolicy() {
+        return retention.getGlobalPolicy();
+    }
+
+    public void setGlobalRetentionPolicy(RetentionPolicy policy) {
+        retention.setGlobalPolicy(policy);
+    }
+
+    /**
+     * A conversation's own retention policy, or null if it follows the global one
+     */
+    public RetentionPolicy getRetentionPolicy(String username) {
+        return retention.getPolicy(sanitizeUsername(username));
+    }
+
+    /**
+     * Give a conversation its own retention policy; null makes it follow the global one again
+     */
+    public void setRetentionPolicy(String username, RetentionPolicy policy) {
+        retention.setPolicy(sanitizeUsername(username), policy);
+    }
+
+    /**
+     * Enforce retention policies now instead of waiting for the next background sweep
+     */
+    public RetentionSweeper.RetentionStats runRetentionSweep() {
+        try {
+            return retention.sweepNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return retention.getStats();
         } catch (Exception e) {
-            System.err.println("Failed to store message: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("[MessageStorage] Retention sweep failed: " + e.getMessage());
+            return retention.getStats();
+        }
+    }
+
+    /**
+     * Messages and media expired by retention since startup
+     */
+    public RetentionSweeper.RetentionStats getRetentionStats() {
+        return retention.getStats();
+    }
+
+    /**
+     * Write one batch of queued messages: encrypt outside the lock, then append and index
+     * them and save the manifest once for the whole batch.
+     */
+    private void writeBatch(String safeUsername, List<ChatMessage> batch, boolean fsync) throws Exception {
+        Conversation conversation = getConversation(safeUsername);
+
+        List<byte[]> encrypted = new ArrayList<>(batch.size());
+        for (ChatMessage message : batch) {
+            // Media that still arrives inline goes to the blob store so the log only holds a reference
+            if (message.getContent() != null && message.getContent().startsWith(INLINE_MEDIA_PREFIX)) {
+                externalizeInlineMedia(safeUsername, conversation, message);
+            }
+            encrypted.add(encryptMessage(safeUsername, conversation, message));
+        }
+
+        List<String> keys = new ArrayList<>(batch.size());
+        for (ChatMessage message : batch) {
+            keys.add(MessageIndex.key(message.getId()));
+        }
+        ConversationSummary summary = summaries.get(safeUsername);
+
+        synchronized (conversation) {
+            // Journal first: after a crash a backup may look for a message that never made it, never miss one
+            if (journaling) {
+                conversation.journal.append(ChangeJournal.STORED, keys);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                ChatMessage message = batch.get(i);
+                MessageSegmentLog.RecordPointer pointer =
+                        conversation.log.append(message.getTimestamp(), message.getId(), encrypted.get(i));
+                conversation.index.add(message.getTimestamp(), message.getId(), pointer, conversation.log.totalBytes());
+                conversation.manifest.recordStore(message.getTimestamp(), message.getId(), conversation.log.totalBytes());
+                conversation.search.add(message.getId(), message.getTimestamp(), searchableText(message));
+                summary.recordStore(message.getTimestamp(), message.isFromMe(), ConversationSummary.preview(message.getContent()));
+                pageCache.onStore(safeUsername, message);
+            }
+            conversation.search.commit();
+            if (fsync) {
+                conversation.log.force();
+            }
+            saveManifest(safeUsername, conversation.manifest);
+        }
+        summaryChanged(safeUsername);
+
+        if (compressRecords && conversation.compressor.claimTraining(conversation.index.size())) {
+            scheduleDictionaryTraining(safeUsername, conversation);
         }
+
+        System.out.println("[MessageStorage] Stored " + batch.size() + " message(s) for " + safeUsername);
     }
 
     /**
@@ -74,80 +311,623 @@ public class MessageStorageService {
     public List<ChatMessage> loadMessages(String username, int page, int pageSize) {
         try {
             String safeUsername = sanitizeUsername(username);
-            Path messagesDir = getUserDirectory(safeUsername).resolve("messages");
+            writer.awaitPending(safeUsername);
+            List<ChatMessage> cached = pageCache.get(safeUsername, page, pageSize);
+            if (cached != null) {
+                return cached;
+            }
+
+            Conversation conversation = getConversation(safeUsername);
+
+            // Seek to the page in the index and read just its records
+            long[] generation = new long[1];
+            List<ChatMessage> messages = readMessages(safeUsername, conversation, index -> {
+                generation[0] = pageCache.generation(safeUsername);
+                return index.readPage(page, pageSize);
+            });
+
+            pageCache.put(safeUsername, page, pageSize, messages, generation[0]);
+            return new ArrayList<>(messages);
+
+        } catch (Exception e) {
+            System.err.println("Failed to load messages: " + e.getMessage());
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Store media bytes for a conversation, deduplicated by content. Put the returned
+     * reference's {@link MediaReference#toContent} in the message instead of the bytes.
+     */
+    public MediaReference storeMedia(String username, String mediaId, String fileName, String mimeType, byte[] data)
+            throws IOException {
+        try {
+            String safeUsername = sanitizeUsername(username);
+            Conversation conversation = getConversation(safeUsername);
+            String sha256 = conversation.media.put(getUserKey(safeUsername), data);
+
+            System.out.println("[MessageStorage] Stored media " + fileName + " (" + sha256.substring(0, 12)
+                    + ") for " + safeUsername);
+            return new MediaReference(mediaId, sha256, mimeType, data.length, fileName);
+
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to store media " + fileName + ": " + e.getMessage(), e);
+        }
+    }
 
-            if (!Files.exists(messagesDir)) {
-                return new ArrayList<>();
+    /**
+     * Load the media bytes behind a reference, or null if they are missing or unreadable.
+     * Only called when the UI actually displays the media.
+     */
+    public byte[] loadMedia(String username, MediaReference reference) {
+        try {
+            String safeUsername = sanitizeUsername(username);
+            return getConversation(safeUsername).media.get(getUserKey(safeUsername), reference.sha256());
+        } catch (Exception e) {
+            System.err.println("Failed to load media " + reference.fileName() + " for " + username + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Search the history of every stored conversation. Words must all match; end a word with
+     * {@code *} for a prefix match and wrap words in double quotes for a phrase.
+     * @return up to {@code limit} hits, newest first
+     */
+    public List<SearchHit> searchMessages(String query, int limit) {
+        List<String> usernames = new ArrayList<>();
+        try (var dirs = Files.list(baseDir)) {
+            dirs.filter(Files::isDirectory).forEach(dir -> usernames.add(dir.getFileName().toString()));
+        } catch (IOException e) {
+            System.err.println("[MessageStorage] Failed to list conversations for search: " + e.getMessage());
+        }
+
+        List<SearchHit> hits = new ArrayList<>();
+        for (String username : usernames) {
+            hits.addAll(searchMessages(username, query, limit));
+        }
+        hits.sort(Comparator.comparingLong(SearchHit::timestamp).reversed());
+        return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+    }
+
+    /**
+     * Search the history of one conversation; see {@link #searchMessages(String, int)}.
+     */
+    public List<SearchHit> searchMessages(String username, String query, int limit) {
+        try {
+            String safeUsername = sanitizeUsername(username);
+            writer.awaitPending(safeUsername);
+            Conversation conversation = getConversation(safeUsername);
+
+            List<MessageSearchIndex.Match> matches =
+                    conversation.search.search(MessageSearchIndex.parseQuery(query), limit);
+
+            List<SearchHit> hits = new ArrayList<>(matches.size());
+            for (MessageSearchIndex.Match match : matches) {
+                int position = conversation.index.rankFromNewest(match.timestamp(), match.id());
+                hits.add(new SearchHit(safeUsername, match.id(), match.timestamp(), position));
             }
+            return hits;
 
-            // Get all message files sorted by timestamp (newest first)
-            List<Path> messageFiles = Files.list(messagesDir)
-                    .filter(path -> path.toString().endsWith(".msg"))
-                    .sorted((a, b) -> {
-                        // Extract timestamp from filename and sort descending
-                        long timestampA = extractTimestamp(a.getFileName().toString());
-                        long timestampB = extractTimestamp(b.getFileName().toString());
-                        return Long.compare(timestampB, timestampA);
-                    })
-                    .toList();
+        } catch (Exception e) {
+            System.err.println("Failed to search messages for " + username + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-            // Calculate pagination
-            int start = page * pageSize;
-            int end = Math.min(start + pageSize, messageFiles.size());
+    /**
+     * Load up to {@code limit} messages older than the given message, newest first.
+     * Unlike page numbers, the cursor does not move when new messages arrive.
+     */
+    public List<ChatMessage> loadMessagesBefore(String username, String messageId, int limit) {
+        return loadMessagesNear(username, messageId, (index, timestamp) -> index.readBefore(timestamp, messageId, limit));
+    }
 
-            if (start >= messageFiles.size()) {
-                return new ArrayList<>();
+    /**
+     * Load up to {@code limit} messages older than a cursor, newest first. The cursor is the
+     * message {@code messageId} sent at {@code timestamp}; pass a null id to load everything
+     * before {@code timestamp}.
+     */
+    public List<ChatMessage> loadMessagesBefore(String username, long timestamp, String messageId, int limit) {
+        return loadMessagesWith(username, index -> index.readBefore(timestamp, messageId, limit));
+    }
+
+    /**
+     * Load up to {@code limit} messages newer than the given message, oldest first.
+     */
+    public List<ChatMessage> loadMessagesAfter(String username, String messageId, int limit) {
+        return loadMessagesNear(username, messageId, (index, timestamp) -> index.readAfter(timestamp, messageId, limit));
+    }
+
+    /**
+     * Load up to {@code limit} messages newer than a cursor, oldest first; see
+     * {@link #loadMessagesBefore(String, long, String, int)}.
+     */
+    public List<ChatMessage> loadMessagesAfter(String username, long timestamp, String messageId, int limit) {
+        return loadMessagesWith(username, index -> index.readAfter(timestamp, messageId, limit));
+    }
+
+    /**
+     * Load up to {@code limit} messages sent in {@code [fromTimestamp, toTimestamp)}, oldest first.
+     */
+    public List<ChatMessage> loadMessagesBetween(String username, long fromTimestamp, long toTimestamp, int limit) {
+        return loadMessagesWith(username, index -> index.readBetween(fromTimestamp, toTimestamp, limit));
+    }
+
+    /**
+     * Visit every message of a conversation, oldest first, as stored when the scan starts.
+     * For whole-history work such as backups: the log is read sequentially through a
+     * {@link SegmentScanner}, the index is walked a window at a time so memory does not grow
+     * with the history, and the conversation is only locked while the scan is set up.
+     * Messages that fail to decrypt, or are deleted while the scan runs, are skipped.
+     */
+    public void scanMessages(String username, MessageVisitor visitor) throws IOException {
+        String safeUsername = sanitizeUsername(username);
+        writer.awaitPending(safeUsername);
+        Conversation conversation = getConversation(safeUsername);
+
+        SegmentScanner scanner;
+        synchronized (conversation) {
+            scanner = SegmentScanner.open(conversation.log, scanMode);
+        }
+
+        try (scanner) {
+            scanEntries(safeUsername, scanner, storageKey(safeUsername), conversation::decode, conversation.index, (entry, message) -> {
+                if (message != null) {
+                    visitor.visit(message);
+                }
+            });
+        }
+    }
+
+    private List<ChatMessage> loadMessagesNear(String username, String messageId, CursorReader reader) {
+        return loadMessagesWith(username, index -> {
+            Long timestamp = index.timestampOf(messageId);
+            return timestamp != null ? reader.read(index, timestamp) : new ArrayList<>();
+        });
+    }
+
+    private List<ChatMessage> loadMessagesWith(String username, IndexReader reader) {
+        try {
+            String safeUsername = sanitizeUsername(username);
+            writer.awaitPending(safeUsername);
+            return readMessages(safeUsername, getConversation(safeUsername), reader);
+
+        } catch (Exception e) {
+            System.err.println("Failed to load messages: " + e.getMessage());
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Pick entries from the index and read their records under the conversation lock, then
+     * decrypt and parse them outside it, in parallel for larger reads. Messages that fail to
+     * decrypt are skipped.
+     */
+    private List<ChatMessage> readMessages(String safeUsername, Conversation conversation, IndexReader reader)
+            throws IOException {
+        long readStart = System.nanoTime();
+        List<MessageSegmentLog.RecordPointer> pointers = new ArrayList<>();
+        List<ByteBuffer> records = new ArrayList<>();
+        synchronized (conversation) {
+            for (MessageIndex.IndexEntry entry : reader.read(conversation.index)) {
+                pointers.add(entry.pointer());
+                records.add(ByteBuffer.wrap(conversation.log.read(entry.pointer())));
+            }
+        }
+        decoder.recordRead(System.nanoTime() - readStart);
+
+        ChatMessage[] decoded = decoder.decodeEach(storageKey(safeUsername), records, conversation::decode);
+        List<ChatMessage> messages = new ArrayList<>(decoded.length);
+        for (int i = 0; i < decoded.length; i++) {
+            if (decoded[i] != null) {
+                messages.add(decoded[i]);
+            } else {
+                reportUnreadable(safeUsername, pointers.get(i), conversation.log.check(pointers.get(i)));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Say whether a record that failed to decode is damaged on disk or just not readable with
+     * the current key and format
+     */
+    private static void reportUnreadable(String safeUsername, MessageSegmentLog.RecordPointer pointer,
+                                         MessageSegmentLog.RecordCheck check) {
+        switch (check) {
+            case CORRUPT -> System.err.println("[MessageStorage] Corrupt record in " + safeUsername +
+                    " at segment " + pointer.segment() + " offset " + pointer.offset() + ": checksum mismatch");
+            case INTACT -> System.err.println("[MessageStorage] Record in " + safeUsername + " at segment " +
+                    pointer.segment() + " offset " + pointer.offset() + " is intact but could not be decrypted");
+            default -> {
+                // Moved by a compaction since
             }
+        }
+    }
 
-            // Load and decrypt messages for this page
-            List<ChatMessage> messages = new ArrayList<>();
-            for (int i = start; i < end; i++) {
+    /**
+     * Walk the live entries of {@code index} oldest first, a window at a time, decrypt and parse
+     * their records read through {@code scanner} on the {@link PageDecoder} pool, and pass them
+     * to {@code visitor} in order. A record that cannot be read is passed on as null; entries
+     * stored after the scanner was opened are left out.
+     */
+    private void scanEntries(String safeUsername, SegmentScanner scanner, SecretKey key, PageDecoder.Parser parser,
+                             MessageIndex index, EntryVisitor visitor) throws IOException {
+        MessageIndex.IndexEntry cursor = null;
+        List<MessageIndex.IndexEntry> window;
+        while (!(window = index.readLiveAfter(cursor, SCAN_WINDOW)).isEmpty()) {
+            cursor = window.get(window.size() - 1);
+            List<MessageSegmentLog.RecordPointer> pointers = new ArrayList<>(window.size());
+            for (MessageIndex.IndexEntry entry : window) {
+                pointers.add(entry.pointer());
+            }
+
+            // Payloads are decrypted straight from the scanner's buffers, without copying them out first
+            long readStart = System.nanoTime();
+            List<ByteBuffer> payloads = Arrays.asList(scanner.read(pointers));
+            decoder.recordRead(System.nanoTime() - readStart);
+            ChatMessage[] messages = decoder.decodeEach(key, payloads, parser);
+            for (int i = 0; i < messages.length; i++) {
+                if (payloads.get(i) == null) {
+                    continue;
+                }
+                if (messages[i] == null) {
+                    reportUnreadable(safeUsername, pointers.get(i), scanner.check(pointers.get(i)));
+                }
+                visitor.visit(window.get(i), messages[i]);
+            }
+        }
+    }
+
+    /**
+     * Get total message count for a user
+     */
+    public int getMessageCount(String username) {
+        try {
+            return getManifest(username).getMessageCount();
+
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the manifest (count, size, first/last timestamp) for a conversation without
+     * opening its log. Returns an empty manifest for conversations with no storage.
+     */
+    public ConversationManifest getManifest(String username) {
+        String safeUsername = sanitizeUsername(username);
+        writer.awaitPending(safeUsername);
+
+        Conversation open = conversations.get(safeUsername);
+        if (open != null) {
+            return open.manifest.copy();
+        }
+
+        ConversationManifest manifest = manifests.get(safeUsername);
+        if (manifest == null) {
+            Path userDir = baseDir.resolve(safeUsername);
+            manifest = readManifest(userDir.resolve(ConversationManifest.FILE_NAME));
+
+            if (manifest == null && Files.isDirectory(userDir)) {
                 try {
-                    byte[] encrypted = Files.readAllBytes(messageFiles.get(i));
-                    ChatMessage message = decryptMessage(safeUsername, encrypted);
-                    if (message != null) {
-                        messages.add(message);
-                    }
+                    // No usable manifest yet - opening the conversation computes one
+                    return getConversation(safeUsername).manifest.copy();
+                } catch (IOException e) {
+                    System.err.println("[MessageStorage] Failed to open conversation " + safeUsername + ": " + e.getMessage());
+                }
+            }
+            if (manifest == null) {
+                return new ConversationManifest();
+            }
+            manifests.put(safeUsername, manifest);
+        }
+        return manifest.copy();
+    }
+
+    /**
+     * Unread count, last message and message count of a conversation, for the friends list.
+     * Served from memory once the conversation's summary has been loaded.
+     */
+    public ConversationSummary getConversationSummary(String username) {
+        return summaries.get(sanitizeUsername(username)).copy();
+    }
+
+    /**
+     * Like {@link #getConversationSummary} but never reads the disk, so it is safe on the UI
+     * thread: until the summary has been loaded in the background this is an empty summary,
+     * and {@link ConversationSummary#CHANGED_EVENT} is emitted once it is loaded.
+     */
+    public ConversationSummary getCachedConversationSummary(String username) {
+        ConversationSummary summary = summaries.peek(sanitizeUsername(username), this::summaryLoaded);
+        return summary != null ? summary.copy() : new ConversationSummary();
+    }
+
+    /**
+     * Unread count for a badge; 0 until the conversation's summary has been loaded (see
+     * {@link #getCachedConversationSummary})
+     */
+    public int getUnreadCount(String username) {
+        ConversationSummary summary = summaries.peek(sanitizeUsername(username), this::summaryLoaded);
+        return summary != null ? summary.getUnreadCount() : 0;
+    }
+
+    /**
+     * Unsent messages of every conversation, for {@link MessageOutbox}
+     */
+    Map<String, List<OutboxStore.Entry>> loadOutboxes() {
+        return outbox.loadAll();
+    }
+
+    /**
+     * Replace a conversation's unsent messages on disk
+     */
+    void saveOutbox(String username, List<OutboxStore.Entry> entries) throws IOException {
+        outbox.save(sanitizeUsername(username), entries);
+    }
+
+    /**
+     * Mark every message received so far in a conversation as read, including ones still
+     * queued for writing
+     */
+    public void markConversationRead(String username) {
+        String safeUsername = sanitizeUsername(username);
+        if (summaries.get(safeUsername).markRead(System.currentTimeMillis())) {
+            summaryChanged(safeUsername);
+        }
+    }
+
+    /**
+     * Adjust a conversation's unread count by hand; stored incoming messages are already counted
+     */
+    public void addUnread(String username, int count) {
+        String safeUsername = sanitizeUsername(username);
+        summaries.get(safeUsername).addUnread(count);
+        summaryChanged(safeUsername);
+    }
+
+    /**
+     * Crash recovery, run once at startup: remove temporary files left by interrupted
+     * rewrites, cut every conversation log back to its last intact record and replay the
+     * log into any index that fell behind it. Conversations already opened are skipped,
+     * since opening does the same.
+     */
+    private void recoverConversations(StorageMaintenanceScheduler.JobContext context) throws InterruptedException {
+        List<Path> userDirs;
+        try (var dirs = Files.list(baseDir)) {
+            userDirs = dirs.filter(Files::isDirectory).toList();
+        } catch (IOException e) {
+            System.err.println("[MessageStorage] Storage recovery failed: " + e.getMessage());
+            return;
+        }
+
+        int tempFiles = 0;
+        for (Path userDir : userDirs) {
+            String safeUsername = userDir.getFileName().toString();
+            long bytes = 0;
+            synchronized (conversations) {
+                if (conversations.containsKey(safeUsername)) {
+                    continue;
+                }
+                try {
+                    tempFiles += recoverConversation(userDir);
+                    // Opening verifies the active segment; older ones were verified when they were sealed
+                    bytes = Math.min(MessageSegmentLog.diskBytes(userDir.resolve("messages")),
+                            MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES);
                 } catch (Exception e) {
-                    System.err.println("Failed to decrypt message: " + e.getMessage());
+                    System.err.println("[MessageStorage] Failed to recover " + safeUsername + ": " + e.getMessage());
                 }
             }
+            context.charge(bytes);
+        }
 
-            return messages;
+        if (tempFiles > 0) {
+            System.out.println("[MessageStorage] Removed " + tempFiles + " temporary files left by interrupted writes");
+        }
+    }
+
+    /**
+     * Recover one closed conversation; returns the number of temporary files removed
+     */
+    private int recoverConversation(Path userDir) throws IOException {
+        Path messagesDir = userDir.resolve("messages");
+        int tempFiles = StorageFiles.deleteTempFiles(userDir) + StorageFiles.deleteTempFiles(messagesDir);
+        if (MessageSegmentLog.diskBytes(messagesDir) > 0) {
+            try (MessageSegmentLog log = MessageSegmentLog.open(messagesDir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+                // Opening repairs the log tail and rebuilds an index that does not match it
+                MessageIndex.open(messagesDir, log).close();
+            }
+        }
+        return tempFiles;
+    }
 
+    /**
+     * Compare every conversation's manifest with its log and index and repair any drift.
+     * Runs periodically in the background.
+     */
+    public void reconcileManifests() {
+        try {
+            scheduler.runNow(MANIFEST_JOB).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
-            System.err.println("Failed to load messages: " + e.getMessage());
-            e.printStackTrace();
-            return new ArrayList<>();
+            System.err.println("[MessageStorage] Manifest reconciliation failed: " + e.getMessage());
+        }
+    }
+
+    private void reconcileManifests(StorageMaintenanceScheduler.JobContext context) throws InterruptedException {
+        List<Path> userDirs;
+        try (var dirs = Files.list(baseDir)) {
+            userDirs = dirs.filter(Files::isDirectory).toList();
+        } catch (IOException e) {
+            System.err.println("[MessageStorage] Manifest reconciliation failed: " + e.getMessage());
+            return;
+        }
+
+        int repaired = 0;
+        for (Path userDir : userDirs) {
+            String safeUsername = userDir.getFileName().toString();
+            long bytes = 0;
+            try {
+                Conversation conversation = conversations.get(safeUsername);
+                if (conversation == null) {
+                    // Closed conversations are only opened if their manifest is missing or the
+                    // segment files on disk no longer add up to the size it recorded
+                    Path manifestFile = userDir.resolve(ConversationManifest.FILE_NAME);
+                    ConversationManifest manifest = readManifest(manifestFile);
+                    bytes += manifestFile.toFile().length();
+                    if (manifest != null && manifest.getTotalBytes() == MessageSegmentLog.diskBytes(userDir.resolve("messages"))) {
+                        manifests.put(safeUsername, manifest);
+                        context.charge(bytes);
+                        continue;
+                    }
+                    conversation = getConversation(safeUsername);
+                }
+                synchronized (conversation) {
+                    bytes += (long) conversation.index.size() * MessageIndex.ENTRY_BYTES;
+                    if (refreshManifest(safeUsername, conversation)) {
+                        repaired++;
+                    }
+                }
+            } catch (Exception e) {
+                System.err.println("[MessageStorage] Failed to reconcile manifest for " + safeUsername + ": " + e.getMessage());
+            }
+            context.charge(bytes);
+        }
+
+        if (repaired > 0) {
+            System.out.println("[MessageStorage] Reconciled " + repaired + " conversation manifests");
+        }
+    }
+
+    /**
+     * Close the open log for a conversation so its directory can be deleted or replaced
+     */
+    public void closeConversation(String username) {
+        String safeUsername = sanitizeUsername(username);
+        writer.awaitPending(safeUsername);
+        summaries.unload(safeUsername);
+        synchronized (conversations) {
+            manifests.remove(safeUsername);
+            Conversation conversation = conversations.remove(safeUsername);
+            if (conversation != null) {
+                try {
+                    conversation.close();
+                } catch (IOException e) {
+                    System.err.println("[MessageStorage] Failed to close log for " + safeUsername + ": " + e.getMessage());
+                }
+            }
+        }
+        clearConversationFromCache(username);
+    }
+
+    /**
+     * Close every open conversation log
+     */
+    public void closeAllConversations() {
+        // Not under the conversations lock: closing drains the write queue, which may open a conversation
+        for (String safeUsername : new ArrayList<>(conversations.keySet())) {
+            closeConversation(safeUsername);
+        }
+        clearCache();
+    }
+
+    /**
+     * Get the segment log and index for a conversation, opening them (and migrating any
+     * legacy one-file-per-message storage) on first use
+     */
+    private Conversation getConversation(String safeUsername) throws IOException {
+        Conversation conversation = conversations.get(safeUsername);
+        if (conversation != null) {
+            return conversation;
+        }
+
+        synchronized (conversations) {
+            conversation = conversations.get(safeUsername);
+            if (conversation == null) {
+                Path messagesDir = getUserDirectory(safeUsername).resolve("messages");
+                StorageFiles.deleteTempFiles(messagesDir.getParent());
+                StorageFiles.deleteTempFiles(messagesDir);
+                MessageSegmentLog log = MessageSegmentLog.open(messagesDir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES);
+                migrateLegacyMessages(safeUsername, messagesDir, log);
+
+                ConversationManifest manifest = manifests.remove(safeUsername);
+                if (manifest == null) {
+                    manifest = readManifest(messagesDir.resolveSibling(ConversationManifest.FILE_NAME));
+                }
+                MessageIndex index = MessageIndex.open(messagesDir, log);
+                SymbolTable symbols = openSymbolTable(safeUsername, messagesDir);
+                ChatMessageCodec codec = new ChatMessageCodec(symbols);
+                RecordCompressor compressor = openCompressor(safeUsername, messagesDir);
+                conversation = new Conversation(log, index,
+                        manifest != null ? manifest : new ConversationManifest(),
+                        new MediaBlobStore(messagesDir.resolveSibling(MediaBlobStore.DIRECTORY)),
+                        openSearchIndex(safeUsername, messagesDir, log, index,
+                                plaintext -> codec.decode(compressor.decompress(plaintext))),
+                        ChangeJournal.open(messagesDir.getParent(), journaling), symbols, codec, compressor);
+                refreshManifest(safeUsername, conversation);
+                conversations.put(safeUsername, conversation);
+                if (index.tombstoneCount() > 0) {
+                    scheduleCompaction(safeUsername);
+                }
+            }
+            return conversation;
         }
     }
 
     /**
-     * Get total message count for a user
+     * Move legacy {@code <timestamp>_<id>.msg} files into the segment log. The file contents
+     * are already nonce + ciphertext, so they are appended as-is without re-encrypting.
      */
-    public int getMessageCount(String username) {
-        try {
-            String safeUsername = sanitizeUsername(username);
-            Path messagesDir = getUserDirectory(safeUsername).resolve("messages");
+    private void migrateLegacyMessages(String safeUsername, Path messagesDir, MessageSegmentLog log) throws IOException {
+        List<Path> legacyFiles;
+        try (var files = Files.list(messagesDir)) {
+            legacyFiles = files
+                    .filter(path -> path.toString().endsWith(".msg"))
+                    .sorted(Comparator.comparingLong(path -> extractTimestamp(path.getFileName().toString())))
+                    .toList();
+        }
 
-            if (!Files.exists(messagesDir)) {
-                return 0;
+        if (legacyFiles.isEmpty()) {
+            return;
+        }
+
+        // Skip anything a previous, interrupted migration already copied
+        Set<String> existingIds = new HashSet<>();
+        log.scan(record -> {
+            if (!record.isTombstone()) {
+                existingIds.add(record.id());
             }
+        });
 
-            return (int) Files.list(messagesDir)
-                    .filter(path -> path.toString().endsWith(".msg"))
-                    .count();
+        int migrated = 0;
+        for (Path file : legacyFiles) {
+            String filename = file.getFileName().toString();
+            String messageId = extractMessageId(filename);
+            if (!existingIds.contains(messageId)) {
+                log.append(extractTimestamp(filename), messageId, Files.readAllBytes(file));
+                migrated++;
+            }
+        }
+        log.force();
 
-        } catch (Exception e) {
-            return 0;
+        for (Path file : legacyFiles) {
+            Files.deleteIfExists(file);
         }
+
+        System.out.println("[MessageStorage] Migrated " + migrated + " legacy message files for " + safeUsername);
     }
 
     private Path getUserDirectory(String safeUsername) throws IOException {
         Path userDir = baseDir.resolve(safeUsername);
         Files.createDirectories(userDir);
         Files.createDirectories(userDir.resolve("messages"));
-        Files.createDirectories(userDir.resolve("media"));
+        Files.createDirectories(userDir.resolve(MediaBlobStore.DIRECTORY));
         return userDir;
     }
 
@@ -172,7 +952,7 @@ public class MessageStorageService {
                 // Messages over the network are already encrypted via WebRTC/HTTPS
                 String keyMaterial = "WhisperClient:LocalStorage:" + Session.me.getUsername() + ":" + safeUsername;
                 MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] keyBytes = digest.digest(keyMaterial.getBytes());
+                byte[] keyBytes = digest.digest(keyMaterial.getBytes(StandardCharsets.UTF_8));
                 return new SecretKeySpec(keyBytes, "AES");
             } catch (Exception e) {
                 throw new RuntimeException("Failed to generate user key", e);
@@ -180,42 +960,232 @@ public class MessageStorageService {
         });
     }
 
-    private byte[] encryptMessage(String safeUsername, ChatMessage message) throws Exception {
-        SecretKey key = getUserKey(safeUsername);
-        byte[] nonce = new byte[12];
-        new SecureRandom().nextBytes(nonce);
+    /**
+     * {@link #getUserKey} for callers that can only throw IOException
+     */
+    private SecretKey storageKey(String safeUsername) throws IOException {
+        try {
+            return getUserKey(safeUsername);
+        } catch (Exception e) {
+            throw new IOException("Failed to get storage key for " + safeUsername, e);
+        }
+    }
+
+    private byte[] encryptMessage(String safeUsername, Conversation conversation, ChatMessage message) throws Exception {
+        // Encode in the configured record format, compress, and seal it as nonce + ciphertext in one array
+        byte[] record = conversation.codec.encode(message, recordFormat);
+        if (compressRecords) {
+            record = conversation.compressor.compress(record);
+        }
+        return StorageCipher.seal(getUserKey(safeUsername), record);
+    }
+
+    private SymbolTable openSymbolTable(String safeUsername, Path messagesDir) throws IOException {
+        return SymbolTable.open(messagesDir, storageKey(safeUsername));
+    }
+
+    private RecordCompressor openCompressor(String safeUsername, Path messagesDir) throws IOException {
+        return RecordCompressor.open(messagesDir, storageKey(safeUsername), compressionCounters);
+    }
+
+    /**
+     * Train a compression dictionary from the conversation's newest records in the background
+     */
+    private void scheduleDictionaryTraining(String safeUsername, Conversation conversation) {
+        // If this never runs (shutting down) the conversation keeps using the built-in dictionary
+        scheduler.submit(DICTIONARY_JOB, 0, context -> {
+            try {
+                List<ChatMessage> newest = readMessages(safeUsername, conversation,
+                        index -> index.readPage(0, RecordCompressor.TRAIN_SAMPLE_RECORDS));
+                List<byte[]> samples = new ArrayList<>(newest.size());
+                long bytes = 0;
+                for (int i = newest.size() - 1; i >= 0; i--) {
+                    byte[] sample = conversation.codec.encode(newest.get(i), recordFormat);
+                    samples.add(sample);
+                    bytes += sample.length;
+                }
+                context.charge(bytes);
+                conversation.compressor.train(samples);
+            } catch (IOException e) {
+                throw new IOException("Failed to train compression dictionary for " + safeUsername + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Move the base64 payload of an {@code [INLINE_MEDIA:id:name:mime:size:base64]caption}
+     * message into the blob store and rewrite the content as a {@link MediaReference}.
+     */
+    private void externalizeInlineMedia(String safeUsername, Conversation conversation, ChatMessage message) {
+        String content = message.getContent();
+        int endBracket = content.indexOf(']');
+        if (endBracket < 0) {
+            return;
+        }
+
+        String[] parts = content.substring(INLINE_MEDIA_PREFIX.length(), endBracket).split(":", 5);
+        if (parts.length < 5) {
+            return;
+        }
+
+        try {
+            byte[] data = Base64.getDecoder().decode(parts[4]);
+            String sha256 = conversation.media.put(getUserKey(safeUsername), data);
+            MediaReference reference = new MediaReference(parts[0], sha256, parts[2], data.length, parts[1]);
+            message.setContent(reference.toContent(MediaReference.caption(content)));
+        } catch (Exception e) {
+            // Keep the inline copy rather than losing the media
+            System.err.println("[MessageStorage] Could not move inline media to blob store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open the conversation's search index, rebuilding it by decrypting every live message if it
+     * is missing or out of step with the message index.
+     */
+    private MessageSearchIndex openSearchIndex(String safeUsername, Path messagesDir, MessageSegmentLog log,
+                                               MessageIndex index, PageDecoder.Parser parser) throws IOException {
+        SecretKey key = storageKey(safeUsername);
+        return MessageSearchIndex.open(messagesDir, key, index.size(), search -> {
+            try (SegmentScanner scanner = SegmentScanner.open(log, scanMode)) {
+                // An unreadable record is still indexed so the counts line up; it just won't match anything
+                scanEntries(safeUsername, scanner, key, parser, index, (entry, message) -> search.add(
+                        message != null ? message.getId() : entry.key(), entry.timestamp(),
+                        message != null ? searchableText(message) : ""));
+            }
+        });
+    }
+
+    /**
+     * Text of a message worth searching: the caption and file name for media, otherwise the content.
+     */
+    private static String searchableText(ChatMessage message) {
+        String content = message.getContent();
+        if (content == null) {
+            return "";
+        }
+
+        MediaReference reference = MediaReference.parse(content);
+        if (reference != null) {
+            return reference.fileName() + " " + MediaReference.caption(content);
+        }
+        if (content.startsWith(INLINE_MEDIA_PREFIX)) {
+            return MediaReference.caption(content);
+        }
+        return content;
+    }
+
+    /**
+     * Recompute a manifest from the conversation's index and log, saving it if it drifted.
+     * Callers must hold the conversation lock.
+     * @return true if the manifest had to be repaired
+     */
+    private boolean refreshManifest(String safeUsername, Conversation conversation) throws IOException {
+        MessageIndex.IndexEntry oldest = conversation.index.oldest();
+        MessageIndex.IndexEntry newest = conversation.index.newest();
+        int count = conversation.index.size();
+        long logBytes = conversation.log.totalBytes();
+        long first = oldest != null ? oldest.timestamp() : 0;
+        long last = newest != null ? newest.timestamp() : 0;
+
+        if (conversation.manifest.matches(count, logBytes, first, last)) {
+            return false;
+        }
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+        conversation.manifest.reset(count, logBytes, first, last, newest != null ? newest.key() : null);
+        saveManifest(safeUsername, conversation.manifest);
+        return true;
+    }
 
-        String json = MAPPER.writeValueAsString(message);
-        byte[] encrypted = cipher.doFinal(json.getBytes());
+    /**
+     * Recompute a summary's count and last message from the conversation's index after
+     * messages were removed. Unread messages that were deleted stop counting. Callers must
+     * hold the conversation lock.
+     */
+    private void refreshSummary(String safeUsername, Conversation conversation, ConversationSummary summary)
+            throws IOException {
+        MessageIndex.IndexEntry newest = conversation.index.newest();
+        if (newest == null) {
+            summary.reset(0, 0, false, null, 0);
+            return;
+        }
 
-        // Combine nonce + encrypted data
-        byte[] result = new byte[nonce.length + encrypted.length];
-        System.arraycopy(nonce, 0, result, 0, nonce.length);
-        System.arraycopy(encrypted, 0, result, nonce.length, encrypted.length);
+        boolean fromMe = summary.isLastFromMe();
+        String preview = summary.getLastPreview();
+        if (summary.getMessageCount() == 0 || newest.timestamp() != summary.getLastTimestamp()) {
+            List<ChatMessage> last = readMessages(safeUsername, conversation, index -> List.of(newest));
+            fromMe = !last.isEmpty() && last.get(0).isFromMe();
+            preview = last.isEmpty() ? null : ConversationSummary.preview(last.get(0).getContent());
+        }
 
-        return result;
+        int[] unreadLimit = {0};
+        if (summary.getUnreadCount() > 0) {
+            long readAt = summary.getLastReadAt();
+            conversation.index.scanLive(entry -> {
+                if (entry.timestamp() > readAt) {
+                    unreadLimit[0]++;
+                }
+            });
+        }
+        summary.reset(conversation.index.size(), newest.timestamp(), fromMe, preview, unreadLimit[0]);
     }
 
-    private ChatMessage decryptMessage(String safeUsername, byte[] data) throws Exception {
-        if (data.length < 12) return null;
+    /**
+     * Bring a freshly loaded summary in line with the conversation's manifest. Summaries
+     * written before a crash, or by a version without them, are rebuilt from the log.
+     */
+    private void reconcileSummary(String safeUsername, ConversationSummary summary) throws IOException {
+        if (!Files.isDirectory(baseDir.resolve(safeUsername))) {
+            summary.reset(0, 0, false, null, 0);
+            return;
+        }
+
+        // The manifest is saved with every batch; when it agrees there is no need to open the log
+        Conversation open = conversations.get(safeUsername);
+        ConversationManifest manifest = open != null ? open.manifest.copy() : manifests.get(safeUsername);
+        if (manifest == null) {
+            manifest = readManifest(baseDir.resolve(safeUsername).resolve(ConversationManifest.FILE_NAME));
+        }
+        if (manifest != null && manifest.getMessageCount() == summary.getMessageCount()
+                && (summary.getMessageCount() == 0 || manifest.getLastTimestamp() == summary.getLastTimestamp())) {
+            return;
+        }
 
-        SecretKey key = getUserKey(safeUsername);
-        byte[] nonce = new byte[12];
-        byte[] encrypted = new byte[data.length - 12];
+        Conversation conversation = getConversation(safeUsername);
+        synchronized (conversation) {
+            refreshSummary(safeUsername, conversation, summary);
+        }
+        summaries.changed(safeUsername);
+    }
 
-        System.arraycopy(data, 0, nonce, 0, 12);
-        System.arraycopy(data, 12, encrypted, 0, encrypted.length);
+    private void summaryLoaded(String safeUsername) {
+        AppCtx.BUS.emit(new Event(ConversationSummary.CHANGED_EVENT, safeUsername, null, System.currentTimeMillis(), null));
+    }
 
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+    /**
+     * Save a changed summary in the background and tell the UI about it
+     */
+    private void summaryChanged(String safeUsername) {
+        summaries.changed(safeUsername);
+        AppCtx.BUS.emit(new Event(ConversationSummary.CHANGED_EVENT, safeUsername, null, System.currentTimeMillis(), null));
+    }
 
-        byte[] decrypted = cipher.doFinal(encrypted);
-        String json = new String(decrypted);
+    private void saveManifest(String safeUsername, ConversationManifest manifest) throws IOException {
+        Path file = baseDir.resolve(safeUsername).resolve(ConversationManifest.FILE_NAME);
+        StorageFiles.writeAtomically(file, MAPPER.writeValueAsBytes(manifest));
+    }
 
-        return MAPPER.readValue(json, ChatMessage.class);
+    private ConversationManifest readManifest(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            ConversationManifest manifest = MAPPER.readValue(file.toFile(), ConversationManifest.class);
+            return manifest.getVersion() == ConversationManifest.CURRENT_VERSION ? manifest : null;
+        } catch (IOException e) {
+            System.err.println("[MessageStorage] Ignoring unreadable manifest " + file + ": " + e.getMessage());
+            return null;
+        }
     }
 
     private long extractTimestamp(String filename) {
@@ -226,12 +1196,16 @@ public class MessageStorageService {
         }
     }
 
+    private String extractMessageId(String filename) {
+        int separator = filename.indexOf('_');
+        return filename.substring(separator + 1, filename.length() - ".msg".length());
+    }
+
     /**
      * Clear all in-memory cached messages
      */
     public void clearCache() {
-        // If you have any in-memory caches, clear them here
-        // This depends on your current MessageStorage implementation
+        pageCache.clear();
         System.out.println("[MessageStorage] Cleared message cache");
     }
 
@@ -239,10 +1213,17 @@ public class MessageStorageService {
      * Clear a specific conversation from cache
      */
     public void clearConversationFromCache(String username) {
-        // If you have conversation-specific caches, clear them here
+        pageCache.invalidate(sanitizeUsername(username));
         System.out.println("[MessageStorage] Cleared cache for conversation with: " + username);
     }
 
+    /**
+     * Hit, miss and eviction counters for the decrypted page cache
+     */
+    public MessagePageCache.CacheStats getCacheStats() {
+        return pageCache.getStats();
+    }
+
     /**
      * Get the filename used for storing a conversation
      */
@@ -274,9 +1255,9 @@ public class MessageStorageService {
             String fileName = getConversationFileName(username);
             String filePath = getMessagesDirectory() + File.separator + fileName;
 
-            // Convert messages to JSON and save
+            // Convert messages to JSON and replace the file in one step, so a crash keeps the old copy
             ObjectMapper mapper = new ObjectMapper();
-            mapper.writerWithDefaultPrettyPrinter().writeValue(new File(filePath), messages);
+            StorageFiles.writeAtomically(Paths.get(filePath), mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(messages));
 
             System.out.println("[MessageStorage] Saved " + messages.size() + " messages for " + username);
             return true;
@@ -293,31 +1274,24 @@ public class MessageStorageService {
     public void clearMessages(String username) {
         try {
             String safeUsername = sanitizeUsername(username);
-            Path messagesDir = getUserDirectory(safeUsername).resolve("messages");
-
-            if (!Files.exists(messagesDir)) {
-                System.out.println("[MessageStorage] No messages directory found for " + safeUsername);
-                return;
-            }
-
-            // Delete all message files for this user
-            List<Path> messageFiles = Files.list(messagesDir)
-                    .filter(path -> path.toString().endsWith(".msg"))
-                    .toList();
-
-            int deletedCount = 0;
-            for (Path messageFile : messageFiles) {
-                try {
-                    Files.delete(messageFile);
-                    deletedCount++;
-                } catch (Exception e) {
-                    System.err.println("Failed to delete message file: " + messageFile + " - " + e.getMessage());
+            writer.awaitPending(safeUsername);
+            Conversation conversation = getConversation(safeUsername);
+            ConversationSummary summary = summaries.get(safeUsername);
+            synchronized (conversation) {
+                conversation.log.clear();
+                conversation.index.clear(conversation.log.totalBytes());
+                conversation.media.clear();
+                conversation.search.clear();
+                if (journaling) {
+                    conversation.journal.appendCleared();
                 }
+                refreshManifest(safeUsername, conversation);
+                summary.reset(0, 0, false, null, 0);
             }
+            summaryChanged(safeUsername);
 
-            System.out.println("[MessageStorage] Cleared " + deletedCount + " messages for " + safeUsername);
+            System.out.println("[MessageStorage] Cleared messages for " + safeUsername);
 
-            // Clear from cache if you have any
             clearConversationFromCache(username);
 
         } catch (Exception e) {
@@ -326,35 +1300,336 @@ public class MessageStorageService {
         }
     }
 
+    // ============== INCREMENTAL BACKUP SUPPORT ==============
+
+    /**
+     * Current high-water mark of a conversation's change journal. Taking one turns journaling
+     * on, since a backup chain is about to depend on it.
+     */
+    ChangeJournal.Mark changeMark(String username) throws IOException {
+        journaling = true;
+        String safeUsername = sanitizeUsername(username);
+        writer.awaitPending(safeUsername);
+        Conversation conversation = getConversation(safeUsername);
+        synchronized (conversation) {
+            return conversation.journal.mark();
+        }
+    }
+
+    /**
+     * What changed in a conversation between two marks, or null if that is no longer known
+     */
+    ChangeJournal.ChangeSet readChanges(String username, ChangeJournal.Mark from, ChangeJournal.Mark to)
+            throws IOException {
+        return getConversation(sanitizeUsername(username)).journal.read(from, to);
+    }
+
+    /**
+     * Forget the changes before a mark once a backup has recorded them
+     */
+    void discardChanges(String username, ChangeJournal.Mark upTo) throws IOException {
+        getConversation(sanitizeUsername(username)).journal.discardBefore(upTo);
+    }
+
+    /**
+     * Load the messages stored under the given index keys, oldest first
+     */
+    List<ChatMessage> loadMessagesByKey(String username, Collection<String> keys) {
+        return loadMessagesWith(username, index -> index.lookup(keys));
+    }
+
+    /**
+     * Delete the messages stored under the given index keys
+     */
+    int deleteMessagesByKey(String username, Collection<String> keys) {
+        return deleteWith(username, (safeUsername, conversation) ->
+                conversation.index.deleteKeys(keys, conversation.log));
+    }
+
+    /**
+     * Whether a message with this id has been written. Messages still queued are not seen;
+     * call {@link #flushPendingWrites} first if that matters.
+     */
+    boolean hasMessage(String username, String messageId) {
+        try {
+            return getConversation(sanitizeUsername(username)).index.timestampOf(messageId) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // ============== RETENTION SUPPORT ==============
+
+    /**
+     * Live index entries of a conversation, oldest first
+     */
+    List<MessageIndex.IndexEntry> liveEntries(String safeUsername) throws IOException {
+        Conversation conversation = getConversation(safeUsername);
+        List<MessageIndex.IndexEntry> entries = new ArrayList<>();
+        synchronized (conversation) {
+            conversation.index.scanLive(entries::add);
+        }
+        return entries;
+    }
+
+    /**
+     * Delete the messages stored under the given index keys, returning their index entries
+     */
+    List<MessageIndex.IndexEntry> expireMessages(String safeUsername, Collection<String> keys) {
+        return deleteEntries(safeUsername, (name, conversation) -> conversation.index.deleteKeys(keys, conversation.log));
+    }
+
+    /**
+     * Delete a conversation's media blobs that no live message refers to any more, and those
+     * only referred to by messages older than {@code referencedBefore} (Long.MIN_VALUE keeps
+     * every referenced blob). Skipped if some message could not be read, since its media
+     * would look unreferenced.
+     */
+    MediaBlobStore.Expired collectMedia(String safeUsername, long referencedBefore,
+                                        StorageMaintenanceScheduler.JobContext context)
+            throws IOException, InterruptedException {
+        long started = System.currentTimeMillis();
+        writer.awaitPending(safeUsername);
+        Conversation conversation = getConversation(safeUsername);
+
+        // Mark: the newest message referring to each blob
+        SegmentScanner scanner;
+        synchronized (conversation) {
+            scanner = SegmentScanner.open(conversation.log, scanMode);
+        }
+        Map<String, Long> newestReference = new HashMap<>();
+        long[] bytes = {0};
+        int[] unreadable = {0};
+        try (scanner) {
+            scanEntries(safeUsername, scanner, storageKey(safeUsername), conversation::decode, conversation.index, (entry, message) -> {
+                bytes[0] += entry.pointer().length();
+                if (message == null) {
+                    unreadable[0]++;
+                    return;
+                }
+                MediaReference reference = MediaReference.parse(message.getContent());
+                if (reference != null) {
+                    newestReference.merge(reference.sha256().toLowerCase(), message.getTimestamp(), Math::max);
+                }
+            });
+        }
+        context.charge(bytes[0]);
+        if (unreadable[0] > 0) {
+            System.err.println("[MessageStorage] Not collecting media for " + safeUsername + ": " +
+                    unreadable[0] + " messages could not be read");
+            return new MediaBlobStore.Expired(0, 0);
+        }
+
+        // Sweep
+        MediaBlobStore.Expired expired = conversation.media.sweep(newestReference, started,
+                started - TimeUnit.MINUTES.toMillis(UNREFERENCED_MEDIA_GRACE_MINUTES), referencedBefore, context);
+        if (expired.blobs() > 0) {
+            System.out.println("[MessageStorage] Removed " + expired.blobs() + " media blobs (" +
+                    expired.bytes() + " bytes) for " + safeUsername);
+        }
+        return expired;
+    }
+
     /**
      * Delete a specific message by ID
      */
     public boolean deleteMessage(String username, String messageId) {
+        return deleteMessages(username, Set.of(messageId)) > 0;
+    }
+
+    /**
+     * Delete messages by id in one pass. Deleted messages disappear from reads immediately;
+     * their space is reclaimed later by {@link #compactConversation}.
+     * @return how many messages were deleted
+     */
+    public int deleteMessages(String username, Collection<String> messageIds) {
+        return deleteWith(username, (safeUsername, conversation) ->
+                conversation.index.delete(messageIds, conversation.log));
+    }
+
+    /**
+     * Delete every message with {@code fromTimestamp <= timestamp < toTimestamp}.
+     * @return how many messages were deleted
+     */
+    public int deleteMessagesBetween(String username, long fromTimestamp, long toTimestamp) {
+        return deleteWith(username, (safeUsername, conversation) ->
+                conversation.index.deleteBetween(fromTimestamp, toTimestamp, conversation.log));
+    }
+
+    /**
+     * Delete every message {@code predicate} accepts. Each message is decrypted once to test it;
+     * like {@link #scanMessages} the scan runs outside the conversation lock, which is only
+     * taken again to delete the matches.
+     * @return how many messages were deleted
+     */
+    public int deleteMessagesMatching(String username, Predicate<ChatMessage> predicate) {
+        Set<String> matching = new HashSet<>();
         try {
             String safeUsername = sanitizeUsername(username);
-            Path messagesDir = getUserDirectory(safeUsername).resolve("messages");
+            writer.awaitPending(safeUsername);
+            Conversation conversation = getConversation(safeUsername);
 
-            if (!Files.exists(messagesDir)) {
-                return false;
+            SegmentScanner scanner;
+            synchronized (conversation) {
+                scanner = SegmentScanner.open(conversation.log, scanMode);
             }
 
-            // Find and delete the specific message file
-            List<Path> messageFiles = Files.list(messagesDir)
-                    .filter(path -> path.toString().endsWith(".msg"))
-                    .filter(path -> path.getFileName().toString().contains(messageId))
-                    .toList();
+            try (scanner) {
+                scanEntries(safeUsername, scanner, storageKey(safeUsername), conversation::decode, conversation.index, (entry, message) -> {
+                    if (message != null && predicate.test(message)) {
+                        matching.add(message.getId());
+                    }
+                });
+            }
+
+        } catch (Exception e) {
+            System.err.println("Failed to delete messages for " + username + ": " + e.getMessage());
+            return 0;
+        }
+        return matching.isEmpty() ? 0 : deleteMessages(username, matching);
+    }
+
+    /**
+     * Run a delete under the conversation lock and drop the deleted messages from the search
+     * index, manifest, summary and page cache
+     */
+    private int deleteWith(String username, DeleteAction action) {
+        return deleteEntries(username, action).size();
+    }
+
+    /**
+     * {@link #deleteWith}, returning the index entries that were deleted
+     */
+    private List<MessageIndex.IndexEntry> deleteEntries(String username, DeleteAction action) {
+        try {
+            String safeUsername = sanitizeUsername(username);
+            writer.awaitPending(safeUsername);
+            Conversation conversation = getConversation(safeUsername);
+            ConversationSummary summary = summaries.get(safeUsername);
+
+            List<MessageIndex.IndexEntry> deleted;
+            synchronized (conversation) {
+                deleted = action.delete(safeUsername, conversation);
+                if (deleted.isEmpty()) {
+                    return deleted;
+                }
 
-            for (Path messageFile : messageFiles) {
-                Files.delete(messageFile);
-                System.out.println("[MessageStorage] Deleted message " + messageId + " for " + safeUsername);
-                return true;
+                Set<String> keys = new HashSet<>();
+                for (MessageIndex.IndexEntry entry : deleted) {
+                    keys.add(entry.key());
+                }
+                if (journaling) {
+                    conversation.journal.append(ChangeJournal.DELETED, keys);
+                }
+                conversation.search.remove(keys);
+                conversation.search.commit();
+                refreshManifest(safeUsername, conversation);
+                refreshSummary(safeUsername, conversation, summary);
+                pageCache.invalidate(safeUsername);
             }
+            summaryChanged(safeUsername);
 
-            return false;
+            scheduleCompaction(safeUsername);
+            System.out.println("[MessageStorage] Deleted " + deleted.size() + " messages for " + safeUsername);
+            return deleted;
 
         } catch (Exception e) {
-            System.err.println("Failed to delete message " + messageId + " for " + username + ": " + e.getMessage());
-            return false;
+            System.err.println("Failed to delete messages for " + username + ": " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Rewrite the segments that hold deleted messages without them, reclaiming their space.
+     * Runs in the background a little while after a delete; returns how many records were dropped.
+     */
+    public int compactConversation(String username) {
+        return compact(sanitizeUsername(username)).removed();
+    }
+
+    /**
+     * {@link #compactConversation}, also returning how many segment bytes were rewritten
+     */
+    private Compaction compact(String safeUsername) {
+        try {
+            pendingCompactions.remove(safeUsername);
+            Conversation conversation = conversations.get(safeUsername);
+            if (conversation == null) {
+                return new Compaction(0, 0);
+            }
+
+            int removed = 0;
+            long bytes = 0;
+            synchronized (conversation) {
+                List<MessageIndex.IndexEntry> deleted = conversation.index.deletedEntries();
+                if (deleted.isEmpty()) {
+                    return new Compaction(0, 0);
+                }
+                if (conversation.log.isScanning()) {
+                    // Segment files a scan still has open cannot be replaced on Windows; try again later
+                    scheduleCompaction(safeUsername);
+                    return new Compaction(0, 0);
+                }
+
+                Set<MessageSegmentLog.RecordPointer> dead = new HashSet<>();
+                int firstSegment = Integer.MAX_VALUE;
+                for (MessageIndex.IndexEntry entry : deleted) {
+                    dead.add(entry.pointer());
+                    firstSegment = Math.min(firstSegment, entry.pointer().segment());
+                }
+
+                // Tombstones are always appended after the records they delete, so every
+                // tombstone still needed lives in firstSegment or later
+                Set<Integer> segments = new TreeSet<>();
+                for (MessageSegmentLog.RecordPointer pointer : dead) {
+                    segments.add(pointer.segment());
+                }
+                conversation.log.scanFrom(firstSegment, record -> {
+                    if (record.isTombstone()) {
+                        segments.add(record.pointer().segment());
+                    }
+                });
+
+                // Oldest segment first: a tombstone may only go once the records it deletes are gone.
+                // Each rewrite is applied to the index as soon as it commits, so a failure on a
+                // later segment leaves no entry pointing at an offset that has since moved.
+                try {
+                    for (int segment : segments) {
+                        bytes += conversation.log.segmentBytes(segment);
+                        MessageSegmentLog.Removal removal = conversation.log.rewrite(segment,
+                                record -> record.isTombstone() || dead.contains(record.pointer()));
+                        removed += removal.removed();
+                        conversation.index.compactSegment(segment, removal.relocated(), conversation.log.totalBytes());
+                        refreshManifest(safeUsername, conversation);
+                    }
+                } finally {
+                    pageCache.invalidate(safeUsername);
+                }
+            }
+
+            System.out.println("[MessageStorage] Compacted " + removed + " dead records for " + safeUsername);
+            return new Compaction(removed, bytes);
+
+        } catch (FileSystemException e) {
+            // A segment file is still in use, e.g. mapped by a scan that has finished but whose
+            // buffers are not collected yet; the segments rewritten so far stay compacted
+            System.err.println("[MessageStorage] Segment of " + safeUsername + " is in use, compacting later: " + e.getMessage());
+            scheduleCompaction(safeUsername);
+            return new Compaction(0, 0);
+        } catch (Exception e) {
+            System.err.println("[MessageStorage] Failed to compact " + safeUsername + ": " + e.getMessage());
+            return new Compaction(0, 0);
+        }
+    }
+
+    private void scheduleCompaction(String safeUsername) {
+        if (pendingCompactions.add(safeUsername)) {
+            // If this never runs (shutting down) the tombstones are compacted after the next start
+            // Deleted messages may have been the last to refer to some media
+            scheduler.submit(COMPACTION_JOB, TimeUnit.SECONDS.toMillis(COMPACTION_DELAY_SECONDS), context -> {
+                context.charge(compact(safeUsername).bytes());
+                collectMedia(safeUsername, Long.MIN_VALUE, context);
+            });
         }
     }
 
@@ -367,6 +1642,90 @@ public class MessageStorageService {
         return userHome + File.separator + ".whisper_client" + File.separator + "messages";
     }
 
+    /**
+     * Chooses which index entries a read returns
+     */
+    private interface IndexReader {
+        List<MessageIndex.IndexEntry> read(MessageIndex index) throws IOException;
+    }
+
+    /**
+     * Receives each message of {@link #scanMessages}
+     */
+    @FunctionalInterface
+    public interface MessageVisitor {
+        void visit(ChatMessage message) throws IOException;
+    }
+
+    /**
+     * Receives an index entry and its message, or null if the record could not be read
+     */
+    private interface EntryVisitor {
+        void visit(MessageIndex.IndexEntry entry, ChatMessage message) throws IOException;
+    }
+
+    private interface CursorReader {
+        List<MessageIndex.IndexEntry> read(MessageIndex index, long timestamp) throws IOException;
+    }
+
+    /**
+     * Records dropped by a compaction and the segment bytes it rewrote
+     */
+    private record Compaction(int removed, long bytes) {}
+
+    /**
+     * Marks messages deleted in a conversation's index. Called under the conversation lock.
+     */
+    private interface DeleteAction {
+        List<MessageIndex.IndexEntry> delete(String safeUsername, Conversation conversation) throws IOException;
+    }
+
+    /**
+     * Open segment log, index, manifest, media store, search index, change journal, record
+     * codec and compressor for one conversation
+     */
+    private static final class Conversation implements java.io.Closeable {
+        final MessageSegmentLog log;
+        final MessageIndex index;
+        final ConversationManifest manifest;
+        final MediaBlobStore media;
+        final MessageSearchIndex search;
+        final ChangeJournal journal;
+        final SymbolTable symbols;
+        final ChatMessageCodec codec;
+        final RecordCompressor compressor;
+
+        Conversation(MessageSegmentLog log, MessageIndex index, ConversationManifest manifest, MediaBlobStore media,
+                     MessageSearchIndex search, ChangeJournal journal, SymbolTable symbols, ChatMessageCodec codec,
+                     RecordCompressor compressor) {
+            this.log = log;
+            this.index = index;
+            this.manifest = manifest;
+            this.media = media;
+            this.search = search;
+            this.journal = journal;
+            this.symbols = symbols;
+            this.codec = codec;
+            this.compressor = compressor;
+        }
+
+        /**
+         * Parse the decrypted plaintext of one record
+         */
+        ChatMessage decode(byte[] plaintext) throws IOException {
+            return codec.decode(compressor.decompress(plaintext));
+        }
+
+        @Override
+        public void close() throws IOException {
+            symbols.close();
+            journal.close();
+            search.close();
+            index.close();
+            log.close();
+        }
+    }
+
     /**
      * Message data class for storage - proper Java Bean for Jackson
      */
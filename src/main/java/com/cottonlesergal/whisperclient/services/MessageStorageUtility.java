@@ -1,19 +1,19 @@
 package com.cottonlesergal.whisperclient.services;
 
-import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import javafx.application.Platform;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -97,13 +97,16 @@ public class MessageStorageUtility {
         try {
             System.out.println("[MessageStorageUtility] Starting deletion of all local messages...");
 
-            // Create backup first
+            // Create backup first; it carries the media too, so without it nothing is deleted
             String backupPath = createBackup("full_backup_before_delete");
-            if (backupPath != null) {
-                System.out.println("[MessageStorageUtility] Created backup at: " + backupPath);
+            if (backupPath == null) {
+                System.err.println("[MessageStorageUtility] Not deleting messages: the backup failed");
+                return false;
             }
+            System.out.println("[MessageStorageUtility] Created backup at: " + backupPath);
 
-            // Delete all message directories and files
+            // Release open conversation logs, then delete all message directories and files
+            MessageStorageService.getInstance().closeAllConversations();
             File messagesDir = new File(MESSAGES_DIR);
             if (messagesDir.exists() && messagesDir.isDirectory()) {
                 File[] userDirs = messagesDir.listFiles(File::isDirectory);
@@ -140,13 +143,16 @@ public class MessageStorageUtility {
         try {
             System.out.println("[MessageStorageUtility] Deleting messages for conversation with: " + username);
 
-            // Create backup first
+            // Create backup first; it carries the media too, so without it nothing is deleted
             String backupPath = createConversationBackup(username);
-            if (backupPath != null) {
-                System.out.println("[MessageStorageUtility] Created conversation backup at: " + backupPath);
+            if (backupPath == null) {
+                System.err.println("[MessageStorageUtility] Not deleting conversation " + username + ": the backup failed");
+                return false;
             }
+            System.out.println("[MessageStorageUtility] Created conversation backup at: " + backupPath);
 
-            // Delete user directory
+            // Release the open conversation log, then delete the user directory
+            MessageStorageService.getInstance().closeConversation(username);
             String sanitizedUsername = sanitizeUsername(username);
             Path userDir = Paths.get(MESSAGES_DIR, sanitizedUsername);
 
@@ -177,32 +183,10 @@ public class MessageStorageUtility {
         try {
             System.out.println("[MessageStorageUtility] Deleting message " + messageId + " from conversation with " + username);
 
-            String sanitizedUsername = sanitizeUsername(username);
-            Path messagesDir = Paths.get(MESSAGES_DIR, sanitizedUsername, "messages");
-
-            if (!Files.exists(messagesDir)) {
-                System.out.println("[MessageStorageUtility] No messages directory found for: " + username);
-                return false;
-            }
-
-            // Find and delete the specific message file
-            boolean deleted = Files.list(messagesDir)
-                    .filter(path -> path.getFileName().toString().endsWith("_" + messageId + ".msg"))
-                    .findFirst()
-                    .map(messagePath -> {
-                        try {
-                            Files.delete(messagePath);
-                            System.out.println("[MessageStorageUtility] Deleted message file: " + messagePath.getFileName());
-                            return true;
-                        } catch (IOException e) {
-                            System.err.println("[MessageStorageUtility] Failed to delete message file: " + e.getMessage());
-                            return false;
-                        }
-                    })
-                    .orElse(false);
+            boolean deleted = MessageStorageService.getInstance().deleteMessage(username, messageId);
 
             if (!deleted) {
-                System.out.println("[MessageStorageUtility] Message file not found: " + messageId);
+                System.out.println("[MessageStorageUtility] Message not found: " + messageId);
             }
 
             return deleted;
@@ -222,12 +206,7 @@ public class MessageStorageUtility {
             System.out.println("[MessageStorageUtility] Deleting " + messageIds.size() +
                     " messages from conversation with " + username);
 
-            int deletedCount = 0;
-            for (String messageId : messageIds) {
-                if (deleteMessage(username, messageId)) {
-                    deletedCount++;
-                }
-            }
+            int deletedCount = MessageStorageService.getInstance().deleteMessages(username, messageIds);
 
             System.out.println("[MessageStorageUtility] Successfully deleted " + deletedCount + "/" + messageIds.size() + " messages");
             return deletedCount > 0;
@@ -243,83 +222,170 @@ public class MessageStorageUtility {
      * Create a backup of all messages
      */
     public String createBackup(String backupName) {
+        return createBackup(backupName, false, null);
+    }
+
+    /**
+     * Create a backup of all messages, streamed one conversation at a time. With
+     * {@code compress} the file is gzipped ({@code .json.gz}). The backup starts a new chain
+     * for {@link #createIncrementalBackup}.
+     */
+    public String createBackup(String backupName, boolean compress, BackupExporter.ProgressListener listener) {
         try {
-            // Ensure directories exist before creating backup
-            ensureDirectoriesExist();
+            Path backupPath = newBackupPath((backupName != null ? backupName + "_" : "backup_"), compress);
+            MessageStorageService storage = MessageStorageService.getInstance();
+
+            // Marks are taken first: anything stored while exporting lands in the next increment too.
+            // Queued writes go out before that, or a brand-new conversation has no directory yet
+            storage.flushPendingWrites();
+            List<String> usernames = listConversations();
+            Map<String, ChangeJournal.Mark> marks = new HashMap<>();
+            for (String username : usernames) {
+                marks.put(username, storage.changeMark(username));
+            }
 
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            String jsonBackupPath = BACKUP_DIR + File.separator +
-                    (backupName != null ? backupName + "_" : "backup_") + timestamp + ".json";
+            BackupExporter.BackupProgress result = new BackupExporter(storage, listener)
+                    .exportAll(backupPath, usernames, compress);
+            saveBackupChain(new BackupChain(backupPath.getFileName().toString(), marks));
 
-            // Ensure backup directory exists
-            File backupDir = new File(BACKUP_DIR);
-            if (!backupDir.exists()) {
-                backupDir.mkdirs();
-            }
+            System.out.println("[MessageStorageUtility] Created backup: " + backupPath + " (" +
+                    result.messagesWritten + " messages, " + formatBytes(result.bytesWritten) +
+                    String.format(", %.0f messages/s)", result.messagesPerSecond()));
+            return backupPath.toString();
 
-            Map<String, Object> backup = new HashMap<>();
-            backup.put("timestamp", Instant.now().toEpochMilli());
-            backup.put("version", "1.0");
-            backup.put("conversations", new HashMap<String, List<ChatMessage>>());
+        } catch (Exception e) {
+            System.err.println("[MessageStorageUtility] Failed to create backup: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            // Load all conversations
-            File messagesDir = new File(MESSAGES_DIR);
-            if (messagesDir.exists() && messagesDir.isDirectory()) {
-                File[] userDirs = messagesDir.listFiles(File::isDirectory);
-                if (userDirs != null) {
-                    Map<String, List<ChatMessage>> conversations = (Map<String, List<ChatMessage>>) backup.get("conversations");
+    /**
+     * Back up only what changed since the newest backup of the current chain: new messages,
+     * deleted messages and cleared or removed conversations. Falls back to a full backup
+     * when there is no chain yet.
+     */
+    public String createIncrementalBackup(String backupName, boolean compress, BackupExporter.ProgressListener listener) {
+        try {
+            BackupChain chain = readBackupChain();
+            if (chain == null || chain.latest() == null || !Files.exists(Paths.get(BACKUP_DIR, chain.latest()))) {
+                System.out.println("[MessageStorageUtility] No backup chain to extend, creating a full backup");
+                return createBackup(backupName, compress, listener);
+            }
 
-                    for (File userDir : userDirs) {
-                        String username = userDir.getName();
-                        List<ChatMessage> messages = MessageStorageService.getInstance().loadMessages(username, 0, 10000);
-                        conversations.put(username, messages);
-                    }
+            Path backupPath = newBackupPath((backupName != null ? backupName + "_" : "incremental_"), compress);
+            MessageStorageService storage = MessageStorageService.getInstance();
+
+            storage.flushPendingWrites();
+            List<String> usernames = listConversations();
+            Map<String, ChangeJournal.Mark> marks = new HashMap<>();
+            List<BackupExporter.ConversationDelta> deltas = new ArrayList<>();
+            for (String username : usernames) {
+                ChangeJournal.Mark to = storage.changeMark(username);
+                ChangeJournal.Mark from = chain.marks().get(username);
+                marks.put(username, to);
+
+                ChangeJournal.ChangeSet changes = from != null ? storage.readChanges(username, from, to) : null;
+                if (changes == null) {
+                    // New conversation, or its journal was recreated: export all of it
+                    deltas.add(new BackupExporter.ConversationDelta(username, true, List.of(), null));
+                } else if (changes.cleared || !changes.deleted.isEmpty() || !changes.stored.isEmpty()) {
+                    deltas.add(new BackupExporter.ConversationDelta(username, changes.cleared, changes.deleted,
+                            new ArrayList<>(changes.stored)));
                 }
             }
-
-            // Write backup file
-            try (FileWriter writer = new FileWriter(jsonBackupPath)) {
-                MAPPER.writerWithDefaultPrettyPrinter().writeValue(writer, backup);
+            for (String username : chain.marks().keySet()) {
+                if (!marks.containsKey(username)) {
+                    deltas.add(new BackupExporter.ConversationDelta(username, true, List.of(), List.of()));
+                }
             }
 
-            System.out.println("[MessageStorageUtility] Created backup: " + jsonBackupPath);
-            return jsonBackupPath;
+            BackupExporter.BackupProgress result = new BackupExporter(storage, listener)
+                    .exportIncremental(backupPath, chain.latest(), deltas, compress);
+
+            chain.getFiles().add(backupPath.getFileName().toString());
+            chain.marks().clear();
+            chain.marks().putAll(marks);
+            saveBackupChain(chain);
+
+            System.out.println("[MessageStorageUtility] Created incremental backup: " + backupPath + " (" +
+                    deltas.size() + " changed conversations, " + result.messagesWritten + " messages, " +
+                    formatBytes(result.bytesWritten) + ")");
+            return backupPath.toString();
 
         } catch (Exception e) {
-            System.err.println("[MessageStorageUtility] Failed to create backup: " + e.getMessage());
+            System.err.println("[MessageStorageUtility] Failed to create incremental backup: " + e.getMessage());
             e.printStackTrace();
             return null;
         }
     }
 
     /**
-     * Create a backup of a specific conversation
+     * Restore backup files, full backup first, followed by its incremental backups in order
      */
-    public String createConversationBackup(String username) {
+    public BackupRestorer.RestoreResult restoreBackup(List<String> backupFiles) {
         try {
-            // Ensure directories exist before creating backup
-            ensureDirectoriesExist();
+            List<Path> files = new ArrayList<>();
+            for (String file : backupFiles) {
+                files.add(Paths.get(file));
+            }
 
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
-            String backupPath = BACKUP_DIR + File.separator + "conversation_" + username + "_" + timestamp + ".json";
+            BackupRestorer.RestoreResult result = new BackupRestorer(MessageStorageService.getInstance()).restore(files);
+            System.out.println("[MessageStorageUtility] Restored " + result.filesRestored + " backup files: " +
+                    result.messagesRestored + " messages restored, " + result.messagesDeleted + " deleted, " +
+                    result.duplicatesSkipped + " already present");
+            return result;
 
-            // Ensure backup directory exists
-            File backupDir = new File(BACKUP_DIR);
-            if (!backupDir.exists()) {
-                backupDir.mkdirs();
-            }
+        } catch (Exception e) {
+            System.err.println("[MessageStorageUtility] Failed to restore backup: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Restore the current backup chain: its full backup and every incremental backup since
+     */
+    public BackupRestorer.RestoreResult restoreLatestBackup() {
+        BackupChain chain = readBackupChain();
+        if (chain == null || chain.getFiles().isEmpty()) {
+            System.err.println("[MessageStorageUtility] No backup chain to restore");
+            return null;
+        }
 
-            Map<String, Object> backup = new HashMap<>();
-            backup.put("timestamp", Instant.now().toEpochMilli());
-            backup.put("username", username);
-            backup.put("messages", MessageStorageService.getInstance().loadMessages(username, 0, 10000));
+        List<String> files = new ArrayList<>();
+        for (String file : chain.getFiles()) {
+            files.add(Paths.get(BACKUP_DIR, file).toString());
+        }
+        return restoreBackup(files);
+    }
 
-            try (FileWriter writer = new FileWriter(backupPath)) {
-                MAPPER.writerWithDefaultPrettyPrinter().writeValue(writer, backup);
-            }
+    /**
+     * Create a backup of all messages on a background thread. The future completes with the
+     * backup path, or null if it failed.
+     */
+    public CompletableFuture<String> createBackupAsync(String backupName, boolean compress,
+                                                      BackupExporter.ProgressListener listener) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Thread thread = new Thread(() -> result.complete(createBackup(backupName, compress, listener)), "MessageBackup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return result;
+    }
+
+    /**
+     * Create a backup of a specific conversation
+     */
+    public String createConversationBackup(String username) {
+        try {
+            Path backupPath = newBackupPath("conversation_" + username + "_", false);
+
+            new BackupExporter(MessageStorageService.getInstance(), null)
+                    .exportConversation(backupPath, username, false);
 
             System.out.println("[MessageStorageUtility] Created conversation backup: " + backupPath);
-            return backupPath;
+            return backupPath.toString();
 
         } catch (Exception e) {
             System.err.println("[MessageStorageUtility] Failed to create conversation backup: " + e.getMessage());
@@ -328,6 +394,60 @@ public class MessageStorageUtility {
         }
     }
 
+    private List<String> listConversations() {
+        List<String> usernames = new ArrayList<>();
+        File[] userDirs = new File(MESSAGES_DIR).listFiles(File::isDirectory);
+        if (userDirs != null) {
+            for (File userDir : userDirs) {
+                usernames.add(userDir.getName());
+            }
+        }
+        return usernames;
+    }
+
+    private BackupChain readBackupChain() {
+        Path file = Paths.get(BACKUP_DIR, BackupChain.FILE_NAME);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return MAPPER.readValue(file.toFile(), BackupChain.class);
+        } catch (IOException e) {
+            System.err.println("[MessageStorageUtility] Ignoring unreadable backup chain: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the chain, then let each conversation forget the changes the chain has recorded
+     */
+    private void saveBackupChain(BackupChain chain) throws IOException {
+        StorageFiles.writeAtomically(Paths.get(BACKUP_DIR, BackupChain.FILE_NAME), MAPPER.writeValueAsBytes(chain));
+
+        for (Map.Entry<String, ChangeJournal.Mark> mark : chain.marks().entrySet()) {
+            try {
+                MessageStorageService.getInstance().discardChanges(mark.getKey(), mark.getValue());
+            } catch (IOException e) {
+                System.err.println("[MessageStorageUtility] Could not trim change journal for " + mark.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path newBackupPath(String prefix, boolean compress) throws IOException {
+        // Ensure directories exist before creating backup
+        ensureDirectoriesExist();
+        Files.createDirectories(Paths.get(BACKUP_DIR));
+
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        String extension = compress ? ".json.gz" : ".json";
+        Path path = Paths.get(BACKUP_DIR, prefix + timestamp + extension);
+        // Never overwrite a backup made within the same second, it may be part of the chain
+        for (int n = 2; Files.exists(path); n++) {
+            path = Paths.get(BACKUP_DIR, prefix + timestamp + "_" + n + extension);
+        }
+        return path;
+    }
+
     /**
      * Get storage statistics
      */
@@ -344,10 +464,11 @@ public class MessageStorageUtility {
                     long totalSize = 0;
                     int totalMessages = 0;
 
+                    // Each conversation's manifest already holds its count and size
                     for (File userDir : userDirs) {
-                        totalSize += calculateDirectorySize(userDir);
-                        String username = userDir.getName();
-                        totalMessages += MessageStorageService.getInstance().getMessageCount(username);
+                        ConversationManifest manifest = MessageStorageService.getInstance().getManifest(userDir.getName());
+                        totalSize += manifest.getTotalBytes();
+                        totalMessages += manifest.getMessageCount();
                     }
 
                     stats.totalSizeBytes = totalSize;
@@ -355,10 +476,15 @@ public class MessageStorageUtility {
                 }
             }
 
+            stats.compression = MessageStorageService.getInstance().getCompressionStats();
+            stats.retention = MessageStorageService.getInstance().getRetentionStats();
+            stats.maintenance = StorageMaintenanceScheduler.getInstance().getJobStats();
+
             // Check backups
             File backupDir = new File(BACKUP_DIR);
             if (backupDir.exists() && backupDir.isDirectory()) {
-                File[] backupFiles = backupDir.listFiles((dir, name) -> name.endsWith(".json"));
+                File[] backupFiles = backupDir.listFiles((dir, name) ->
+                        !name.equals(BackupChain.FILE_NAME) && (name.endsWith(".json") || name.endsWith(".json.gz")));
                 if (backupFiles != null) {
                     stats.backupCount = backupFiles.length;
                 }
@@ -383,6 +509,52 @@ public class MessageStorageUtility {
         System.out.println("Storage size: " + formatBytes(stats.totalSizeBytes));
         System.out.println("Backups: " + stats.backupCount);
 
+        RecordCompressor.CompressionStats compression = stats.compression;
+        System.out.println("Compression: " + (compression.enabled ? "on" : "off") + ", " +
+                compression.recordsCompressed + " compressed / " + compression.recordsStoredRaw + " raw records, " +
+                formatBytes(compression.bytesBeforeCompression) + " -> " + formatBytes(compression.bytesAfterCompression) +
+                String.format(" (%.1f%%; compress=%d ms, decompress=%d ms, %d dictionaries trained)",
+                        compression.ratio() * 100, compression.compressNanos / 1_000_000,
+                        compression.decompressNanos / 1_000_000, compression.dictionariesTrained));
+
+        RetentionSweeper.RetentionStats retention = stats.retention;
+        System.out.println("Retention: " + retention.globalPolicy + " (+" + retention.conversationPolicies +
+                " per-conversation), " + retention.sweeps + " sweeps, expired " + retention.messagesExpired +
+                " messages (" + formatBytes(retention.bytesExpired) + ") and " + retention.mediaExpired +
+                " media blobs (" + formatBytes(retention.mediaBytesExpired) + ")" +
+                String.format(" (last sweep %d ms, throttled %d ms)", retention.lastSweepMillis, retention.throttledMillis));
+
+        MessagePageCache.CacheStats cacheStats = MessageStorageService.getInstance().getCacheStats();
+        System.out.println("Page cache: " + cacheStats.cachedPages + " pages, " +
+                formatBytes(cacheStats.cachedBytes) + " / " + formatBytes(cacheStats.maxBytes) +
+                String.format(" (hits=%d, misses=%d, evictions=%d, hit rate=%.1f%%)",
+                        cacheStats.hits, cacheStats.misses, cacheStats.evictions, cacheStats.hitRate() * 100));
+
+        StorageWriter.WriterStats writerStats = MessageStorageService.getInstance().getWriterStats();
+        System.out.println("Writer: " + writerStats.queuedMessages + " queued, " + writerStats.messagesWritten +
+                " written in " + writerStats.batchesWritten + " batches" +
+                String.format(" (avg batch=%.1f, failed=%d, durability=%s)",
+                        writerStats.averageBatchSize(), writerStats.failedMessages, writerStats.policy));
+
+        StorageMaintenanceScheduler scheduler = StorageMaintenanceScheduler.getInstance();
+        System.out.println("Maintenance: budget " + formatBytes(scheduler.getIoBudget()) + "/s" +
+                String.format(", %.0f%% of a core", scheduler.getCpuBudget() * 100));
+        for (StorageMaintenanceScheduler.JobStats job : stats.maintenance) {
+            System.out.println("  " + job.name + ": " + job.runs + " runs" +
+                    (job.lastRunAt > 0 ? ", last " + LocalDateTime.ofInstant(Instant.ofEpochMilli(job.lastRunAt),
+                            ZoneId.systemDefault()).format(DateTimeFormatter.ofPattern("HH:mm:ss")) : "") +
+                    String.format(" (%d ms, %s; throttled %d ms, paused %d ms, %d failed)", job.lastDurationMillis,
+                            formatBytes(job.lastBytesProcessed), job.throttledMillis, job.pausedMillis, job.failures));
+        }
+
+        PageDecoder.ReadStats readStats = MessageStorageService.getInstance().getReadStats();
+        System.out.println("Reads: " + readStats.loads + " loads, " + readStats.messages + " messages" +
+                String.format(" (avg %.1f ms/load; read=%d ms, decrypt=%d ms, parse=%d ms; %s, %d parallel loads)",
+                        readStats.averageMillisPerLoad(), readStats.readNanos / 1_000_000,
+                        readStats.decryptNanos / 1_000_000, readStats.parseNanos / 1_000_000,
+                        readStats.parallel ? readStats.workerThreads + " decode threads" : "sequential",
+                        readStats.parallelLoads));
+
         System.out.println("\nStorage paths:");
         System.out.println("Messages: " + MESSAGES_DIR);
         System.out.println("Backups: " + BACKUP_DIR);
@@ -395,9 +567,9 @@ public class MessageStorageUtility {
             if (userDirs != null) {
                 for (File userDir : userDirs) {
                     String username = userDir.getName();
-                    int messageCount = MessageStorageService.getInstance().getMessageCount(username);
-                    System.out.println("  " + username + " - " + formatBytes(calculateDirectorySize(userDir)) +
-                            " (" + messageCount + " messages)");
+                    ConversationManifest manifest = MessageStorageService.getInstance().getManifest(username);
+                    System.out.println("  " + username + " - " + formatBytes(manifest.getTotalBytes()) +
+                            " (" + manifest.getMessageCount() + " messages)");
                 }
             }
         }
@@ -423,23 +595,6 @@ public class MessageStorageUtility {
         return false;
     }
 
-    private long calculateDirectorySize(File directory) {
-        long size = 0;
-        if (directory.exists() && directory.isDirectory()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        size += calculateDirectorySize(file);
-                    } else {
-                        size += file.length();
-                    }
-                }
-            }
-        }
-        return size;
-    }
-
     private String sanitizeUsername(String username) {
         if (username == null || username.trim().isEmpty()) {
             throw new IllegalArgumentException("Username cannot be null or empty");
@@ -462,5 +617,8 @@ public class MessageStorageUtility {
         public int totalMessages = 0;
         public long totalSizeBytes = 0;
         public int backupCount = 0;
+        public RecordCompressor.CompressionStats compression = new RecordCompressor.CompressionStats();
+        public RetentionSweeper.RetentionStats retention = new RetentionSweeper.RetentionStats();
+        public List<StorageMaintenanceScheduler.JobStats> maintenance = new ArrayList<>();
     }
 }
\ No newline at end of file
@@ -12,14 +12,11 @@ import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 public class NotificationManager {
     private static final NotificationManager INSTANCE = new NotificationManager();
 
-    // Track notification counts per user
-    private final Map<String, Integer> notificationCounts = new ConcurrentHashMap<>();
+    // Unread counts live in the persistent conversation summaries, kept by the storage write path
+    private final MessageStorageService storage = MessageStorageService.getInstance();
 
     // Reference to the main stage for toast positioning
     private Stage mainStage;
@@ -64,20 +61,21 @@ public class NotificationManager {
         });
     }
 
-    // Notification count management
+    // Notification count management. Stored incoming messages are counted when they are
+    // written, so these are only needed to adjust or clear the count.
     public void incrementNotificationCount(String username) {
-        notificationCounts.put(username, notificationCounts.getOrDefault(username, 0) + 1);
+        storage.addUnread(username, 1);
         System.out.println("[NotificationManager] Incremented count for " + username +
-                " to " + notificationCounts.get(username));
+                " to " + getNotificationCount(username));
     }
 
     public void clearNotificationCount(String username) {
-        notificationCounts.remove(username);
+        storage.markConversationRead(username);
         System.out.println("[NotificationManager] Cleared count for " + username);
     }
 
     public int getNotificationCount(String username) {
-        return notificationCounts.getOrDefault(username, 0);
+        return storage.getUnreadCount(username);
     }
 
     // Toast notifications
@@ -221,7 +219,7 @@ public class NotificationManager {
 
     // Quick methods for common notifications
     public void showMessageNotification(String from, String message) {
-        incrementNotificationCount(from);
+        // The stored message already counts as unread
         showToast("New Message from " + from, message, ToastType.MESSAGE, null);
     }
 
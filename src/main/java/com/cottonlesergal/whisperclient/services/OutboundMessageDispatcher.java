@@ -0,0 +1,413 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends outgoing chat messages to the directory worker without tying up the caller.
+ *
+ * Each peer has a FIFO queue and only the message at its head is on the wire, so two quick
+ * messages to the same friend arrive in the order they were written. Up to
+ * {@code maxInFlight} peers send at once. A message that fails with a 5xx, a 429 or no
+ * response at all is retried from the chunk that failed, with exponential backoff and
+ * jitter; while it waits its peer gives up its slot. Anything else fails it at once.
+ *
+ * {@link #send} returns a future that completes when the last chunk is accepted, or
+ * exceptionally with a {@link DeliveryException}.
+ */
+public final class OutboundMessageDispatcher {
+    static final String MAX_IN_FLIGHT_PROPERTY = "whisperclient.outbound.maxInFlight";
+    static final String MAX_ATTEMPTS_PROPERTY = "whisperclient.outbound.maxAttempts";
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long BASE_BACKOFF_MILLIS = 500;
+    static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    // Pause between the chunks of one large message so the worker is not flooded
+    private static final long CHUNK_GAP_MILLIS = 50;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final OutboundMessageDispatcher INSTANCE = new OutboundMessageDispatcher(
+            Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, DEFAULT_MAX_IN_FLIGHT),
+            Integer.getInteger(MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS), new WorkerLink());
+
+    /**
+     * A message the worker accepted, after {@code attempts} requests in {@code millis}
+     * from being queued
+     */
+    public record Delivery(String to, String messageId, int attempts, long millis) {}
+
+    /**
+     * Why a message was not delivered. A transient failure (the worker kept failing or
+     * could not be reached, or the token was rejected) may succeed later as it is; any
+     * other failure will not.
+     */
+    public static class DeliveryException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+        private final boolean transientFailure;
+
+        DeliveryException(String message, int statusCode, boolean transientFailure, Throwable cause) {
+            super(message, cause);
+            this.statusCode = statusCode;
+            this.transientFailure = transientFailure;
+        }
+
+        /** HTTP status of the last response, or 0 if there was none */
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public boolean isTransient() {
+            return transientFailure;
+        }
+    }
+
+    /**
+     * Where messages go: the directory worker, or a stand-in in tests
+     */
+    interface Link {
+        /** Completes with false only if {@code to} is known not to be a friend */
+        CompletableFuture<Boolean> isFriend(String to);
+
+        /** Post one chunk; completes exceptionally with an IOException if there was no response */
+        CompletableFuture<Reply> post(String to, String text) throws IOException;
+
+        /** The server refused a message because the friendship is gone */
+        void friendRemoved(String to);
+    }
+
+    /**
+     * Status and body of the worker's answer to one chunk
+     */
+    record Reply(int status, String body) {}
+
+    private static final class Outbound {
+        final String peer;
+        final String to;
+        final String messageId;
+        final String[] chunks;
+        final long queuedAt = System.currentTimeMillis();
+        final CompletableFuture<Delivery> future = new CompletableFuture<>();
+        int nextChunk;
+        int attempts;
+        // Failures since the last accepted chunk
+        int failures;
+        // Set by the first finish(), so an outcome is never reported twice
+        boolean finished;
+
+        Outbound(String to, String messageId, String[] chunks) {
+            this.peer = to.toLowerCase(Locale.ROOT);
+            this.to = to;
+            this.messageId = messageId;
+            this.chunks = chunks;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxAttempts;
+    private final Link link;
+    private final MessageChunkingService chunking = MessageChunkingService.getInstance();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "OutboundDispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this: a peer has a queue while it has messages; the head is the one being sent
+    private final Map<String, ArrayDeque<Outbound>> queues = new HashMap<>();
+    // Guarded by this: peers whose head is waiting for a slot, in the order they became ready
+    private final ArrayDeque<String> ready = new ArrayDeque<>();
+    private int inFlight;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder deliveryMillis = new LongAdder();
+
+    public static OutboundMessageDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    OutboundMessageDispatcher(int maxInFlight, int maxAttempts, Link link) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.link = link;
+    }
+
+    public CompletableFuture<Delivery> send(String to, String text) {
+        return send(to, null, text);
+    }
+
+    /**
+     * Queue {@code text} for {@code to} behind anything already queued for them.
+     * {@code messageId} is only carried through to the {@link Delivery}.
+     */
+    public CompletableFuture<Delivery> send(String to, String messageId, String text) {
+        Outbound outbound = new Outbound(to, messageId, chunking.splitMessage(text));
+        queued.increment();
+        synchronized (this) {
+            ArrayDeque<Outbound> queue = queues.computeIfAbsent(outbound.peer, p -> new ArrayDeque<>());
+            queue.add(outbound);
+            if (queue.size() == 1) {
+                ready.add(outbound.peer);
+            }
+        }
+        pump();
+        return outbound.future;
+    }
+
+    public DispatcherStats getStats() {
+        DispatcherStats stats = new DispatcherStats();
+        synchronized (this) {
+            stats.peers = queues.size();
+            for (ArrayDeque<Outbound> queue : queues.values()) {
+                stats.pending += queue.size();
+            }
+            stats.inFlight = inFlight;
+        }
+        stats.maxInFlight = maxInFlight;
+        stats.queued = queued.sum();
+        stats.delivered = delivered.sum();
+        stats.failed = failed.sum();
+        stats.retries = retries.sum();
+        stats.requests = requests.sum();
+        stats.averageDeliveryMillis = stats.delivered > 0 ? (double) deliveryMillis.sum() / stats.delivered : 0;
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    /**
+     * Start the heads of ready peers while there are free slots
+     */
+    private void pump() {
+        List<Outbound> starting = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < maxInFlight && !ready.isEmpty()) {
+                ArrayDeque<Outbound> queue = queues.get(ready.poll());
+                if (queue != null && !queue.isEmpty()) {
+                    inFlight++;
+                    starting.add(queue.peek());
+                }
+            }
+        }
+        for (Outbound outbound : starting) {
+            timer.execute(() -> guarded(outbound, () -> start(outbound)));
+        }
+    }
+
+    private void start(Outbound outbound) {
+        if (outbound.nextChunk > 0 || outbound.attempts > 0) {
+            post(outbound);
+            return;
+        }
+        // Answered from memory unless the server has to be asked, which must not hold up the timer
+        link.isFriend(outbound.to).whenComplete((friend, failure) -> guarded(outbound, () -> {
+            if (Boolean.FALSE.equals(friend)) {
+                finish(outbound, null, new DeliveryException(
+                        "Not friends with " + outbound.to + " - cannot send message", 0, false, null));
+            } else {
+                post(outbound);
+            }
+        }));
+    }
+
+    /**
+     * Run a step of sending {@code outbound}; anything it throws fails the message instead
+     * of leaving its slot taken for good
+     */
+    private void guarded(Outbound outbound, Runnable step) {
+        try {
+            step.run();
+        } catch (Throwable e) {
+            System.err.println("[OutboundMessageDispatcher] Unexpected error sending to " + outbound.to + ": " + e);
+            finish(outbound, null, new DeliveryException("Failed to send message: " + e, 0, false, e));
+            if (e instanceof Error error) {
+                throw error;
+            }
+        }
+    }
+
+    private void post(Outbound outbound) {
+        CompletableFuture<Reply> reply;
+        try {
+            reply = link.post(outbound.to, outbound.chunks[outbound.nextChunk]);
+        } catch (IOException e) {
+            finish(outbound, null, new DeliveryException("Could not encode message: " + e.getMessage(), 0, false, e));
+            return;
+        }
+
+        outbound.attempts++;
+        requests.increment();
+        reply.whenComplete((response, failure) -> guarded(outbound, () -> handleResponse(outbound, response, failure)));
+    }
+
+    private void handleResponse(Outbound outbound, Reply response, Throwable failure) {
+        if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof IOException) {
+                retryOrFail(outbound, 0, cause.getClass().getSimpleName() + ": " + cause.getMessage(), cause);
+            } else {
+                finish(outbound, null, new DeliveryException("Failed to send message: " + cause.getMessage(), 0, false, cause));
+            }
+            return;
+        }
+
+        int status = response.status();
+        if (status == 200) {
+            outbound.failures = 0;
+            outbound.nextChunk++;
+            if (outbound.nextChunk < outbound.chunks.length) {
+                timer.schedule(() -> guarded(outbound, () -> post(outbound)), CHUNK_GAP_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                finish(outbound, new Delivery(outbound.to, outbound.messageId, outbound.attempts,
+                        System.currentTimeMillis() - outbound.queuedAt), null);
+            }
+            return;
+        }
+
+        System.err.println("[OutboundMessageDispatcher] Failed to send message to " + outbound.to +
+                ". Status: " + status + ", Body: " + response.body());
+        if (status >= 500 || status == 429) {
+            retryOrFail(outbound, status, "HTTP " + status + ": " + response.body(), null);
+        } else if (status == 403) {
+            // Our cached friendship was out of date
+            link.friendRemoved(outbound.to);
+            finish(outbound, null, new DeliveryException(
+                    "Not friends with " + outbound.to + " - cannot send message", status, false, null));
+        } else if (status == 401) {
+            finish(outbound, null, new DeliveryException("Authentication failed - check token", status, true, null));
+        } else if (status == 404) {
+            finish(outbound, null, new DeliveryException(
+                    "Message endpoint not found - check server configuration", status, false, null));
+        } else {
+            finish(outbound, null, new DeliveryException("HTTP " + status + ": " + response.body(), status, false, null));
+        }
+    }
+
+    private void retryOrFail(Outbound outbound, int status, String reason, Throwable cause) {
+        outbound.failures++;
+        if (outbound.failures >= maxAttempts) {
+            finish(outbound, null, new DeliveryException(
+                    "Gave up after " + outbound.failures + " attempts: " + reason, status, true, cause));
+            return;
+        }
+
+        long delay = backoffMillis(outbound.failures);
+        retries.increment();
+        System.out.println("[OutboundMessageDispatcher] Retrying message to " + outbound.to + " in " + delay + " ms (" + reason + ")");
+
+        // Free the slot while waiting; the peer stays blocked behind this message
+        synchronized (this) {
+            inFlight--;
+        }
+        pump();
+        timer.schedule(() -> {
+            synchronized (this) {
+                ready.add(outbound.peer);
+            }
+            pump();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Exponential in the number of failures, capped, with the upper half randomised so
+     * peers that failed together do not retry together
+     */
+    static long backoffMillis(int failures) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    private void finish(Outbound outbound, Delivery delivery, DeliveryException failure) {
+        synchronized (this) {
+            if (outbound.finished) {
+                return;
+            }
+            outbound.finished = true;
+            inFlight--;
+            ArrayDeque<Outbound> queue = queues.get(outbound.peer);
+            queue.poll();
+            if (queue.isEmpty()) {
+                queues.remove(outbound.peer);
+            } else {
+                ready.add(outbound.peer);
+            }
+        }
+        pump();
+
+        if (failure != null) {
+            failed.increment();
+            outbound.future.completeExceptionally(failure);
+        } else {
+            delivered.increment();
+            deliveryMillis.add(delivery.millis());
+            outbound.future.complete(delivery);
+        }
+    }
+
+    /**
+     * Posts to the directory worker through the shared {@link HttpTransport}
+     */
+    private static final class WorkerLink implements Link {
+        private final HttpTransport http = HttpTransport.getInstance();
+        private final FriendshipCache friendships = FriendshipCache.getInstance();
+
+        @Override
+        public CompletableFuture<Boolean> isFriend(String to) {
+            return friendships.isFriendAsync(to);
+        }
+
+        @Override
+        public CompletableFuture<Reply> post(String to, String text) throws IOException {
+            String body = "{\"to\":" + MAPPER.writeValueAsString(to) + ",\"text\":" + MAPPER.writeValueAsString(text) + "}";
+            HttpRequest request = http.request(Config.DIR_WORKER + "/message")
+                    .header("content-type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            return http.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .thenApply(response -> new Reply(response.statusCode(), response.body()));
+        }
+
+        @Override
+        public void friendRemoved(String to) {
+            friendships.friendRemoved(to);
+        }
+    }
+
+    /**
+     * Queue sizes now and what has been sent since startup
+     */
+    public static class DispatcherStats {
+        public int peers = 0;
+        public int pending = 0;
+        public int inFlight = 0;
+        public int maxInFlight = 0;
+        public long queued = 0;
+        public long delivered = 0;
+        public long failed = 0;
+        public long retries = 0;
+        public long requests = 0;
+        public double averageDeliveryMillis = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk copy of the {@link MessageOutbox}: the messages of a conversation that have not
+ * been accepted by the server yet, in send order, sealed with the conversation's storage key
+ * in {@code outbox.dat} next to its message log. The file is rewritten atomically whenever
+ * the list changes and removed when it empties; it only ever holds a handful of messages.
+ */
+final class OutboxStore {
+    static final String FILE_NAME = "outbox.dat";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final TypeReference<List<Entry>> ENTRIES = new TypeReference<>() {};
+
+    /**
+     * One unsent message
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class Entry {
+        @JsonProperty
+        String id;
+        @JsonProperty
+        String to;
+        @JsonProperty
+        String text;
+        @JsonProperty
+        long queuedAt;
+        @JsonProperty
+        int attempts;
+        @JsonProperty
+        String lastError;
+
+        Entry() {}
+
+        Entry(String id, String to, String text, long queuedAt) {
+            this.id = id;
+            this.to = to;
+            this.text = text;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final Path baseDir;
+    private final ConversationSummaryStore.KeySource keys;
+
+    OutboxStore(Path baseDir, ConversationSummaryStore.KeySource keys) {
+        this.baseDir = baseDir;
+        this.keys = keys;
+    }
+
+    /**
+     * Every conversation's unsent messages, by conversation directory. Outboxes that cannot
+     * be opened (written under another account, or damaged) are left alone.
+     */
+    Map<String, List<Entry>> loadAll() {
+        Map<String, List<Entry>> outboxes = new HashMap<>();
+        List<Path> files;
+        try (var dirs = Files.list(baseDir)) {
+            files = dirs.map(dir -> dir.resolve(FILE_NAME)).filter(Files::isRegularFile).toList();
+        } catch (IOException e) {
+            System.err.println("[OutboxStore] Could not list conversations: " + e.getMessage());
+            return outboxes;
+        }
+
+        for (Path file : files) {
+            String safeUsername = file.getParent().getFileName().toString();
+            try {
+                byte[] plaintext = StorageCipher.open(keys.key(safeUsername), ByteBuffer.wrap(Files.readAllBytes(file)));
+                List<Entry> entries = MAPPER.readValue(plaintext, ENTRIES);
+                if (!entries.isEmpty()) {
+                    outboxes.put(safeUsername, entries);
+                }
+            } catch (Exception e) {
+                System.err.println("[OutboxStore] Ignoring unreadable " + file + ": " + e.getMessage());
+            }
+        }
+        return outboxes;
+    }
+
+    void save(String safeUsername, List<Entry> entries) throws IOException {
+        Path file = baseDir.resolve(safeUsername).resolve(FILE_NAME);
+        if (entries.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            StorageFiles.writeAtomically(file, StorageCipher.seal(keys.key(safeUsername), MAPPER.writeValueAsBytes(entries)));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to seal outbox for " + safeUsername, e);
+        }
+    }
+}
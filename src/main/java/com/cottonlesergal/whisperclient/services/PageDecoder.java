@@ -0,0 +1,196 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decrypts and parses the records of a history read, fanning larger reads out across a
+ * small pool of worker threads. Results keep the order of the records; a record that fails
+ * to decrypt or parse is logged and left out.
+ *
+ * Time spent reading, decrypting and parsing is accumulated per stage for
+ * {@link MessageStorageService#getReadStats()}.
+ */
+public final class PageDecoder {
+    static final String PARALLEL_PROPERTY = "whisperclient.storage.parallelDecode";
+
+    // Below this many records the hand-off to the pool costs more than it saves
+    private static final int MIN_PARALLEL_RECORDS = 8;
+
+    /**
+     * Turns decrypted record bytes back into a message
+     */
+    interface Parser {
+        ChatMessage parse(byte[] plaintext) throws IOException;
+    }
+
+    private final int threads;
+    private final ExecutorService pool;
+    private volatile boolean parallel;
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder parallelLoads = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder decryptNanos = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder decodeWallNanos = new LongAdder();
+
+    PageDecoder(int threads, boolean parallel) {
+        this.threads = Math.max(1, threads);
+        this.parallel = parallel;
+
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread thread = new Thread(r, "MessageStorageDecode-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Decrypt and parse {@code records} in order.
+     */
+    List<ChatMessage> decode(SecretKey key, List<ByteBuffer> records, Parser parser) {
+        List<ChatMessage> decoded = new ArrayList<>(records.size());
+        for (ChatMessage message : decodeEach(key, records, parser)) {
+            if (message != null) {
+                decoded.add(message);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Decrypt and parse {@code records}, keeping each result at its record's position: null
+     * where the record is null or fails to decode. Sealed data is decrypted where it lies,
+     * so the buffers may be slices of a mapped segment or a shared read buffer.
+     */
+    ChatMessage[] decodeEach(SecretKey key, List<ByteBuffer> records, Parser parser) {
+        int count = records.size();
+        ChatMessage[] results = new ChatMessage[count];
+        long start = System.nanoTime();
+
+        int workers = parallel && count >= MIN_PARALLEL_RECORDS ? Math.min(threads, count) : 1;
+        if (workers == 1) {
+            decodeRange(key, records, parser, results, 0, count);
+        } else {
+            // Contiguous chunks per worker; the calling thread takes the last one itself
+            int chunk = (count + workers - 1) / workers;
+            List<Future<?>> futures = new ArrayList<>(workers - 1);
+            for (int from = 0; from + chunk < count; from += chunk) {
+                int rangeStart = from;
+                int rangeEnd = Math.min(count, from + chunk);
+                futures.add(pool.submit(() -> decodeRange(key, records, parser, results, rangeStart, rangeEnd)));
+            }
+            decodeRange(key, records, parser, results, futures.size() * chunk, count);
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    System.err.println("[PageDecoder] Decode worker failed: " + e.getCause());
+                }
+            }
+            parallelLoads.increment();
+        }
+
+        loads.increment();
+        decodeWallNanos.add(System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * Account for time spent reading records from disk before {@link #decode}.
+     */
+    void recordRead(long nanos) {
+        readNanos.add(nanos);
+    }
+
+    boolean isParallel() {
+        return parallel;
+    }
+
+    void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    ReadStats getStats() {
+        ReadStats stats = new ReadStats();
+        stats.parallel = parallel;
+        stats.workerThreads = threads;
+        stats.loads = loads.sum();
+        stats.parallelLoads = parallelLoads.sum();
+        stats.messages = messages.sum();
+        stats.failures = failures.sum();
+        stats.readNanos = readNanos.sum();
+        stats.decryptNanos = decryptNanos.sum();
+        stats.parseNanos = parseNanos.sum();
+        stats.decodeWallNanos = decodeWallNanos.sum();
+        return stats;
+    }
+
+    private void decodeRange(SecretKey key, List<ByteBuffer> records, Parser parser, ChatMessage[] results,
+                             int from, int to) {
+        long decrypt = 0;
+        long parse = 0;
+        for (int i = from; i < to; i++) {
+            if (records.get(i) == null) {
+                continue;
+            }
+            try {
+                long t0 = System.nanoTime();
+                byte[] plaintext = StorageCipher.open(key, records.get(i));
+                long t1 = System.nanoTime();
+                results[i] = parser.parse(plaintext);
+                long t2 = System.nanoTime();
+
+                decrypt += t1 - t0;
+                parse += t2 - t1;
+                messages.increment();
+            } catch (Exception e) {
+                failures.increment();
+                System.err.println("Failed to decrypt message: " + e.getMessage());
+            }
+        }
+        decryptNanos.add(decrypt);
+        parseNanos.add(parse);
+    }
+
+    /**
+     * Cumulative per-stage timings of history reads. Decrypt and parse times are summed
+     * across worker threads, so with parallel decoding they can exceed the wall time.
+     */
+    public static class ReadStats {
+        public boolean parallel;
+        public int workerThreads = 0;
+        public long loads = 0;
+        public long parallelLoads = 0;
+        public long messages = 0;
+        public long failures = 0;
+        public long readNanos = 0;
+        public long decryptNanos = 0;
+        public long parseNanos = 0;
+        public long decodeWallNanos = 0;
+
+        public double averageMillisPerLoad() {
+            return loads == 0 ? 0 : (readNanos + decodeWallNanos) / 1_000_000.0 / loads;
+        }
+    }
+}
@@ -6,8 +6,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.Base64;
@@ -19,7 +17,7 @@ public class ProfileUpdateService {
     private static final int MAX_AVATAR_SIZE = 1024; // 1024x1024 max
     private static final long MAX_FILE_SIZE = 8 * 1024 * 1024; // 8MB max
 
-    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final HttpTransport http = HttpTransport.getInstance();
 
     public static ProfileUpdateService getInstance() {
         return INSTANCE;
@@ -67,13 +65,12 @@ public class ProfileUpdateService {
                     .put("provider", Session.me.getProvider())
                     .put("avatar", avatarUrl != null ? avatarUrl : "");
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/register"))
-                    .header("authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest req = http.request(Config.DIR_WORKER + "/register")
                     .header("content-type", "application/json")
                     .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
                     .build();
 
-            HttpResponse<String> res = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
             return res.statusCode() == 200;
 
         } catch (Exception e) {
@@ -0,0 +1,326 @@
+package com.cottonlesergal.whisperclient.services;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DEFLATE compression of one conversation's record plaintext, before encryption, with a
+ * preset dictionary. A single chat line barely compresses on its own, but most of it
+ * usually already appears in the dictionary, so records shrink without giving up
+ * per-record random access.
+ *
+ * Every conversation starts on a built-in dictionary of common chat text. Once it holds
+ * enough messages a dictionary is trained from its own recent records and used for new
+ * writes. Dictionaries are never changed or removed, since older records still refer to
+ * theirs by number; each is sealed with the conversation key in {@code dictionary-<n>.dat}.
+ *
+ * Compressed records are {@code marker(1) dictionary(varint) length(varint) raw-deflate};
+ * records that would not get smaller are stored as they are.
+ */
+public final class RecordCompressor {
+    static final String ENABLED_PROPERTY = "whisperclient.storage.compressRecords";
+    static final int TRAIN_AFTER_RECORDS = 200;
+    static final int TRAIN_SAMPLE_RECORDS = 512;
+
+    static final byte MARKER = (byte) 0xC5;
+
+    private static final String DICTIONARY_PREFIX = "dictionary-";
+    private static final String DICTIONARY_SUFFIX = ".dat";
+    // The DEFLATE window; anything further back in a dictionary can never be referenced
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    private static final int MIN_COMPRESS_BYTES = 24;
+
+    // Dictionary 0. Like the trained ones it must never change, or every record compressed
+    // with it stops decompressing; RecordCompressorTest pins its SHA-256.
+    static final byte[] PRESET_DICTIONARY = (
+            "{\"id\":\"\",\"from\":\"\",\"to\":\"\",\"content\":\"\",\"type\":\"text\",\"timestamp\":,\"fromMe\":false}" +
+            "[MEDIA_REF:image/png:image/jpeg:video/mp4:audio/mpeg:application/pdf:]" +
+            "haha lol ok okay yeah yes no thanks thank you sorry please what why when where how who " +
+            "I'm I don't I think I know I'll I was you're are you do you can you did you have you " +
+            "it's that's there's what's let me know sounds good see you later tomorrow tonight today " +
+            "right now just wanted to the and for with this that have not but what about going to " +
+            "http://https://www..com/ ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final Path dir;
+    private final SecretKey key;
+    private final Counters counters;
+    private final AtomicBoolean training = new AtomicBoolean();
+    // Copy-on-write, indexed by dictionary number; 0 is the built-in preset
+    private volatile byte[][] dictionaries = {PRESET_DICTIONARY};
+
+    private RecordCompressor(Path dir, SecretKey key, Counters counters) {
+        this.dir = dir;
+        this.key = key;
+        this.counters = counters;
+    }
+
+    /**
+     * Load the conversation's trained dictionaries from {@code dir}.
+     */
+    static RecordCompressor open(Path dir, SecretKey key, Counters counters) throws IOException {
+        RecordCompressor compressor = new RecordCompressor(dir, key, counters);
+        compressor.loadDictionaries();
+        return compressor;
+    }
+
+    /**
+     * Compressed form of {@code record}, or the record itself if compressing does not help.
+     */
+    byte[] compress(byte[] record) {
+        if (record.length < MIN_COMPRESS_BYTES) {
+            counters.storedRaw.increment();
+            counters.bytesIn.add(record.length);
+            counters.bytesOut.add(record.length);
+            return record;
+        }
+
+        long start = System.nanoTime();
+        byte[][] current = dictionaries;
+        int number = current.length - 1;
+
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(current[number]);
+        deflater.setInput(record);
+        deflater.finish();
+
+        byte[] output = new byte[record.length];
+        int header = 1 + varIntLength(number) + varIntLength(record.length);
+        int length = 0;
+        while (!deflater.finished() && header + length < output.length) {
+            length += deflater.deflate(output, header + length, output.length - header - length);
+        }
+        boolean smaller = deflater.finished() && header + length < record.length;
+
+        counters.compressNanos.add(System.nanoTime() - start);
+        counters.bytesIn.add(record.length);
+        if (!smaller) {
+            counters.storedRaw.increment();
+            counters.bytesOut.add(record.length);
+            return record;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(output);
+        buffer.put(MARKER);
+        putVarInt(buffer, number);
+        putVarInt(buffer, record.length);
+        counters.compressed.increment();
+        counters.bytesOut.add(header + length);
+        return Arrays.copyOf(output, header + length);
+    }
+
+    /**
+     * Original record for a plaintext written by {@link #compress}; records that were
+     * stored uncompressed are returned as they are.
+     */
+    byte[] decompress(byte[] plaintext) throws IOException {
+        if (plaintext.length == 0 || plaintext[0] != MARKER) {
+            return plaintext;
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(plaintext, 1, plaintext.length - 1);
+        int number = getVarInt(buffer);
+        int length = getVarInt(buffer);
+        byte[][] current = dictionaries;
+        if (number >= current.length) {
+            throw new IOException("Record uses unknown compression dictionary " + number);
+        }
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setDictionary(current[number]);
+        inflater.setInput(plaintext, buffer.position(), buffer.remaining());
+
+        byte[] record = new byte[length];
+        try {
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(record, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed record is truncated");
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed record: " + e.getMessage(), e);
+        }
+
+        counters.decompressNanos.add(System.nanoTime() - start);
+        counters.decompressed.increment();
+        return record;
+    }
+
+    /**
+     * True if the conversation has grown enough to be worth a trained dictionary and no
+     * training has been started for it yet. Only the first caller gets true.
+     */
+    boolean claimTraining(int recordCount) {
+        return dictionaries.length == 1 && recordCount >= TRAIN_AFTER_RECORDS && training.compareAndSet(false, true);
+    }
+
+    /**
+     * Build a dictionary from sample records, oldest first, and use it for new writes. The
+     * newest samples go at the end of the dictionary, where matches are cheapest.
+     */
+    synchronized void train(List<byte[]> samples) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] sample : samples) {
+            joined.write(sample, 0, sample.length);
+        }
+        byte[] all = joined.toByteArray();
+        if (all.length < MIN_COMPRESS_BYTES) {
+            training.set(false);
+            return;
+        }
+        byte[] dictionary = Arrays.copyOfRange(all, Math.max(0, all.length - MAX_DICTIONARY_BYTES), all.length);
+
+        int number = dictionaries.length;
+        try {
+            StorageFiles.writeAtomically(dictionaryFile(number), StorageCipher.seal(key, dictionary));
+        } catch (IOException e) {
+            training.set(false);
+            throw e;
+        } catch (Exception e) {
+            training.set(false);
+            throw new IOException("Failed to seal compression dictionary: " + e.getMessage(), e);
+        }
+
+        byte[][] grown = Arrays.copyOf(dictionaries, number + 1);
+        grown[number] = dictionary;
+        dictionaries = grown;
+        counters.dictionariesTrained.increment();
+        System.out.println("[RecordCompressor] Trained " + dictionary.length + " byte dictionary " + number +
+                " in " + dir);
+    }
+
+    // ============== INTERNALS ==============
+
+    private void loadDictionaries() throws IOException {
+        int count = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            count = (int) files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(DICTIONARY_PREFIX) && name.endsWith(DICTIONARY_SUFFIX))
+                    .count();
+        }
+
+        byte[][] loaded = {PRESET_DICTIONARY};
+        for (int number = 1; number <= count; number++) {
+            Path file = dictionaryFile(number);
+            if (!Files.exists(file)) {
+                break;
+            }
+            try {
+                byte[] dictionary = StorageCipher.open(key, ByteBuffer.wrap(Files.readAllBytes(file)));
+                loaded = Arrays.copyOf(loaded, number + 1);
+                loaded[number] = dictionary;
+            } catch (Exception e) {
+                throw new IOException("Failed to read compression dictionary " + file + ": " + e.getMessage(), e);
+            }
+        }
+        dictionaries = loaded;
+    }
+
+    private Path dictionaryFile(int number) {
+        return dir.resolve(DICTIONARY_PREFIX + number + DICTIONARY_SUFFIX);
+    }
+
+    private static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarInt(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Compressed record header is truncated");
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed compressed record header");
+    }
+
+    /**
+     * Totals shared by every conversation's compressor
+     */
+    static final class Counters {
+        final LongAdder compressed = new LongAdder();
+        final LongAdder storedRaw = new LongAdder();
+        final LongAdder decompressed = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder compressNanos = new LongAdder();
+        final LongAdder decompressNanos = new LongAdder();
+        final LongAdder dictionariesTrained = new LongAdder();
+
+        CompressionStats snapshot(boolean enabled) {
+            CompressionStats stats = new CompressionStats();
+            stats.enabled = enabled;
+            stats.recordsCompressed = compressed.sum();
+            stats.recordsStoredRaw = storedRaw.sum();
+            stats.recordsDecompressed = decompressed.sum();
+            stats.bytesBeforeCompression = bytesIn.sum();
+            stats.bytesAfterCompression = bytesOut.sum();
+            stats.compressNanos = compressNanos.sum();
+            stats.decompressNanos = decompressNanos.sum();
+            stats.dictionariesTrained = dictionariesTrained.sum();
+            return stats;
+        }
+    }
+
+    /**
+     * Cumulative compression counters since startup. Byte counts cover records that went
+     * through the compressor, including the ones kept uncompressed.
+     */
+    public static class CompressionStats {
+        public boolean enabled;
+        public long recordsCompressed = 0;
+        public long recordsStoredRaw = 0;
+        public long recordsDecompressed = 0;
+        public long bytesBeforeCompression = 0;
+        public long bytesAfterCompression = 0;
+        public long compressNanos = 0;
+        public long decompressNanos = 0;
+        public long dictionariesTrained = 0;
+
+        /**
+         * Compressed size as a fraction of the original, 1 when nothing has been written
+         */
+        public double ratio() {
+            return bytesBeforeCompression == 0 ? 1 : (double) bytesAfterCompression / bytesBeforeCompression;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * How much history a conversation keeps. Each limit is off when zero; messages past any
+ * limit are expired oldest first by the background retention sweep.
+ *
+ * {@code maxBytes} counts stored message records. Media blobs are governed separately by
+ * {@code mediaMaxAgeMillis}, which removes media once the newest message referring to it
+ * is that old, while keeping the messages (and their captions) themselves.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RetentionPolicy {
+    private long maxAgeMillis;
+    private int maxMessages;
+    private long maxBytes;
+    private long mediaMaxAgeMillis;
+
+    // Default constructor for Jackson; keeps everything
+    public RetentionPolicy() {}
+
+    public RetentionPolicy(long maxAgeMillis, int maxMessages, long maxBytes, long mediaMaxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.mediaMaxAgeMillis = mediaMaxAgeMillis;
+    }
+
+    /**
+     * True if no limit is set
+     */
+    @JsonIgnore
+    public boolean isUnlimited() {
+        return maxAgeMillis <= 0 && maxMessages <= 0 && maxBytes <= 0 && mediaMaxAgeMillis <= 0;
+    }
+
+    // Getters and setters for Jackson
+    public long getMaxAgeMillis() { return maxAgeMillis; }
+    public void setMaxAgeMillis(long maxAgeMillis) { this.maxAgeMillis = maxAgeMillis; }
+
+    public int getMaxMessages() { return maxMessages; }
+    public void setMaxMessages(int maxMessages) { this.maxMessages = maxMessages; }
+
+    public long getMaxBytes() { return maxBytes; }
+    public void setMaxBytes(long maxBytes) { this.maxBytes = maxBytes; }
+
+    public long getMediaMaxAgeMillis() { return mediaMaxAgeMillis; }
+    public void setMediaMaxAgeMillis(long mediaMaxAgeMillis) { this.mediaMaxAgeMillis = mediaMaxAgeMillis; }
+
+    @Override
+    public String toString() {
+        return "RetentionPolicy{maxAge=" + maxAgeMillis + "ms, maxMessages=" + maxMessages +
+                ", maxBytes=" + maxBytes + ", mediaMaxAge=" + mediaMaxAgeMillis + "ms}";
+    }
+}
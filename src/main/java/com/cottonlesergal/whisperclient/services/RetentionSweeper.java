@@ -0,0 +1,285 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Enforces {@link RetentionPolicy retention policies}: a global policy plus optional
+ * per-conversation overrides, saved in {@code retention.json} under the message directory.
+ *
+ * A sweep runs every few hours as a {@link StorageMaintenanceScheduler} job. It expires
+ * messages oldest first in small batches, so reads of the same conversation only ever wait
+ * for one batch, and charges its disk work to the scheduler's budget between batches.
+ * Conversations whose manifest shows they are within their limits are skipped without
+ * being opened.
+ */
+public final class RetentionSweeper {
+    static final String FILE_NAME = "retention.json";
+    static final String JOB_NAME = "retention";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long INITIAL_DELAY_MINUTES = 5;
+    private static final long SWEEP_INTERVAL_MINUTES = 6 * 60;
+    private static final int EXPIRE_BATCH = 256;
+
+    private final MessageStorageService storage;
+    private final Path baseDir;
+    private final StorageMaintenanceScheduler scheduler;
+    private Settings settings;
+
+    private final LongAdder sweeps = new LongAdder();
+    private final LongAdder messagesExpired = new LongAdder();
+    private final LongAdder bytesExpired = new LongAdder();
+    private final LongAdder mediaExpired = new LongAdder();
+    private final LongAdder mediaBytesExpired = new LongAdder();
+    private final LongAdder throttledMillis = new LongAdder();
+    private final AtomicLong lastSweepAt = new AtomicLong();
+    private final AtomicLong lastSweepMillis = new AtomicLong();
+
+    RetentionSweeper(MessageStorageService storage, Path baseDir, StorageMaintenanceScheduler scheduler) {
+        this.storage = storage;
+        this.baseDir = baseDir;
+        this.scheduler = scheduler;
+        this.settings = loadSettings();
+    }
+
+    void start() {
+        scheduler.register(JOB_NAME, TimeUnit.MINUTES.toMillis(INITIAL_DELAY_MINUTES),
+                TimeUnit.MINUTES.toMillis(SWEEP_INTERVAL_MINUTES), this::sweep);
+    }
+
+    void shutdown() {
+        scheduler.unregister(JOB_NAME);
+    }
+
+    synchronized RetentionPolicy getGlobalPolicy() {
+        return settings.global;
+    }
+
+    synchronized void setGlobalPolicy(RetentionPolicy policy) {
+        settings.global = policy != null ? policy : new RetentionPolicy();
+        saveSettings();
+    }
+
+    /**
+     * The conversation's own policy, or null if it follows the global one
+     */
+    synchronized RetentionPolicy getPolicy(String safeUsername) {
+        return settings.conversations.get(safeUsername);
+    }
+
+    /**
+     * Give a conversation its own policy in place of the global one; null removes it.
+     */
+    synchronized void setPolicy(String safeUsername, RetentionPolicy policy) {
+        if (policy == null) {
+            settings.conversations.remove(safeUsername);
+        } else {
+            settings.conversations.put(safeUsername, policy);
+        }
+        saveSettings();
+    }
+
+    synchronized RetentionPolicy effectivePolicy(String safeUsername) {
+        return settings.conversations.getOrDefault(safeUsername, settings.global);
+    }
+
+    /**
+     * Enforce every policy now on the maintenance thread, after any job already running
+     */
+    RetentionStats sweepNow() throws Exception {
+        scheduler.runNow(JOB_NAME).get();
+        return getStats();
+    }
+
+    RetentionStats getStats() {
+        RetentionStats stats = new RetentionStats();
+        synchronized (this) {
+            stats.globalPolicy = settings.global;
+            stats.conversationPolicies = settings.conversations.size();
+        }
+        stats.sweeps = sweeps.sum();
+        stats.lastSweepAt = lastSweepAt.get();
+        stats.lastSweepMillis = lastSweepMillis.get();
+        stats.messagesExpired = messagesExpired.sum();
+        stats.bytesExpired = bytesExpired.sum();
+        stats.mediaExpired = mediaExpired.sum();
+        stats.mediaBytesExpired = mediaBytesExpired.sum();
+        stats.throttledMillis = throttledMillis.sum();
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void sweep(StorageMaintenanceScheduler.JobContext context) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Path> userDirs;
+        try (var dirs = Files.list(baseDir)) {
+            userDirs = dirs.filter(Files::isDirectory).toList();
+        } catch (IOException e) {
+            System.err.println("[RetentionSweeper] Could not list conversations: " + e.getMessage());
+            return;
+        }
+
+        long expiredBefore = messagesExpired.sum();
+        long mediaBefore = mediaExpired.sum();
+        try {
+            for (Path userDir : userDirs) {
+                String safeUsername = userDir.getFileName().toString();
+                RetentionPolicy policy = effectivePolicy(safeUsername);
+                if (policy.isUnlimited()) {
+                    continue;
+                }
+                try {
+                    sweepConversation(safeUsername, policy, System.currentTimeMillis(), context);
+                } catch (IOException e) {
+                    System.err.println("[RetentionSweeper] Failed to apply retention to " + safeUsername + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            throttledMillis.add(context.throttledMillis());
+        }
+
+        sweeps.increment();
+        lastSweepAt.set(start);
+        lastSweepMillis.set(System.currentTimeMillis() - start);
+        long expired = messagesExpired.sum() - expiredBefore;
+        long media = mediaExpired.sum() - mediaBefore;
+        if (expired > 0 || media > 0) {
+            System.out.println("[RetentionSweeper] Expired " + expired + " messages and " + media +
+                    " media blobs in " + lastSweepMillis.get() + " ms");
+        }
+    }
+
+    private void sweepConversation(String safeUsername, RetentionPolicy policy, long now,
+                                   StorageMaintenanceScheduler.JobContext context)
+            throws IOException, InterruptedException {
+        if (overLimit(storage.getManifest(safeUsername), policy, now)) {
+            expireMessages(safeUsername, policy, now, context);
+        }
+
+        if (policy.getMediaMaxAgeMillis() > 0) {
+            MediaBlobStore.Expired expired = storage.collectMedia(safeUsername, now - policy.getMediaMaxAgeMillis(), context);
+            mediaExpired.add(expired.blobs());
+            mediaBytesExpired.add(expired.bytes());
+        }
+    }
+
+    /**
+     * Cheap check against the manifest. Its size includes deleted records not yet
+     * compacted, so it can only overstate what is stored.
+     */
+    static boolean overLimit(ConversationManifest manifest, RetentionPolicy policy, long now) {
+        int count = manifest.getMessageCount();
+        return (policy.getMaxAgeMillis() > 0 && count > 0 && manifest.getFirstTimestamp() < now - policy.getMaxAgeMillis())
+                || (policy.getMaxMessages() > 0 && count > policy.getMaxMessages())
+                || (policy.getMaxBytes() > 0 && manifest.getTotalBytes() > policy.getMaxBytes());
+    }
+
+    private void expireMessages(String safeUsername, RetentionPolicy policy, long now,
+                                StorageMaintenanceScheduler.JobContext context)
+            throws IOException, InterruptedException {
+        List<MessageIndex.IndexEntry> entries = storage.liveEntries(safeUsername);
+        context.charge((long) entries.size() * MessageIndex.ENTRY_BYTES);
+        int expire = expireCount(entries, policy, now);
+
+        for (int start = 0; start < expire; start += EXPIRE_BATCH) {
+            List<String> keys = new ArrayList<>(EXPIRE_BATCH);
+            long batchBytes = 0;
+            for (MessageIndex.IndexEntry entry : entries.subList(start, Math.min(expire, start + EXPIRE_BATCH))) {
+                keys.add(entry.key());
+                batchBytes += entry.pointer().length();
+            }
+            context.charge(batchBytes);
+
+            for (MessageIndex.IndexEntry deleted : storage.expireMessages(safeUsername, keys)) {
+                messagesExpired.increment();
+                bytesExpired.add(deleted.pointer().length());
+            }
+        }
+    }
+
+    /**
+     * How many of {@code entries}, oldest first, are past a limit of {@code policy}. Every
+     * limit expires the oldest messages first, so together they cut a prefix.
+     */
+    static int expireCount(List<MessageIndex.IndexEntry> entries, RetentionPolicy policy, long now) {
+        int expire = 0;
+        if (policy.getMaxAgeMillis() > 0) {
+            long cutoff = now - policy.getMaxAgeMillis();
+            while (expire < entries.size() && entries.get(expire).timestamp() < cutoff) {
+                expire++;
+            }
+        }
+        if (policy.getMaxMessages() > 0) {
+            expire = Math.max(expire, entries.size() - policy.getMaxMessages());
+        }
+        if (policy.getMaxBytes() > 0) {
+            long bytes = 0;
+            for (MessageIndex.IndexEntry entry : entries) {
+                bytes += entry.pointer().length();
+            }
+            int oldest = 0;
+            while (bytes > policy.getMaxBytes() && oldest < entries.size()) {
+                bytes -= entries.get(oldest++).pointer().length();
+            }
+            expire = Math.max(expire, oldest);
+        }
+        return expire;
+    }
+
+    private Settings loadSettings() {
+        Path file = baseDir.resolve(FILE_NAME);
+        if (Files.exists(file)) {
+            try {
+                return MAPPER.readValue(file.toFile(), Settings.class);
+            } catch (IOException e) {
+                System.err.println("[RetentionSweeper] Ignoring unreadable " + file + ": " + e.getMessage());
+            }
+        }
+        return new Settings();
+    }
+
+    private void saveSettings() {
+        try {
+            StorageFiles.writeAtomically(baseDir.resolve(FILE_NAME), MAPPER.writeValueAsBytes(settings));
+        } catch (IOException e) {
+            System.err.println("[RetentionSweeper] Failed to save retention policies: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saved policies: the global one and per-conversation overrides
+     */
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    private static class Settings {
+        @JsonProperty
+        RetentionPolicy global = new RetentionPolicy();
+        @JsonProperty
+        Map<String, RetentionPolicy> conversations = new HashMap<>();
+    }
+
+    /**
+     * Policies in force and everything expired since startup
+     */
+    public static class RetentionStats {
+        public RetentionPolicy globalPolicy;
+        public int conversationPolicies = 0;
+        public long sweeps = 0;
+        public long lastSweepAt = 0;
+        public long lastSweepMillis = 0;
+        public long messagesExpired = 0;
+        public long bytesExpired = 0;
+        public long mediaExpired = 0;
+        public long mediaBytesExpired = 0;
+        public long throttledMillis = 0;
+    }
+}
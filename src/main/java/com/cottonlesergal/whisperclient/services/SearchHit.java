@@ -0,0 +1,18 @@
+package com.cottonlesergal.whisperclient.services;
+
+/**
+ * A message matching a history search.
+ *
+ * @param conversation sanitized username of the conversation the message is in
+ * @param position     position of the message counted from the newest (0 = newest), or -1
+ *                     if it could not be located
+ */
+public record SearchHit(String conversation, String messageId, long timestamp, int position) {
+
+    /**
+     * The page of {@link MessageStorageService#loadMessages} that holds this message.
+     */
+    public int page(int pageSize) {
+        return position < 0 ? 0 : position / pageSize;
+    }
+}
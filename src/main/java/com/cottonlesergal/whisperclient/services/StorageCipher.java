@@ -0,0 +1,91 @@
+package com.cottonlesergal.whisperclient.services;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * AES-GCM sealing for local storage, using one {@link Cipher} and {@link SecureRandom}
+ * per thread instead of creating new ones for every message.
+ *
+ * Sealed data is laid out as {@code nonce(12) || ciphertext || tag(16)}, the same format
+ * the message files have always used.
+ */
+public final class StorageCipher {
+    public static final int NONCE_BYTES = 12;
+    public static final int TAG_BITS = 128;
+    private static final int TAG_BYTES = TAG_BITS / 8;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private static final ThreadLocal<SecureRandom> RANDOMS = ThreadLocal.withInitial(SecureRandom::new);
+
+    private StorageCipher() {}
+
+    /**
+     * Encrypt {@code plaintext} under a fresh random nonce.
+     */
+    public static byte[] seal(SecretKey key, byte[] plaintext) throws GeneralSecurityException {
+        return seal(key, plaintext, 0, plaintext.length);
+    }
+
+    /**
+     * Encrypt {@code length} bytes of {@code plaintext} starting at {@code offset}.
+     */
+    public static byte[] seal(SecretKey key, byte[] plaintext, int offset, int length) throws GeneralSecurityException {
+        byte[] sealed = new byte[NONCE_BYTES + length + TAG_BYTES];
+
+        // SecureRandom can only fill a whole array, so the nonce is drawn separately and copied
+        // in front; the cipher then writes ciphertext and tag straight into the output
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOMS.get().nextBytes(nonce);
+        System.arraycopy(nonce, 0, sealed, 0, NONCE_BYTES);
+
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.doFinal(plaintext, offset, length, sealed, NONCE_BYTES);
+        return sealed;
+    }
+
+    /**
+     * Decrypt the sealed bytes between {@code sealed.position()} and {@code sealed.limit()}.
+     * Heap buffers are decrypted in place from their backing array without copying the
+     * nonce or ciphertext out first. The buffer's position is left unchanged.
+     */
+    public static byte[] open(SecretKey key, ByteBuffer sealed) throws GeneralSecurityException {
+        int length = sealed.remaining();
+        if (length < NONCE_BYTES + TAG_BYTES) {
+            throw new GeneralSecurityException("Sealed data is too short: " + length + " bytes");
+        }
+
+        Cipher cipher = CIPHERS.get();
+        if (sealed.hasArray()) {
+            byte[] array = sealed.array();
+            int start = sealed.arrayOffset() + sealed.position();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, array, start, NONCE_BYTES));
+            return cipher.doFinal(array, start + NONCE_BYTES, length - NONCE_BYTES);
+        }
+
+        ByteBuffer view = sealed.duplicate();
+        byte[] nonce = new byte[NONCE_BYTES];
+        view.get(nonce);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+
+        ByteBuffer plaintext = ByteBuffer.allocate(cipher.getOutputSize(view.remaining()));
+        cipher.doFinal(view, plaintext);
+        if (plaintext.position() == plaintext.capacity()) {
+            return plaintext.array();
+        }
+        byte[] exact = new byte[plaintext.position()];
+        System.arraycopy(plaintext.array(), 0, exact, 0, exact.length);
+        return exact;
+    }
+}
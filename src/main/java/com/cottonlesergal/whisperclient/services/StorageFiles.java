@@ -0,0 +1,92 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.stream.Stream;
+
+/**
+ * Small file helpers shared by the local message storage classes.
+ *
+ * Every rewrite of an existing file goes through a temporary {@code .tmp} sibling that is
+ * forced to disk and then renamed over the target, so a crash leaves either the old or the
+ * new contents. Leftover temporary files are removed by {@link #deleteTempFiles}.
+ */
+final class StorageFiles {
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private StorageFiles() {}
+
+    /**
+     * Replace {@code target} with {@code data} so readers see either the old or the new
+     * contents, never a partially written file.
+     */
+    static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path temp = tempFile(target);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        commit(temp, target);
+    }
+
+    /**
+     * The temporary sibling a rewrite of {@code target} is written to
+     */
+    static Path tempFile(Path target) {
+        return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * Rename a fully written and forced temporary file over {@code target}, then force the
+     * directory so the rename itself survives a crash.
+     */
+    static void commit(Path temp, Path target) throws IOException {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Force a file's contents to disk after it was written through a stream.
+     */
+    static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Remove temporary files left in {@code dir} by rewrites a crash interrupted. The
+     * targets they were meant to replace are still intact.
+     */
+    static int deleteTempFiles(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                if (path.getFileName().toString().endsWith(TEMP_SUFFIX) && Files.deleteIfExists(path)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static void forceDirectory(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms (Windows) cannot open or sync directories; the rename is still atomic there
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package com.cottonlesergal.whisperclient.services;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs background storage work (recovery, manifest reconciliation, compaction, media
+ * collection, dictionary training, retention, summary saves) one job at a time on a single
+ * low-priority thread.
+ *
+ * Jobs report the bytes they touch through their {@link JobContext}, which paces them to a
+ * disk budget and a share of one CPU core, and holds them while the user is scrolling or
+ * sending ({@link #noteUserActivity}). A job is only held between steps, never while it
+ * holds a storage lock. Each job's last run time, duration and bytes processed are kept
+ * for {@link #getJobStats}.
+ */
+public final class StorageMaintenanceScheduler {
+    static final String IO_BUDGET_PROPERTY = "whisperclient.storage.maintenanceBytesPerSecond";
+    static final String CPU_BUDGET_PROPERTY = "whisperclient.storage.maintenanceCpuShare";
+    static final long DEFAULT_BYTES_PER_SECOND = 4L * 1024 * 1024;
+    static final double DEFAULT_CPU_SHARE = 0.25;
+    static final long QUIET_PERIOD_MILLIS = 2000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final StorageMaintenanceScheduler INSTANCE = new StorageMaintenanceScheduler(
+            Long.getLong(IO_BUDGET_PROPERTY, DEFAULT_BYTES_PER_SECOND),
+            parseShare(System.getProperty(CPU_BUDGET_PROPERTY)));
+
+    /**
+     * A unit of maintenance work
+     */
+    @FunctionalInterface
+    public interface Job {
+        void run(JobContext context) throws Exception;
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "StorageMaintenance");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final Map<String, JobRecord> jobs = new ConcurrentHashMap<>();
+    private volatile IoThrottle throttle;
+    private volatile long bytesPerSecond;
+    private volatile double cpuShare;
+    private volatile long lastUserActivity;
+    private volatile boolean stopping;
+
+    public static StorageMaintenanceScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    StorageMaintenanceScheduler(long bytesPerSecond, double cpuShare) {
+        setIoBudget(bytesPerSecond);
+        setCpuBudget(cpuShare);
+    }
+
+    /**
+     * Run {@code job} every {@code intervalMillis} (measured from the end of one run to the
+     * start of the next), first after {@code initialDelayMillis}. Registering a name again
+     * replaces the previous job.
+     */
+    public void register(String name, long initialDelayMillis, long intervalMillis, Job job) {
+        JobRecord record = record(name);
+        synchronized (record) {
+            if (record.future != null) {
+                record.future.cancel(false);
+            }
+            record.job = job;
+            record.intervalMillis = intervalMillis;
+            try {
+                record.future = executor.scheduleWithFixedDelay(() -> run(name, record, job),
+                        initialDelayMillis, intervalMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                record.future = null;
+            }
+        }
+    }
+
+    /**
+     * Stop running a registered job; its statistics are kept
+     */
+    public void unregister(String name) {
+        JobRecord record = jobs.get(name);
+        if (record != null) {
+            synchronized (record) {
+                if (record.future != null) {
+                    record.future.cancel(false);
+                    record.future = null;
+                }
+                record.job = null;
+            }
+        }
+    }
+
+    /**
+     * Run {@code job} once after {@code delayMillis}. Runs submitted under the same name
+     * share statistics.
+     */
+    public void submit(String name, long delayMillis, Job job) {
+        JobRecord record = record(name);
+        try {
+            executor.schedule(() -> run(name, record, job), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            System.err.println("[StorageMaintenanceScheduler] Not running " + name + ": shutting down");
+        }
+    }
+
+    /**
+     * Run a registered job as soon as the thread is free, on top of its regular schedule
+     * @return its statistics once this run is done
+     */
+    public CompletableFuture<JobStats> runNow(String name) {
+        JobRecord record = jobs.get(name);
+        Job job = record != null ? record.job : null;
+        if (job == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("No maintenance job named " + name));
+        }
+
+        CompletableFuture<JobStats> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                run(name, record, job);
+                result.complete(record.snapshot(name));
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Hold maintenance for a moment because the user is scrolling or sending. Cheap enough
+     * to call on every scroll event.
+     */
+    public void noteUserActivity() {
+        lastUserActivity = System.currentTimeMillis();
+    }
+
+    public long getIoBudget() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Bytes per second all jobs together may read or write
+     */
+    public void setIoBudget(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        this.throttle = new IoThrottle(this.bytesPerSecond);
+    }
+
+    public double getCpuBudget() {
+        return cpuShare;
+    }
+
+    /**
+     * Share of one core a job may keep busy, between 0.01 and 1
+     */
+    public void setCpuBudget(double share) {
+        this.cpuShare = Math.min(1.0, Math.max(0.01, share));
+    }
+
+    /**
+     * Statistics of every job that was registered or submitted, by name
+     */
+    public List<JobStats> getJobStats() {
+        List<JobStats> stats = new ArrayList<>();
+        for (Map.Entry<String, JobRecord> entry : jobs.entrySet()) {
+            stats.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        stats.sort(Comparator.comparing(s -> s.name));
+        return stats;
+    }
+
+    /**
+     * Stop scheduling. A running job stops at its next checkpoint.
+     */
+    void shutdown() {
+        stopping = true;
+        executor.shutdown();
+    }
+
+    // ============== INTERNALS ==============
+
+    private JobRecord record(String name) {
+        return jobs.computeIfAbsent(name, n -> new JobRecord());
+    }
+
+    private void run(String name, JobRecord record, Job job) {
+        if (stopping) {
+            return;
+        }
+
+        JobContext context = new JobContext();
+        long start = System.currentTimeMillis();
+        Exception failure = null;
+        try {
+            context.checkpoint();
+            job.run(context);
+        } catch (InterruptedException e) {
+            // Stopped at a checkpoint for shutdown
+        } catch (Exception e) {
+            failure = e;
+            System.err.println("[StorageMaintenanceScheduler] " + name + " failed: " + e.getMessage());
+        }
+        record.recordRun(start, System.currentTimeMillis() - start, context, failure);
+    }
+
+    private static long threadCpuNanos() {
+        try {
+            if (THREADS.isCurrentThreadCpuTimeSupported()) {
+                return THREADS.getCurrentThreadCpuTime();
+            }
+        } catch (UnsupportedOperationException e) {
+            // Fall through to wall time
+        }
+        return -1;
+    }
+
+    private static double parseShare(String value) {
+        try {
+            return value != null ? Double.parseDouble(value) : DEFAULT_CPU_SHARE;
+        } catch (NumberFormatException e) {
+            return DEFAULT_CPU_SHARE;
+        }
+    }
+
+    /**
+     * Handed to a running job to pace it. Call {@link #charge} with the bytes about to be
+     * read or written, and {@link #checkpoint} between steps that do not touch the disk.
+     * Neither may be called while holding a storage lock.
+     */
+    public final class JobContext {
+        private final long wallStart = System.nanoTime();
+        private final long cpuStart = threadCpuNanos();
+        private long bytes;
+        private long throttledMillis;
+        private long pausedMillis;
+
+        JobContext() {}
+
+        /**
+         * Account for {@code bytes} of disk work, waiting as long as the disk budget needs
+         */
+        public void charge(long bytes) throws InterruptedException {
+            this.bytes += bytes;
+            throttledMillis += throttle.acquire(bytes);
+            checkpoint();
+        }
+
+        /**
+         * Wait while the user is active or the job is over its CPU share
+         * @throws InterruptedException if the scheduler is shutting down
+         */
+        public void checkpoint() throws InterruptedException {
+            for (long idle; (idle = System.currentTimeMillis() - lastUserActivity) < QUIET_PERIOD_MILLIS; ) {
+                if (stopping) {
+                    throw new InterruptedException("Storage maintenance is shutting down");
+                }
+                long wait = QUIET_PERIOD_MILLIS - idle;
+                Thread.sleep(wait);
+                pausedMillis += wait;
+            }
+            if (stopping) {
+                throw new InterruptedException("Storage maintenance is shutting down");
+            }
+
+            // Time spent waiting is excluded when the platform cannot measure thread CPU time
+            long elapsed = System.nanoTime() - wallStart;
+            long cpu = cpuStart >= 0 ? threadCpuNanos() - cpuStart
+                    : elapsed - TimeUnit.MILLISECONDS.toNanos(throttledMillis + pausedMillis);
+            long overMillis = TimeUnit.NANOSECONDS.toMillis((long) (cpu / cpuShare) - elapsed);
+            if (overMillis > 0) {
+                Thread.sleep(overMillis);
+                throttledMillis += overMillis;
+            }
+        }
+
+        public long bytesProcessed() {
+            return bytes;
+        }
+
+        /**
+         * Time this job has spent waiting for its disk and CPU budgets
+         */
+        public long throttledMillis() {
+            return throttledMillis;
+        }
+    }
+
+    /**
+     * Schedule and running totals of one named job
+     */
+    private static final class JobRecord {
+        Job job;
+        long intervalMillis;
+        ScheduledFuture<?> future;
+        long runs;
+        long failures;
+        long lastRunAt;
+        long lastDurationMillis;
+        long lastBytesProcessed;
+        long totalBytesProcessed;
+        long throttledMillis;
+        long pausedMillis;
+        String lastError;
+
+        synchronized void recordRun(long start, long duration, JobContext context, Exception failure) {
+            runs++;
+            lastRunAt = start;
+            lastDurationMillis = duration;
+            lastBytesProcessed = context.bytes;
+            totalBytesProcessed += context.bytes;
+            throttledMillis += context.throttledMillis;
+            pausedMillis += context.pausedMillis;
+            if (failure != null) {
+                failures++;
+                lastError = failure.getMessage();
+            }
+        }
+
+        synchronized JobStats snapshot(String name) {
+            JobStats stats = new JobStats();
+            stats.name = name;
+            stats.scheduled = job != null && future != null;
+            stats.intervalMillis = intervalMillis;
+            stats.runs = runs;
+            stats.failures = failures;
+            stats.lastRunAt = lastRunAt;
+            stats.lastDurationMillis = lastDurationMillis;
+            stats.lastBytesProcessed = lastBytesProcessed;
+            stats.totalBytesProcessed = totalBytesProcessed;
+            stats.throttledMillis = throttledMillis;
+            stats.pausedMillis = pausedMillis;
+            stats.lastError = lastError;
+            return stats;
+        }
+    }
+
+    /**
+     * One job's schedule and what its runs have done since startup
+     */
+    public static class JobStats {
+        public String name;
+        public boolean scheduled = false;
+        public long intervalMillis = 0;
+        public long runs = 0;
+        public long failures = 0;
+        public long lastRunAt = 0;
+        public long lastDurationMillis = 0;
+        public long lastBytesProcessed = 0;
+        public long totalBytesProcessed = 0;
+        public long throttledMillis = 0;
+        public long pausedMillis = 0;
+        public String lastError;
+    }
+}
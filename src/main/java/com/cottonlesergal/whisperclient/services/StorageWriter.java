@@ -0,0 +1,245 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue in front of the message log.
+ *
+ * Each conversation has its own bounded queue. Messages are written in batches (group
+ * commit), either once {@code maxBatch} are waiting or {@code maxDelayMillis} after the
+ * first one arrived, so a burst costs one manifest save and at most one fsync instead of
+ * one per message. Submitting blocks only when a conversation's queue is full.
+ */
+public final class StorageWriter {
+
+    /**
+     * When the future returned by {@link #submit} completes
+     */
+    public enum DurabilityPolicy {
+        /** As soon as the message is queued; write errors are only logged */
+        NONE,
+        /** Once the batch has been written to the OS, which survives an application crash */
+        FLUSH,
+        /** Once the batch has been fsynced, which survives a power loss */
+        FSYNC;
+
+        /**
+         * The policy named by a configuration value, FLUSH if it is not set. A value that names
+         * no policy gets FSYNC: a mistyped "fsync" must not quietly weaken durability.
+         */
+        static DurabilityPolicy parse(String value) {
+            if (value == null || value.isBlank()) {
+                return FLUSH;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("[StorageWriter] Unknown durability policy \"" + value +
+                        "\" (expected one of " + Arrays.toString(values()) + "), using FSYNC");
+                return FSYNC;
+            }
+        }
+    }
+
+    /**
+     * Writes one batch of messages for a conversation
+     */
+    interface BatchSink {
+        void write(String conversation, List<ChatMessage> batch, boolean fsync) throws Exception;
+    }
+
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    static final int DEFAULT_MAX_BATCH = 64;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 10;
+
+    private final BatchSink sink;
+    private final int queueCapacity;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final Map<String, ConversationQueue> queues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MessageStorageWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile DurabilityPolicy policy;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong messagesWritten = new AtomicLong();
+    private final AtomicLong failedMessages = new AtomicLong();
+
+    StorageWriter(BatchSink sink, DurabilityPolicy policy, int queueCapacity, int maxBatch, long maxDelayMillis) {
+        this.sink = sink;
+        this.policy = policy;
+        this.queueCapacity = queueCapacity;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Queue a message for its conversation. After {@link #shutdown} the message is written
+     * on the calling thread instead, behind anything still queued for the conversation.
+     */
+    CompletableFuture<Void> submit(String conversation, ChatMessage message) {
+        PendingWrite write = new PendingWrite(message, new CompletableFuture<>());
+        ConversationQueue queue = queues.computeIfAbsent(conversation, ConversationQueue::new);
+
+        if (shutdown) {
+            // Not through the queue: it may be full, and nothing would drain it
+            synchronized (queue) {
+                flush(queue);
+                write(queue, List.of(write));
+            }
+            return write.future;
+        }
+
+        try {
+            queue.pending.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.future.completeExceptionally(e);
+            return write.future;
+        }
+
+        if (policy == DurabilityPolicy.NONE) {
+            write.future.complete(null);
+        }
+
+        if (queue.pending.size() >= maxBatch) {
+            executor.execute(() -> flush(queue));
+        } else if (queue.scheduled.compareAndSet(false, true)) {
+            executor.schedule(() -> {
+                queue.scheduled.set(false);
+                flush(queue);
+            }, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return write.future;
+    }
+
+    /**
+     * Write anything still queued for a conversation on the calling thread, so a following
+     * read sees it.
+     */
+    void awaitPending(String conversation) {
+        ConversationQueue queue = queues.get(conversation);
+        if (queue != null) {
+            flush(queue);
+        }
+    }
+
+    /**
+     * Write everything still queued for every conversation on the calling thread.
+     */
+    void drain() {
+        for (ConversationQueue queue : queues.values()) {
+            flush(queue);
+        }
+    }
+
+    /**
+     * Drain all queues and stop the writer thread.
+     */
+    void shutdown() {
+        shutdown = true;
+        drain();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        drain(); // anything a racing submit queued while the executor stopped
+    }
+
+    DurabilityPolicy getPolicy() {
+        return policy;
+    }
+
+    void setPolicy(DurabilityPolicy policy) {
+        this.policy = policy;
+    }
+
+    WriterStats getStats() {
+        WriterStats stats = new WriterStats();
+        for (ConversationQueue queue : queues.values()) {
+            stats.queuedMessages += queue.pending.size();
+        }
+        stats.batchesWritten = batchesWritten.get();
+        stats.messagesWritten = messagesWritten.get();
+        stats.failedMessages = failedMessages.get();
+        stats.policy = policy;
+        return stats;
+    }
+
+    // ============== INTERNALS ==============
+
+    private void flush(ConversationQueue queue) {
+        synchronized (queue) {
+            List<PendingWrite> batch = new ArrayList<>(maxBatch);
+            while (queue.pending.drainTo(batch, maxBatch) > 0) {
+                write(queue, batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(ConversationQueue queue, List<PendingWrite> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            messages.add(write.message);
+        }
+
+        try {
+            sink.write(queue.conversation, messages, policy == DurabilityPolicy.FSYNC);
+            batchesWritten.incrementAndGet();
+            messagesWritten.addAndGet(messages.size());
+            for (PendingWrite write : batch) {
+                write.future.complete(null);
+            }
+        } catch (Exception e) {
+            System.err.println("[StorageWriter] Failed to write " + messages.size() + " messages for "
+                    + queue.conversation + ": " + e.getMessage());
+            failedMessages.addAndGet(messages.size());
+            for (PendingWrite write : batch) {
+                write.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private record PendingWrite(ChatMessage message, CompletableFuture<Void> future) {}
+
+    private final class ConversationQueue {
+        final String conversation;
+        final BlockingQueue<PendingWrite> pending = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        ConversationQueue(String conversation) {
+            this.conversation = conversation;
+        }
+    }
+
+    /**
+     * Writer counters
+     */
+    public static class WriterStats {
+        public int queuedMessages = 0;
+        public long batchesWritten = 0;
+        public long messagesWritten = 0;
+        public long failedMessages = 0;
+        public DurabilityPolicy policy;
+
+        public double averageBatchSize() {
+            return batchesWritten == 0 ? 0 : (double) messagesWritten / batchesWritten;
+        }
+    }
+}
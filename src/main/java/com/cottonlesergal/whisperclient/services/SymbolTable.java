@@ -0,0 +1,147 @@
+package com.cottonlesergal.whisperclient.services;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-conversation table of interned strings (sender and recipient ids) referenced by number
+ * from binary message records. Entries are only ever appended, each sealed with the
+ * conversation key, and forced to disk before the first record that uses them is written.
+ */
+final class SymbolTable implements Closeable {
+    static final String FILE_NAME = "symbols.dat";
+
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final Map<String, Integer> numbers = new HashMap<>();
+    // Copy-on-write so decoder threads can look symbols up without locking
+    private volatile String[] symbols = new String[0];
+    private long size;
+
+    private SymbolTable(FileChannel channel, SecretKey key) {
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * Open (or create) the table in {@code dir}, dropping a torn tail left by a crash.
+     */
+    static SymbolTable open(Path dir, SecretKey key) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SymbolTable table = new SymbolTable(channel, key);
+        table.load();
+        return table;
+    }
+
+    /**
+     * A table that is never written to disk, for benchmarks and one-off encoding.
+     */
+    static SymbolTable inMemory() {
+        return new SymbolTable(null, null);
+    }
+
+    /**
+     * Number of {@code symbol}, adding it to the table if it is new.
+     */
+    synchronized int intern(String symbol) throws IOException {
+        Integer number = numbers.get(symbol);
+        if (number != null) {
+            return number;
+        }
+
+        if (channel != null) {
+            byte[] sealed;
+            try {
+                sealed = StorageCipher.seal(key, symbol.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to seal symbol: " + e.getMessage(), e);
+            }
+            ByteBuffer entry = ByteBuffer.allocate(4 + sealed.length).putInt(sealed.length).put(sealed).flip();
+            while (entry.hasRemaining()) {
+                size += channel.write(entry, size);
+            }
+            channel.force(false);
+        }
+
+        String[] grown = Arrays.copyOf(symbols, symbols.length + 1);
+        grown[symbols.length] = symbol;
+        symbols = grown;
+        numbers.put(symbol, symbols.length - 1);
+        return symbols.length - 1;
+    }
+
+    /**
+     * The symbol with a given number.
+     */
+    String symbol(int number) throws IOException {
+        String[] current = symbols;
+        if (number < 0 || number >= current.length) {
+            throw new IOException("Unknown symbol " + number);
+        }
+        return current[number];
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // ============== INTERNALS ==============
+
+    private void load() throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer length = ByteBuffer.allocate(4);
+
+        while (size + 4 <= fileSize) {
+            length.clear();
+            readFully(length, size);
+            int sealedLength = length.flip().getInt();
+            if (sealedLength < StorageCipher.NONCE_BYTES || size + 4 + sealedLength > fileSize) {
+                break;
+            }
+
+            ByteBuffer sealed = ByteBuffer.allocate(sealedLength);
+            readFully(sealed, size + 4);
+            sealed.flip();
+            String symbol;
+            try {
+                symbol = new String(StorageCipher.open(key, sealed), StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                throw new IOException("Failed to read symbol table: " + e.getMessage(), e);
+            }
+
+            String[] grown = Arrays.copyOf(symbols, symbols.length + 1);
+            grown[symbols.length] = symbol;
+            symbols = grown;
+            numbers.putIfAbsent(symbol, symbols.length - 1);
+            size += 4 + sealedLength;
+        }
+
+        if (size < fileSize) {
+            System.err.println("[SymbolTable] Truncating " + (fileSize - size) + " bytes of incomplete data");
+            channel.truncate(size);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of symbol table at " + position);
+            }
+            position += read;
+        }
+    }
+}
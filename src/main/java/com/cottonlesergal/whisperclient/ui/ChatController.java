@@ -1,5 +1,6 @@
 package com.cottonlesergal.whisperclient.ui;
 
+import com.cottonlesergal.whisperclient.core.AppCtx;
 import com.cottonlesergal.whisperclient.core.Session;
 import com.cottonlesergal.whisperclient.models.Friend;
 import com.cottonlesergal.whisperclient.models.UserSummary;
@@ -32,7 +33,6 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.file.Files;
@@ -42,7 +42,6 @@ import java.util.*;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -64,7 +63,7 @@ public class ChatController {
     private Friend friend;
     private VBox previewContainer;
     private final List<MediaPreview> pendingUploads = new ArrayList<>();
-    private final AtomicInteger currentPage = new AtomicInteger(0);
+    private ChatMessage oldestLoadedMessage = null; // cursor for loading older history
     private final AtomicBoolean isLoading = new AtomicBoolean(false);
     private final AtomicBoolean hasMoreMessages = new AtomicBoolean(true);
 
@@ -74,6 +73,9 @@ public class ChatController {
     private final List<ChatMessage> messagesInLastGroup = new ArrayList<>();
     private static final long MESSAGE_GROUP_TIME_MS = 5 * 60 * 1000; // 5 minutes
 
+    // Delivery state under outgoing messages that are still in the outbox, by message id
+    private final Map<String, Label> deliveryLabels = new HashMap<>();
+
     // Unified context menu
     private ContextMenu unifiedContextMenu;
     private MenuItem deleteThisMessage;
@@ -97,6 +99,7 @@ public class ChatController {
         setupClipboardPaste();
         setupPreviewContainer();
         setupAttachButton();
+        setupOutboxListener();
         System.out.println("[ChatController] Initialized with HTTP media system");
     }
 
@@ -312,6 +315,8 @@ public class ChatController {
 
     private void setupScrollPane() {
         scrollPane.vvalueProperty().addListener((obs, oldVal, newVal) -> {
+            // Keep background storage work out of the way while the user scrolls
+            StorageMaintenanceScheduler.getInstance().noteUserActivity();
             if (newVal.doubleValue() <= 0.01 && !isLoading.get() && hasMoreMessages.get()) {
                 loadMoreMessages();
             }
@@ -401,6 +406,8 @@ public class ChatController {
         String text = txtMessage.getText().trim();
         if (text.isEmpty() && pendingUploads.isEmpty()) return;
 
+        StorageMaintenanceScheduler.getInstance().noteUserActivity();
+
         if (!pendingUploads.isEmpty()) {
             List<MediaPreview> toSend = new ArrayList<>(pendingUploads);
             pendingUploads.clear();
@@ -502,7 +509,7 @@ public class ChatController {
         spacer.setPrefHeight(6);
         contentContainer.getChildren().add(spacer);
 
-        if (message.getContent().startsWith("[INLINE_MEDIA:")) {
+        if (isMediaMessage(message)) {
             Node mediaContent = createInlineMediaContent(message, message.isFromMe());
             mediaContent.setStyle("-fx-padding: 2 0;");
             setupMessageContextMenu(mediaContent, message, lastMessageContainer);
@@ -510,6 +517,7 @@ public class ChatController {
         } else {
             Label textLabel = createConsolidatedTextLabel(message.getContent(), message.isFromMe(), message);
             contentContainer.getChildren().add(textLabel);
+            addDeliveryState(contentContainer, message);
         }
     }
 
@@ -534,7 +542,7 @@ public class ChatController {
             contentContainer.setStyle("-fx-background-color: #40444b; -fx-background-radius: 12;");
         }
 
-        if (message.getContent().startsWith("[INLINE_MEDIA:")) {
+        if (isMediaMessage(message)) {
             Node mediaContent = createInlineMediaContent(message, isFromMe);
             mediaContent.setStyle("-fx-padding: 2 0;");
             setupMessageContextMenu(mediaContent, message, messageContainer);
@@ -542,6 +550,7 @@ public class ChatController {
         } else {
             Label textLabel = createConsolidatedTextLabel(message.getContent(), isFromMe, message);
             contentContainer.getChildren().add(textLabel);
+            addDeliveryState(contentContainer, message);
         }
 
         HBox contentWrapper = new HBox();
@@ -659,22 +668,83 @@ public class ChatController {
         ChatMessage outgoingMessage = ChatMessage.fromOutgoing(friend.getUsername(), text);
         storage.storeMessage(friend.getUsername(), outgoingMessage);
 
+        // Queued before the bubble is built so the bubble can show its delivery state. If the
+        // server can't be reached the message waits in the outbox; the future only fails when
+        // the server rejects it.
+        MessageOutbox.getInstance().send(friend.getUsername(), outgoingMessage)
+                .whenComplete((delivery, failure) -> {
+                    if (failure == null) {
+                        System.out.println("[ChatController] Text message sent successfully");
+                        return;
+                    }
+                    System.err.println("[ChatController] Failed to send text message: " + failure.getMessage());
+                    Platform.runLater(() -> {
+                        showError("Send Failed", "Could not send message: " + failure.getMessage());
+                    });
+                });
+
         Platform.runLater(() -> {
             addMessageBubble(outgoingMessage);
             scrollToBottom();
         });
+    }
 
-        new Thread(() -> {
+    private void setupOutboxListener() {
+        AppCtx.BUS.on(MessageOutbox.STATE_EVENT, ev -> {
+            if (ev == null || ev.data == null) return;
             try {
-                directory.sendChat(friend.getUsername(), text);
-                System.out.println("[ChatController] Text message sent successfully");
-            } catch (Exception e) {
-                System.err.println("[ChatController] Failed to send text message: " + e.getMessage());
-                Platform.runLater(() -> {
-                    showError("Send Failed", "Could not send message: " + e.getMessage());
-                });
+                String id = ev.data.path("id").asText("");
+                MessageOutbox.State state = MessageOutbox.State.valueOf(ev.data.path("state").asText());
+                String error = ev.data.hasNonNull("error") ? ev.data.path("error").asText() : null;
+                Platform.runLater(() -> updateDeliveryState(id, state, error));
+            } catch (IllegalArgumentException e) {
+                System.err.println("[ChatController] Ignoring outbox event: " + e.getMessage());
             }
-        }).start();
+        });
+    }
+
+    private void addDeliveryState(VBox contentContainer, ChatMessage message) {
+        if (!message.isFromMe()) return;
+
+        MessageOutbox.State state = MessageOutbox.getInstance().getState(message.getId());
+        if (state == null || state == MessageOutbox.State.SENT) return;
+
+        Label stateLabel = new Label();
+        contentContainer.getChildren().add(stateLabel);
+        deliveryLabels.put(message.getId(), stateLabel);
+        showDeliveryState(stateLabel, state, null);
+    }
+
+    private void updateDeliveryState(String messageId, MessageOutbox.State state, String error) {
+        Label stateLabel = deliveryLabels.get(messageId);
+        if (stateLabel == null) return;
+
+        if (state == MessageOutbox.State.SENT) {
+            if (stateLabel.getParent() instanceof Pane parent) {
+                parent.getChildren().remove(stateLabel);
+            }
+            deliveryLabels.remove(messageId);
+        } else {
+            showDeliveryState(stateLabel, state, error);
+        }
+    }
+
+    private void showDeliveryState(Label stateLabel, MessageOutbox.State state, String error) {
+        switch (state) {
+            case WAITING -> {
+                stateLabel.setText("Not sent yet - will retry when reconnected");
+                stateLabel.setStyle("-fx-text-fill: #faa61a; -fx-font-size: 11px;");
+            }
+            case FAILED -> {
+                stateLabel.setText("Failed to send");
+                stateLabel.setStyle("-fx-text-fill: #f04747; -fx-font-size: 11px;");
+            }
+            default -> {
+                stateLabel.setText("Sending...");
+                stateLabel.setStyle("-fx-text-fill: #72767d; -fx-font-size: 11px;");
+            }
+        }
+        stateLabel.setTooltip(error != null ? new Tooltip(error) : null);
     }
 
     private void sendMediaBatch(List<MediaPreview> previewsToSend, String caption) {
@@ -702,34 +772,35 @@ public class ChatController {
 
         previewService.showProgress(preview, "Sending...");
 
-        httpMediaService.sendMediaAsync(preview.getFile(), friend.getUsername(), caption)
-                .thenRun(() -> {
-                    Platform.runLater(() -> {
-                        try {
-                            String base64Data = encodeFileToBase64(preview.getFile());
-                            String mimeType = guessMimeType(preview.getFileName());
-
-                            String inlineMediaMessage = String.format("[INLINE_MEDIA:%s:%s:%s:%d:%s]%s",
-                                    java.util.UUID.randomUUID().toString(),
-                                    preview.getFileName(),
-                                    mimeType,
-                                    preview.getFileSize(),
-                                    base64Data,
-                                    caption != null ? "\n" + caption : ""
-                            );
-
-                            ChatMessage mediaMessage = ChatMessage.fromOutgoing(friend.getUsername(), inlineMediaMessage);
-                            storage.storeMessage(friend.getUsername(), mediaMessage);
-                            addMessageBubble(mediaMessage);
-
-                            previewService.hideProgress(preview);
-
-                        } catch (Exception e) {
-                            System.err.println("[ChatController] Failed to create outgoing media message: " + e.getMessage());
-                            previewService.hideProgress(preview);
-                        }
-                    });
-                });
+        String conversation = friend.getUsername();
+        httpMediaService.sendMediaAsync(preview.getFile(), conversation, caption)
+                // Reading the file and writing the blob stay off the FX thread; only the bubble goes there
+                .thenApplyAsync(ignored -> {
+                    try {
+                        String mimeType = guessMimeType(preview.getFileName());
+
+                        // Keep the file bytes in the blob store and only a reference in the message
+                        MediaReference reference = storage.storeMedia(conversation,
+                                java.util.UUID.randomUUID().toString(),
+                                preview.getFileName(),
+                                mimeType,
+                                Files.readAllBytes(preview.getFile().toPath()));
+
+                        ChatMessage mediaMessage = ChatMessage.fromOutgoing(conversation, reference.toContent(caption));
+                        storage.storeMessage(conversation, mediaMessage);
+                        return mediaMessage;
+
+                    } catch (Exception e) {
+                        System.err.println("[ChatController] Failed to create outgoing media message: " + e.getMessage());
+                        return null;
+                    }
+                })
+                .thenAccept(mediaMessage -> Platform.runLater(() -> {
+                    if (mediaMessage != null && friend != null && conversation.equals(friend.getUsername())) {
+                        addMessageBubble(mediaMessage);
+                    }
+                    previewService.hideProgress(preview);
+                }));
     }
 
     // ============== FILE PROCESSING ==============
@@ -843,14 +914,13 @@ public class ChatController {
 
         CompletableFuture.runAsync(() -> {
             try {
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(URI.create(imageUrl))
-                        .header("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
+                HttpTransport http = HttpTransport.getInstance();
+                HttpRequest request = http.anonymousRequest(imageUrl, http.transferTimeout())
+                        .setHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36")
                         .GET()
                         .build();
 
-                HttpResponse<byte[]> response = HttpClient.newHttpClient()
-                        .send(request, HttpResponse.BodyHandlers.ofByteArray());
+                HttpResponse<byte[]> response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
 
                 if (response.statusCode() == 200) {
                     byte[] imageData = response.body();
@@ -897,11 +967,44 @@ public class ChatController {
 
     // ============== MEDIA DISPLAY ==============
 
+    private boolean isMediaMessage(ChatMessage message) {
+        String content = message.getContent();
+        return content.startsWith("[INLINE_MEDIA:") || MediaReference.isReference(content);
+    }
+
     private Node createInlineMediaContent(ChatMessage message, boolean isFromMe) {
         VBox container = new VBox(4);
 
         try {
             String content = message.getContent();
+            MediaReference reference = MediaReference.parse(content);
+
+            if (reference != null) {
+                // Media lives in the blob store; only read it now that it is being shown
+                Label loadingLabel = new Label("Loading " + reference.fileName() + "...");
+                loadingLabel.setStyle("-fx-text-fill: #72767d; -fx-font-size: 12px;");
+                container.getChildren().add(loadingLabel);
+
+                String conversation = friend.getUsername();
+                CompletableFuture.supplyAsync(() -> storage.loadMedia(conversation, reference))
+                        .thenAccept(data -> Platform.runLater(() -> {
+                            container.getChildren().remove(loadingLabel);
+                            if (data == null) {
+                                addMediaError(container);
+                                return;
+                            }
+                            try {
+                                addMediaNodes(container, reference.fileName(), reference.mimeType(), data, 0);
+                            } catch (Exception e) {
+                                addMediaError(container);
+                            }
+                        }));
+
+                addMediaCaption(container, MediaReference.caption(content));
+                return container;
+            }
+
+            // Older messages still carry the media as base64 inside the content
             int endBracket = content.indexOf(']');
             String mediaInfo = content.substring(14, endBracket);
             String caption = endBracket + 1 < content.length() ? content.substring(endBracket + 1) : "";
@@ -910,74 +1013,83 @@ public class ChatController {
             if (parts.length >= 5) {
                 String fileName = parts[1];
                 String mimeType = parts[2];
-                long size = Long.parseLong(parts[3]);
-                String base64Data = parts[4];
-
-                if (mimeType.startsWith("image/")) {
-                    byte[] imageBytes = Base64.getDecoder().decode(base64Data);
-                    Image image = new Image(new ByteArrayInputStream(imageBytes));
-
-                    ImageView imageView = new ImageView(image);
-                    imageView.setPreserveRatio(true);
-                    imageView.setFitWidth(Math.min(360, image.getWidth()));
-                    imageView.setFitHeight(Math.min(260, image.getHeight()));
-                    imageView.setCursor(Cursor.HAND);
-                    imageView.setOnMouseClicked(e -> openFullscreenImage(image, fileName));
-
-                    container.getChildren().add(imageView);
-                } else if (mimeType.startsWith("video/")) {
-                    File tempDir = new File(System.getProperty("java.io.tmpdir"), "WhisperClient");
-                    tempDir.mkdirs();
-                    File tempVideoFile = new File(tempDir, "temp_" + System.currentTimeMillis() + "_" + fileName);
-
-                    byte[] videoBytes = Base64.getDecoder().decode(base64Data);
-                    Files.write(tempVideoFile.toPath(), videoBytes);
-
-                    WebView videoPlayer = new WebView();
-                    videoPlayer.setPrefSize(360, 200);
+                byte[] data = Base64.getDecoder().decode(parts[4]);
 
-                    String videoHtml = String.format("""
-                    <html>
-                    <head><style>body{margin:0;padding:0;background:#000;}video{width:100%%;height:100%%;object-fit:contain;}</style></head>
-                    <body><video controls><source src="file:///%s" type="%s"></video></body>
-                    </html>
-                    """,
-                            tempVideoFile.getAbsolutePath().replace("\\", "/"), mimeType
-                    );
-
-                    videoPlayer.getEngine().loadContent(videoHtml);
-                    container.getChildren().add(videoPlayer);
-                }
-
-                if (caption != null && !caption.trim().isEmpty()) {
-                    Label captionLabel = new Label(caption.trim());
-                    captionLabel.setStyle("-fx-text-fill: #dcddde; -fx-font-size: 13px;");
-                    captionLabel.setWrapText(true);
-                    container.getChildren().add(captionLabel);
-                }
+                addMediaNodes(container, fileName, mimeType, data, container.getChildren().size());
+                addMediaCaption(container, caption);
             }
 
         } catch (Exception e) {
-            Label errorLabel = new Label("Failed to load media");
-            errorLabel.setStyle("-fx-text-fill: #f04747;");
-            container.getChildren().add(errorLabel);
+            addMediaError(container);
         }
 
         return container;
     }
 
+    private void addMediaNodes(VBox container, String fileName, String mimeType, byte[] data, int position) throws Exception {
+        if (mimeType.startsWith("image/")) {
+            Image image = new Image(new ByteArrayInputStream(data));
+
+            ImageView imageView = new ImageView(image);
+            imageView.setPreserveRatio(true);
+            imageView.setFitWidth(Math.min(360, image.getWidth()));
+            imageView.setFitHeight(Math.min(260, image.getHeight()));
+            imageView.setCursor(Cursor.HAND);
+            imageView.setOnMouseClicked(e -> openFullscreenImage(image, fileName));
+
+            container.getChildren().add(position, imageView);
+        } else if (mimeType.startsWith("video/")) {
+            File tempDir = new File(System.getProperty("java.io.tmpdir"), "WhisperClient");
+            tempDir.mkdirs();
+            File tempVideoFile = new File(tempDir, "temp_" + System.currentTimeMillis() + "_" + fileName);
+
+            Files.write(tempVideoFile.toPath(), data);
+
+            WebView videoPlayer = new WebView();
+            videoPlayer.setPrefSize(360, 200);
+
+            String videoHtml = String.format("""
+            <html>
+            <head><style>body{margin:0;padding:0;background:#000;}video{width:100%%;height:100%%;object-fit:contain;}</style></head>
+            <body><video controls><source src="file:///%s" type="%s"></video></body>
+            </html>
+            """,
+                    tempVideoFile.getAbsolutePath().replace("\\", "/"), mimeType
+            );
+
+            videoPlayer.getEngine().loadContent(videoHtml);
+            container.getChildren().add(position, videoPlayer);
+        }
+    }
+
+    private void addMediaCaption(VBox container, String caption) {
+        if (caption != null && !caption.trim().isEmpty()) {
+            Label captionLabel = new Label(caption.trim());
+            captionLabel.setStyle("-fx-text-fill: #dcddde; -fx-font-size: 13px;");
+            captionLabel.setWrapText(true);
+            container.getChildren().add(captionLabel);
+        }
+    }
+
+    private void addMediaError(VBox container) {
+        Label errorLabel = new Label("Failed to load media");
+        errorLabel.setStyle("-fx-text-fill: #f04747;");
+        container.getChildren().add(0, errorLabel);
+    }
+
     // ============== FRIEND MANAGEMENT ==============
 
     public void bindFriend(Friend f) {
         this.friend = f;
         messagesBox.getChildren().clear();
-        currentPage.set(0);
+        oldestLoadedMessage = null;
         hasMoreMessages.set(true);
         clearAllPreviews();
 
         lastDisplayedMessage = null;
         lastMessageContainer = null;
         messagesInLastGroup.clear();
+        deliveryLabels.clear();
 
         loadInitialMessages();
 
@@ -1003,26 +1115,31 @@ public class ChatController {
                 for (int i = messages.size() - 1; i >= 0; i--) {
                     processStoredMessage(messages.get(i));
                 }
+                oldestLoadedMessage = messages.get(messages.size() - 1);
             }
+            hasMoreMessages.set(messages.size() >= 100);
             scrollToBottom();
         }));
     }
 
     private void loadMoreMessages() {
         if (isLoading.get() || !hasMoreMessages.get() || friend == null) return;
-        isLoading.set(true);
 
-        int nextPage = currentPage.incrementAndGet();
+        // Load relative to the oldest message shown, so messages arriving meanwhile don't shift what comes back
+        ChatMessage cursor = oldestLoadedMessage;
+        if (cursor == null) return;
+        isLoading.set(true);
 
         CompletableFuture.supplyAsync(() -> {
-            return storage.loadMessages(friend.getUsername(), nextPage, 100);
+            return storage.loadMessagesBefore(friend.getUsername(), cursor.getTimestamp(), cursor.getId(), 100);
         }).thenAccept(messages -> Platform.runLater(() -> {
             isLoading.set(false);
             if (!messages.isEmpty()) {
-                for (int i = messages.size() - 1; i >= 0; i--) {
-                    VBox messageBubble = createNewMessageBubble(messages.get(i));
-                    messagesBox.getChildren().add(1, messageBubble);
+                // Newest first, each inserted above the last, so the oldest ends up on top
+                for (ChatMessage message : messages) {
+                    messagesBox.getChildren().add(1, createNewMessageBubble(message));
                 }
+                oldestLoadedMessage = messages.get(messages.size() - 1);
                 hasMoreMessages.set(messages.size() >= 100);
             } else {
                 hasMoreMessages.set(false);
@@ -1086,18 +1203,20 @@ public class ChatController {
             lastDisplayedMessage = null;
             lastMessageContainer = null;
             messagesInLastGroup.clear();
+            deliveryLabels.clear();
         });
     }
 
     public void refreshConversation() {
         if (friend == null) return;
 
-        currentPage.set(0);
+        oldestLoadedMessage = null;
         hasMoreMessages.set(true);
 
         lastDisplayedMessage = null;
         lastMessageContainer = null;
         messagesInLastGroup.clear();
+        deliveryLabels.clear();
 
         loadInitialMessages();
     }
@@ -1162,14 +1281,6 @@ public class ChatController {
         return String.format("%.1f GB", bytes / (1024.0 * 1024.0 * 1024.0));
     }
 
-    private String encodeFileToBase64(File file) {
-        try {
-            return Base64.getEncoder().encodeToString(Files.readAllBytes(file.toPath()));
-        } catch (Exception e) {
-            return "";
-        }
-    }
-
     private String guessMimeType(String fileName) {
         String extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
         switch (extension) {
@@ -7,6 +7,7 @@ import com.cottonlesergal.whisperclient.models.UserSummary;
 import com.cottonlesergal.whisperclient.services.*;
 import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -19,8 +20,6 @@ import javafx.stage.Stage;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonType;
 
-import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.util.*;
@@ -28,6 +27,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 public class MainController {
     @FXML private Label lblTitle;
@@ -68,6 +68,7 @@ public class MainController {
     private final AtomicBoolean eventHandlersSetup = new AtomicBoolean(false);
     private final Set<String> processedChatMessageIds = ConcurrentHashMap.newKeySet();
     private final Set<String> processedMediaEventIds = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean friendsResortQueued = new AtomicBoolean(false);
 
     @FXML
     private void initialize() {
@@ -128,13 +129,11 @@ public class MainController {
                 return;
             }
 
-            HttpRequest req = HttpRequest.newBuilder(URI.create(Config.DIR_WORKER + "/friends"))
-                    .header("authorization", "Bearer " + Config.APP_TOKEN)
+            HttpRequest req = HttpTransport.getInstance().request(Config.DIR_WORKER + "/friends")
                     .GET()
                     .build();
 
-            HttpResponse<String> response = HttpClient.newHttpClient()
-                    .send(req, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = HttpTransport.getInstance().send(req, HttpResponse.BodyHandlers.ofString());
 
             if (response.statusCode() == 401) {
                 System.out.println("[MainController] Token expired, attempting automatic refresh...");
@@ -161,6 +160,7 @@ public class MainController {
             Platform.runLater(() -> {
                 if (success) {
                     System.out.println("[MainController] Token automatically refreshed successfully");
+                    MessageOutbox.getInstance().drain("token refreshed");
 
                     new Thread(() -> {
                         try {
@@ -536,6 +536,19 @@ public class MainController {
             });
         });
 
+        // === CONVERSATION SUMMARY HANDLER - KEEPS FRIENDS ORDERED BY LAST ACTIVITY ===
+        AppCtx.BUS.on(ConversationSummary.CHANGED_EVENT, ev -> {
+            // Summaries change with every stored batch; coalesce them into one re-sort per UI pulse
+            if (friendsResortQueued.compareAndSet(false, true)) {
+                Platform.runLater(() -> {
+                    friendsResortQueued.set(false);
+                    FXCollections.sort(listFriends.getItems(),
+                            byLastActivity(messageStorage::getCachedConversationSummary));
+                    listFriends.refresh();
+                });
+            }
+        });
+
         // === FRIEND MANAGEMENT EVENT HANDLERS ===
         AppCtx.BUS.on("remove-friend", ev -> {
             if (ev == null || ev.data == null) return;
@@ -901,7 +914,10 @@ public class MainController {
 
         CompletableFuture.supplyAsync(() -> {
             System.out.println("[DEBUG] Getting fresh friends list...");
-            return directory.friends();
+            // Sorting here also loads each conversation summary off the UI thread
+            List<UserSummary> friends = new ArrayList<>(directory.friends());
+            friends.sort(byLastActivity(messageStorage::getConversationSummary));
+            return friends;
         }).thenAccept(friends -> Platform.runLater(() -> {
             System.out.println("[DEBUG] Got " + friends.size() + " friends, updating UI");
             listFriends.getItems().setAll(friends);
@@ -909,6 +925,15 @@ public class MainController {
         }));
     }
 
+    /**
+     * Most recently active conversations first, from the stored conversation summaries.
+     * On the UI thread pass {@link MessageStorageService#getCachedConversationSummary}.
+     */
+    private Comparator<UserSummary> byLastActivity(Function<String, ConversationSummary> summaries) {
+        return Comparator.comparingLong((UserSummary friend) ->
+                summaries.apply(friend.getUsername()).getLastTimestamp()).reversed();
+    }
+
     private void refreshFriendsUI() {
         Platform.runLater(() -> {
             listFriends.refresh();
@@ -1070,6 +1095,9 @@ public class MainController {
 
             credentialsStorage.clearCredentials();
 
+            // Queued messages are encrypted with the current user's key, so write them out first
+            messageStorage.flushPendingWrites();
+
             Session.me = null;
             Session.token = null;
             Config.APP_TOKEN = "";
@@ -1294,17 +1322,18 @@ public class MainController {
     private void debugCreateBackup() {
         System.out.println("[DEBUG] Creating manual backup...");
 
-        new Thread(() -> {
-            String backupPath = MessageStorageUtility.getInstance().createBackup("manual_backup");
-
-            Platform.runLater(() -> {
-                if (backupPath != null) {
-                    notificationManager.showToast("Manual Backup Created", "Manual backup created at: " + backupPath, NotificationManager.ToastType.SUCCESS);
-                } else {
-                    notificationManager.showErrorNotification("Failed to create manual backup", "Could not create manual backup.");
-                }
-            });
-        }).start();
+        MessageStorageUtility.getInstance().createBackupAsync("manual_backup", true, progress -> {
+            if (progress.finished) {
+                System.out.printf("[DEBUG] Backup finished: %d messages, %d bytes in %d ms (%.0f messages/s)%n",
+                        progress.messagesWritten, progress.bytesWritten, progress.elapsedMillis, progress.messagesPerSecond());
+            }
+        }).thenAccept(backupPath -> Platform.runLater(() -> {
+            if (backupPath != null) {
+                notificationManager.showToast("Manual Backup Created", "Manual backup created at: " + backupPath, NotificationManager.ToastType.SUCCESS);
+            } else {
+                notificationManager.showErrorNotification("Failed to create manual backup", "Could not create manual backup.");
+            }
+        }));
     }
 
     @FXML
@@ -1354,10 +1383,11 @@ public class MainController {
         System.out.println("[DEBUG] Clearing chunking service buffer...");
 
         MessageChunkingService chunkingService = MessageChunkingService.getInstance();
-        chunkingService.cleanupOldMessages();
+        int removed = chunkingService.cleanupOldMessages();
         chunkingService.printBufferStatus();
 
-        notificationManager.showToast("Chunking Buffer Cleared", "Chunking service buffer cleared.", NotificationManager.ToastType.SUCCESS);
+        notificationManager.showToast("Chunking Buffer Cleared",
+                "Dropped " + removed + " incomplete message(s).", NotificationManager.ToastType.SUCCESS);
     }
 
     // === TEST METHODS FOR NOTIFICATION SYSTEM ===
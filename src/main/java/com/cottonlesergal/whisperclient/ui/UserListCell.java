@@ -3,6 +3,7 @@ package com.cottonlesergal.whisperclient.ui;
 import com.cottonlesergal.whisperclient.core.AppCtx;
 import com.cottonlesergal.whisperclient.events.Event;
 import com.cottonlesergal.whisperclient.models.UserSummary;
+import com.cottonlesergal.whisperclient.services.MessageStorageService;
 import com.cottonlesergal.whisperclient.services.NotificationManager;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import javafx.geometry.Pos;
@@ -80,7 +81,9 @@ public class UserListCell extends ListCell<UserSummary> {
             return;
         }
 
-        int count = NotificationManager.getInstance().getNotificationCount(username);
+        // Served from the in-memory conversation summary; 0 until it has loaded, after which
+        // the summary event refreshes the list
+        int count = MessageStorageService.getInstance().getUnreadCount(username);
 
         if (count > 0) {
             String displayCount = count > 99 ? "99+" : String.valueOf(count);
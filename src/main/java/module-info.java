@@ -11,6 +11,7 @@ module com.cottonlesergal.whisperclient {
     requires eu.hansolo.tilesfx;
     requires com.almasb.fxgl.all;
     requires java.net.http;
+    requires java.management;
     requires jdk.jsobject;
     requires com.fasterxml.jackson.databind;
     requires jdk.httpserver;
@@ -0,0 +1,75 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Chain checks only: every file here fails or passes them before a single message is
+ * stored, so the restorer never touches its storage service.
+ */
+class BackupRestorerTest {
+    @TempDir
+    Path dir;
+
+    private final BackupRestorer restorer = new BackupRestorer(null);
+
+    @Test
+    void chainMustStartWithAFullBackup() throws Exception {
+        Path increment = write("incremental_1.json", "{\"timestamp\":1,\"type\":\"incremental\",\"previous\":\"backup_0.json\"}");
+
+        IOException e = assertThrows(IOException.class, () -> restorer.restore(List.of(increment)));
+        assertTrue(e.getMessage().contains("must start with a full backup"), e.getMessage());
+    }
+
+    @Test
+    void fullBackupCannotFollowAnother() throws Exception {
+        Path first = write("backup_1.json", "{\"timestamp\":1,\"type\":\"full\",\"conversations\":{}}");
+        Path second = write("backup_2.json", "{\"timestamp\":2,\"type\":\"full\",\"conversations\":{}}");
+
+        IOException e = assertThrows(IOException.class, () -> restorer.restore(List.of(first, second)));
+        assertTrue(e.getMessage().contains("cannot follow backup_1.json"), e.getMessage());
+    }
+
+    @Test
+    void incrementMustNameThePreviousFile() throws Exception {
+        Path full = write("backup_1.json", "{\"timestamp\":1,\"type\":\"full\",\"conversations\":{}}");
+        Path increment = write("incremental_2.json",
+                "{\"timestamp\":2,\"type\":\"incremental\",\"previous\":\"backup_0.json\"}");
+
+        IOException e = assertThrows(IOException.class, () -> restorer.restore(List.of(full, increment)));
+        assertTrue(e.getMessage().contains("chain is broken"), e.getMessage());
+    }
+
+    @Test
+    void checksCompressedFilesToo() throws Exception {
+        Path increment = dir.resolve("incremental_1.json.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(increment))) {
+            out.write("{\"timestamp\":1,\"type\":\"incremental\",\"previous\":\"x\"}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        IOException e = assertThrows(IOException.class, () -> restorer.restore(List.of(increment)));
+        assertTrue(e.getMessage().contains("must start with a full backup"), e.getMessage());
+    }
+
+    @Test
+    void rejectsFilesThatAreNotBackups() throws Exception {
+        Path file = write("notes.json", "[1, 2, 3]");
+
+        IOException e = assertThrows(IOException.class, () -> restorer.restore(List.of(file)));
+        assertTrue(e.getMessage().contains("Not a backup file"), e.getMessage());
+    }
+
+    private Path write(String name, String json) throws IOException {
+        return Files.writeString(dir.resolve(name), json);
+    }
+}
@@ -0,0 +1,110 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsChangesBetweenMarks() throws Exception {
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            journal.append(ChangeJournal.STORED, List.of("a", "b"));
+            ChangeJournal.Mark first = journal.mark();
+            journal.append(ChangeJournal.DELETED, List.of("a"));
+            journal.append(ChangeJournal.STORED, List.of("c"));
+            ChangeJournal.Mark second = journal.mark();
+
+            ChangeJournal.ChangeSet changes = journal.read(first, second);
+            assertEquals(List.of("c"), new ArrayList<>(changes.stored));
+            assertEquals(List.of("a"), new ArrayList<>(changes.deleted));
+            assertFalse(changes.cleared);
+        }
+    }
+
+    @Test
+    void clearedDropsEarlierChanges() throws Exception {
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            ChangeJournal.Mark start = journal.mark();
+            journal.append(ChangeJournal.STORED, List.of("a"));
+            journal.appendCleared();
+            journal.append(ChangeJournal.STORED, List.of("b"));
+
+            ChangeJournal.ChangeSet changes = journal.read(start, journal.mark());
+            assertTrue(changes.cleared);
+            assertEquals(List.of("b"), new ArrayList<>(changes.stored));
+            assertTrue(changes.deleted.isEmpty());
+        }
+    }
+
+    @Test
+    void marksSurviveDiscardingTheStart() throws Exception {
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            ChangeJournal.Mark start = journal.mark();
+            journal.append(ChangeJournal.STORED, List.of("a"));
+            ChangeJournal.Mark middle = journal.mark();
+            journal.append(ChangeJournal.STORED, List.of("b"));
+
+            journal.discardBefore(middle);
+
+            assertNull(journal.read(start, journal.mark()));
+            assertEquals(List.of("b"), new ArrayList<>(journal.read(middle, journal.mark()).stored));
+        }
+    }
+
+    @Test
+    void dropsTornTailOnReopenPastOneScanChunk() throws Exception {
+        String key = "k".repeat(200);
+        ChangeJournal.Mark start;
+        ChangeJournal.Mark end;
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            start = journal.mark();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                keys.add(key + i);
+            }
+            journal.append(ChangeJournal.STORED, keys);
+            end = journal.mark();
+        }
+
+        // Half a change after more than one chunk's worth of complete ones
+        Path file = dir.resolve(ChangeJournal.FILE_NAME);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{ChangeJournal.STORED, 100, 'x', 'y'}));
+        }
+
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            assertEquals(end, journal.mark());
+            ChangeJournal.ChangeSet changes = journal.read(start, end);
+            assertEquals(1000, changes.stored.size());
+            assertTrue(changes.stored.contains(key + 999));
+        }
+    }
+
+    @Test
+    void startsAfreshWithoutKeepingChanges() throws Exception {
+        ChangeJournal.Mark start;
+        try (ChangeJournal journal = ChangeJournal.open(dir, true)) {
+            start = journal.mark();
+            journal.append(ChangeJournal.STORED, List.of("a"));
+        }
+
+        try (ChangeJournal journal = ChangeJournal.open(dir, false)) {
+            assertNotEquals(start.journal(), journal.mark().journal());
+            assertEquals(0, journal.mark().position());
+            assertNull(journal.read(start, journal.mark()));
+        }
+        assertEquals(4 + 8 + 8, Files.size(dir.resolve(ChangeJournal.FILE_NAME)));
+    }
+}
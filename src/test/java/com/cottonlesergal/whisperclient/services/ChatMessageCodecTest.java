@@ -0,0 +1,153 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatMessageCodecTest {
+    @TempDir
+    Path dir;
+
+    private final ChatMessageCodec codec = new ChatMessageCodec();
+
+    @Test
+    void roundTripsEveryField() throws Exception {
+        ChatMessage message = message("id-1", "alice", "bob", "hello é世😀", "image", 1_700_000_000_000L, true);
+
+        byte[] record = codec.encode(message, ChatMessageCodec.Format.BINARY);
+        assertEquals(ChatMessageCodec.MAGIC, record[0]);
+        assertSameMessage(message, codec.decode(record));
+    }
+
+    @Test
+    void keepsNullAndEmptyFieldsApart() throws Exception {
+        ChatMessage nulls = message(null, null, null, null, null, 0, false);
+        assertSameMessage(nulls, codec.decode(codec.encode(nulls, ChatMessageCodec.Format.BINARY)));
+
+        ChatMessage empties = message("", "", "", "", "", 0, false);
+        assertSameMessage(empties, codec.decode(codec.encode(empties, ChatMessageCodec.Format.BINARY)));
+    }
+
+    @Test
+    void roundTripsNegativeAndExtremeTimestamps() throws Exception {
+        for (long timestamp : new long[]{-1, -1_700_000_000_000L, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 62}) {
+            ChatMessage message = message("t", "a", "b", "x", "text", timestamp, false);
+            assertEquals(timestamp, codec.decode(codec.encode(message, ChatMessageCodec.Format.BINARY)).getTimestamp());
+        }
+    }
+
+    @Test
+    void storesCustomTypesAndNewPeersInThePersistentSymbolTable() throws Exception {
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        ChatMessage first = message("1", "alice", "bob", "hi", "sticker", 10, false);
+        ChatMessage second = message("2", "carol", "alice", "yo", "x-unknown/type", 20, true);
+
+        byte[] firstRecord;
+        byte[] secondRecord;
+        try (SymbolTable symbols = SymbolTable.open(dir, key)) {
+            ChatMessageCodec writer = new ChatMessageCodec(symbols);
+            firstRecord = writer.encode(first, ChatMessageCodec.Format.BINARY);
+            secondRecord = writer.encode(second, ChatMessageCodec.Format.BINARY);
+            assertEquals(2, symbols.intern("carol"));
+        }
+
+        try (SymbolTable symbols = SymbolTable.open(dir, key)) {
+            ChatMessageCodec reader = new ChatMessageCodec(symbols);
+            assertSameMessage(first, reader.decode(firstRecord));
+            assertSameMessage(second, reader.decode(secondRecord));
+        }
+    }
+
+    @Test
+    void readsLegacyJsonRecords() throws Exception {
+        byte[] json = ("{\"id\":\"j1\",\"from\":\"alice\",\"to\":\"bob\",\"content\":\"old\"," +
+                "\"type\":\"text\",\"timestamp\":42,\"fromMe\":true}").getBytes(StandardCharsets.UTF_8);
+        assertSameMessage(message("j1", "alice", "bob", "old", "text", 42, true), codec.decode(json));
+
+        ChatMessage message = message("j2", "a", "b", "json", "file", 7, false);
+        byte[] record = codec.encode(message, ChatMessageCodec.Format.JSON);
+        assertEquals('{', record[0]);
+        assertSameMessage(message, codec.decode(record));
+    }
+
+    @Test
+    void rejectsTruncatedRecordsWithIOException() throws Exception {
+        byte[] record = codec.encode(message("id", "alice", "bob", "some content", "video", 123456789L, true),
+                ChatMessageCodec.Format.BINARY);
+        for (int length = 0; length < record.length; length++) {
+            byte[] truncated = Arrays.copyOf(record, length);
+            assertThrows(IOException.class, () -> codec.decode(truncated), "length " + length);
+        }
+    }
+
+    @Test
+    void corruptRecordsFailWithIOExceptionOnly() throws Exception {
+        byte[] record = codec.encode(message("id", "alice", "bob", "some content", "custom", -5, true),
+                ChatMessageCodec.Format.BINARY);
+        Random random = new Random(1);
+        for (int round = 0; round < 2000; round++) {
+            byte[] corrupt = record.clone();
+            corrupt[1 + random.nextInt(corrupt.length - 1)] = (byte) random.nextInt(256);
+            if (random.nextBoolean()) {
+                corrupt[1 + random.nextInt(corrupt.length - 1)] = (byte) 0xFF;
+            }
+            try {
+                codec.decode(corrupt);
+            } catch (IOException expected) {
+                // Corruption may also still decode to some message; it must just never blow up
+            }
+        }
+
+        // Varints that never end, a negative string length, and an unknown type
+        byte[] header = {ChatMessageCodec.MAGIC, ChatMessageCodec.VERSION, 0, 1};
+        assertThrows(IOException.class, () -> codec.decode(concat(header, filled(11, (byte) 0xFF))));
+        byte[] negativeLength = concat(new byte[]{0}, filled(9, (byte) 0x80));
+        assertThrows(IOException.class, () -> codec.decode(concat(header, concat(negativeLength, new byte[]{1}))));
+        assertThrows(IOException.class, () -> codec.decode(new byte[]{ChatMessageCodec.MAGIC, ChatMessageCodec.VERSION, 0, 0x40, 0}));
+        assertThrows(IOException.class, () -> codec.decode(new byte[]{ChatMessageCodec.MAGIC, 99, 0, 1, 0}));
+    }
+
+    private static ChatMessage message(String id, String from, String to, String content, String type,
+                                       long timestamp, boolean fromMe) {
+        ChatMessage message = new ChatMessage();
+        message.setId(id);
+        message.setFrom(from);
+        message.setTo(to);
+        message.setContent(content);
+        message.setType(type);
+        message.setTimestamp(timestamp);
+        message.setFromMe(fromMe);
+        return message;
+    }
+
+    private static void assertSameMessage(ChatMessage expected, ChatMessage actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getFrom(), actual.getFrom());
+        assertEquals(expected.getTo(), actual.getTo());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.isFromMe(), actual.isFromMe());
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
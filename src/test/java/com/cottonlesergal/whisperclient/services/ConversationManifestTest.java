@@ -0,0 +1,63 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationManifestTest {
+
+    @Test
+    void tracksCountBoundsAndNewestMessageAsMessagesAreStored() {
+        ConversationManifest manifest = new ConversationManifest();
+        manifest.recordStore(200, "m2", 100);
+        manifest.recordStore(100, "m1", 150);
+        manifest.recordStore(300, "m3", 210);
+        // Same timestamp as the newest: the later store wins
+        manifest.recordStore(300, "m4", 260);
+
+        assertEquals(4, manifest.getMessageCount());
+        assertEquals(260, manifest.getTotalBytes());
+        assertEquals(100, manifest.getFirstTimestamp());
+        assertEquals(300, manifest.getLastTimestamp());
+        assertEquals("m4", manifest.getLastMessageId());
+        assertTrue(manifest.matches(4, 260, 100, 300));
+        assertFalse(manifest.matches(4, 261, 100, 300));
+        assertFalse(manifest.matches(4, 260, 100, 299));
+    }
+
+    @Test
+    void resetToEmptyClearsTheBounds() {
+        ConversationManifest manifest = new ConversationManifest();
+        manifest.recordStore(200, "m2", 100);
+
+        manifest.reset(0, 8, 200, 200, "m2");
+        assertEquals(0, manifest.getMessageCount());
+        assertEquals(0, manifest.getFirstTimestamp());
+        assertEquals(0, manifest.getLastTimestamp());
+        assertNull(manifest.getLastMessageId());
+        // An empty conversation matches whatever bounds were computed for it
+        assertTrue(manifest.matches(0, 8, 123, 456));
+
+        manifest.recordStore(500, "m5", 40);
+        assertEquals(500, manifest.getFirstTimestamp());
+        assertEquals(1, manifest.getMessageCount());
+    }
+
+    @Test
+    void copiesAreIndependentAndSurviveJson() throws Exception {
+        ConversationManifest manifest = new ConversationManifest();
+        manifest.recordStore(100, "m1", 50);
+        ConversationManifest copy = manifest.copy();
+        manifest.recordStore(200, "m2", 90);
+        assertEquals(1, copy.getMessageCount());
+
+        ObjectMapper mapper = new ObjectMapper();
+        String json = mapper.writeValueAsString(manifest);
+        ConversationManifest read = mapper.readValue(json.replace("{", "{\"addedLater\":true,"), ConversationManifest.class);
+        assertEquals(ConversationManifest.CURRENT_VERSION, read.getVersion());
+        assertTrue(read.matches(2, 90, 100, 200));
+        assertEquals("m2", read.getLastMessageId());
+        assertEquals(manifest.getUpdatedAt(), read.getUpdatedAt());
+    }
+}
@@ -0,0 +1,134 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversationSummaryStoreTest {
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @TempDir
+    Path dir;
+
+    private final StorageMaintenanceScheduler scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 1.0);
+    private final List<String> reconciled = Collections.synchronizedList(new ArrayList<>());
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void countsUnreadMessagesReceivedAfterTheLastRead() {
+        ConversationSummary summary = new ConversationSummary();
+        summary.recordStore(100, false, "one");
+        summary.recordStore(200, true, "mine");
+        summary.recordStore(150, false, "late");
+        assertEquals(2, summary.getUnreadCount());
+        assertEquals(3, summary.getMessageCount());
+        assertEquals("mine", summary.getLastPreview());
+        assertTrue(summary.isLastFromMe());
+
+        assertTrue(summary.markRead(180));
+        assertFalse(summary.markRead(180), "nothing new to mark");
+        assertEquals(200, summary.getLastReadAt(), "reading covers the newest stored message");
+
+        // Stored late but sent before the conversation was read
+        summary.recordStore(190, false, "queued");
+        assertEquals(0, summary.getUnreadCount());
+        summary.recordStore(300, false, "new");
+        assertEquals(1, summary.getUnreadCount());
+
+        summary.addUnread(-5);
+        assertEquals(0, summary.getUnreadCount());
+    }
+
+    @Test
+    void resetOnlyShrinksTheUnreadCount() {
+        ConversationSummary summary = new ConversationSummary();
+        for (int i = 1; i <= 4; i++) {
+            summary.recordStore(i, false, "m" + i);
+        }
+        summary.reset(2, 2, false, "m2", 10);
+        assertEquals(4, summary.getUnreadCount());
+        summary.reset(2, 2, false, "m2", 1);
+        assertEquals(1, summary.getUnreadCount());
+
+        summary.reset(0, 99, true, "gone", 0);
+        assertEquals(0, summary.getLastTimestamp());
+        assertFalse(summary.isLastFromMe());
+        assertEquals("", summary.getLastPreview());
+    }
+
+    @Test
+    void previewsShowMediaByNameAndCutLongText() {
+        assertEquals("", ConversationSummary.preview(null));
+        assertEquals("two lines", ConversationSummary.preview("  two\n  lines "));
+
+        String preview = ConversationSummary.preview("x".repeat(200));
+        assertEquals(ConversationSummary.PREVIEW_LENGTH, preview.length());
+        assertTrue(preview.endsWith("…"));
+
+        String media = new MediaReference("id", "abc", "image/png", 10, "cat.png").toContent("look");
+        assertEquals("📎 cat.png", ConversationSummary.preview(media));
+    }
+
+    @Test
+    void savesSealedSummariesAndReconcilesThemOnLoad() throws Exception {
+        Files.createDirectories(dir.resolve("bob"));
+        ConversationSummaryStore store = store();
+        ConversationSummary summary = store.get("bob");
+        assertSame(summary, store.get("bob"));
+        summary.recordStore(100, false, "secret preview");
+        store.changed("bob");
+        assertTrue(store.flush() > 0);
+
+        byte[] saved = Files.readAllBytes(dir.resolve("bob").resolve(ConversationSummary.FILE_NAME));
+        assertFalse(new String(saved, StandardCharsets.ISO_8859_1).contains("secret"));
+
+        ConversationSummary loaded = store().get("bob");
+        assertEquals(1, loaded.getUnreadCount());
+        assertEquals("secret preview", loaded.getLastPreview());
+        assertEquals(List.of("bob", "bob"), reconciled);
+    }
+
+    @Test
+    void unreadableOrUnstoredSummariesStartEmpty() throws Exception {
+        Files.createDirectories(dir.resolve("bob"));
+        Files.write(dir.resolve("bob").resolve(ConversationSummary.FILE_NAME), new byte[40]);
+        assertEquals(0, store().get("bob").getMessageCount());
+
+        // No conversation directory: nothing is written
+        ConversationSummaryStore store = store();
+        store.get("carol").recordStore(1, false, "hi");
+        store.unload("carol");
+        assertFalse(Files.exists(dir.resolve("carol")));
+    }
+
+    @Test
+    void peekLoadsInTheBackground() throws Exception {
+        ConversationSummaryStore store = store();
+        CompletableFuture<String> loaded = new CompletableFuture<>();
+
+        assertNull(store.peek("bob", loaded::complete));
+        assertEquals("bob", loaded.get(5, TimeUnit.SECONDS));
+        assertNotNull(store.peek("bob", name -> fail("already loaded")));
+    }
+
+    private ConversationSummaryStore store() {
+        return new ConversationSummaryStore(dir, name -> KEY, (name, summary) -> reconciled.add(name), scheduler);
+    }
+}
@@ -0,0 +1,166 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FriendshipCacheTest {
+    private final ExecutorService serverThreads = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Semaphore arrivals = new Semaphore(0);
+    // Requests, by number, that wait for their latch before being answered
+    private final Map<Integer, CountDownLatch> held = new ConcurrentHashMap<>();
+    // Requests, by number, answered with their own friends list
+    private final Map<Integer, String> answers = new ConcurrentHashMap<>();
+    private volatile String friends = "[]";
+    private volatile int status = 200;
+
+    private HttpServer server;
+    private FriendshipCache cache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/friends", exchange -> {
+            int n = requests.incrementAndGet();
+            arrivals.release();
+            CountDownLatch gate = held.get(n);
+            if (gate != null) {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = answers.getOrDefault(n, friends).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        HttpTransport http = new HttpTransport(Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ZERO, 2);
+        cache = new FriendshipCache(TimeUnit.MINUTES.toMillis(2), http,
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/friends");
+    }
+
+    @AfterEach
+    void tearDown() {
+        held.values().forEach(CountDownLatch::countDown);
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    @Test
+    void loadsOnceAndAnswersFromMemory() {
+        friends = list("Bob", "carol");
+
+        assertTrue(cache.isFriend("bob"));
+        assertTrue(cache.isFriend("CAROL"));
+        // Fetched moments ago, so a "no" is trusted too
+        assertFalse(cache.isFriend("dan"));
+
+        assertEquals(1, requests.get());
+        FriendshipCache.FriendshipStats stats = cache.getStats();
+        assertEquals(2, stats.friends);
+        assertEquals(1, stats.loads);
+        assertEquals(3, stats.lookups);
+        assertEquals(0, stats.confirmations);
+    }
+
+    @Test
+    void checksANoWithTheServerOnceTheSetIsStale() throws Exception {
+        friends = list("bob");
+        assertTrue(cache.isFriend("bob"));
+
+        // Accepted on another device
+        friends = list("bob", "dan");
+        cache.invalidate();
+        assertTrue(cache.isFriendAsync("dan").get(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.get());
+        assertEquals(1, cache.getStats().confirmations);
+
+        assertTrue(cache.isFriend("dan"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void localChangesApplyAtOnce() throws Exception {
+        friends = list("bob");
+        assertTrue(cache.isFriend("bob"));
+
+        held.put(2, new CountDownLatch(1));
+        cache.friendAdded("carol");
+        assertTrue(arrivals.tryAcquire(2, 5, TimeUnit.SECONDS), "background refresh started");
+        assertTrue(cache.isFriend("carol"), "answered without waiting for the refresh");
+        assertEquals(2, requests.get());
+        held.get(2).countDown();
+    }
+
+    @Test
+    void aRefreshThatStartedBeforeALocalChangeIsNotApplied() throws Exception {
+        friends = list("bob");
+        assertTrue(cache.isFriend("bob"));
+
+        // Request 2 is a confirmation of "dan" that is still out when bob is removed
+        held.put(2, new CountDownLatch(1));
+        held.put(3, new CountDownLatch(1));
+        answers.put(2, list("bob", "dan"));
+        answers.put(3, list("dan"));
+        cache.invalidate();
+        CompletableFuture<Boolean> dan = cache.isFriendAsync("dan");
+        assertTrue(arrivals.tryAcquire(2, 5, TimeUnit.SECONDS));
+
+        cache.friendRemoved("bob");
+        assertTrue(arrivals.tryAcquire(1, 5, TimeUnit.SECONDS), "refresh after the removal started");
+
+        held.get(2).countDown();
+        assertTrue(dan.get(5, TimeUnit.SECONDS));
+        FriendshipCache.FriendshipStats stats = cache.getStats();
+        assertEquals(0, stats.friends, "bob stays removed");
+        assertTrue(stats.stale);
+
+        held.get(3).countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getStats().stale && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(cache.getStats().stale);
+        assertEquals(1, cache.getStats().friends);
+    }
+
+    @Test
+    void allowsSendingWhenTheServerCannotBeAsked() throws Exception {
+        status = 500;
+        assertTrue(cache.isFriend("bob"));
+        assertTrue(cache.isFriendAsync("bob").get(5, TimeUnit.SECONDS));
+        assertEquals(2, cache.getStats().failures);
+        assertEquals(0, cache.getStats().friends);
+    }
+
+    private static String list(String... usernames) {
+        StringBuilder json = new StringBuilder("[");
+        for (String username : usernames) {
+            json.append(json.length() > 1 ? "," : "").append("{\"username\":\"").append(username).append("\"}");
+        }
+        return json.append(']').toString();
+    }
+}
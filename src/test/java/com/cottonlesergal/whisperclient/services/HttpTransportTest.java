@@ -0,0 +1,120 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpTransportTest {
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+    private HttpServer server;
+    private String base;
+    private HttpTransport transport;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/ok", exchange -> respond(exchange, 200));
+        server.createContext("/media", exchange -> respond(exchange, 404));
+        server.createContext("/slow", exchange -> {
+            try {
+                releaseSlow.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200);
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        transport = new HttpTransport(Duration.ofSeconds(5), Duration.ofMillis(300), Duration.ZERO, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseSlow.countDown();
+        server.stop(0);
+        Config.APP_TOKEN = "";
+    }
+
+    @Test
+    void foldsIdsOutOfEndpointNames() {
+        assertEquals("GET host/media/{id}", HttpTransport.endpointKey("GET", URI.create("https://host/media/12345")));
+        assertEquals("GET host/media/{id}",
+                HttpTransport.endpointKey("GET", URI.create("https://host/media/3f2a9c1e-77aa-4b1c-9d00-1234567890ab?x=1")));
+        assertEquals("POST host/users/{id}/inbox", HttpTransport.endpointKey("POST", URI.create("https://host/users/bob42/inbox")));
+        assertEquals("GET host/friends", HttpTransport.endpointKey("GET", URI.create("https://host/friends/")));
+        assertEquals("GET host", HttpTransport.endpointKey("GET", URI.create("https://host")));
+    }
+
+    @Test
+    void requestsCarryTheTokenOnlyWhenAskedTo() {
+        Config.APP_TOKEN = "token-123";
+        HttpRequest signed = transport.request(base + "/ok").build();
+        assertEquals(List.of("Bearer token-123"), signed.headers().allValues("Authorization"));
+        assertEquals(List.of(HttpTransport.USER_AGENT), signed.headers().allValues("User-Agent"));
+        assertEquals(Duration.ofMillis(300), signed.timeout().orElseThrow());
+
+        HttpRequest anonymous = transport.anonymousRequest(base + "/ok").build();
+        assertTrue(anonymous.headers().allValues("Authorization").isEmpty());
+
+        // Transfers have no overall timeout unless one is configured
+        assertNull(transport.transferTimeout());
+        assertTrue(transport.request(base + "/ok", transport.transferTimeout()).build().timeout().isEmpty());
+        HttpTransport limited = new HttpTransport(Duration.ofSeconds(1), Duration.ofSeconds(1), Duration.ofMinutes(5), 1);
+        assertEquals(Duration.ofMinutes(5), limited.transferTimeout());
+    }
+
+    @Test
+    void countsResponsesErrorsAndFailuresPerEndpoint() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200, transport.send(transport.request(base + "/ok").build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+        }
+        transport.send(transport.request(base + "/media/111").build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(404, transport.sendAsync(transport.request(base + "/media/222").build(),
+                HttpResponse.BodyHandlers.discarding()).get(5, TimeUnit.SECONDS).statusCode());
+        assertThrows(HttpTimeoutException.class,
+                () -> transport.send(transport.request(base + "/slow").build(), HttpResponse.BodyHandlers.discarding()));
+
+        List<HttpTransport.EndpointStats> stats = transport.getEndpointStats();
+        assertEquals(3, stats.size());
+        assertEquals("GET 127.0.0.1/ok", stats.get(0).endpoint);
+        assertEquals(3, stats.get(0).requests);
+        assertEquals(200, stats.get(0).lastStatus);
+        assertNull(stats.get(0).lastError);
+
+        HttpTransport.EndpointStats media = stats.get(1);
+        assertEquals("GET 127.0.0.1/media/{id}", media.endpoint);
+        assertEquals(2, media.requests);
+        assertEquals(2, media.errorResponses);
+        assertEquals("HTTP 404", media.lastError);
+
+        HttpTransport.EndpointStats slow = stats.get(2);
+        assertEquals(1, slow.failures);
+        assertEquals(0, slow.errorResponses);
+        assertTrue(slow.lastError.startsWith("HttpTimeoutException"), slow.lastError);
+        assertTrue(slow.maxMillis >= 250, "took " + slow.maxMillis + " ms");
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        byte[] body = "{}".getBytes();
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
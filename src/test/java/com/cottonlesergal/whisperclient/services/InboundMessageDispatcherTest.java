@@ -0,0 +1,105 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InboundMessageDispatcherTest {
+
+    @Test
+    void keepsEachSendersFramesInOrderWithinTheWindow() throws Exception {
+        InboundMessageDispatcher dispatcher = new InboundMessageDispatcher(8, 3);
+        // Stands in for the socket: one permit per frame it has been asked for
+        Semaphore demand = new Semaphore(dispatcher.getWindow());
+        Map<String, List<Integer>> handled = new ConcurrentHashMap<>();
+        String[] senders = {"bob", "carol", "dan"};
+        CountDownLatch done = new CountDownLatch(150);
+
+        for (int i = 0; i < 50; i++) {
+            for (String sender : senders) {
+                demand.acquire();
+                int n = i;
+                dispatcher.dispatch(sender, () -> handled.computeIfAbsent(sender,
+                        s -> Collections.synchronizedList(new ArrayList<>())).add(n), () -> {
+                    demand.release();
+                    done.countDown();
+                });
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (String sender : senders) {
+            List<Integer> frames = handled.get(sender);
+            assertEquals(50, frames.size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i, (int) frames.get(i));
+            }
+        }
+        InboundMessageDispatcher.InboundStats stats = dispatcher.getStats();
+        assertTrue(stats.peakDepth <= 8, "peak depth " + stats.peakDepth);
+        assertEquals(0, stats.depth);
+        assertEquals(150, stats.processed);
+    }
+
+    @Test
+    void releasesTheSlotWhenAHandlerThrowsAnError() throws Exception {
+        InboundMessageDispatcher dispatcher = new InboundMessageDispatcher(4, 1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+
+        dispatcher.dispatch("bob", () -> {
+            throw new StackOverflowError("deep");
+        }, done::countDown);
+        dispatcher.dispatch("bob", () -> handled.add("second"), done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "both frames released their demand");
+        assertEquals(List.of("second"), handled);
+        assertEquals(0, dispatcher.getStats().depth);
+    }
+
+    @Test
+    void shutdownHandlesQueuedFramesAndStopsItsThreads() throws Exception {
+        InboundMessageDispatcher dispatcher = new InboundMessageDispatcher(16, 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        Thread[] worker = {null};
+
+        dispatcher.dispatch("bob", () -> {
+            worker[0] = Thread.currentThread();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.add("bob-0");
+        }, () -> {});
+        for (int i = 1; i < 5; i++) {
+            String frame = "bob-" + i;
+            dispatcher.dispatch("bob", () -> handled.add(frame), () -> {});
+        }
+
+        Thread stopping = new Thread(() -> dispatcher.shutdown(5000));
+        stopping.start();
+        blocked.countDown();
+        stopping.join(10_000);
+
+        assertFalse(stopping.isAlive());
+        assertEquals(List.of("bob-0", "bob-1", "bob-2", "bob-3", "bob-4"), handled);
+        worker[0].join(5000);
+        assertFalse(worker[0].isAlive());
+
+        // A frame that was already on its way when the socket closed is still handled
+        dispatcher.dispatch("carol", () -> handled.add("late"), () -> {});
+        assertEquals("late", handled.get(handled.size() - 1));
+        assertEquals(0, dispatcher.getStats().depth);
+    }
+}
@@ -0,0 +1,83 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MediaBlobStoreTest {
+    private final SecretKey key = new SecretKeySpec(new byte[32], "AES");
+    private final StorageMaintenanceScheduler scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 1.0);
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void storesEachContentOnce() throws Exception {
+        MediaBlobStore store = new MediaBlobStore(dir.resolve(MediaBlobStore.DIRECTORY));
+        String first = store.put(key, new byte[]{1, 2, 3});
+        String second = store.put(key, new byte[]{1, 2, 3});
+
+        assertEquals(first, second);
+        assertEquals(MediaBlobStore.sha256(new byte[]{1, 2, 3}), first);
+        assertArrayEquals(new byte[]{1, 2, 3}, store.get(key, first));
+    }
+
+    @Test
+    void sweepKeepsReferencedAndRecentBlobs() throws Exception {
+        MediaBlobStore store = new MediaBlobStore(dir.resolve(MediaBlobStore.DIRECTORY));
+        String referenced = store.put(key, new byte[]{1});
+        String unreferenced = store.put(key, new byte[]{2});
+        long now = System.currentTimeMillis() + 1000;
+
+        // Unreferenced but stored after the grace cutoff
+        MediaBlobStore.Expired expired = store.sweep(Map.of(referenced, now), now, now - 60_000,
+                Long.MIN_VALUE, scheduler.new JobContext());
+        assertEquals(0, expired.blobs());
+        assertTrue(store.contains(unreferenced));
+
+        expired = store.sweep(Map.of(referenced, now), now, now, Long.MIN_VALUE, scheduler.new JobContext());
+        assertEquals(1, expired.blobs());
+        assertFalse(store.contains(unreferenced));
+        assertTrue(store.contains(referenced));
+    }
+
+    @Test
+    void sweepExpiresBlobsOnlyReferencedByOldMessages() throws Exception {
+        MediaBlobStore store = new MediaBlobStore(dir.resolve(MediaBlobStore.DIRECTORY));
+        String old = store.put(key, new byte[]{1});
+        String recent = store.put(key, new byte[]{2});
+        long now = System.currentTimeMillis() + 1000;
+
+        MediaBlobStore.Expired expired = store.sweep(Map.of(old, 100L, recent, now - 10), now, now,
+                now - 1000, scheduler.new JobContext());
+
+        assertEquals(1, expired.blobs());
+        assertFalse(store.contains(old));
+        assertTrue(store.contains(recent));
+    }
+
+    @Test
+    void sweepKeepsBlobsStoredAgainDuringTheScan() throws Exception {
+        MediaBlobStore store = new MediaBlobStore(dir.resolve(MediaBlobStore.DIRECTORY));
+        long scanStarted = System.currentTimeMillis() - 60_000;
+        String blob = store.put(key, new byte[]{1});
+
+        MediaBlobStore.Expired expired = store.sweep(Map.of(), scanStarted, Long.MAX_VALUE,
+                Long.MAX_VALUE, scheduler.new JobContext());
+
+        assertEquals(0, expired.blobs());
+        assertTrue(store.contains(blob));
+    }
+}
@@ -0,0 +1,193 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageIndexTest {
+    @TempDir
+    Path dir;
+
+    private MessageSegmentLog log;
+    private MessageIndex index;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES);
+        index = MessageIndex.open(dir, log);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        index.close();
+        log.close();
+    }
+
+    @Test
+    void keepsLateArrivalsInTimestampOrder() throws Exception {
+        store(10, "a");
+        store(30, "c");
+        store(20, "b");
+
+        assertEquals(List.of("c", "b", "a"), keys(index.readPage(0, 10)));
+        assertEquals(List.of("c"), keys(index.readPage(0, 1)));
+        assertEquals(List.of("a"), keys(index.readPage(2, 1)));
+        assertEquals(1, index.rankFromNewest(20, "b"));
+        assertEquals(List.of("b", "a"), keys(index.readBefore(30, "c", 10)));
+        assertEquals(List.of("b", "c"), keys(index.readAfter(10, "a", 10)));
+        assertEquals(List.of("a", "b"), keys(index.readBetween(10, 30, 10)));
+    }
+
+    @Test
+    void cursorsTellMessagesWithTheSameTimestampApart() throws Exception {
+        store(10, "a");
+        store(20, "b1");
+        store(20, "b2");
+        store(20, "b3");
+        store(30, "c");
+
+        assertEquals(List.of("b1", "a"), keys(index.readBefore(20, "b2", 10)));
+        assertEquals(List.of("b3", "c"), keys(index.readAfter(20, "b2", 10)));
+        assertEquals(List.of("b3"), keys(index.readAfter(20, "b2", 1)));
+
+        // Without a usable id the whole timestamp lies on the cursor
+        assertEquals(List.of("a"), keys(index.readBefore(20, null, 10)));
+        assertEquals(List.of("c"), keys(index.readAfter(20, "unknown", 10)));
+        assertEquals(List.of("a"), keys(index.readBefore(20, "c", 10)));
+
+        assertEquals(List.of("b1", "b2", "b3"), keys(index.readBetween(20, 30, 10)));
+        assertEquals(List.of("b1", "b2"), keys(index.readBetween(20, 30, 2)));
+        assertEquals(List.of(), keys(index.readBetween(30, 20, 10)));
+        assertEquals(List.of(), keys(index.readBetween(Long.MIN_VALUE, 10, 10)));
+    }
+
+    @Test
+    void rangeQueriesAndRanksSkipDeletedEntries() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            store(i * 10, "m" + i);
+        }
+        assertEquals(List.of("m3", "m4", "m5"), keys(index.deleteBetween(30, 60, log)));
+        index.delete(List.of("m0"), log);
+
+        assertEquals("m1", index.oldest().key());
+        assertEquals("m9", index.newest().key());
+        assertEquals(6, index.size());
+        assertEquals(List.of("m2", "m6"), keys(index.readBetween(20, 70, 10)));
+        assertEquals(List.of("m6", "m2", "m1"), keys(index.readBefore(70, "m7", 10)));
+        assertEquals(List.of("m6", "m7"), keys(index.readAfter(20, "m2", 2)));
+        assertEquals(List.of("m7", "m8"), keys(index.lookup(List.of(MessageIndex.key("m8"),
+                MessageIndex.key("m7"), MessageIndex.key("m4")))));
+
+        // Ranks count live messages only, so they line up with readPage
+        assertEquals(0, index.rankFromNewest(90, "m9"));
+        assertEquals(3, index.rankFromNewest(60, "m6"));
+        assertEquals(List.of("m6"), keys(index.readPage(3, 1)));
+        assertEquals(5, index.rankFromNewest(10, "m1"));
+        assertEquals(-1, index.rankFromNewest(40, "m4"));
+        assertEquals(Long.valueOf(60), index.timestampOf("m6"));
+        assertNull(index.timestampOf("m4"));
+    }
+
+    @Test
+    void deletedEntriesAreSkippedUntilCompacted() throws Exception {
+        store(10, "a");
+        store(20, "b");
+        store(30, "c");
+
+        List<MessageIndex.IndexEntry> deleted = index.delete(List.of("b"), log);
+
+        assertEquals(List.of("b"), keys(deleted));
+        assertEquals(2, index.size());
+        assertEquals(1, index.tombstoneCount());
+        assertEquals(List.of("c", "a"), keys(index.readPage(0, 10)));
+        assertNull(index.timestampOf("b"));
+
+        index.compactSegment(deleted.get(0).pointer().segment(), Map.of(), log.totalBytes());
+        assertEquals(0, index.tombstoneCount());
+        assertEquals(List.of("c", "a"), keys(index.readPage(0, 10)));
+    }
+
+    @Test
+    void segmentCompactionKeepsTombstonesOfOtherSegments() throws Exception {
+        MessageSegmentLog.RecordPointer pointer = store(10, "a");
+        store(20, "b");
+        store(30, "c");
+        index.delete(List.of("a", "b"), log);
+
+        // Both deleted records live in this segment, so compacting another one drops nothing
+        index.compactSegment(pointer.segment() + 1, Map.of(), log.totalBytes());
+        assertEquals(2, index.tombstoneCount());
+        assertEquals(List.of("c"), keys(index.readPage(0, 10)));
+
+        index.compactSegment(pointer.segment(), Map.of(), log.totalBytes());
+        assertEquals(0, index.tombstoneCount());
+        assertEquals(List.of("c"), keys(index.readPage(0, 10)));
+    }
+
+    @Test
+    void windowsResumeAfterTheCursorEvenIfItWasDeleted() throws Exception {
+        store(10, "a");
+        store(20, "b");
+        store(20, "c");
+        store(30, "d");
+
+        List<MessageIndex.IndexEntry> first = index.readLiveAfter(null, 2);
+        assertEquals(List.of("a", "b"), keys(first));
+
+        index.delete(List.of("b"), log);
+        store(15, "late");
+        assertEquals(List.of("c", "d"), keys(index.readLiveAfter(first.get(1), 2)));
+        assertEquals(List.of(), keys(index.readLiveAfter(index.newest(), 2)));
+    }
+
+    @Test
+    void longIdsAreIndexedUnderADigest() throws Exception {
+        String id = "x".repeat(MessageIndex.KEY_BYTES + 1);
+        store(10, id);
+
+        assertTrue(MessageIndex.key(id).startsWith("#"));
+        assertEquals(Long.valueOf(10), index.timestampOf(id));
+        assertEquals(List.of(MessageIndex.key(id)), keys(index.readPage(0, 10)));
+    }
+
+    @Test
+    void rebuildsFromTheLogWhenStale() throws Exception {
+        store(10, "a");
+        store(20, "b");
+        index.delete(List.of("a"), log);
+        index.close();
+
+        // Not covering the last record, as after a crash between append and index update
+        log.append(30, "c", new byte[]{3});
+        index = MessageIndex.open(dir, log);
+        assertEquals(List.of("c", "b"), keys(index.readPage(0, 10)));
+        index.close();
+
+        Files.delete(dir.resolve(MessageIndex.FILE_NAME));
+        index = MessageIndex.open(dir, log);
+        assertEquals(List.of("c", "b"), keys(index.readPage(0, 10)));
+    }
+
+    private MessageSegmentLog.RecordPointer store(long timestamp, String id) throws Exception {
+        MessageSegmentLog.RecordPointer pointer = log.append(timestamp, id, new byte[]{1});
+        index.add(timestamp, id, pointer, log.totalBytes());
+        return pointer;
+    }
+
+    private static List<String> keys(List<MessageIndex.IndexEntry> entries) {
+        List<String> keys = new ArrayList<>();
+        for (MessageIndex.IndexEntry entry : entries) {
+            keys.add(entry.key());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,118 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessagePageCacheTest {
+
+    @Test
+    void servesCopiesOfCachedPages() {
+        MessagePageCache cache = new MessagePageCache(MessagePageCache.DEFAULT_MAX_BYTES);
+        assertNull(cache.get("bob", 0, 3));
+
+        cache.put("bob", 0, 3, page(12, 11, 10), cache.generation("bob"));
+        List<ChatMessage> cached = cache.get("bob", 0, 3);
+        assertEquals(List.of("m12", "m11", "m10"), ids(cached));
+
+        cached.clear();
+        assertEquals(3, cache.get("bob", 0, 3).size(), "callers cannot change the cached page");
+        assertNull(cache.get("bob", 0, 4), "pages of another size are cached separately");
+
+        MessagePageCache.CacheStats stats = cache.getStats();
+        assertEquals(2, stats.hits);
+        assertEquals(2, stats.misses);
+        assertEquals(0.5, stats.hitRate());
+    }
+
+    @Test
+    void doesNotCacheAPageReadBeforeTheConversationChanged() {
+        MessagePageCache cache = new MessagePageCache(MessagePageCache.DEFAULT_MAX_BYTES);
+        long generation = cache.generation("bob");
+        cache.invalidate("bob");
+
+        cache.put("bob", 0, 3, page(3, 2, 1), generation);
+        assertNull(cache.get("bob", 0, 3));
+
+        cache.put("bob", 0, 3, page(3, 2, 1), cache.generation("bob"));
+        assertNotNull(cache.get("bob", 0, 3));
+    }
+
+    @Test
+    void newMessagesAreWrittenThroughToTheNewestPage() {
+        MessagePageCache cache = new MessagePageCache(MessagePageCache.DEFAULT_MAX_BYTES);
+        long generation = cache.generation("bob");
+        cache.put("bob", 0, 3, page(12, 11, 10), generation);
+        cache.put("bob", 1, 3, page(9, 8, 7), generation);
+        cache.put("carol", 0, 3, page(5, 4, 3), generation);
+
+        cache.onStore("bob", message(13));
+        assertEquals(List.of("m13", "m12", "m11"), ids(cache.get("bob", 0, 3)));
+        assertNull(cache.get("bob", 1, 3), "older pages have shifted");
+        assertEquals(3, cache.get("carol", 0, 3).size());
+
+        // A message older than the newest cached one could belong on any page
+        cache.onStore("bob", message(1));
+        assertNull(cache.get("bob", 0, 3));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedPagesToStayWithinItsBudget() {
+        long pageBytes = 3 * MessagePageCache.estimateBytes(message(10));
+        MessagePageCache cache = new MessagePageCache(2 * pageBytes);
+
+        cache.put("bob", 0, 3, page(12, 11, 10), 0);
+        cache.put("carol", 0, 3, page(12, 11, 10), 0);
+        assertNotNull(cache.get("bob", 0, 3));
+        cache.put("dan", 0, 3, page(12, 11, 10), 0);
+
+        assertNotNull(cache.get("bob", 0, 3));
+        assertNull(cache.get("carol", 0, 3));
+        assertNotNull(cache.get("dan", 0, 3));
+        MessagePageCache.CacheStats stats = cache.getStats();
+        assertEquals(1, stats.evictions);
+        assertEquals(2, stats.cachedPages);
+        assertTrue(stats.cachedBytes <= stats.maxBytes);
+
+        // A page that would not fit on its own is not cached at all
+        cache.put("erin", 0, 9, page(9, 8, 7, 6, 5, 4, 3, 2, 1), 0);
+        assertNull(cache.get("erin", 0, 9));
+        assertEquals(2, cache.getStats().cachedPages);
+    }
+
+    @Test
+    void clearDropsEverythingAndOutdatesPendingReads() {
+        MessagePageCache cache = new MessagePageCache(MessagePageCache.DEFAULT_MAX_BYTES);
+        long generation = cache.generation("bob");
+        cache.put("bob", 0, 3, page(3, 2, 1), generation);
+
+        cache.clear();
+        assertNull(cache.get("bob", 0, 3));
+        assertEquals(0, cache.getStats().cachedBytes);
+
+        cache.put("bob", 0, 3, page(3, 2, 1), generation);
+        assertNull(cache.get("bob", 0, 3));
+    }
+
+    private static List<ChatMessage> page(long... timestamps) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            messages.add(message(timestamp));
+        }
+        return messages;
+    }
+
+    private static ChatMessage message(long timestamp) {
+        ChatMessage message = new ChatMessage("m" + timestamp, "bob", "me", "hello", "text", false);
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).toList();
+    }
+}
@@ -0,0 +1,57 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageSearchIndexTest {
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void snapshotLeavesRemovedDocumentsOut() throws Exception {
+        try (MessageSearchIndex index = MessageSearchIndex.open(dir, KEY, 0, ignored -> {})) {
+            for (int i = 0; i < 300; i++) {
+                index.add("m" + i, i, "word" + i + " common");
+            }
+            index.commit();
+
+            // Enough removals to write a snapshot, which renumbers the documents that are left
+            Set<String> removed = new HashSet<>();
+            for (int i = 0; i < 256; i++) {
+                removed.add(MessageIndex.key("m" + i));
+            }
+            index.remove(removed);
+            index.commit();
+
+            assertSurvivors(index);
+        }
+
+        MessageSearchIndex.Source rebuild = ignored -> fail("Snapshot should have been loaded");
+        try (MessageSearchIndex index = MessageSearchIndex.open(dir, KEY, 44, rebuild)) {
+            assertSurvivors(index);
+        }
+    }
+
+    private static void assertSurvivors(MessageSearchIndex index) {
+        assertEquals(44, index.size());
+        List<MessageSearchIndex.Match> matches = index.search(MessageSearchIndex.parseQuery("common"), 100);
+        assertEquals(44, matches.size());
+        assertEquals(new MessageSearchIndex.Match("m299", 299), matches.get(0));
+        assertEquals(new MessageSearchIndex.Match("m256", 256), matches.get(43));
+
+        assertEquals(List.of(new MessageSearchIndex.Match("m270", 270)),
+                index.search(MessageSearchIndex.parseQuery("\"word270 common\""), 10));
+        assertEquals(List.of(), index.search(MessageSearchIndex.parseQuery("word12*"), 10));
+    }
+}
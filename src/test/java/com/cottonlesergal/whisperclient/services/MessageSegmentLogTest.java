@@ -0,0 +1,149 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageSegmentLogTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackAppendedPayloads() throws Exception {
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            MessageSegmentLog.RecordPointer first = log.append(1, "a", new byte[]{1, 2, 3});
+            MessageSegmentLog.RecordPointer second = log.append(2, "b", new byte[]{4});
+
+            assertArrayEquals(new byte[]{1, 2, 3}, log.read(first));
+            assertArrayEquals(new byte[]{4}, log.read(second));
+            assertEquals(List.of("a", "b"), ids(log));
+        }
+    }
+
+    @Test
+    void cutsTornRecordOffTheTailOnOpen() throws Exception {
+        long intactBytes;
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            log.append(1, "a", new byte[]{1});
+            log.append(2, "b", new byte[]{2});
+            intactBytes = log.totalBytes();
+        }
+
+        // A record whose length runs past the end of the file
+        appendRaw(onlySegment(), ByteBuffer.allocate(12).putInt(100).putInt(0).put((byte) 1).array());
+
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            assertEquals(intactBytes, log.totalBytes());
+            assertEquals(List.of("a", "b"), ids(log));
+
+            MessageSegmentLog.RecordPointer next = log.append(3, "c", new byte[]{3});
+            assertArrayEquals(new byte[]{3}, log.read(next));
+        }
+    }
+
+    @Test
+    void cutsTailRecordWithBadChecksumOnOpen() throws Exception {
+        MessageSegmentLog.RecordPointer last;
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            log.append(1, "a", new byte[]{1});
+            last = log.append(2, "b", new byte[]{2, 2, 2});
+        }
+
+        overwrite(onlySegment(), last.offset() + 1, (byte) 9);
+
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            assertEquals(List.of("a"), ids(log));
+        }
+    }
+
+    @Test
+    void checkReportsDamagedRecordsInSealedSegments() throws Exception {
+        // Small segments, so every record is sealed in a segment of its own
+        MessageSegmentLog.RecordPointer damaged;
+        MessageSegmentLog.RecordPointer intact;
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, 16)) {
+            damaged = log.append(1, "a", new byte[]{1, 1, 1, 1});
+            intact = log.append(2, "b", new byte[]{2, 2, 2, 2});
+            log.append(3, "c", new byte[]{3, 3, 3, 3});
+        }
+        assertNotEquals(damaged.segment(), intact.segment());
+
+        try (Stream<Path> files = Files.list(dir)) {
+            Path segment = files.sorted().findFirst().orElseThrow();
+            overwrite(segment, damaged.offset() + 2, (byte) 7);
+        }
+
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, 16)) {
+            assertEquals(List.of("a", "b", "c"), ids(log));
+            assertEquals(MessageSegmentLog.RecordCheck.CORRUPT, log.check(damaged));
+            assertEquals(MessageSegmentLog.RecordCheck.INTACT, log.check(intact));
+            assertEquals(MessageSegmentLog.RecordCheck.MISSING,
+                    log.check(new MessageSegmentLog.RecordPointer(intact.segment(), intact.offset() + 1, 3)));
+        }
+    }
+
+    @Test
+    void rewriteDropsRecordsAndReportsWhereTheRestMoved() throws Exception {
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            log.append(1, "a", new byte[]{1});
+            MessageSegmentLog.RecordPointer kept = log.append(2, "b", new byte[]{2});
+
+            MessageSegmentLog.Removal removal = log.rewrite(kept.segment(), record -> record.id().equals("a"));
+
+            assertEquals(1, removal.removed());
+            MessageSegmentLog.RecordPointer moved = removal.relocated().get(kept);
+            assertNotNull(moved);
+            assertArrayEquals(new byte[]{2}, log.read(moved));
+            assertEquals(List.of("b"), ids(log));
+        }
+    }
+
+    @Test
+    void clearStartsAfterTheOldSegments() throws Exception {
+        try (MessageSegmentLog log = MessageSegmentLog.open(dir, MessageSegmentLog.DEFAULT_MAX_SEGMENT_BYTES)) {
+            MessageSegmentLog.RecordPointer old = log.append(1, "a", new byte[]{1});
+            log.clear();
+
+            assertEquals(List.of(), ids(log));
+            MessageSegmentLog.RecordPointer fresh = log.append(2, "b", new byte[]{2});
+            assertTrue(fresh.segment() > old.segment());
+            assertArrayEquals(new byte[]{2}, log.read(fresh));
+        }
+    }
+
+    private static List<String> ids(MessageSegmentLog log) throws Exception {
+        List<String> ids = new ArrayList<>();
+        log.scan(record -> ids.add(record.id()));
+        return ids;
+    }
+
+    private Path onlySegment() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.toList();
+            assertEquals(1, segments.size());
+            return segments.get(0);
+        }
+    }
+
+    private static void appendRaw(Path file, byte[] bytes) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(bytes));
+        }
+    }
+
+    private static void overwrite(Path file, long position, byte value) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{value}), position);
+        }
+    }
+}
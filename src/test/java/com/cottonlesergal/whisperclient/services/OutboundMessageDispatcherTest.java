@@ -0,0 +1,186 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundMessageDispatcherTest {
+    private final ScheduledExecutorService worker = Executors.newScheduledThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        worker.shutdownNow();
+    }
+
+    @Test
+    void sendsEachPeersMessagesInOrderOneAtATime() throws Exception {
+        FakeLink link = new FakeLink(text -> 200);
+        OutboundMessageDispatcher dispatcher = new OutboundMessageDispatcher(2, 3, link);
+
+        List<CompletableFuture<OutboundMessageDispatcher.Delivery>> sent = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            for (String peer : List.of("bob", "carol", "dan")) {
+                sent.add(dispatcher.send(peer, peer + "-" + i));
+            }
+        }
+        CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        for (String peer : List.of("bob", "carol", "dan")) {
+            List<String> posted = link.posted.get(peer);
+            assertEquals(20, posted.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(peer + "-" + i, posted.get(i));
+            }
+        }
+        assertTrue(link.peakPerPeer.get() <= 1, "one message per peer on the wire");
+        assertTrue(link.peak.get() <= 2, "peak " + link.peak.get());
+        assertEquals(0, dispatcher.getStats().inFlight);
+        assertEquals(60, dispatcher.getStats().delivered);
+    }
+
+    @Test
+    void retriesTransientFailuresWithBackoff() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        FakeLink link = new FakeLink(text -> calls.incrementAndGet() <= 2 ? 503 : 200);
+        OutboundMessageDispatcher dispatcher = new OutboundMessageDispatcher(1, 5, link);
+
+        long start = System.nanoTime();
+        OutboundMessageDispatcher.Delivery delivery = dispatcher.send("bob", "m1", "hello").get(10, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(3, delivery.attempts());
+        assertEquals("m1", delivery.messageId());
+        // At least half of each of the two backoff ceilings
+        long minimum = OutboundMessageDispatcher.BASE_BACKOFF_MILLIS / 2 + OutboundMessageDispatcher.BASE_BACKOFF_MILLIS;
+        assertTrue(elapsed >= minimum, "waited " + elapsed + " ms");
+        assertEquals(2, dispatcher.getStats().retries);
+        assertEquals(0, dispatcher.getStats().inFlight);
+    }
+
+    @Test
+    void givesUpAfterMaxAttempts() throws Exception {
+        FakeLink link = new FakeLink(text -> 503);
+        OutboundMessageDispatcher dispatcher = new OutboundMessageDispatcher(1, 2, link);
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> dispatcher.send("bob", "hello").get(10, TimeUnit.SECONDS));
+        OutboundMessageDispatcher.DeliveryException failure =
+                assertInstanceOf(OutboundMessageDispatcher.DeliveryException.class, e.getCause());
+        assertTrue(failure.isTransient());
+        assertEquals(503, failure.getStatusCode());
+        assertEquals(2, link.posted.get("bob").size());
+        assertEquals(1, dispatcher.getStats().failed);
+        assertEquals(0, dispatcher.getStats().inFlight);
+    }
+
+    @Test
+    void backoffStaysWithinItsJitterBounds() {
+        for (int failures = 1; failures <= 30; failures++) {
+            long ceiling = Math.min(OutboundMessageDispatcher.MAX_BACKOFF_MILLIS,
+                    OutboundMessageDispatcher.BASE_BACKOFF_MILLIS << Math.min(failures - 1, 20));
+            for (int i = 0; i < 200; i++) {
+                long delay = OutboundMessageDispatcher.backoffMillis(failures);
+                assertTrue(delay >= ceiling / 2 && delay <= ceiling, failures + " failures: " + delay);
+            }
+        }
+    }
+
+    @Test
+    void releasesTheSlotAfterSuccessAndEveryKindOfFailure() throws Exception {
+        FakeLink link = new FakeLink(text -> switch (text) {
+            case "rejected" -> 400;
+            case "gone" -> 403;
+            default -> 200;
+        });
+        link.strangers.add("stranger");
+        link.throwingFor.add("broken");
+        // One slot: a slot that leaked would leave every later message waiting for good
+        OutboundMessageDispatcher dispatcher = new OutboundMessageDispatcher(1, 3, link);
+
+        CompletableFuture<OutboundMessageDispatcher.Delivery> ok = dispatcher.send("bob", "fine");
+        CompletableFuture<OutboundMessageDispatcher.Delivery> rejected = dispatcher.send("carol", "rejected");
+        CompletableFuture<OutboundMessageDispatcher.Delivery> gone = dispatcher.send("dan", "gone");
+        CompletableFuture<OutboundMessageDispatcher.Delivery> stranger = dispatcher.send("stranger", "hi");
+        CompletableFuture<OutboundMessageDispatcher.Delivery> broken = dispatcher.send("broken", "hi");
+        CompletableFuture<OutboundMessageDispatcher.Delivery> last = dispatcher.send("erin", "fine");
+
+        assertNotNull(ok.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> gone.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> stranger.get(5, TimeUnit.SECONDS));
+        assertThrows(ExecutionException.class, () -> broken.get(5, TimeUnit.SECONDS));
+        assertNotNull(last.get(5, TimeUnit.SECONDS));
+
+        assertEquals(List.of("dan"), link.removed);
+        OutboundMessageDispatcher.DispatcherStats stats = dispatcher.getStats();
+        assertEquals(0, stats.inFlight);
+        assertEquals(0, stats.pending);
+        assertEquals(2, stats.delivered);
+        assertEquals(4, stats.failed);
+    }
+
+    /**
+     * Answers each post a little later on another thread with the status {@code statuses} picks
+     */
+    private final class FakeLink implements OutboundMessageDispatcher.Link {
+        final Function<String, Integer> statuses;
+        final Map<String, List<String>> posted = new ConcurrentHashMap<>();
+        final Set<String> strangers = ConcurrentHashMap.newKeySet();
+        final Set<String> throwingFor = ConcurrentHashMap.newKeySet();
+        final List<String> removed = Collections.synchronizedList(new ArrayList<>());
+        final Map<String, AtomicInteger> onWire = new ConcurrentHashMap<>();
+        final AtomicInteger wire = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final AtomicInteger peakPerPeer = new AtomicInteger();
+
+        FakeLink(Function<String, Integer> statuses) {
+            this.statuses = statuses;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> isFriend(String to) {
+            return CompletableFuture.completedFuture(!strangers.contains(to));
+        }
+
+        @Override
+        public CompletableFuture<OutboundMessageDispatcher.Reply> post(String to, String text) throws IOException {
+            if (throwingFor.contains(to)) {
+                throw new IllegalStateException("link broke");
+            }
+            posted.computeIfAbsent(to, peer -> Collections.synchronizedList(new ArrayList<>())).add(text);
+            AtomicInteger peer = onWire.computeIfAbsent(to, p -> new AtomicInteger());
+            peakPerPeer.accumulateAndGet(peer.incrementAndGet(), Math::max);
+            peak.accumulateAndGet(wire.incrementAndGet(), Math::max);
+
+            CompletableFuture<OutboundMessageDispatcher.Reply> reply = new CompletableFuture<>();
+            worker.schedule(() -> {
+                peer.decrementAndGet();
+                wire.decrementAndGet();
+                reply.complete(new OutboundMessageDispatcher.Reply(statuses.apply(text), ""));
+            }, ThreadLocalRandom.current().nextInt(3), TimeUnit.MILLISECONDS);
+            return reply;
+        }
+
+        @Override
+        public void friendRemoved(String to) {
+            removed.add(to);
+        }
+    }
+}
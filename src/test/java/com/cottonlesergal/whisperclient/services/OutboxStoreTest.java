@@ -0,0 +1,76 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxStoreTest {
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void savesSealedEntriesAndLoadsThemInSendOrder() throws Exception {
+        OutboxStore store = new OutboxStore(dir, name -> KEY);
+        OutboxStore.Entry failed = new OutboxStore.Entry("m2", "bob", "second", 200);
+        failed.attempts = 3;
+        failed.lastError = "HTTP 503";
+        store.save("bob", List.of(new OutboxStore.Entry("m1", "bob", "secret first", 100), failed));
+        store.save("carol", List.of(new OutboxStore.Entry("m3", "carol", "hi", 300)));
+
+        byte[] saved = Files.readAllBytes(dir.resolve("bob").resolve(OutboxStore.FILE_NAME));
+        assertFalse(new String(saved, StandardCharsets.ISO_8859_1).contains("secret"));
+
+        Map<String, List<OutboxStore.Entry>> outboxes = new OutboxStore(dir, name -> KEY).loadAll();
+        assertEquals(2, outboxes.size());
+        List<OutboxStore.Entry> bob = outboxes.get("bob");
+        assertEquals(List.of("m1", "m2"), bob.stream().map(entry -> entry.id).toList());
+        assertEquals("secret first", bob.get(0).text);
+        assertEquals(100, bob.get(0).queuedAt);
+        assertEquals(3, bob.get(1).attempts);
+        assertEquals("HTTP 503", bob.get(1).lastError);
+        assertEquals("carol", outboxes.get("carol").get(0).to);
+    }
+
+    @Test
+    void anEmptyOutboxRemovesItsFile() throws Exception {
+        OutboxStore store = new OutboxStore(dir, name -> KEY);
+        store.save("bob", List.of(new OutboxStore.Entry("m1", "bob", "hi", 100)));
+        assertTrue(Files.exists(dir.resolve("bob").resolve(OutboxStore.FILE_NAME)));
+
+        store.save("bob", List.of());
+        assertFalse(Files.exists(dir.resolve("bob").resolve(OutboxStore.FILE_NAME)));
+        assertTrue(store.loadAll().isEmpty());
+
+        // Nothing was ever queued for carol
+        store.save("carol", List.of());
+        assertFalse(Files.exists(dir.resolve("carol")));
+    }
+
+    @Test
+    void outboxesThatCannotBeOpenedAreLeftAlone() throws Exception {
+        new OutboxStore(dir, name -> KEY).save("bob", List.of(new OutboxStore.Entry("m1", "bob", "hi", 100)));
+        Files.createDirectories(dir.resolve("carol"));
+        Files.write(dir.resolve("carol").resolve(OutboxStore.FILE_NAME), new byte[40]);
+
+        // Another account's key opens neither file, and neither is removed
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        SecretKey wrong = new SecretKeySpec(otherKey, "AES");
+        assertTrue(new OutboxStore(dir, name -> wrong).loadAll().isEmpty());
+        assertTrue(Files.exists(dir.resolve("bob").resolve(OutboxStore.FILE_NAME)));
+
+        Map<String, List<OutboxStore.Entry>> outboxes = new OutboxStore(dir, name -> KEY).loadAll();
+        assertEquals(List.of("bob"), List.copyOf(outboxes.keySet()));
+    }
+}
@@ -0,0 +1,119 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageDecoderTest {
+    private static final SecretKey KEY = new SecretKeySpec(new byte[32], "AES");
+    private static final PageDecoder.Parser PARSER = plaintext -> {
+        String id = new String(plaintext, StandardCharsets.UTF_8);
+        if (id.startsWith("unparsable")) {
+            throw new IOException("bad record " + id);
+        }
+        return new ChatMessage(id, "bob", "me", "hello", "text", false);
+    };
+
+    private PageDecoder decoder;
+
+    @AfterEach
+    void tearDown() {
+        if (decoder != null) {
+            decoder.shutdown();
+        }
+    }
+
+    @Test
+    void parallelDecodeKeepsRecordOrderLikeTheSerialOne() throws Exception {
+        List<ByteBuffer> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(seal("m" + i));
+        }
+
+        decoder = new PageDecoder(4, false);
+        List<String> serial = ids(decoder.decodeEach(KEY, records, PARSER));
+
+        decoder.setParallel(true);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        List<String> parallel = ids(decoder.decodeEach(KEY, records, plaintext -> {
+            threads.add(Thread.currentThread().getName());
+            return PARSER.parse(plaintext);
+        }));
+
+        assertEquals(serial, parallel);
+        assertEquals("m0", parallel.get(0));
+        assertEquals("m99", parallel.get(99));
+        assertTrue(threads.size() > 1, "decoded on " + threads);
+
+        PageDecoder.ReadStats stats = decoder.getStats();
+        assertEquals(2, stats.loads);
+        assertEquals(1, stats.parallelLoads);
+        assertEquals(200, stats.messages);
+        assertEquals(0, stats.failures);
+    }
+
+    @Test
+    void smallReadsStayOnTheCallingThread() throws Exception {
+        decoder = new PageDecoder(4, true);
+        String caller = Thread.currentThread().getName();
+        List<ByteBuffer> records = List.of(seal("a"), seal("b"), seal("c"));
+
+        decoder.decodeEach(KEY, records, plaintext -> {
+            assertEquals(caller, Thread.currentThread().getName());
+            return PARSER.parse(plaintext);
+        });
+        assertEquals(0, decoder.getStats().parallelLoads);
+    }
+
+    @Test
+    void recordsThatFailToDecodeLeaveAGapInPlace() throws Exception {
+        decoder = new PageDecoder(3, true);
+        ByteBuffer tampered = seal("m2");
+        tampered.put(tampered.limit() - 1, (byte) (tampered.get(tampered.limit() - 1) ^ 1));
+
+        List<ByteBuffer> records = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            records.add(seal("m" + i));
+        }
+        records.set(2, tampered);
+        records.set(5, seal("unparsable"));
+        records.set(7, null);
+
+        ChatMessage[] decoded = decoder.decodeEach(KEY, records, PARSER);
+        assertEquals(12, decoded.length);
+        assertNull(decoded[2]);
+        assertNull(decoded[5]);
+        assertNull(decoded[7]);
+        assertEquals("m11", decoded[11].getId());
+
+        List<ChatMessage> kept = decoder.decode(KEY, records, PARSER);
+        assertEquals(9, kept.size());
+        assertEquals(List.of("m0", "m1", "m3"), ids(kept.subList(0, 3).toArray(new ChatMessage[0])));
+        // A missing record is not a failure, so two per decode
+        assertEquals(4, decoder.getStats().failures);
+    }
+
+    private static ByteBuffer seal(String id) throws Exception {
+        return ByteBuffer.wrap(StorageCipher.seal(KEY, id.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> ids(ChatMessage[] messages) {
+        List<String> ids = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            ids.add(message == null ? null : message.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,38 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordCompressorTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void presetDictionaryNeverChanges() throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(RecordCompressor.PRESET_DICTIONARY);
+        assertEquals("499f15609f3d8fd4fc01f0ca9e08ae3d169fd195c533df9748cd9a9eaa76688c",
+                HexFormat.of().formatHex(digest));
+    }
+
+    @Test
+    void roundTripsWithThePresetDictionary() throws Exception {
+        RecordCompressor compressor = RecordCompressor.open(dir, new SecretKeySpec(new byte[32], "AES"),
+                new RecordCompressor.Counters());
+        byte[] record = "{\"id\":\"1\",\"from\":\"a\",\"to\":\"b\",\"content\":\"sounds good see you later\",\"type\":\"text\"}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        byte[] compressed = compressor.compress(record);
+        assertEquals(RecordCompressor.MARKER, compressed[0]);
+        assertEquals(0, compressed[1]);
+        assertTrue(compressed.length < record.length);
+        assertArrayEquals(record, compressor.decompress(compressed));
+    }
+}
@@ -0,0 +1,80 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetentionSweeperTest {
+    private static final long NOW = 1_000_000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eachLimitCutsThePrefixItNeedsAndTheLongestWins() {
+        // Ten messages a second apart, 100 bytes each, oldest first
+        List<MessageIndex.IndexEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(new MessageIndex.IndexEntry(NOW - (10 - i) * 1000L, "m" + i,
+                    new MessageSegmentLog.RecordPointer(1, 8 + i * 200L, 100), false));
+        }
+
+        assertEquals(0, RetentionSweeper.expireCount(entries, new RetentionPolicy(), NOW));
+        assertEquals(3, RetentionSweeper.expireCount(entries, new RetentionPolicy(7000, 0, 0, 0), NOW));
+        assertEquals(4, RetentionSweeper.expireCount(entries, new RetentionPolicy(0, 6, 0, 0), NOW));
+        assertEquals(5, RetentionSweeper.expireCount(entries, new RetentionPolicy(0, 0, 550, 0), NOW));
+        assertEquals(5, RetentionSweeper.expireCount(entries, new RetentionPolicy(7000, 6, 550, 0), NOW));
+        assertEquals(10, RetentionSweeper.expireCount(entries, new RetentionPolicy(1, 0, 0, 0), NOW));
+        assertEquals(0, RetentionSweeper.expireCount(entries, new RetentionPolicy(0, 20, 2000, 0), NOW));
+        // Media limits never expire messages
+        assertEquals(0, RetentionSweeper.expireCount(entries, new RetentionPolicy(0, 0, 0, 1), NOW));
+    }
+
+    @Test
+    void manifestCheckSkipsConversationsWithinTheirLimits() {
+        ConversationManifest manifest = new ConversationManifest();
+        manifest.reset(10, 1000, NOW - 10_000, NOW, "m9");
+
+        assertFalse(RetentionSweeper.overLimit(manifest, new RetentionPolicy(20_000, 10, 1000, 0), NOW));
+        assertTrue(RetentionSweeper.overLimit(manifest, new RetentionPolicy(5_000, 0, 0, 0), NOW));
+        assertTrue(RetentionSweeper.overLimit(manifest, new RetentionPolicy(0, 9, 0, 0), NOW));
+        assertTrue(RetentionSweeper.overLimit(manifest, new RetentionPolicy(0, 0, 999, 0), NOW));
+
+        manifest.reset(0, 8, 0, 0, null);
+        assertFalse(RetentionSweeper.overLimit(manifest, new RetentionPolicy(1, 0, 0, 0), NOW));
+    }
+
+    @Test
+    void conversationPoliciesOverrideTheGlobalOneAndAreSaved() throws Exception {
+        RetentionSweeper sweeper = new RetentionSweeper(null, dir, null);
+        assertTrue(sweeper.effectivePolicy("bob").isUnlimited());
+
+        sweeper.setGlobalPolicy(new RetentionPolicy(0, 500, 0, 0));
+        sweeper.setPolicy("bob", new RetentionPolicy(60_000, 0, 0, 30_000));
+
+        RetentionSweeper reloaded = new RetentionSweeper(null, dir, null);
+        assertEquals(500, reloaded.effectivePolicy("carol").getMaxMessages());
+        assertEquals(60_000, reloaded.effectivePolicy("bob").getMaxAgeMillis());
+        assertEquals(30_000, reloaded.getPolicy("bob").getMediaMaxAgeMillis());
+        assertEquals(1, reloaded.getStats().conversationPolicies);
+
+        reloaded.setPolicy("bob", null);
+        assertEquals(500, reloaded.effectivePolicy("bob").getMaxMessages());
+        reloaded.setGlobalPolicy(null);
+        assertTrue(new RetentionSweeper(null, dir, null).effectivePolicy("bob").isUnlimited());
+    }
+
+    @Test
+    void unreadableSettingsKeepEverything() throws Exception {
+        Files.writeString(dir.resolve(RetentionSweeper.FILE_NAME), "{not json");
+        RetentionSweeper sweeper = new RetentionSweeper(null, dir, null);
+        assertTrue(sweeper.getGlobalPolicy().isUnlimited());
+        assertNull(sweeper.getPolicy("bob"));
+    }
+}
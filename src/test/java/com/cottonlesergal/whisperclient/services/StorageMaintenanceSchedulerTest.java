@@ -0,0 +1,139 @@
+package com.cottonlesergal.whisperclient.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class StorageMaintenanceSchedulerTest {
+    private StorageMaintenanceScheduler scheduler;
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void diskBudgetPacesJobsOnceTheBurstIsUsedUp() throws Exception {
+        scheduler = new StorageMaintenanceScheduler(100_000, 1.0);
+        StorageMaintenanceScheduler.JobContext context = scheduler.new JobContext();
+
+        // A second's worth goes through at once, the next 30 KB has to wait about 300 ms
+        context.charge(100_000);
+        assertEquals(0, context.throttledMillis());
+        long start = System.nanoTime();
+        context.charge(30_000);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(context.throttledMillis() >= 250, "throttled " + context.throttledMillis() + " ms");
+        assertTrue(waited >= 250, "waited " + waited + " ms");
+        assertEquals(130_000, context.bytesProcessed());
+    }
+
+    @Test
+    void cpuBudgetHoldsABusyJobToItsShare() throws Exception {
+        scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 0.25);
+        StorageMaintenanceScheduler.JobContext context = scheduler.new JobContext();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isCurrentThreadCpuTimeSupported());
+        long start = threads.getCurrentThreadCpuTime();
+        while (threads.getCurrentThreadCpuTime() - start < TimeUnit.MILLISECONDS.toNanos(100)) {
+            Math.sqrt(System.nanoTime());
+        }
+        context.checkpoint();
+
+        // 100 ms of CPU at a quarter of a core should take about 400 ms in all
+        assertTrue(context.throttledMillis() >= 100, "throttled " + context.throttledMillis() + " ms");
+    }
+
+    @Test
+    void budgetsAreClampedToSaneValues() {
+        scheduler = new StorageMaintenanceScheduler(0, 5.0);
+        assertEquals(1, scheduler.getIoBudget());
+        assertEquals(1.0, scheduler.getCpuBudget());
+        scheduler.setCpuBudget(0);
+        assertEquals(0.01, scheduler.getCpuBudget());
+    }
+
+    @Test
+    void userActivityHoldsJobsForTheQuietPeriod() throws Exception {
+        scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 1.0);
+        CountDownLatch ran = new CountDownLatch(1);
+        long[] startedAfter = {0};
+        long noted = System.currentTimeMillis();
+        scheduler.noteUserActivity();
+
+        scheduler.submit("quiet", 0, context -> {
+            startedAfter[0] = System.currentTimeMillis() - noted;
+            ran.countDown();
+        });
+
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertTrue(startedAfter[0] >= StorageMaintenanceScheduler.QUIET_PERIOD_MILLIS - 50,
+                "started after " + startedAfter[0] + " ms");
+    }
+
+    @Test
+    void keepsStatisticsPerJobIncludingFailures() throws Exception {
+        scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 1.0);
+        AtomicBoolean fail = new AtomicBoolean();
+        scheduler.register("job", TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), context -> {
+            context.charge(10);
+            if (fail.get()) {
+                throw new IllegalStateException("broken");
+            }
+        });
+
+        StorageMaintenanceScheduler.JobStats stats = scheduler.runNow("job").get(5, TimeUnit.SECONDS);
+        assertEquals(1, stats.runs);
+        assertTrue(stats.scheduled);
+        assertEquals(10, stats.lastBytesProcessed);
+
+        fail.set(true);
+        stats = scheduler.runNow("job").get(5, TimeUnit.SECONDS);
+        assertEquals(2, stats.runs);
+        assertEquals(1, stats.failures);
+        assertEquals("broken", stats.lastError);
+        assertEquals(20, stats.totalBytesProcessed);
+
+        scheduler.unregister("job");
+        assertFalse(scheduler.getJobStats().get(0).scheduled);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> scheduler.runNow("job").get());
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+    }
+
+    @Test
+    void shutdownStopsARunningJobAtItsNextCheckpoint() throws Exception {
+        scheduler = new StorageMaintenanceScheduler(Long.MAX_VALUE, 1.0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+
+        scheduler.submit("long", 0, context -> {
+            started.countDown();
+            release.await();
+            try {
+                context.checkpoint();
+            } catch (InterruptedException e) {
+                stopped.countDown();
+                throw e;
+            }
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        release.countDown();
+        assertTrue(stopped.await(5, TimeUnit.SECONDS));
+    }
+}
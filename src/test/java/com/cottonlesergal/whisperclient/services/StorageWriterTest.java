@@ -0,0 +1,134 @@
+package com.cottonlesergal.whisperclient.services;
+
+import com.cottonlesergal.whisperclient.services.MessageStorageService.ChatMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageWriterTest {
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    private StorageWriter writer;
+
+    @AfterEach
+    void tearDown() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    void writesMessagesInOrderInBatches() throws Exception {
+        writer = new StorageWriter(this::record, StorageWriter.DurabilityPolicy.FLUSH, 1024, 16, 50);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(writer.submit("bob", message("m" + i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+        assertEquals(100, written.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("bob/m" + i, written.get(i));
+        }
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 16), "batches are capped at maxBatch");
+        assertTrue(writer.getStats().averageBatchSize() > 1, "a burst is written in batches");
+        assertEquals(100, writer.getStats().messagesWritten);
+    }
+
+    @Test
+    void flushPolicyCompletesOnlyAfterTheWrite() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        writer = new StorageWriter((conversation, batch, fsync) -> {
+            release.await();
+            record(conversation, batch, fsync);
+        }, StorageWriter.DurabilityPolicy.FLUSH, 16, 16, 1);
+
+        CompletableFuture<Void> future = writer.submit("bob", message("m0"));
+        Thread.sleep(50);
+        assertFalse(future.isDone());
+
+        release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("bob/m0"), written);
+    }
+
+    @Test
+    void nonePolicyCompletesWhenQueued() {
+        CountDownLatch release = new CountDownLatch(1);
+        writer = new StorageWriter((conversation, batch, fsync) -> release.await(),
+                StorageWriter.DurabilityPolicy.NONE, 16, 16, 1);
+
+        assertTrue(writer.submit("bob", message("m0")).isDone());
+        release.countDown();
+    }
+
+    @Test
+    void failedWriteFailsEveryMessageInTheBatch() {
+        writer = new StorageWriter((conversation, batch, fsync) -> {
+            throw new IOException("disk full");
+        }, StorageWriter.DurabilityPolicy.FLUSH, 16, 16, 20);
+
+        CompletableFuture<Void> first = writer.submit("bob", message("m0"));
+        CompletableFuture<Void> second = writer.submit("bob", message("m1"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IOException);
+        assertTrue(first.isCompletedExceptionally());
+        assertEquals(2, writer.getStats().failedMessages);
+    }
+
+    @Test
+    void awaitPendingWritesOnTheCallingThread() {
+        writer = new StorageWriter(this::record, StorageWriter.DurabilityPolicy.FLUSH, 16, 16, 10_000);
+
+        writer.submit("bob", message("m0"));
+        writer.submit("carol", message("m1"));
+        writer.awaitPending("bob");
+
+        assertEquals(List.of("bob/m0"), written);
+    }
+
+    @Test
+    void submitAfterShutdownWritesDirectly() throws Exception {
+        writer = new StorageWriter(this::record, StorageWriter.DurabilityPolicy.FLUSH, 1, 16, 10_000);
+        writer.submit("bob", message("m0"));
+        writer.shutdown();
+
+        // The queue holds a single message; none of these may be turned away
+        for (int i = 1; i <= 3; i++) {
+            writer.submit("bob", message("m" + i)).get(1, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of("bob/m0", "bob/m1", "bob/m2", "bob/m3"), written);
+    }
+
+    @Test
+    void unknownDurabilityPolicyFallsBackToTheStrongest() {
+        assertEquals(StorageWriter.DurabilityPolicy.FLUSH, StorageWriter.DurabilityPolicy.parse(null));
+        assertEquals(StorageWriter.DurabilityPolicy.FLUSH, StorageWriter.DurabilityPolicy.parse(" "));
+        assertEquals(StorageWriter.DurabilityPolicy.NONE, StorageWriter.DurabilityPolicy.parse(" none "));
+        assertEquals(StorageWriter.DurabilityPolicy.FSYNC, StorageWriter.DurabilityPolicy.parse("Fsync"));
+        assertEquals(StorageWriter.DurabilityPolicy.FSYNC, StorageWriter.DurabilityPolicy.parse("fsnyc"));
+    }
+
+    private void record(String conversation, List<ChatMessage> batch, boolean fsync) {
+        batchSizes.add(batch.size());
+        for (ChatMessage message : batch) {
+            written.add(conversation + "/" + message.getId());
+        }
+    }
+
+    private static ChatMessage message(String id) {
+        return new ChatMessage(id, "bob", "me", "hello " + id, "text", false);
+    }
+}